@@ -0,0 +1,148 @@
+import com.livefish.Online.Connection;
+import com.livefish.Online.Message;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+/**
+ * Allocation benchmark of the per-message routing path: split and string concatenation against
+ * a reused Message with its reply builder
+ * Allocated bytes are read from com.sun.management.ThreadMXBean of the routing thread,
+ * replies are written to a loopback connection drained by another thread
+ * java -cp out:Test/out MessageBenchmark [messages]
+ *
+ * @author NAUMENKO-ZHIVOY ARTEM
+ * @version 2.0
+ */
+public class MessageBenchmark {
+    /**
+     * Default count of measured messages of every path
+     */
+    private static final int MESSAGES = 1_000_000;
+    /**
+     * Count of different messages routed in turn
+     */
+    private static final int LINES = 64;
+
+    private static final com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private static long sink;
+
+    public static void main(String[] args) throws Exception {
+        int messages = args.length > 0 ? Integer.parseInt(args[0]) : MESSAGES;
+        String[] adminLines = new String[LINES];
+        String[] clientLines = new String[LINES];
+        for (int i = 0; i < LINES; i++) {
+            adminLines[i] = "A$" + (11 + i) + "$cmd" + i + "$arg" + i + ",value$tok-" + i;
+            clientLines[i] = "C$10$" + (1000 + i) + "$OK";
+        }
+
+        try (ServerSocket server = new ServerSocket(0)) {
+            Thread drain = new Thread(() -> drain(server), "drain");
+            drain.setDaemon(true);
+            drain.start();
+            try (Connection connection = new Connection("127.0.0.1", server.getLocalPort())) {
+                for (int round = 0; round < 2; round++) {
+                    boolean measured = round == 1;
+                    int count = measured ? messages : messages / 5;
+                    run("split + concat", count, measured, () -> {
+                        for (int i = 0; i < count; i++) {
+                            splitAdmin(adminLines[i % LINES], connection, i);
+                            splitClient(clientLines[i % LINES], connection);
+                        }
+                    });
+                    Message message = new Message();
+                    run("reused Message", count, measured, () -> {
+                        for (int i = 0; i < count; i++) {
+                            messageAdmin(message.parse(adminLines[i % LINES]), connection, i);
+                            messageClient(message.parse(clientLines[i % LINES]), connection);
+                        }
+                    });
+                }
+            }
+        }
+        if (sink == 42)
+            System.out.println();
+    }
+
+    /**
+     * Routes one admin request like the server did before Message: regex checks, split and concatenation
+     */
+    private static void splitAdmin(String line, Connection connection, long requestId) throws IOException {
+        if (!line.matches("A\\$\\d+\\$.+\\$.+"))
+            return;
+        String[] split = line.split("\\$");
+        int clientId = Integer.parseInt(split[1]);
+        String token = split.length > 4 ? split[4] : null;
+        if (token != null && !token.matches("[\\w\\-.]{1,64}"))
+            return;
+        connection.writeLine(requestId + "$" + split[2] + "$" + split[3]);
+        connection.writeLine("ACK$" + requestId + "$" + clientId + (token == null ? "" : "$" + token));
+    }
+
+    /**
+     * Routes one client result like the server did before Message
+     */
+    private static void splitClient(String line, Connection connection) throws IOException {
+        if (!line.matches("C\\$\\d+\\$\\d+\\$.+"))
+            return;
+        String[] split = line.split("\\$");
+        int requestId = Integer.parseInt(split[2]);
+        connection.writeLine(split[1] + "$cmd$args$" + split[3] + "$" + requestId);
+    }
+
+    /**
+     * Routes one admin request with a reused Message, command, args and token strings are kept like in a request
+     */
+    private static void messageAdmin(Message message, Connection connection, long requestId) throws IOException {
+        if (!message.isAdminRequest())
+            return;
+        int clientId = message.intField(1);
+        String token = message.field(4);
+        String command = message.field(2);
+        String args = message.field(3);
+        sink += command.length() + args.length() + (token == null ? 0 : token.length());
+        StringBuilder reply = message.reply();
+        connection.writeLine(reply.append(requestId).append('$').append(command).append('$').append(args));
+        reply.setLength(0);
+        reply.append("ACK$").append(requestId).append('$').append(clientId);
+        connection.writeLine(token == null ? reply : reply.append('$').append(token));
+    }
+
+    /**
+     * Routes one client result with a reused Message, the result string is kept like in a request
+     */
+    private static void messageClient(Message message, Connection connection) throws IOException {
+        if (!message.isClientResult())
+            return;
+        int requestId = message.intField(2);
+        String success = message.field(3);
+        connection.writeLine(message.reply().append(message.intField(1)).append("$cmd$args$").append(success).append('$').append(requestId));
+    }
+
+    private interface Body {
+        void run() throws IOException;
+    }
+
+    private static void run(String name, int count, boolean print, Body body) throws IOException {
+        long thread = Thread.currentThread().getId();
+        long bytes = threads.getThreadAllocatedBytes(thread);
+        long start = System.nanoTime();
+        body.run();
+        long time = System.nanoTime() - start;
+        bytes = threads.getThreadAllocatedBytes(thread) - bytes;
+        if (print)
+            System.out.printf("%-16s %8.1f bytes/message %8.0f ns/message%n", name, bytes / (2.0 * count), time / (2.0 * count));
+    }
+
+    private static void drain(ServerSocket server) {
+        try (Socket socket = server.accept(); InputStream in = socket.getInputStream()) {
+            byte[] buf = new byte[64 * 1024];
+            while (in.read(buf) >= 0) ;
+        } catch (IOException ignored) {
+        }
+    }
+}
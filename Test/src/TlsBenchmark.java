@@ -0,0 +1,131 @@
+import javax.net.SocketFactory;
+import javax.net.ssl.*;
+import java.io.*;
+import java.net.Socket;
+import java.security.KeyStore;
+
+/**
+ * Handshake and throughput benchmark of the main server port with and without TLS
+ * Run it once against a plain server and once against a server started with -Dlivefish.tls=true:
+ * java TlsBenchmark host port adminId [truststore password]
+ * Without truststore the plain port is measured, negative adminId registers a new admin
+ *
+ * @author NAUMENKO-ZHIVOY ARTEM
+ * @version 2.0
+ */
+public class TlsBenchmark {
+    /**
+     * Count of connections for handshake measurement
+     */
+    private static final int CONNECTIONS = 300;
+    /**
+     * Count of request-reply pairs for throughput measurement
+     */
+    private static final int MESSAGES = 20000;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length != 3 && args.length != 5) {
+            System.out.println("Usage: java TlsBenchmark host port adminId [truststore password]");
+            return;
+        }
+        String host = args[0];
+        int port = Integer.parseInt(args[1]);
+        String adminId = args[2];
+
+        if (args.length == 3) {
+            handshakes("plain connect", SocketFactory.getDefault(), host, port, false);
+            throughput("plain", SocketFactory.getDefault(), host, port, adminId);
+            return;
+        }
+
+        KeyStore trust = KeyStore.getInstance("PKCS12");
+        try (InputStream in = new FileInputStream(args[3])) {
+            trust.load(in, args[4].toCharArray());
+        }
+        TrustManagerFactory trustManagers = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        trustManagers.init(trust);
+
+        // a new context for every connection has no cached sessions: every handshake is full
+        SSLContext[] fresh = new SSLContext[CONNECTIONS];
+        for (int i = 0; i < CONNECTIONS; i++) {
+            fresh[i] = SSLContext.getInstance("TLS");
+            fresh[i].init(null, trustManagers.getTrustManagers(), null);
+        }
+        long start = System.nanoTime();
+        for (SSLContext context : fresh)
+            handshake(context.getSocketFactory(), host, port);
+        report("TLS full handshake", CONNECTIONS, System.nanoTime() - start);
+
+        SSLContext shared = SSLContext.getInstance("TLS");
+        shared.init(null, trustManagers.getTrustManagers(), null);
+        handshake(shared.getSocketFactory(), host, port);
+        handshakes("TLS resumed handshake", shared.getSocketFactory(), host, port, true);
+        throughput("TLS", shared.getSocketFactory(), host, port, adminId);
+    }
+
+    /**
+     * Measures connections per second with one socket factory
+     */
+    private static void handshakes(String name, SocketFactory factory, String host, int port, boolean checkResumed) throws IOException {
+        int resumed = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < CONNECTIONS; i++) {
+            long before = System.currentTimeMillis();
+            SSLSession session = handshake(factory, host, port);
+            if (checkResumed && session != null && session.getCreationTime() < before)
+                resumed++;
+        }
+        report(name, CONNECTIONS, System.nanoTime() - start);
+        if (checkResumed)
+            System.out.println("  resumed sessions: " + resumed + " of " + CONNECTIONS);
+    }
+
+    /**
+     * Connects, sends a wrong login and reads the server answer (TLS 1.3 session tickets come after the handshake,
+     * so the connection must read something to be able to resume the session later)
+     */
+    private static SSLSession handshake(SocketFactory factory, String host, int port) throws IOException {
+        try (Socket socket = factory.createSocket(host, port)) {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
+            writer.write("PING");
+            writer.newLine();
+            writer.flush();
+            reader.readLine();
+            return socket instanceof SSLSocket ssl ? ssl.getSession() : null;
+        }
+    }
+
+    /**
+     * Measures request-reply throughput of an admin connection
+     */
+    private static void throughput(String name, SocketFactory factory, String host, int port, String adminId) throws IOException {
+        try (Socket socket = factory.createSocket(host, port)) {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
+            writer.write("A$" + adminId);
+            writer.newLine();
+            writer.flush();
+            String login = reader.readLine();
+            System.out.println("  login: " + login);
+            if (login == null || !login.startsWith("LOGIN$CONNECT"))
+                return;
+
+            long bytes = 0;
+            long start = System.nanoTime();
+            for (int i = 0; i < MESSAGES; i++) {
+                writer.write("A$INFO$ADMINS");
+                writer.newLine();
+                writer.flush();
+                bytes += reader.readLine().length() + 1;
+            }
+            long nanos = System.nanoTime() - start;
+            report(name + " request-reply", MESSAGES, nanos);
+            System.out.printf("  %.2f KB/s received%n", bytes / 1024.0 * 1e9 / nanos);
+        }
+    }
+
+    private static void report(String name, int count, long nanos) {
+        System.out.printf("%s: %d in %.1f ms, %.1f per second%n", name, count, nanos / 1e6, count * 1e9 / nanos);
+    }
+}
@@ -1,6 +1,7 @@
 package com.livefish;
 
 import com.livefish.Online.Server;
+import com.livefish.Online.ServerConfig;
 
 /**
  * com.livefish.Main program class
@@ -23,8 +24,10 @@ public class Main {
      *
      * @param args command line arguments
      * @see Server#getInstance()
+     * @see ServerConfig#applyJdkProperties()
      */
     public static void main(String[] args) {
+        ServerConfig.applyJdkProperties();
         Server.getInstance();
     }
 }
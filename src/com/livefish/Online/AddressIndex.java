@@ -0,0 +1,171 @@
+package com.livefish.Online;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.*;
+
+/**
+ * Index of online clients by their peer addresses
+ * Clients of one address are found with one map lookup, clients of a subnet with a scan of the addresses only
+ * Addresses are the ones cached by connections at accept time, the index never resolves host names
+ *
+ * @author NAUMENKO-ZHIVOY ARTEM
+ * @version 2.0
+ * @see Connection#getIp()
+ * @see Connection#getAddress()
+ */
+public class AddressIndex {
+    /**
+     * IPv4 address literal pattern
+     */
+    private static final String IPV4_PATTERN = "\\d{1,3}(\\.\\d{1,3}){3}";
+    /**
+     * IPv6 address literal pattern (checked by InetAddress after the pattern)
+     */
+    private static final String IPV6_PATTERN = "[0-9a-fA-F:.]*:[0-9a-fA-F:.]*";
+
+    /**
+     * Online clients of every address
+     */
+    private final Map<String, Set<Client>> clientsByIp = new HashMap<>();
+    /**
+     * Raw bytes of every address
+     */
+    private final Map<String, byte[]> addresses = new HashMap<>();
+
+    /**
+     * Adds an online client
+     *
+     * @param client Logged in client
+     */
+    public synchronized void add(Client client) {
+        String ip = client.getIp();
+        byte[] address = client.getAddress();
+        if (address == null)
+            return;
+        clientsByIp.computeIfAbsent(ip, key -> new HashSet<>()).add(client);
+        addresses.putIfAbsent(ip, address);
+    }
+
+    /**
+     * Removes a disconnected client
+     *
+     * @param client Disconnected client (may be null or not indexed)
+     */
+    public synchronized void remove(Client client) {
+        if (client == null)
+            return;
+        String ip = client.getIp();
+        Set<Client> clients = clientsByIp.get(ip);
+        if (clients != null && clients.remove(client) && clients.isEmpty()) {
+            clientsByIp.remove(ip);
+            addresses.remove(ip);
+        }
+    }
+
+    /**
+     * Removes all clients
+     */
+    public synchronized void clear() {
+        clientsByIp.clear();
+        addresses.clear();
+    }
+
+    /**
+     * Online clients of an address or of a subnet
+     *
+     * @param query Address literal (a.b.c.d, IPv6) or subnet (address/prefix length)
+     * @return Clients sorted by id
+     * @throws IllegalArgumentException query is not an address literal or a subnet
+     */
+    public List<Client> find(String query) {
+        int slash = query.indexOf('/');
+        byte[] network = parseLiteral(slash < 0 ? query : query.substring(0, slash));
+        int prefix = network.length * 8;
+        if (slash >= 0) {
+            String bits = query.substring(slash + 1);
+            if (!bits.matches("\\d{1,3}") || Integer.parseInt(bits) > prefix)
+                throw new IllegalArgumentException("Invalid prefix length: " + bits);
+            prefix = Integer.parseInt(bits);
+        }
+
+        List<Client> res = new ArrayList<>();
+        synchronized (this) {
+            if (prefix == network.length * 8)
+                res.addAll(clientsByIp.getOrDefault(canonical(network), Set.of()));
+            else
+                for (Map.Entry<String, byte[]> entry : addresses.entrySet())
+                    if (inSubnet(entry.getValue(), network, prefix))
+                        res.addAll(clientsByIp.get(entry.getKey()));
+        }
+        res.sort(Comparator.comparingInt(Client::getId));
+        return res;
+    }
+
+    /**
+     * Address index statistics
+     *
+     * @return addresses=..,clients=..,maxPerAddress=..
+     */
+    public synchronized String stats() {
+        int clients = 0, max = 0;
+        for (Set<Client> cur : clientsByIp.values()) {
+            clients += cur.size();
+            max = Math.max(max, cur.size());
+        }
+        return "addresses=" + clientsByIp.size() + ",clients=" + clients + ",maxPerAddress=" + max;
+    }
+
+    /**
+     * Parses an address literal without host name resolution
+     *
+     * @param literal IPv4 or IPv6 address literal
+     * @return Raw address bytes
+     * @throws IllegalArgumentException not an address literal
+     */
+    private static byte[] parseLiteral(String literal) {
+        if (!literal.matches(IPV4_PATTERN) && !literal.matches(IPV6_PATTERN))
+            throw new IllegalArgumentException("Invalid address: " + literal);
+        try {
+            return InetAddress.getByName(literal).getAddress();
+        } catch (UnknownHostException e) {
+            throw new IllegalArgumentException("Invalid address: " + literal, e);
+        }
+    }
+
+    /**
+     * Address text as connections cache it
+     *
+     * @param address Raw address
+     * @return Address text of InetAddress#getHostAddress()
+     */
+    private static String canonical(byte[] address) {
+        try {
+            return InetAddress.getByAddress(address).getHostAddress();
+        } catch (UnknownHostException e) {
+            throw new IllegalArgumentException("Invalid address length: " + address.length, e);
+        }
+    }
+
+    /**
+     * Subnet check function
+     *
+     * @param address Raw address
+     * @param network Raw subnet address
+     * @param prefix  Subnet prefix length in bits
+     * @return True if the address is in the subnet (addresses of another family never are)
+     */
+    private static boolean inSubnet(byte[] address, byte[] network, int prefix) {
+        if (address.length != network.length)
+            return false;
+        int bytes = prefix / 8;
+        for (int i = 0; i < bytes; i++)
+            if (address[i] != network[i])
+                return false;
+        int bits = prefix % 8;
+        if (bits == 0)
+            return true;
+        int mask = 0xFF << (8 - bits) & 0xFF;
+        return (address[bytes] & mask) == (network[bytes] & mask);
+    }
+}
@@ -0,0 +1,161 @@
+package com.livefish.Online;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Slab of connection I/O buffers
+ * Memory is allocated on demand in segments of SEGMENT_CHUNKS chunks up to a global cap,
+ * connections borrow a chunk only while they have data in flight and give it back when they go idle
+ * When the cap is reached, borrowers get one-off heap buffers, so a connection never fails for lack of a chunk
+ * DIRECT chunks (off-heap) are used by plain connections with a socket channel,
+ * HEAP chunks by stream connections (TLS, outgoing), which need byte arrays
+ *
+ * @author NAUMENKO-ZHIVOY ARTEM
+ * @version 2.0
+ * @see Connection
+ * @see ServerConfig#BUFFER_CHUNK
+ */
+public final class BufferSlab {
+    /**
+     * Off-heap slab of plain channel connections
+     */
+    public static final BufferSlab DIRECT = new BufferSlab(true, ServerConfig.BUFFER_CHUNK, ServerConfig.BUFFER_DIRECT_MAX);
+    /**
+     * Heap slab of stream connections
+     */
+    public static final BufferSlab HEAP = new BufferSlab(false, ServerConfig.BUFFER_CHUNK, ServerConfig.BUFFER_HEAP_MAX);
+
+    /**
+     * Count of chunks in one allocated segment
+     */
+    private static final int SEGMENT_CHUNKS = 128;
+
+    /**
+     * Are chunks off-heap
+     */
+    private final boolean direct;
+    /**
+     * Chunk size in bytes
+     */
+    private final int chunkSize;
+    /**
+     * Max count of segments
+     */
+    private final int maxSegments;
+    /**
+     * Free chunks (an array queue does not allocate nodes on borrow and release)
+     */
+    private final ArrayBlockingQueue<ByteBuffer> free;
+
+    /**
+     * Count of allocated segments
+     */
+    private int segments;
+    /**
+     * Count of borrowed chunks
+     */
+    private final AtomicInteger inUse = new AtomicInteger();
+    /**
+     * Max count of borrowed chunks at the same time
+     */
+    private final AtomicInteger peak = new AtomicInteger();
+    /**
+     * Count of borrows
+     */
+    private final AtomicLong borrows = new AtomicLong();
+    /**
+     * Count of one-off buffers given because the slab was full
+     */
+    private final AtomicLong overflows = new AtomicLong();
+
+    /**
+     * Slab construction function, no memory is allocated until the first borrow
+     *
+     * @param direct    Are chunks off-heap
+     * @param chunkSize Chunk size in bytes
+     * @param maxBytes  Max memory of the slab in bytes (at least one segment)
+     */
+    public BufferSlab(boolean direct, int chunkSize, long maxBytes) {
+        this.direct = direct;
+        this.chunkSize = chunkSize;
+        this.maxSegments = (int) Math.max(1, Math.min(Integer.MAX_VALUE / SEGMENT_CHUNKS, maxBytes / ((long) chunkSize * SEGMENT_CHUNKS)));
+        this.free = new ArrayBlockingQueue<>(maxSegments * SEGMENT_CHUNKS);
+    }
+
+    /**
+     * Takes a free chunk, allocating a new segment if there is none
+     *
+     * @return Cleared chunk of the slab, or a one-off heap buffer of the same size if the slab is full
+     * @see BufferSlab#release(ByteBuffer)
+     */
+    public ByteBuffer borrow() {
+        borrows.incrementAndGet();
+        ByteBuffer buf = free.poll();
+        if (buf == null)
+            buf = grow();
+        if (buf == null) {
+            overflows.incrementAndGet();
+            return ByteBuffer.allocate(chunkSize);
+        }
+        peak.accumulateAndGet(inUse.incrementAndGet(), Math::max);
+        return buf.clear();
+    }
+
+    /**
+     * Gives back a chunk taken by {@link BufferSlab#borrow()}, one-off buffers are just dropped
+     * The buffer must not be used after the call
+     *
+     * @param buf Chunk to give back (may be null)
+     */
+    public void release(ByteBuffer buf) {
+        if (buf == null || !owns(buf))
+            return;
+        inUse.decrementAndGet();
+        free.offer(buf);
+    }
+
+    /**
+     * Checks if a buffer is a chunk of this slab
+     *
+     * @param buf Buffer to check
+     * @return True if the buffer was cut from a segment of this slab
+     */
+    private boolean owns(ByteBuffer buf) {
+        if (buf.capacity() != chunkSize)
+            return false;
+        return direct ? buf.isDirect() : buf.hasArray() && buf.array().length == chunkSize * SEGMENT_CHUNKS;
+    }
+
+    /**
+     * Allocates a new segment and puts its chunks to the free queue
+     *
+     * @return One chunk of the new segment, null if the cap is reached
+     */
+    private synchronized ByteBuffer grow() {
+        ByteBuffer buf = free.poll();
+        if (buf != null || segments == maxSegments)
+            return buf;
+        ByteBuffer segment = direct ? ByteBuffer.allocateDirect(chunkSize * SEGMENT_CHUNKS) : ByteBuffer.allocate(chunkSize * SEGMENT_CHUNKS);
+        segments++;
+        for (int i = 1; i < SEGMENT_CHUNKS; i++)
+            free.offer(segment.slice(i * chunkSize, chunkSize));
+        return segment.slice(0, chunkSize);
+    }
+
+    /**
+     * Slab statistics
+     *
+     * @return chunk=..,allocated=..,max=..,inUse=..,peak=..,borrows=..,overflows=.. (sizes in bytes)
+     */
+    public String stats() {
+        int allocated;
+        synchronized (this) {
+            allocated = segments;
+        }
+        return "chunk=" + chunkSize + ",allocated=" + (long) allocated * SEGMENT_CHUNKS * chunkSize + ",max=" + (long) maxSegments * SEGMENT_CHUNKS * chunkSize +
+                ",inUse=" + inUse.get() + ",peak=" + peak.get() + ",borrows=" + borrows.get() + ",overflows=" + overflows.get();
+    }
+}
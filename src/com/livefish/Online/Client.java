@@ -2,6 +2,8 @@ package com.livefish.Online;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Connected client representation type
@@ -18,6 +20,11 @@ public class Client implements Closeable {
      * Connection to communicat through
      */
     private final Connection connection;
+    private final AtomicBoolean disconnected = new AtomicBoolean();
+    /**
+     * Is the presence claim of the id held by this client
+     */
+    private final AtomicBoolean claimed = new AtomicBoolean();
 
     public Client(Connection connection) {
         this.clientThread = null;
@@ -47,6 +54,10 @@ public class Client implements Closeable {
         return connection.getIp();
     }
 
+    public byte[] getAddress() {
+        return connection.getAddress();
+    }
+
     public boolean isAdmin() {
         return root == ClientRoot.ADMIN;
     }
@@ -71,6 +82,50 @@ public class Client implements Closeable {
         connection.writeLine(msg);
     }
 
+    public void writeLine(String msg, Lane lane) throws IOException {
+        connection.writeLine(msg, lane);
+    }
+
+    public void writeLine(StringBuilder msg) throws IOException {
+        connection.writeLine(msg);
+    }
+
+    public void writeLines(List<String> msgs) throws IOException {
+        connection.writeLines(msgs);
+    }
+
+    public void enableCompression(int threshold, int level) {
+        connection.enableCompression(threshold, level);
+    }
+
+    public void disableCompression() {
+        connection.disableCompression();
+    }
+
+    public boolean markDisconnected() {
+        return disconnected.compareAndSet(false, true);
+    }
+
+    /**
+     * Marks the presence claim of the id as held by this client
+     */
+    public void markClaimed() {
+        claimed.set(true);
+    }
+
+    /**
+     * Takes the presence claim of the id from this client
+     *
+     * @return True if the claim was held and must be released (only once)
+     */
+    public boolean releaseClaim() {
+        return claimed.getAndSet(false);
+    }
+
+    public boolean isCompressed() {
+        return connection.isCompressed();
+    }
+
     @Override
     public void close() throws IOException {
         if (clientThread != null)
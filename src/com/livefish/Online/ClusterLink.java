@@ -0,0 +1,391 @@
+package com.livefish.Online;
+
+import com.livefish.Output.Console.Logger;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+/**
+ * Link between server nodes of a cluster
+ * Every node owns a part of client ids (consistent hashing), clients log in to the node owning their id,
+ * admin commands to ids of other nodes are forwarded to their owners and results are relayed back
+ * Every node listens on its link port, connections to other nodes are opened on the first message
+ * and start with HELLO$node name$time$mac, then every line is a message:
+ * FWD$admin id$client id$command$args[$token] - admin command for a client of the receiving node,
+ * RELAY$admin id$message - message for an admin connected to the receiving node
+ * A node connection is accepted only from an address of the node it names, with a cluster secret
+ * mac is the hex HMAC-SHA256 of "node name$time$receiving node name" (time in milliseconds),
+ * which is accepted once and only within HELLO_WINDOW of the receiving node clock
+ *
+ * @author NAUMENKO-ZHIVOY ARTEM
+ * @version 2.0
+ * @see ServerConfig#CLUSTER
+ * @see HashRing
+ * @see RemoteAdmin
+ */
+public class ClusterLink {
+    /**
+     * Cluster node address
+     *
+     * @param name     Node name
+     * @param host     Node host
+     * @param port     Main port for clients and admins
+     * @param linkPort Port for other nodes
+     */
+    public record Node(String name, String host, int port, int linkPort) {
+    }
+
+    /**
+     * Max difference between the HELLO time and the receiving node clock in milliseconds
+     */
+    private static final long HELLO_WINDOW = 30_000;
+
+    /**
+     * This node
+     */
+    private final Node self;
+    /**
+     * All cluster nodes by their names (this node too)
+     */
+    private final Map<String, Node> nodes;
+    /**
+     * Id owners
+     */
+    private final HashRing ring;
+    /**
+     * Open connections to other nodes by node names
+     */
+    private final Map<String, Connection> peers = new ConcurrentHashMap<>();
+    /**
+     * Logger instance for console
+     */
+    private final Logger logger = Logger.getInstance();
+    /**
+     * Count of sent messages
+     */
+    private final AtomicLong sent = new AtomicLong();
+    /**
+     * Count of received messages
+     */
+    private final AtomicLong received = new AtomicLong();
+    /**
+     * Link port server socket (null before the link is started)
+     */
+    private volatile ServerSocket server;
+    /**
+     * HMAC key of the cluster secret (null if there is no secret)
+     */
+    private final SecretKeySpec key;
+    /**
+     * Node connect timeout in milliseconds
+     */
+    private final int connectTimeout;
+    /**
+     * Accepted HELLO macs with their times, a mac is never accepted twice within HELLO_WINDOW
+     */
+    private final Map<String, Long> accepted = new ConcurrentHashMap<>();
+
+    /**
+     * Cluster link construction function
+     *
+     * @param self    This node name
+     * @param cluster        Cluster nodes as comma separated name=host:port:link port
+     * @param secret         Secret shared by all nodes (empty to check node connections by their addresses only)
+     * @param connectTimeout Node connect timeout in milliseconds
+     * @throws IllegalArgumentException if the node list is invalid or does not contain this node
+     */
+    public ClusterLink(String self, String cluster, String secret, int connectTimeout) {
+        nodes = new LinkedHashMap<>();
+        for (String part : cluster.split(",")) {
+            String[] node = part.trim().split("[=:]");
+            if (node.length != 4 || !node[2].matches("\\d{1,5}") || !node[3].matches("\\d{1,5}"))
+                throw new IllegalArgumentException("Invalid cluster node: " + part);
+            nodes.put(node[0], new Node(node[0], node[1], Integer.parseInt(node[2]), Integer.parseInt(node[3])));
+        }
+        if (!nodes.containsKey(self))
+            throw new IllegalArgumentException("Node " + self + " is not in the cluster: " + cluster);
+        this.self = nodes.get(self);
+        this.ring = new HashRing(nodes.keySet());
+        this.key = secret.isEmpty() ? null : new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), "HmacSHA256");
+        this.connectTimeout = connectTimeout;
+    }
+
+    /**
+     * This node getter
+     *
+     * @return This node
+     */
+    public Node self() {
+        return self;
+    }
+
+    /**
+     * Id owner getting function
+     *
+     * @param id Client id
+     * @return Node, which owns the id
+     */
+    public Node owner(int id) {
+        return nodes.get(ring.owner(id));
+    }
+
+    /**
+     * Checks if an id belongs to this node
+     *
+     * @param id Client id
+     * @return True if this node owns the id
+     */
+    public boolean isLocal(int id) {
+        return ring.owner(id).equals(self.name());
+    }
+
+    /**
+     * Starts listening for other nodes
+     * Every node connection is read by its own thread, messages are given to the handler with the sender node name
+     *
+     * @param handler Message handler (node name, message)
+     * @throws IOException exception during link port opening
+     */
+    public void start(BiConsumer<String, String> handler) throws IOException {
+        server = new ServerSocket(self.linkPort());
+        logger.print("Cluster node " + self.name() + " of " + nodes.keySet() + ", link port: " + self.linkPort(), "Yellow");
+        if (key == null)
+            logger.print("No cluster secret (livefish.cluster.secret): node connections are checked by their addresses only", "Error");
+        new Thread(() -> {
+            while (!server.isClosed()) {
+                Connection connection;
+                try {
+                    connection = new Connection(server);
+                } catch (RuntimeException e) {
+                    break;
+                }
+                new Thread(() -> read(connection, handler), "Cluster link").start();
+            }
+        }, "Cluster").start();
+    }
+
+    /**
+     * Reads messages of one node connection until it is closed
+     *
+     * @param connection Node connection
+     * @param handler    Message handler
+     */
+    private void read(Connection connection, BiConsumer<String, String> handler) {
+        try (connection) {
+            String hello = connection.readLine();
+            String node = authenticate(connection, hello);
+            if (node == null) {
+                logger.print("Rejected cluster node connection from " + connection.getIp() + ": " + hello, "Wrong data");
+                return;
+            }
+            String line;
+            while ((line = connection.readLine()) != null) {
+                received.incrementAndGet();
+                handler.accept(node, line);
+            }
+        } catch (IOException ignored) {
+            // the node is stopped or lost, it connects again when it has something to send
+        }
+    }
+
+    /**
+     * Checks the first line of a node connection
+     *
+     * @param connection Node connection
+     * @param hello      First line: HELLO$node name$time$mac
+     * @return Name of the node, null if the line is invalid, the address is not the node one or the mac is wrong
+     */
+    private String authenticate(Connection connection, String hello) {
+        String[] split = hello == null ? new String[0] : hello.split("\\$");
+        if (split.length != 4 || !split[0].equals("HELLO") || !split[2].matches("\\d{1,19}"))
+            return null;
+        Node node = nodes.get(split[1]);
+        if (node == null || node == self || !isAddressOf(node, connection.getAddress()))
+            return null;
+        if (key == null)
+            return node.name();
+
+        long time = Long.parseLong(split[2]), now = System.currentTimeMillis();
+        if (Math.abs(now - time) > HELLO_WINDOW)
+            return null;
+        byte[] expected = mac(node.name() + "$" + time + "$" + self.name()).getBytes(StandardCharsets.US_ASCII);
+        if (!MessageDigest.isEqual(expected, split[3].getBytes(StandardCharsets.US_ASCII)))
+            return null;
+        accepted.values().removeIf(seen -> now - seen > 2 * HELLO_WINDOW);
+        return accepted.putIfAbsent(split[3], now) == null ? node.name() : null;
+    }
+
+    /**
+     * Checks if an address is one of the addresses of a node host
+     *
+     * @param node    Cluster node
+     * @param address Raw peer address (may be null)
+     * @return True if the node host resolves to the address
+     */
+    private static boolean isAddressOf(Node node, byte[] address) {
+        if (address == null)
+            return false;
+        try {
+            for (InetAddress cur : InetAddress.getAllByName(node.host()))
+                if (Arrays.equals(cur.getAddress(), address))
+                    return true;
+        } catch (UnknownHostException ignored) {
+            // an unresolvable node can't connect
+        }
+        return false;
+    }
+
+    /**
+     * First line of a connection to a node
+     *
+     * @param to Name of the node to connect to
+     * @return HELLO$this node name$time$mac (mac is - if there is no secret)
+     */
+    private String hello(String to) {
+        long time = System.currentTimeMillis();
+        return "HELLO$" + self.name() + "$" + time + "$" + (key == null ? "-" : mac(self.name() + "$" + time + "$" + to));
+    }
+
+    /**
+     * Hex HMAC-SHA256 of a text with the cluster secret
+     *
+     * @param text Text to sign
+     * @return Lower case hex mac
+     */
+    private String mac(String text) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(key);
+            return HexFormat.of().formatHex(mac.doFinal(text.getBytes(StandardCharsets.UTF_8)));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HmacSHA256 is not available", e);
+        }
+    }
+
+    /**
+     * Message sending function
+     * Opens a connection to the node if there is no one, a broken connection is opened again once
+     * Connecting takes no lock, so an unreachable node delays only its own senders, at most for the connect timeout
+     *
+     * @param name Node name
+     * @param msg  A message to send
+     * @return True if the message was written, false if the node is unknown or unreachable
+     */
+    public boolean send(String name, String msg) {
+        Node node = nodes.get(name);
+        if (node == null || node == self)
+            return false;
+        Connection connection = peers.get(name);
+        for (int attempt = 0; attempt < 2; attempt++) {
+            try {
+                if (connection == null)
+                    connection = connect(node);
+                connection.writeLine(msg);
+                sent.incrementAndGet();
+                return true;
+            } catch (IOException | RuntimeException e) {
+                drop(name, connection);
+                connection = null;
+            }
+        }
+        logger.print("Cluster node " + name + " (" + node.host() + ":" + node.linkPort() + ") is unreachable", "Error");
+        return false;
+    }
+
+    /**
+     * Opens a connection to a node, if another thread has opened one meanwhile, its connection is used
+     *
+     * @param node Node to connect to
+     * @return Open connection to the node
+     * @throws IOException exception during writing HELLO
+     */
+    private Connection connect(Node node) throws IOException {
+        Connection connection = new Connection(node.host(), node.linkPort(), connectTimeout);
+        try {
+            connection.writeLine(hello(node.name()));
+        } catch (IOException e) {
+            connection.close();
+            throw e;
+        }
+        Connection cur = peers.putIfAbsent(node.name(), connection);
+        if (cur != null) {
+            connection.close();
+            return cur;
+        }
+        watch(node.name(), connection);
+        return connection;
+    }
+
+    /**
+     * Drops an outgoing connection as soon as the other node closes it, so the next message opens a new one
+     * (a write to a closed socket does not always fail at once)
+     *
+     * @param name       Node name
+     * @param connection Outgoing connection
+     */
+    private void watch(String name, Connection connection) {
+        Thread watcher = new Thread(() -> {
+            try {
+                while (connection.readLine() != null) ;
+            } catch (IOException ignored) {
+                // the node is lost
+            }
+            drop(name, connection);
+        }, "Cluster peer: " + name);
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
+    /**
+     * Closes and forgets an outgoing connection
+     *
+     * @param name       Node name
+     * @param connection Connection to close (null does nothing)
+     */
+    private void drop(String name, Connection connection) {
+        if (connection == null)
+            return;
+        peers.remove(name, connection);
+        try {
+            connection.close();
+        } catch (IOException ignored) {
+            // already closed
+        }
+    }
+
+    /**
+     * Stops listening and closes all node connections
+     */
+    public void stop() {
+        try {
+            if (server != null)
+                server.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        peers.forEach(this::drop);
+    }
+
+    /**
+     * Cluster link statistics
+     *
+     * @return node=..,nodes=..,peers=..,sent=..,received=..
+     */
+    public String stats() {
+        return "node=" + self.name() + ",nodes=" + nodes.keySet() + ",peers=" + peers.keySet() + ",sent=" + sent.get() + ",received=" + received.get();
+    }
+}
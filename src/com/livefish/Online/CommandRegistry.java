@@ -0,0 +1,211 @@
+package com.livefish.Online;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Protocol command dispatch table
+ * A command is found by its opcode (one field of a message) with one lookup in an open addressing table,
+ * hashed and compared in place, so dispatching builds no strings
+ * Every command counts its calls, unhandled calls (bad syntax), failures and handling time
+ *
+ * @author NAUMENKO-ZHIVOY ARTEM
+ * @version 2.0
+ * @see Message
+ * @see Server
+ */
+public final class CommandRegistry {
+    /**
+     * Command handler
+     */
+    @FunctionalInterface
+    public interface Handler {
+        /**
+         * Handles a command message
+         *
+         * @param message Parsed message, only valid until the handler returns
+         * @param client  Client who sent the message
+         * @return True if the message was handled, false to route it further
+         * @throws IOException exception during online communication
+         */
+        boolean handle(Message message, Client client) throws IOException;
+    }
+
+    /**
+     * Registered command with its metrics
+     */
+    private static final class Command {
+        /**
+         * Command opcode
+         */
+        final String opcode;
+        /**
+         * Opcode hash
+         */
+        final int hash;
+        /**
+         * Roles allowed to use the command
+         */
+        final Set<ClientRoot> roles;
+        /**
+         * Command handler
+         */
+        final Handler handler;
+        /**
+         * Count of calls
+         */
+        final LongAdder calls = new LongAdder();
+        /**
+         * Count of calls the handler did not handle
+         */
+        final LongAdder unhandled = new LongAdder();
+        /**
+         * Count of calls which threw an exception
+         */
+        final LongAdder errors = new LongAdder();
+        /**
+         * Total handling time in nanoseconds
+         */
+        final LongAdder nanos = new LongAdder();
+        /**
+         * Max handling time in nanoseconds
+         */
+        final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+
+        Command(String opcode, int hash, Set<ClientRoot> roles, Handler handler) {
+            this.opcode = opcode;
+            this.hash = hash;
+            this.roles = roles;
+            this.handler = handler;
+        }
+    }
+
+    /**
+     * Name written before opcodes in statistics
+     */
+    private final String name;
+    /**
+     * Are opcodes compared ignoring case
+     */
+    private final boolean ignoreCase;
+    /**
+     * Index of the opcode field in messages
+     */
+    private final int field;
+    /**
+     * Commands in registration order
+     */
+    private final List<Command> commands = new ArrayList<>();
+    /**
+     * Open addressing table of commands (its length is a power of two, at least twice the count of commands)
+     */
+    private volatile Command[] table = new Command[8];
+
+    /**
+     * Registry construction function
+     *
+     * @param name       Name written before opcodes in statistics ("" for top-level commands)
+     * @param field      Index of the opcode field in messages
+     * @param ignoreCase Are opcodes compared ignoring case
+     */
+    public CommandRegistry(String name, int field, boolean ignoreCase) {
+        this.name = name;
+        this.field = field;
+        this.ignoreCase = ignoreCase;
+    }
+
+    /**
+     * Adds a command
+     *
+     * @param opcode  Command opcode
+     * @param roles   Roles allowed to use the command, messages of other roles are routed further
+     * @param handler Command handler
+     * @throws IllegalArgumentException the opcode is already registered
+     */
+    public synchronized void register(String opcode, Set<ClientRoot> roles, Handler handler) {
+        String key = ignoreCase ? opcode.toUpperCase(Locale.ROOT) : opcode;
+        for (Command cur : commands)
+            if (cur.opcode.equals(key))
+                throw new IllegalArgumentException("Command " + name + key + " is already registered");
+        commands.add(new Command(key, Message.hash(key, 0, key.length(), ignoreCase), EnumSet.copyOf(roles), handler));
+
+        int size = table.length;
+        while (size < commands.size() * 2)
+            size *= 2;
+        Command[] res = new Command[size];
+        for (Command cur : commands) {
+            int i = cur.hash & (size - 1);
+            while (res[i] != null)
+                i = (i + 1) & (size - 1);
+            res[i] = cur;
+        }
+        table = res;
+    }
+
+    /**
+     * Finds and runs the command of a message
+     *
+     * @param message Parsed message
+     * @param client  Client who sent the message
+     * @return True if the message was handled by a command
+     * @throws IOException exception during online communication
+     */
+    public boolean dispatch(Message message, Client client) throws IOException {
+        Command command = find(message);
+        if (command == null || !command.roles.contains(client.root))
+            return false;
+
+        long start = System.nanoTime();
+        boolean handled = false, failed = true;
+        try {
+            handled = command.handler.handle(message, client);
+            failed = false;
+            return handled;
+        } finally {
+            long time = System.nanoTime() - start;
+            command.calls.increment();
+            command.nanos.add(time);
+            command.maxNanos.accumulate(time);
+            if (failed)
+                command.errors.increment();
+            else if (!handled)
+                command.unhandled.increment();
+        }
+    }
+
+    /**
+     * Command statistics
+     *
+     * @return name opcode:calls=..,unhandled=..,errors=..,avgUs=..,maxUs=..;... in registration order
+     */
+    public synchronized String stats() {
+        StringJoiner res = new StringJoiner(";");
+        for (Command cur : commands) {
+            long calls = cur.calls.sum();
+            res.add(name + cur.opcode + ":calls=" + calls + ",unhandled=" + cur.unhandled.sum() + ",errors=" + cur.errors.sum() +
+                    ",avgUs=" + (calls == 0 ? 0 : cur.nanos.sum() / calls / 1000) + ",maxUs=" + cur.maxNanos.get() / 1000);
+        }
+        return res.toString();
+    }
+
+    /**
+     * Looks up the command of a message opcode
+     *
+     * @param message Parsed message
+     * @return Registered command, null if there is none
+     */
+    private Command find(Message message) {
+        if (field >= message.count())
+            return null;
+        Command[] cur = table;
+        int mask = cur.length - 1;
+        for (int i = message.fieldHash(field, ignoreCase) & mask; cur[i] != null; i = (i + 1) & mask) {
+            Command command = cur[i];
+            if (ignoreCase ? message.fieldEqualsIgnoreCase(field, command.opcode) : message.fieldEquals(field, command.opcode))
+                return command;
+        }
+        return null;
+    }
+}
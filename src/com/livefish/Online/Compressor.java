@@ -0,0 +1,192 @@
+package com.livefish.Online;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Per-connection message compressor
+ * A compressed message is sent as one text line: Z$base64(deflate(utf-8 message bytes))
+ * Deflater, inflater and byte buffers are created once for a connection and reused for every message,
+ * messages shorter than the threshold or not getting shorter after compression are sent as they are
+ * Compression statistics are counted for all connections together
+ *
+ * @author NAUMENKO-ZHIVOY ARTEM
+ * @version 2.0
+ * @see Connection#enableCompression(int, int)
+ * @see ServerConfig#COMPRESS_THRESHOLD
+ */
+public class Compressor {
+    /**
+     * Compressed message prefix
+     */
+    public static final String PREFIX = "Z$";
+    /**
+     * Max size of an inflated message in bytes (protection from compressed bombs)
+     */
+    private static final int MAX_INFLATED = 16 * 1024 * 1024;
+
+    /**
+     * Count of compressed messages
+     */
+    private static final AtomicLong compressed = new AtomicLong();
+    /**
+     * Count of messages sent without compression (too short or not compressible)
+     */
+    private static final AtomicLong skipped = new AtomicLong();
+    /**
+     * Count of message bytes before compression
+     */
+    private static final AtomicLong rawBytes = new AtomicLong();
+    /**
+     * Count of sent bytes after compression and base64
+     */
+    private static final AtomicLong packedBytes = new AtomicLong();
+    /**
+     * Time spent on compression in nanoseconds
+     */
+    private static final AtomicLong deflateNanos = new AtomicLong();
+    /**
+     * Count of inflated messages
+     */
+    private static final AtomicLong inflated = new AtomicLong();
+    /**
+     * Time spent on decompression in nanoseconds
+     */
+    private static final AtomicLong inflateNanos = new AtomicLong();
+
+    /**
+     * Minimal message length to compress
+     */
+    private final int threshold;
+    /**
+     * Reusable deflater
+     */
+    private final Deflater deflater;
+    /**
+     * Reusable inflater
+     */
+    private final Inflater inflater;
+    /**
+     * Reusable compressed bytes buffer (grows when needed)
+     */
+    private byte[] deflateBuf;
+    /**
+     * Reusable inflated bytes buffer (grows when needed)
+     */
+    private byte[] inflateBuf;
+
+    /**
+     * Compressor construction function
+     *
+     * @param threshold Minimal message length to compress
+     * @param level     Deflate compression level (0-9, -1 for default)
+     */
+    public Compressor(int threshold, int level) {
+        this.threshold = threshold;
+        this.deflater = new Deflater(level);
+        this.inflater = new Inflater();
+        this.deflateBuf = new byte[4096];
+        this.inflateBuf = new byte[4096];
+    }
+
+    /**
+     * Message compression function
+     * Must be called by one thread at a time (connection writer lock)
+     *
+     * @param msg A message to send
+     * @return Compressed message with prefix, or msg if compression is not useful
+     */
+    public String compress(String msg) {
+        if (msg.length() < threshold) {
+            skipped.incrementAndGet();
+            return msg;
+        }
+
+        long start = System.nanoTime();
+        byte[] raw = msg.getBytes(StandardCharsets.UTF_8);
+        deflater.reset();
+        deflater.setInput(raw);
+        deflater.finish();
+        int len = 0;
+        while (!deflater.finished()) {
+            if (len == deflateBuf.length)
+                deflateBuf = Arrays.copyOf(deflateBuf, deflateBuf.length * 2);
+            len += deflater.deflate(deflateBuf, len, deflateBuf.length - len);
+        }
+        String res = PREFIX + Base64.getEncoder().encodeToString(Arrays.copyOf(deflateBuf, len));
+        deflateNanos.addAndGet(System.nanoTime() - start);
+
+        if (res.length() >= raw.length) {
+            skipped.incrementAndGet();
+            return msg;
+        }
+        compressed.incrementAndGet();
+        rawBytes.addAndGet(raw.length);
+        packedBytes.addAndGet(res.length());
+        return res;
+    }
+
+    /**
+     * Received message decompression function
+     * Must be called by one thread at a time (connection reader thread)
+     *
+     * @param line A received line
+     * @return Inflated message, or line if it is not compressed
+     * @throws IOException if the line is not a valid compressed message
+     */
+    public String decompress(String line) throws IOException {
+        if (line == null || !line.startsWith(PREFIX))
+            return line;
+
+        long start = System.nanoTime();
+        try {
+            inflater.reset();
+            inflater.setInput(Base64.getDecoder().decode(line.substring(PREFIX.length())));
+            int len = 0;
+            while (!inflater.finished()) {
+                if (len == inflateBuf.length) {
+                    if (inflateBuf.length >= MAX_INFLATED)
+                        throw new IOException("Compressed message is too big");
+                    inflateBuf = Arrays.copyOf(inflateBuf, inflateBuf.length * 2);
+                }
+                int n = inflater.inflate(inflateBuf, len, inflateBuf.length - len);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                    throw new IOException("Compressed message is not complete");
+                len += n;
+            }
+            inflated.incrementAndGet();
+            return new String(inflateBuf, 0, len, StandardCharsets.UTF_8);
+        } catch (IllegalArgumentException | DataFormatException e) {
+            throw new IOException("Invalid compressed message", e);
+        } finally {
+            inflateNanos.addAndGet(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Releases deflater and inflater native memory
+     */
+    public void end() {
+        deflater.end();
+        inflater.end();
+    }
+
+    /**
+     * Compression statistics for all connections
+     *
+     * @return compressed=..,skipped=..,raw=..,sent=..,ratio=..,deflateUs=..,inflated=..,inflateUs=..
+     */
+    public static String stats() {
+        long raw = rawBytes.get(), packed = packedBytes.get();
+        return "compressed=" + compressed.get() + ",skipped=" + skipped.get() + ",raw=" + raw + ",sent=" + packed +
+                ",ratio=" + (packed == 0 ? "1.00" : String.format(Locale.ROOT, "%.2f", (double) raw / packed)) +
+                ",deflateUs=" + deflateNanos.get() / 1000 + ",inflated=" + inflated.get() + ",inflateUs=" + inflateNanos.get() / 1000;
+    }
+}
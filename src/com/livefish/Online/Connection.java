@@ -1,20 +1,45 @@
 package com.livefish.Online;//модуль для облегчения работы с сокетами
 
+import javax.net.SocketFactory;
+import javax.net.ssl.SSLSocket;
 import java.io.*;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.*;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Objects;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Connection representation class
  * Simplifies online communication (comfortable interface)
  * Implements closable, so can be used in try-catch with resources
+ * An idle connection keeps only a small read buffer: bigger buffers are borrowed from a BufferSlab
+ * while data is in flight and given back when the connection goes idle.
+ * Plain accepted connections read and write through their socket channel with off-heap chunks,
+ * TLS and outgoing connections use socket streams with heap chunks
+ * One-off buffers (long lines, chunks over the slab cap) are heap buffers on both paths, on the channel path
+ * the JDK copies them through a temporary direct buffer, which is freed after the I/O if it is bigger
+ * than jdk.nio.maxCachedBufferSize (see {@link ServerConfig#NIO_MAX_CACHED_BUFFER})
+ * A channel is closed by an interrupt of a thread blocked in its read or write (ClosedByInterruptException),
+ * so connection threads must be interrupted only to drop the connection
+ * Writers pass a write gate in priority lanes: a waiting writer of a more urgent lane always writes
+ * before waiting writers of less urgent ones, and a bulk batch gives way to them between its messages,
+ * so SYS$... and INVALID$... messages never wait behind queued bulk data (only behind the line being written)
  *
  * @author NAUMENKO-ZHIVOY ARTEM
  * @version 2.0
  * @see java.io.Closeable
+ * @see BufferSlab
+ * @see Lane
  */
 public class Connection implements Closeable {
     /**
@@ -23,22 +48,130 @@ public class Connection implements Closeable {
     private final Socket socket;
 
     /**
-     * Data reader
+     * Charset of messages (the platform one)
      */
-    private final BufferedReader reader;
+    private static final Charset CHARSET = Charset.defaultCharset();
+    /**
+     * Can chars below 0x80 be written as single bytes
+     */
+    private static final boolean ASCII_COMPATIBLE = asciiCompatible();
+    /**
+     * Line separator bytes written after every message
+     */
+    private static final byte[] NEW_LINE = System.lineSeparator().getBytes(StandardCharsets.US_ASCII);
+    /**
+     * Size of the read buffer an idle connection keeps
+     */
+    private static final int IDLE_SIZE = 256;
+    /**
+     * Count of written messages of every lane (all connections)
+     */
+    private static final LongAdder[] LANE_WRITES = {new LongAdder(), new LongAdder(), new LongAdder()};
+    /**
+     * Count of writes which passed the gate before waiting writers of less urgent lanes (all connections)
+     */
+    private static final LongAdder LANE_JUMPS = new LongAdder();
+    /**
+     * Count of bulk batches which gave way to more urgent writers (all connections)
+     */
+    private static final LongAdder LANE_YIELDS = new LongAdder();
 
     /**
-     * Data writer
+     * Socket channel of a plain accepted connection (null for stream connections)
+     */
+    private final SocketChannel channel;
+    /**
+     * Socket input stream (used when there is no channel)
+     */
+    private final InputStream in;
+    /**
+     * Socket output stream (used when there is no channel)
+     */
+    private final OutputStream out;
+    /**
+     * Slab to borrow chunks from
+     */
+    private final BufferSlab slab;
+    /**
+     * Peer address text, cached when the connection is made
+     */
+    private final String ip;
+    /**
+     * Peer address bytes, cached when the connection is made
+     */
+    private final byte[] address;
+
+    /**
+     * Read buffer of an idle connection
+     */
+    private final ByteBuffer idle = ByteBuffer.allocate(IDLE_SIZE);
+    /**
+     * Current read buffer: the idle one, a borrowed chunk or a one-off buffer for a long line
      */
-    private final BufferedWriter writer;
+    private ByteBuffer inbound = idle;
+    /**
+     * Index of the first unread byte in the read buffer
+     */
+    private int inStart;
+    /**
+     * Index after the last received byte in the read buffer
+     */
+    private int inEnd;
+    /**
+     * Was the last line ended with \r (a following \n belongs to it)
+     */
+    private boolean skipLF;
+    /**
+     * Reader lock, closing gives back the read buffer only if no thread reads
+     */
+    private final ReentrantLock readLock = new ReentrantLock();
+    /**
+     * Encoder of messages with chars the fast path does not write (created on demand)
+     */
+    private CharsetEncoder encoder;
+    /**
+     * Write gate lock
+     */
+    private final ReentrantLock writeLock = new ReentrantLock();
+    /**
+     * Signalled when the writer leaves the write gate
+     */
+    private final Condition gateFree = writeLock.newCondition();
+    /**
+     * Is there a writer in the write gate
+     */
+    private boolean writing;
+    /**
+     * Count of writers waiting at the write gate in every lane
+     */
+    private final int[] waiting = new int[Lane.values().length];
 
 
     /**
      * Is the connection closed
      */
-    public boolean closed = false;
+    public volatile boolean closed = false;
+
+    /**
+     * Message compressor (null if compression was not negotiated)
+     */
+    private volatile Compressor compressor;
 
 
+
+    /**
+     * Checks if chars below 0x80 are single bytes of the same value in the message charset
+     *
+     * @return True for UTF-8, ISO-8859-x, windows-125x and other ASCII-based charsets
+     */
+    private static boolean asciiCompatible() {
+        byte[] ascii = new byte[0x80];
+        for (int i = 0; i < ascii.length; i++)
+            ascii[i] = (byte) i;
+        String chars = new String(ascii, StandardCharsets.US_ASCII);
+        return new String(ascii, CHARSET).equals(chars) && Arrays.equals(chars.getBytes(CHARSET), ascii);
+    }
+
     /**
      * Client constructor
      *
@@ -46,108 +179,582 @@ public class Connection implements Closeable {
      * @param port Server port
      *
      * @see Socket
-     * @see Connection#createReader()
-     * @see Connection#createWriter()
      */
     public Connection(String ip, int port) {
-        try {
-            this.socket = new Socket(ip, port);
-            this.reader = createReader();
-            this.writer = createWriter();
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
+        this(SocketFactory.getDefault(), ip, port);
+    }
+
+    /**
+     * Client constructor with a socket factory (SSLSocketFactory for a TLS server)
+     *
+     * @param factory Socket factory to create the socket with
+     * @param ip      Server ip to connect to
+     * @param port    Server port
+     * @see SocketFactory
+     * @see TlsContext
+     */
+    public Connection(SocketFactory factory, String ip, int port) {
+        this(connect(factory, ip, port, 0));
+    }
+
+    /**
+     * Client constructor with a connect timeout
+     *
+     * @param ip      Server ip to connect to
+     * @param port    Server port
+     * @param timeout Connect timeout in milliseconds (0 to wait forever)
+     */
+    public Connection(String ip, int port, int timeout) {
+        this(connect(SocketFactory.getDefault(), ip, port, timeout));
     }
 
 
     /**
      * Server constructor
+     * TLS handshake of a connection from an SSLServerSocket is done on its first read or write
+     * A connection from a server socket of a ServerSocketChannel uses its socket channel
      *
      * @param server ServerSocket to wait the connection on
      *
      * @see ServerSocket
-     * @see Connection#createReader()
-     * @see Connection#createWriter()
+     * @see TlsContext#serverSocket(int)
      */
     public Connection(ServerSocket server) {
+        this(accept(server));
+    }
+
+    /**
+     * Common constructor of a connected socket
+     *
+     * @param socket Connected socket
+     */
+    private Connection(Socket socket) {
         try {
-            this.socket = server.accept();
-            this.reader = createReader();
-            this.writer = createWriter();
+            this.socket = socket;
+            this.channel = socket.getChannel();
+            this.in = socket.getInputStream();
+            this.out = socket.getOutputStream();
+            this.slab = channel == null ? BufferSlab.HEAP : BufferSlab.DIRECT;
+            InetAddress peer = socket.getInetAddress();
+            this.ip = peer == null ? "Unable to get ip" : peer.getHostAddress();
+            this.address = peer == null ? null : peer.getAddress();
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
 
     /**
-     * Reader creation function
+     * Opens a client socket
      *
-     * @return Created reader
-     * @throws IOException Exception during reader creation
-     * @see Connection#socket
-     * @see BufferedReader
+     * @param factory Socket factory to create the socket with
+     * @param ip      Server ip to connect to
+     * @param port    Server port
+     * @param timeout Connect timeout in milliseconds (0 to wait forever)
+     * @return Connected socket
      */
-    private BufferedReader createReader() throws IOException {
-        return new BufferedReader(new InputStreamReader(socket.getInputStream()));
+    private static Socket connect(SocketFactory factory, String ip, int port, int timeout) {
+        try {
+            if (timeout == 0)
+                return factory.createSocket(ip, port);
+            Socket socket = factory.createSocket();
+            try {
+                socket.connect(new InetSocketAddress(ip, port), timeout);
+            } catch (IOException e) {
+                socket.close();
+                throw e;
+            }
+            return socket;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
     }
 
-
     /**
-     * Writer creation function
+     * Waits for a socket on a server socket
      *
-     * @return Created writer
-     * @throws IOException Exception during writer creation
-     * @see Connection#socket
-     * @see BufferedWriter
+     * @param server ServerSocket to wait the connection on
+     * @return Accepted socket
      */
-    private BufferedWriter createWriter() throws IOException {
-        return new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
+    private static Socket accept(ServerSocket server) {
+        try {
+            Socket socket = server.accept();
+            if (socket instanceof SSLSocket ssl) {
+                // handshake and session ticket records are small separate writes, Nagle would delay them
+                ssl.setTcpNoDelay(true);
+                long accepted = System.currentTimeMillis();
+                ssl.addHandshakeCompletedListener(event -> TlsContext.countHandshake(event.getSession(), accepted));
+            }
+            return socket;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
     }
 
     /**
-     * Getting ip address in local network
+     * Peer ip address, resolved once from the socket remote address (no host name lookup)
      *
-     * @return Ip address in local network
-     * @see InetAddress
+     * @return Peer ip address text
+     * @see InetAddress#getHostAddress()
      */
     public String getIp() {
-        try {
-            return InetAddress.getLocalHost().getHostAddress();
-        } catch (UnknownHostException e) {
-            e.printStackTrace();
-        }
-        return "Unable to get ip";
+        return ip;
+    }
+
+    /**
+     * Raw peer ip address
+     *
+     * @return Copy of the peer address bytes (4 for IPv4, 16 for IPv6), null if the socket was not connected
+     * @see InetAddress#getAddress()
+     */
+    public byte[] getAddress() {
+        return address == null ? null : address.clone();
     }
 
 
     /**
      * Message sending function
+     * The lane is chosen by the message prefix
      *
      * @param msg A message to send
      * @throws IOException exception during online communication
      * @see Connection#closed
-     * @see Connection#writer
+     * @see Lane#of(CharSequence)
      */
     public void writeLine(String msg) throws IOException {
+        writeLine(msg, Lane.of(msg));
+    }
+
+    /**
+     * Message sending function in a given lane
+     *
+     * @param msg  A message to send
+     * @param lane Priority lane of the message
+     * @throws IOException exception during online communication
+     * @see Connection#writeLine(String)
+     */
+    public void writeLine(String msg, Lane lane) throws IOException {
         if (!closed) {
-            writer.write(msg);
-            writer.newLine();
-            writer.flush();
+            enter(lane);
+            ByteBuffer buf = slab.borrow();
+            try {
+                send(put(buf, pack(msg)));
+            } finally {
+                slab.release(buf);
+                leave();
+            }
+            LANE_WRITES[lane.ordinal()].increment();
         }
     }
 
+    /**
+     * Message sending function for a message built in a reused StringBuilder
+     * The chars are encoded straight into a borrowed chunk, so no string is built for an uncompressed message
+     *
+     * @param msg A message to send, it can be changed after the call
+     * @throws IOException exception during online communication
+     * @see Connection#writeLine(String)
+     * @see Message#reply()
+     */
+    public void writeLine(StringBuilder msg) throws IOException {
+        if (!closed) {
+            Lane lane = Lane.of(msg);
+            enter(lane);
+            ByteBuffer buf = slab.borrow();
+            try {
+                send(put(buf, compressor == null ? msg : pack(msg.toString())));
+            } finally {
+                slab.release(buf);
+                leave();
+            }
+            LANE_WRITES[lane.ordinal()].increment();
+        }
+    }
+
+    /**
+     * Several messages sending function (bulk lane)
+     * Encodes all messages into one buffer and sends it only when it is full or all messages are encoded
+     * If a more urgent writer waits, the encoded messages are sent and the gate is left to it before the next message
+     *
+     * @param msgs Messages to send
+     * @throws IOException exception during online communication
+     * @see Connection#writeLine(String)
+     */
+    public void writeLines(List<String> msgs) throws IOException {
+        if (!closed) {
+            enter(Lane.BULK);
+            ByteBuffer buf = slab.borrow();
+            try {
+                for (String msg : msgs) {
+                    buf = put(buf, pack(msg));
+                    if (urgentWaiting()) {
+                        send(buf);
+                        leave();
+                        LANE_YIELDS.increment();
+                        enter(Lane.BULK);
+                    }
+                }
+                send(buf);
+            } finally {
+                slab.release(buf);
+                leave();
+            }
+            LANE_WRITES[Lane.BULK.ordinal()].add(msgs.size());
+        }
+    }
+
+    /**
+     * Waits for the write gate
+     * A writer passes it when nobody writes and no writer of a more urgent lane waits
+     *
+     * @param lane Priority lane of the writer
+     */
+    private void enter(Lane lane) {
+        writeLock.lock();
+        try {
+            waiting[lane.ordinal()]++;
+            try {
+                while (writing || waitingBefore(lane.ordinal()))
+                    gateFree.awaitUninterruptibly();
+            } finally {
+                waiting[lane.ordinal()]--;
+            }
+            for (int i = lane.ordinal() + 1; i < waiting.length; i++)
+                if (waiting[i] > 0) {
+                    LANE_JUMPS.increment();
+                    break;
+                }
+            writing = true;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Leaves the write gate and wakes up waiting writers
+     */
+    private void leave() {
+        writeLock.lock();
+        try {
+            writing = false;
+            gateFree.signalAll();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Checks if a writer of a lane more urgent than the bulk one waits at the write gate
+     *
+     * @return True if a bulk writer should give way
+     */
+    private boolean urgentWaiting() {
+        writeLock.lock();
+        try {
+            return waitingBefore(Lane.BULK.ordinal());
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Checks if writers of more urgent lanes wait (the write lock must be held)
+     *
+     * @param lane Lane index
+     * @return True if a writer of a lane with a smaller index waits
+     */
+    private boolean waitingBefore(int lane) {
+        for (int i = 0; i < lane; i++)
+            if (waiting[i] > 0)
+                return true;
+        return false;
+    }
+
+    /**
+     * Priority lane statistics of all connections
+     *
+     * @return control=..,interactive=..,bulk=..,jumps=..,yields=.. (written messages of every lane, gate jumps, bulk yields)
+     */
+    public static String laneStats() {
+        return "control=" + LANE_WRITES[Lane.CONTROL.ordinal()].sum() + ",interactive=" + LANE_WRITES[Lane.INTERACTIVE.ordinal()].sum() +
+                ",bulk=" + LANE_WRITES[Lane.BULK.ordinal()].sum() + ",jumps=" + LANE_JUMPS.sum() + ",yields=" + LANE_YIELDS.sum();
+    }
+
     /**
      * Message receiving
      *
-     * @return Received message
+     * Lines end with \n, \r or \r\n, the last line may have no end
+     *
+     * @return Received message, null at the end of the stream
      * @throws IOException exception during online communication
      * @see Connection#closed
-     * @see Connection#reader
      */
     public String readLine() throws IOException {
-        if (!closed)
-            return reader.readLine();
-        return null;
+        readLock.lock();
+        try {
+            if (closed)
+                return null;
+            String line;
+            try {
+                line = nextLine();
+            } catch (IOException e) {
+                releaseInbound(false);
+                throw e;
+            }
+            Compressor cur = compressor;
+            return cur == null ? line : cur.decompress(line);
+        } finally {
+            if (closed)
+                releaseInbound(false);
+            readLock.unlock();
+        }
+    }
+
+    /**
+     * Takes the next line from the read buffer, reading from the socket until a line is received
+     *
+     * @return Received line, null at the end of the stream
+     * @throws IOException exception during reading
+     */
+    private String nextLine() throws IOException {
+        int scanned = inStart;
+        while (true) {
+            if (skipLF && inStart < inEnd) {
+                skipLF = false;
+                if (inbound.get(inStart) == '\n')
+                    scanned = ++inStart;
+            }
+            for (int i = scanned; i < inEnd; i++) {
+                byte b = inbound.get(i);
+                if (b == '\n' || b == '\r') {
+                    String line = decode(inStart, i);
+                    inStart = i + 1;
+                    skipLF = b == '\r';
+                    if (inStart == inEnd)
+                        releaseInbound(true);
+                    return line;
+                }
+            }
+            scanned = inEnd;
+
+            if (inEnd == inbound.capacity()) {
+                if (inStart > 0)
+                    compactInbound();
+                else
+                    growInbound();
+                scanned = inEnd;
+            }
+            int read = read(inbound, inEnd);
+            if (read < 0) {
+                if (inStart == inEnd)
+                    return null;
+                String line = decode(inStart, inEnd);
+                inStart = inEnd;
+                releaseInbound(true);
+                return line;
+            }
+            inEnd += read;
+            // a full idle buffer means more data is coming: the next reads go to a chunk
+            if (inbound == idle && inEnd == IDLE_SIZE) {
+                scanned -= inStart;
+                growInbound();
+            }
+        }
+    }
+
+    /**
+     * Reads from the socket into a buffer
+     *
+     * @param buf  Read buffer
+     * @param from Index to read to
+     * @return Count of read bytes, -1 at the end of the stream
+     * @throws IOException exception during reading
+     */
+    private int read(ByteBuffer buf, int from) throws IOException {
+        if (channel != null)
+            return channel.read(buf.limit(buf.capacity()).position(from));
+        return in.read(buf.array(), buf.arrayOffset() + from, buf.capacity() - from);
+    }
+
+    /**
+     * Decodes a line of the read buffer
+     *
+     * @param from First byte index
+     * @param to   Index after the last byte
+     * @return Decoded line
+     */
+    private String decode(int from, int to) {
+        if (inbound.hasArray())
+            return new String(inbound.array(), inbound.arrayOffset() + from, to - from, CHARSET);
+        byte[] bytes = new byte[to - from];
+        inbound.get(from, bytes);
+        return new String(bytes, CHARSET);
+    }
+
+    /**
+     * Moves unread bytes to the start of the read buffer
+     */
+    private void compactInbound() {
+        inbound.limit(inEnd).position(inStart);
+        inbound.compact();
+        inEnd -= inStart;
+        inStart = 0;
+    }
+
+    /**
+     * Moves unread bytes to a bigger read buffer: a chunk instead of the idle buffer,
+     * a twice bigger one-off buffer instead of a full chunk (for a line longer than a chunk)
+     */
+    private void growInbound() {
+        ByteBuffer bigger = inbound == idle ? slab.borrow() : ByteBuffer.allocate(inbound.capacity() * 2);
+        if (bigger.capacity() <= inEnd - inStart) {
+            slab.release(bigger);
+            bigger = ByteBuffer.allocate((inEnd - inStart) * 2);
+        }
+        bigger.clear().put(inbound.limit(inEnd).position(inStart));
+        if (inbound != idle)
+            slab.release(inbound);
+        inbound = bigger;
+        inEnd -= inStart;
+        inStart = 0;
+    }
+
+    /**
+     * Gives back the read buffer and goes back to the idle one
+     * Must be called by the reader thread or under the reader lock
+     *
+     * @param keepUnread Are unread bytes kept (the buffer is kept if they do not fit the idle one),
+     *                   false after the connection is lost
+     */
+    private void releaseInbound(boolean keepUnread) {
+        int length = keepUnread ? inEnd - inStart : 0;
+        if (inbound == idle || length > IDLE_SIZE) {
+            if (!keepUnread)
+                inStart = inEnd = 0;
+            return;
+        }
+        if (length > 0)
+            idle.clear().put(inbound.limit(inEnd).position(inStart));
+        slab.release(inbound);
+        inbound = idle;
+        inStart = 0;
+        inEnd = length;
+    }
+
+    /**
+     * Encodes a message and a line separator into a write buffer, full buffers are sent on the way
+     *
+     * @param buf Write buffer
+     * @param msg Message to write
+     * @return The write buffer
+     * @throws IOException exception during sending
+     */
+    private ByteBuffer put(ByteBuffer buf, CharSequence msg) throws IOException {
+        int i = 0;
+        if (ASCII_COMPATIBLE)
+            for (int length = msg.length(); i < length; i++) {
+                char c = msg.charAt(i);
+                if (c >= 0x80)
+                    break;
+                if (!buf.hasRemaining())
+                    send(buf);
+                buf.put((byte) c);
+            }
+        if (i < msg.length()) {
+            if (encoder == null)
+                encoder = CHARSET.newEncoder().onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+            CharBuffer chars = CharBuffer.wrap(msg, i, msg.length());
+            encoder.reset();
+            while (encoder.encode(chars, buf, true).isOverflow())
+                send(buf);
+            while (encoder.flush(buf).isOverflow())
+                send(buf);
+        }
+        if (buf.remaining() < NEW_LINE.length)
+            send(buf);
+        return buf.put(NEW_LINE);
+    }
+
+    /**
+     * Sends and clears a write buffer
+     * A channel is closed if the writing thread is interrupted while writing to it,
+     * so an interrupt flag set before the write is put aside during writing and set again after it
+     * An interrupt, which comes while the thread is blocked in the write, still closes the channel:
+     * shutdown (cancelled drain tasks, pool shutdownNow) and disconnection interrupt writers
+     * only when the connection is dropped anyway
+     *
+     * @param buf Write buffer with written bytes before its position
+     * @throws IOException exception during sending
+     */
+    private void send(ByteBuffer buf) throws IOException {
+        buf.flip();
+        if (channel != null) {
+            boolean interrupted = Thread.interrupted();
+            try {
+                while (buf.hasRemaining())
+                    channel.write(buf);
+            } finally {
+                if (interrupted)
+                    Thread.currentThread().interrupt();
+            }
+        } else {
+            out.write(buf.array(), buf.arrayOffset(), buf.limit());
+            out.flush();
+        }
+        buf.clear();
+    }
+
+    /**
+     * Message compression before sending
+     *
+     * @param msg A message to send
+     * @return Message to write to the socket
+     * @see Compressor#compress(String)
+     */
+    private String pack(String msg) {
+        Compressor cur = compressor;
+        return cur == null ? msg : cur.compress(msg);
+    }
+
+    /**
+     * Turns on message compression (both sides must do it after negotiation)
+     *
+     * @param threshold Minimal message length to compress
+     * @param level     Deflate compression level (0-9, -1 for default)
+     * @see Compressor
+     */
+    public void enableCompression(int threshold, int level) {
+        enter(Lane.CONTROL);
+        try {
+            if (compressor == null)
+                compressor = new Compressor(threshold, level);
+        } finally {
+            leave();
+        }
+    }
+
+    /**
+     * Turns off message compression
+     * Must be called by the reader thread, which is the only one using the inflater
+     */
+    public void disableCompression() {
+        enter(Lane.CONTROL);
+        try {
+            if (compressor != null) {
+                compressor.end();
+                compressor = null;
+            }
+        } finally {
+            leave();
+        }
+    }
+
+    /**
+     * Checks if messages are compressed
+     *
+     * @return True if compression is on
+     */
+    public boolean isCompressed() {
+        return compressor != null;
     }
 
     /**
@@ -167,6 +774,8 @@ public class Connection implements Closeable {
 
     /**
      * For try-catch with resources
+     * The socket is closed first: it wakes up a thread blocked in readLine, which holds the reader lock
+     * and gives back its read buffer itself
      *
      * @throws IOException exception during closing (connection is lost, etc.)
      */
@@ -174,9 +783,13 @@ public class Connection implements Closeable {
     public void close() throws IOException {
         if (!closed) {
             closed = true;
-            writer.close();
-            reader.close();
             socket.close();
+            if (readLock.tryLock())
+                try {
+                    releaseInbound(false);
+                } finally {
+                    readLock.unlock();
+                }
         }
     }
 
@@ -190,7 +803,7 @@ public class Connection implements Closeable {
      */
     @Override
     public int hashCode() {
-        return Objects.hash(socket, reader, writer, closed);
+        return Objects.hash(socket, closed);
     }
 
     /**
@@ -0,0 +1,267 @@
+package com.livefish.Online;
+
+import com.livefish.Output.Console.Logger;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntFunction;
+
+/**
+ * Broadcast (one admin command sent to many clients) state
+ * Counts the completions of all broadcast requests and builds one summary for the admin
+ *
+ * @author NAUMENKO-ZHIVOY ARTEM
+ * @version 2.0
+ * @see FanOutEngine
+ */
+class Broadcast {
+    /**
+     * Broadcast unique id (unique while the server is running)
+     */
+    final long id;
+    /**
+     * Admin id who sent the broadcast
+     */
+    final int idA;
+    /**
+     * Total count of targeted clients
+     */
+    final int total;
+    /**
+     * Correlation token chosen by the admin (null if the admin didn't send one)
+     */
+    final String token;
+    /**
+     * Count of requests, which are still in process
+     */
+    private final AtomicInteger remaining;
+    /**
+     * Request results (success string -> count of clients)
+     */
+    private final Map<String, AtomicInteger> results;
+
+    /**
+     * Broadcast construction function
+     *
+     * @param id    Broadcast unique id
+     * @param idA   Admin id who sent the broadcast
+     * @param total Total count of targeted clients
+     * @param token Correlation token chosen by the admin (null if there is no token)
+     */
+    Broadcast(long id, int idA, int total, String token) {
+        this.id = id;
+        this.idA = idA;
+        this.total = total;
+        this.token = token;
+        this.remaining = new AtomicInteger(total);
+        this.results = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Saves one request result
+     *
+     * @param success Request result
+     * @return True if it was the last result of the broadcast
+     */
+    boolean complete(String success) {
+        results.computeIfAbsent(success, s -> new AtomicInteger()).incrementAndGet();
+        return remaining.decrementAndGet() == 0;
+    }
+
+    /**
+     * Summary message for the admin
+     *
+     * @return BROADCAST$id$DONE$total$result=count,result=count...[$token]
+     */
+    String summary() {
+        StringBuilder res = new StringBuilder("BROADCAST$").append(id).append("$DONE$").append(total).append('$');
+        results.forEach((success, count) -> res.append(success).append('=').append(count.get()).append(','));
+        if (res.charAt(res.length() - 1) == ',')
+            res.deleteCharAt(res.length() - 1);
+        if (token != null)
+            res.append('$').append(token);
+        return res.toString();
+    }
+}
+
+/**
+ * Fan-out engine for admin commands with many targets
+ * Creates all requests at once, builds the command payload only once
+ * and writes it to the clients in parallel slices
+ * Slices run in the bulk lane of the scheduler and go to the back of the queue between clients
+ * while more urgent tasks wait, the requests are written in the bulk lane of the client connections
+ *
+ * @author NAUMENKO-ZHIVOY ARTEM
+ * @version 2.0
+ * @see Broadcast
+ * @see Request#createBulk(int, int[], String, String)
+ * @see PriorityScheduler
+ */
+public class FanOutEngine {
+    /**
+     * Count of clients written by one writer task
+     */
+    private static final int WRITE_SLICE = 256;
+
+    /**
+     * Scheduler running writer tasks
+     */
+    private final PriorityScheduler scheduler;
+    /**
+     * Broadcasts by their request ids
+     */
+    private final Map<Long, Broadcast> broadcasts;
+    /**
+     * Total broadcast count (is used as a unique broadcast id)
+     */
+    private final AtomicLong broadcastCount;
+    /**
+     * Online client getting by its id function (for sending summaries)
+     */
+    private final IntFunction<Client> clientLookup;
+    /**
+     * Logger instance for console
+     */
+    private final Logger logger;
+
+    /**
+     * Fan-out engine construction function
+     *
+     * @param clientLookup Online client getting by its id function
+     * @param scheduler    Scheduler to run writer tasks in
+     */
+    public FanOutEngine(IntFunction<Client> clientLookup, PriorityScheduler scheduler) {
+        this.clientLookup = clientLookup;
+        this.scheduler = scheduler;
+        this.logger = Logger.getInstance();
+        this.broadcasts = new ConcurrentHashMap<>();
+        this.broadcastCount = new AtomicLong();
+    }
+
+    /**
+     * Sends one command to many clients
+     *
+     * @param admin   Admin who sent the command
+     * @param targets Online clients to send the command to
+     * @param skipped Counts of targeted clients, which can't get the command now, by reason (OFFLINE, FREE, etc.)
+     * @param cmd     Command to send
+     * @param args    Command arguments
+     * @param pending All requests in process to add created requests to
+     * @param token   Correlation token chosen by the admin (null if there is no token)
+     * @return Started broadcast, null if there is no space for its requests
+     * @throws IOException exception during writing to admin
+     */
+    Broadcast send(Client admin, List<Client> targets, Map<String, Integer> skipped, String cmd, String args, PendingRequests pending, String token) throws IOException {
+        int skippedTotal = 0;
+        for (int count : skipped.values())
+            skippedTotal += count;
+
+        int[] ids = new int[targets.size()];
+        for (int i = 0; i < ids.length; i++)
+            ids[i] = targets.get(i).id;
+
+        Request[] requests = Request.createBulk(admin.id, ids, cmd, args);
+        if (!pending.addAll(Arrays.asList(requests))) {
+            logger.print("Broadcast from admin " + admin.id + " rejected: too many requests in process", "Wrong data");
+            admin.writeLine("INVALID$TOO_MANY_REQUESTS$" + ids.length);
+            return null;
+        }
+        Broadcast broadcast = new Broadcast(broadcastCount.incrementAndGet(), admin.id, ids.length + skippedTotal, token);
+        for (Request req : requests)
+            broadcasts.put(req.id, broadcast);
+
+        admin.writeLine("BROADCAST$" + broadcast.id + "$SENT$" + ids.length + "$" + skippedTotal + (token == null ? "" : "$" + token));
+        logger.print("Broadcast " + broadcast.id + " from admin " + admin.id + ": " + cmd + " to " + ids.length + " clients (" + skippedTotal + " skipped)", "Default");
+
+        skipped.forEach((reason, count) -> {
+            for (int i = 0; i < count; i++)
+                if (broadcast.complete(reason))
+                    finish(broadcast);
+        });
+
+        String payload = "$" + cmd + "$" + args;
+        for (int from = 0; from < requests.length; from += WRITE_SLICE) {
+            int start = from;
+            int end = Math.min(from + WRITE_SLICE, requests.length);
+            scheduler.execute(Lane.BULK, () -> writeSlice(targets, requests, start, end, payload, pending));
+        }
+        return broadcast;
+    }
+
+    /**
+     * Writes broadcast requests of a slice of clients
+     * If more urgent tasks are queued, the rest of the slice is queued again after at least one client is written
+     *
+     * @param targets  All broadcast targets
+     * @param requests Requests of the targets
+     * @param from     Index of the first client of the slice
+     * @param end      Index after the last client of the slice
+     * @param payload  Command and its arguments, built once for all clients
+     * @param pending  All requests in process
+     */
+    private void writeSlice(List<Client> targets, Request[] requests, int from, int end, String payload, PendingRequests pending) {
+        for (int i = from; i < end; i++) {
+            if (i > from && scheduler.urgentWaiting(Lane.BULK)) {
+                int rest = i;
+                scheduler.execute(Lane.BULK, () -> writeSlice(targets, requests, rest, end, payload, pending));
+                return;
+            }
+            write(targets.get(i), requests[i], payload, pending);
+        }
+    }
+
+    /**
+     * Writes one broadcast request to its client
+     *
+     * @param client  A client to write to
+     * @param req     A request for this client
+     * @param payload Command and its arguments, built once for all clients
+     * @param pending All requests in process
+     */
+    private void write(Client client, Request req, String payload, PendingRequests pending) {
+        try {
+            client.writeLine(req.id + payload, Lane.BULK);
+        } catch (IOException e) {
+            logger.print("Broadcast write failed to client with id " + client.id, "Error");
+            pending.remove(req);
+            complete(req, "WRITE_FAILED");
+        }
+    }
+
+    /**
+     * Saves a result of a request if it was a part of a broadcast
+     *
+     * @param req     A finished request
+     * @param success Request result
+     * @return True if the request was a part of a broadcast (it's result should not be sent to admin alone)
+     */
+    boolean complete(Request req, String success) {
+        Broadcast broadcast = broadcasts.remove(req.id);
+        if (broadcast == null)
+            return false;
+        if (broadcast.complete(success))
+            finish(broadcast);
+        return true;
+    }
+
+    /**
+     * Sends the broadcast summary to its admin
+     *
+     * @param broadcast A finished broadcast
+     */
+    private void finish(Broadcast broadcast) {
+        Client admin = clientLookup.apply(broadcast.idA);
+        String summary = broadcast.summary();
+        logger.print("Broadcast finished: " + summary, "Default");
+        if (admin == null)
+            return;
+        try {
+            admin.writeLine(summary);
+        } catch (IOException e) {
+            logger.print("Failed to send broadcast summary to admin with id " + broadcast.idA, "Error");
+        }
+    }
+}
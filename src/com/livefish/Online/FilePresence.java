@@ -0,0 +1,311 @@
+package com.livefish.Online;
+
+import com.livefish.Output.Console.Logger;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Presence directory shared by server instances through a common directory (local or network disk)
+ * ids/id file holds the name of the instance the id is online on, nodes/name file is the instance heartbeat:
+ * its modification time is renewed every third of the lease time
+ * A claim of an instance is valid while its heartbeat is younger than the lease time,
+ * so ids of a crashed instance become free after one lease without any cleanup
+ * Claims are made under a file lock of the directory, ids of this instance and recent lookups are cached in memory
+ *
+ * @author NAUMENKO-ZHIVOY ARTEM
+ * @version 2.0
+ * @see PresenceDirectory
+ * @see ServerConfig#PRESENCE_LEASE
+ */
+public class FilePresence implements PresenceDirectory {
+    /**
+     * Max count of cached lookups of ids online on other instances
+     */
+    private static final int CACHE_MAX = 65536;
+
+    /**
+     * Cached lookup of an id
+     *
+     * @param node    Instance the id is online on (null if it is offline)
+     * @param checked Time of the lookup in milliseconds
+     */
+    private record Located(String node, long checked) {
+    }
+
+    /**
+     * Action done under the directory lock
+     */
+    private interface Locked {
+        /**
+         * @return Action result
+         * @throws IOException exception during directory access
+         */
+        boolean run() throws IOException;
+    }
+
+    /**
+     * Instance name
+     */
+    private final String node;
+    /**
+     * Id claims directory
+     */
+    private final Path ids;
+    /**
+     * Instance heartbeats directory
+     */
+    private final Path nodes;
+    /**
+     * This instance heartbeat file
+     */
+    private final Path heartbeat;
+    /**
+     * Directory lock file
+     */
+    private final Path lockFile;
+    /**
+     * Claim lifetime without a heartbeat in milliseconds
+     */
+    private final long lease;
+    /**
+     * Ids online on this instance
+     */
+    private final Set<Integer> local = ConcurrentHashMap.newKeySet();
+    /**
+     * Recent lookups of other ids
+     */
+    private final Map<Integer, Located> cache = new ConcurrentHashMap<>();
+    /**
+     * Heartbeat timer
+     */
+    private final ScheduledExecutorService timer;
+    /**
+     * Logger instance for console
+     */
+    private final Logger logger = Logger.getInstance();
+
+    /**
+     * File presence directory construction function
+     *
+     * @param dir   Shared directory path
+     * @param node  This instance name, unique among instances sharing the directory
+     * @param lease Claim lifetime without a heartbeat in milliseconds
+     */
+    public FilePresence(String dir, String node, long lease) {
+        this.node = node;
+        this.lease = lease;
+        this.ids = Path.of(dir, "ids");
+        this.nodes = Path.of(dir, "nodes");
+        this.heartbeat = nodes.resolve(node);
+        this.lockFile = Path.of(dir, "presence.lock");
+        this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "Presence heartbeat");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Creates the directories, gives back claims left by a previous run of this instance and starts heartbeats
+     */
+    @Override
+    public void start() {
+        try {
+            Files.createDirectories(ids);
+            Files.createDirectories(nodes);
+            beat();
+            locked(() -> {
+                try (Stream<Path> claims = Files.list(ids)) {
+                    claims.filter(claim -> node.equals(owner(claim))).forEach(this::delete);
+                }
+                return true;
+            });
+        } catch (IOException e) {
+            logger.print("Failed to start presence directory " + ids.getParent().toAbsolutePath() + ": " + e.getMessage(), "Error");
+        }
+        timer.scheduleAtFixedRate(this::beat, lease / 3, lease / 3, TimeUnit.MILLISECONDS);
+        logger.print("Presence directory: " + ids.getParent().toAbsolutePath() + ", node: " + node + ", lease: " + lease + " ms", "Yellow");
+    }
+
+    /**
+     * Gives back all claims of this instance and removes its heartbeat
+     */
+    @Override
+    public void stop() {
+        timer.shutdownNow();
+        for (Integer id : local)
+            release(id);
+        delete(heartbeat);
+    }
+
+    @Override
+    public String node() {
+        return node;
+    }
+
+    /**
+     * Claims an id under the directory lock
+     * A claim of another instance is taken over only if that instance has no fresh heartbeat
+     * If the directory is not available, the id is claimed only locally (the server keeps working)
+     *
+     * @param id Id to claim
+     * @return True if the id is claimed
+     */
+    @Override
+    public boolean acquire(int id) {
+        if (local.contains(id))
+            return false;
+        try {
+            boolean claimed = locked(() -> {
+                Path claim = ids.resolve(String.valueOf(id));
+                String owner = owner(claim);
+                if (owner != null && !owner.equals(node) && alive(owner)) {
+                    cache.put(id, new Located(owner, System.currentTimeMillis()));
+                    return false;
+                }
+                Files.writeString(claim, node);
+                return true;
+            });
+            if (!claimed)
+                return false;
+        } catch (IOException e) {
+            logger.print("Presence directory is not available, id " + id + " is claimed only locally: " + e.getMessage(), "Error");
+        }
+        cache.remove(id);
+        return local.add(id);
+    }
+
+    /**
+     * Gives back an id, the claim file is removed only if it still belongs to this instance
+     *
+     * @param id Id to give back
+     */
+    @Override
+    public void release(int id) {
+        if (!local.remove(id))
+            return;
+        try {
+            locked(() -> {
+                Path claim = ids.resolve(String.valueOf(id));
+                return node.equals(owner(claim)) && Files.deleteIfExists(claim);
+            });
+        } catch (IOException e) {
+            logger.print("Failed to release id " + id + " in presence directory: " + e.getMessage(), "Error");
+        }
+    }
+
+    /**
+     * Online id location function
+     * Ids of this instance are answered from memory, other ids from a lookup cache renewed once per heartbeat period
+     *
+     * @param id Id to look for
+     * @return Name of the instance the id is online on, null if it is offline
+     */
+    @Override
+    public String locate(int id) {
+        if (local.contains(id))
+            return node;
+        long now = System.currentTimeMillis();
+        Located cached = cache.get(id);
+        if (cached != null && now - cached.checked() < lease / 3)
+            return cached.node();
+
+        String owner = owner(ids.resolve(String.valueOf(id)));
+        if (owner != null && (owner.equals(node) || !alive(owner)))
+            owner = null;
+        if (cache.size() >= CACHE_MAX)
+            cache.clear();
+        cache.put(id, new Located(owner, now));
+        return owner;
+    }
+
+    @Override
+    public String stats() {
+        return "type=file,node=" + node + ",online=" + local.size() + ",cached=" + cache.size() + ",lease=" + lease;
+    }
+
+    /**
+     * Does an action under the directory lock
+     * The file lock excludes other processes, the monitor excludes other threads of this process
+     *
+     * @param action Action to do
+     * @return Action result
+     * @throws IOException exception during locking or the action
+     */
+    private synchronized boolean locked(Locked action) throws IOException {
+        try (FileChannel channel = FileChannel.open(lockFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            FileLock lock = channel.lock();
+            try {
+                return action.run();
+            } finally {
+                lock.release();
+            }
+        }
+    }
+
+    /**
+     * Renews this instance heartbeat
+     */
+    private void beat() {
+        try {
+            if (!Files.exists(heartbeat))
+                Files.createFile(heartbeat);
+            Files.setLastModifiedTime(heartbeat, FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (IOException e) {
+            logger.print("Failed to renew presence heartbeat " + heartbeat.toAbsolutePath() + ": " + e.getMessage(), "Error");
+        }
+    }
+
+    /**
+     * Checks if an instance has a fresh heartbeat
+     *
+     * @param owner Instance name
+     * @return True if the heartbeat is younger than the lease time
+     */
+    private boolean alive(String owner) {
+        try {
+            return System.currentTimeMillis() - Files.getLastModifiedTime(nodes.resolve(owner)).toMillis() < lease;
+        } catch (IOException | InvalidPathException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Claim owner reading function
+     *
+     * @param claim Claim file
+     * @return Instance name, null if there is no claim
+     */
+    private String owner(Path claim) {
+        try {
+            String owner = Files.readString(claim).trim();
+            return owner.isEmpty() ? null : owner;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * File removing function without exceptions
+     *
+     * @param file File to remove
+     */
+    private void delete(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            logger.print("Failed to remove " + file.toAbsolutePath() + ": " + e.getMessage(), "Error");
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package com.livefish.Online;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * File transfer state
+ * A file is first uploaded to the server (by an admin for a client, or by a client for admins)
+ * and then downloaded from the server by the receivers through the file transfer port
+ * File bytes are kept in the blob store by file SHA-256, so transfers of the same file share them
+ *
+ * @author NAUMENKO-ZHIVOY ARTEM
+ * @version 2.0
+ * @see FileTransferServer
+ */
+public class FileTransfer {
+    /**
+     * File transfer direction
+     */
+    public enum Direction {
+        /**
+         * Admin sends a file to a client
+         */
+        PUSH,
+        /**
+         * Client sends a file (logs, screens, etc.) to admins
+         */
+        UPLOAD,
+    }
+
+    /**
+     * File transfer state
+     */
+    public enum State {
+        /**
+         * The server is waiting for the file bytes
+         */
+        UPLOADING,
+        /**
+         * The file is on the server and its checksum is correct
+         */
+        STORED,
+        /**
+         * Uploaded file checksum is wrong, upload should be started again from offset 0
+         */
+        CORRUPTED,
+    }
+
+    /**
+     * Transfer unique id (random, it is also a key to the file transfer port)
+     */
+    public final String id;
+    /**
+     * File name
+     */
+    public final String name;
+    /**
+     * File size in bytes
+     */
+    public final long size;
+    /**
+     * Expected file SHA-256 (hex, lower case)
+     */
+    public final String sha256;
+    /**
+     * Transfer direction
+     */
+    public final Direction direction;
+    /**
+     * Id of the one who uploads the file
+     */
+    public final int fromId;
+    /**
+     * Id of the client who gets the file (-1 for uploads to admins)
+     */
+    public final int toId;
+    /**
+     * Count of uploaded bytes
+     */
+    final AtomicLong received;
+    /**
+     * Count of bytes sent to receivers
+     */
+    final AtomicLong sent;
+    /**
+     * Time spent on uploading in nanoseconds
+     */
+    final AtomicLong uploadNanos;
+    /**
+     * Current transfer state
+     */
+    volatile State state;
+    /**
+     * Time of the last upload or download activity in milliseconds (idle transfers are removed)
+     */
+    volatile long touched;
+
+    /**
+     * File transfer construction function
+     *
+     * @param id        Transfer unique id
+     * @param name      File name
+     * @param size      File size in bytes
+     * @param sha256    Expected file SHA-256
+     * @param direction Transfer direction
+     * @param fromId    Id of the one who uploads the file
+     * @param toId      Id of the client who gets the file (-1 for uploads to admins)
+     * @param received  Count of already uploaded bytes
+     */
+    FileTransfer(String id, String name, long size, String sha256, Direction direction, int fromId, int toId, long received) {
+        this.id = id;
+        this.name = name;
+        this.size = size;
+        this.sha256 = sha256;
+        this.direction = direction;
+        this.fromId = fromId;
+        this.toId = toId;
+        this.received = new AtomicLong(received);
+        this.sent = new AtomicLong();
+        this.uploadNanos = new AtomicLong();
+        this.state = State.UPLOADING;
+        this.touched = System.currentTimeMillis();
+    }
+
+    /**
+     * Marks the transfer as active now
+     */
+    void touch() {
+        touched = System.currentTimeMillis();
+    }
+
+    /**
+     * Current transfer state getter
+     *
+     * @return Current transfer state
+     */
+    public State getState() {
+        return state;
+    }
+
+    /**
+     * Count of uploaded bytes getter (upload resumes from here)
+     *
+     * @return Count of uploaded bytes
+     */
+    public long getReceived() {
+        return received.get();
+    }
+
+    /**
+     * Upload speed getting function
+     *
+     * @return Average upload speed in bytes per second
+     */
+    public long getUploadSpeed() {
+        long nanos = uploadNanos.get();
+        return nanos == 0 ? 0 : received.get() * 1_000_000_000L / nanos;
+    }
+
+    /**
+     * Transfer status for admins
+     *
+     * @return id$state$uploaded bytes$size$upload bytes per second$sent bytes
+     */
+    public String status() {
+        return id + "$" + state + "$" + received.get() + "$" + size + "$" + getUploadSpeed() + "$" + sent.get();
+    }
+}
@@ -0,0 +1,623 @@
+package com.livefish.Online;
+
+import com.livefish.Output.Console.Logger;
+import com.livefish.Output.Files.BlobStore;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.security.SecureRandom;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * File transfer server
+ * Files are sent through a separate port, so the text protocol of the main port is not mixed with file bytes
+ * Every data connection starts with one text line:
+ * PUT$transfer id$offset - uploads file bytes from offset (resumes an interrupted upload, 0 restarts a corrupted one)
+ * GET$transfer id$offset - downloads file bytes from offset
+ * The server answers OK$offset, and then the bytes are copied between the socket and the blob store
+ * without copying them through the java heap
+ * A new upload of a blob takes over from an upload of the same blob, which is still in process
+ * (its connection is closed), so a stalled uploader can't keep the blob from being resumed
+ * Transfers without upload or download activity for FILE_TRANSFER_TTL are removed, and so are
+ * abandoned upload files without transfers, every id can have only FILE_UPLOADS_PER_ID unfinished transfers
+ *
+ * @author NAUMENKO-ZHIVOY ARTEM
+ * @version 2.0
+ * @see FileTransfer
+ * @see ServerConfig#FILE_PORT
+ * @see ServerConfig#FILE_TRANSFER_TTL
+ */
+public class FileTransferServer {
+    /**
+     * Bytes copied by one transferFrom / transferTo call
+     */
+    private static final long CHUNK = 1024 * 1024;
+    /**
+     * Max length of the first text line of a data connection
+     */
+    private static final int MAX_HEADER = 256;
+    /**
+     * Time to wait for a taken over upload to stop in milliseconds
+     */
+    private static final long TAKEOVER_WAIT = 5000;
+    /**
+     * Max time between two expired transfer checks in milliseconds
+     */
+    private static final long SWEEP_INTERVAL = 60 * 1000;
+
+    /**
+     * Upload in process
+     */
+    private static final class Upload {
+        /**
+         * Data connection of the upload
+         */
+        final SocketChannel channel;
+        /**
+         * Counted down when the upload stops writing
+         */
+        final CountDownLatch done = new CountDownLatch(1);
+
+        Upload(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        /**
+         * Stops the upload by closing its connection
+         *
+         * @return True if the upload stopped writing in time
+         */
+        boolean stop() {
+            try {
+                channel.close();
+                return done.await(TAKEOVER_WAIT, TimeUnit.MILLISECONDS);
+            } catch (IOException e) {
+                return false;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+    }
+
+    /**
+     * All transfers by their ids
+     */
+    private final Map<String, FileTransfer> transfers;
+    /**
+     * Transfers by blob SHA-256 (a set is changed with the blob upload lock held)
+     */
+    private final Map<String, Set<FileTransfer>> bySha;
+    /**
+     * Count of unfinished (not stored) transfers by the id of the one who uploads them
+     */
+    private final Map<Integer, Integer> unfinished;
+    /**
+     * Uploads in process by blob SHA-256 (changed with the blob upload lock held)
+     */
+    private final Map<String, Upload> uploads;
+    /**
+     * Blob store with all transferred files
+     */
+    private final BlobStore blobs;
+    /**
+     * File transfer port
+     */
+    private final int port;
+    /**
+     * Uploaded file handler (is called when the file is stored and its checksum is correct)
+     */
+    private final Consumer<FileTransfer> onStored;
+    /**
+     * Downloaded file handler (is called with a transfer and download time in nanoseconds when all its bytes are sent)
+     */
+    private final BiConsumer<FileTransfer, Long> onDelivered;
+    /**
+     * Time a transfer is kept without activity in milliseconds
+     */
+    private final long ttl;
+    /**
+     * Max count of unfinished transfers of one id
+     */
+    private final int quota;
+    /**
+     * Max count of all transfers
+     */
+    private final int maxTransfers;
+    /**
+     * Expired transfers remover
+     */
+    private final ScheduledExecutorService sweeper;
+    /**
+     * Transfer id generator
+     */
+    private final SecureRandom random;
+    /**
+     * Logger instance for console
+     */
+    private final Logger logger;
+    /**
+     * Data connections server channel (null before start)
+     */
+    private volatile ServerSocketChannel server;
+    /**
+     * Is the server stopped
+     */
+    private volatile boolean stopped;
+
+    /**
+     * File transfer server construction function
+     *
+     * @param blobs        Blob store to keep transferred files in
+     * @param port         File transfer port
+     * @param onStored     Uploaded file handler
+     * @param onDelivered  Downloaded file handler
+     * @param ttl          Time a transfer is kept without activity in milliseconds
+     * @param quota        Max count of unfinished transfers of one id
+     * @param maxTransfers Max count of all transfers
+     */
+    public FileTransferServer(BlobStore blobs, int port, Consumer<FileTransfer> onStored, BiConsumer<FileTransfer, Long> onDelivered,
+                              long ttl, int quota, int maxTransfers) {
+        this.blobs = blobs;
+        this.port = port;
+        this.onStored = onStored;
+        this.onDelivered = onDelivered;
+        this.ttl = ttl;
+        this.quota = quota;
+        this.maxTransfers = maxTransfers;
+        this.transfers = new ConcurrentHashMap<>();
+        this.bySha = new ConcurrentHashMap<>();
+        this.unfinished = new ConcurrentHashMap<>();
+        this.uploads = new ConcurrentHashMap<>();
+        this.sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "File transfer sweeper");
+            t.setDaemon(true);
+            return t;
+        });
+        this.random = new SecureRandom();
+        this.logger = Logger.getInstance();
+    }
+
+    /**
+     * Blob store getter
+     *
+     * @return Blob store with all transferred files
+     */
+    public BlobStore getBlobs() {
+        return blobs;
+    }
+
+    /**
+     * File transfer port getter
+     *
+     * @return File transfer port
+     */
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * Starts the file transfer server thread and the expired transfers remover
+     *
+     * @see FileTransferServer#acceptLoop()
+     * @see FileTransferServer#sweep()
+     */
+    public void start() {
+        Thread t = new Thread(this::acceptLoop, "File transfer server");
+        t.setDaemon(true);
+        t.start();
+        long interval = Math.max(100, Math.min(SWEEP_INTERVAL, ttl / 4));
+        sweeper.scheduleWithFixedDelay(this::sweep, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops accepting data connections (transfers in process are not interrupted)
+     */
+    public void stop() {
+        stopped = true;
+        sweeper.shutdownNow();
+        try {
+            if (server != null)
+                server.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Creates a new transfer, which waits for its file bytes
+     * If the file is already in the blob store the transfer is stored at once,
+     * if another upload of this file was interrupted the new transfer continues it
+     *
+     * @param name      File name
+     * @param size      File size in bytes
+     * @param sha256    Expected file SHA-256 (hex)
+     * @param direction Transfer direction
+     * @param fromId    Id of the one who uploads the file
+     * @param toId      Id of the client who gets the file (-1 for uploads to admins)
+     * @return Created transfer, null if there are too many transfers or unfinished transfers of fromId
+     * @throws IOException exception during blob store reading
+     * @see BlobStore
+     */
+    public FileTransfer create(String name, long size, String sha256, FileTransfer.Direction direction, int fromId, int toId) throws IOException {
+        String id = HexFormat.of().toHexDigits(random.nextLong());
+        String sha = sha256.toLowerCase(Locale.ROOT);
+        FileTransfer transfer;
+        synchronized (blobs.lockOf(sha)) {
+            boolean stored = blobs.has(sha) && blobs.blobFile(sha).length() == size;
+            if (transfers.size() >= maxTransfers || !stored && !reserve(fromId)) {
+                logger.print("File transfer of " + name + " from " + fromId + " rejected: too many transfers", "Wrong data");
+                return null;
+            }
+            try {
+                transfer = new FileTransfer(id, name, size, sha, direction, fromId, toId, stored ? size : blobs.uploadedLength(sha));
+            } catch (IOException | RuntimeException e) {
+                if (!stored)
+                    release(fromId);
+                throw e;
+            }
+            if (stored) {
+                transfer.state = FileTransfer.State.STORED;
+                blobs.countDedupHit();
+            }
+            transfers.put(id, transfer);
+            bySha.computeIfAbsent(sha, s -> new HashSet<>()).add(transfer);
+        }
+        logger.print("File transfer " + id + " created: " + name + " (" + size + " bytes) from " + fromId + (toId > 0 ? " to " + toId : "") +
+                (transfer.state == FileTransfer.State.STORED ? ", already stored" : ", upload offset " + transfer.getReceived()), "Default");
+        return transfer;
+    }
+
+    /**
+     * Upload offset getting function
+     *
+     * @param transfer A transfer
+     * @return Count of bytes the upload should be continued from
+     * @throws IOException exception during blob store reading
+     */
+    public long resumeOffset(FileTransfer transfer) throws IOException {
+        if (transfer.state == FileTransfer.State.STORED)
+            return transfer.size;
+        if (transfer.state == FileTransfer.State.CORRUPTED)
+            return 0;
+        synchronized (blobs.lockOf(transfer.sha256)) {
+            return blobs.uploadedLength(transfer.sha256);
+        }
+    }
+
+    /**
+     * Transfer getting by its id
+     *
+     * @param id Transfer id
+     * @return Transfer with id id, null if it does not exist
+     */
+    public FileTransfer get(String id) {
+        return transfers.get(id);
+    }
+
+    /**
+     * Takes one unfinished transfer place of an id
+     *
+     * @param id Id of the one who uploads a file
+     * @return False if the id already has quota unfinished transfers
+     */
+    private boolean reserve(int id) {
+        boolean[] reserved = new boolean[1];
+        unfinished.compute(id, (key, count) -> {
+            int cur = count == null ? 0 : count;
+            reserved[0] = cur < quota;
+            return reserved[0] ? cur + 1 : count;
+        });
+        return reserved[0];
+    }
+
+    /**
+     * Frees one unfinished transfer place of an id (the transfer is stored or removed)
+     *
+     * @param id Id of the one who uploaded a file
+     */
+    private void release(int id) {
+        unfinished.computeIfPresent(id, (key, count) -> count > 1 ? count - 1 : null);
+    }
+
+    /**
+     * Removes expired transfers and abandoned uploads
+     * A transfer expires after ttl without activity unless its blob is being uploaded,
+     * upload files are removed when their blob has no transfers, no upload in process and was not written for ttl
+     */
+    private void sweep() {
+        long now = System.currentTimeMillis();
+        int expired = 0, dropped = 0;
+        try {
+            for (FileTransfer transfer : transfers.values()) {
+                if (now - transfer.touched < ttl)
+                    continue;
+                synchronized (blobs.lockOf(transfer.sha256)) {
+                    if (uploads.containsKey(transfer.sha256) || now - transfer.touched < ttl || transfers.remove(transfer.id) == null)
+                        continue;
+                    if (transfer.state != FileTransfer.State.STORED)
+                        release(transfer.fromId);
+                    Set<FileTransfer> same = bySha.get(transfer.sha256);
+                    same.remove(transfer);
+                    if (same.isEmpty()) {
+                        bySha.remove(transfer.sha256);
+                        blobs.forget(transfer.sha256);
+                    }
+                    expired++;
+                }
+            }
+            for (String sha : blobs.uploads())
+                synchronized (blobs.lockOf(sha)) {
+                    if (!bySha.containsKey(sha) && !uploads.containsKey(sha) && now - blobs.uploadTime(sha) >= ttl) {
+                        blobs.dropUpload(sha);
+                        dropped++;
+                    }
+                }
+        } catch (IOException | RuntimeException e) {
+            logger.print("File transfer cleanup failed: " + e, "Error");
+        }
+        if (expired > 0 || dropped > 0)
+            logger.print("File transfers expired: " + expired + ", abandoned uploads removed: " + dropped, "Default");
+    }
+
+    /**
+     * Accepts data connections and handles each of them in its own thread
+     */
+    private void acceptLoop() {
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            this.server = server;
+            if (stopped)
+                return;
+            server.bind(new InetSocketAddress(port));
+            logger.print("File transfer server started on port: " + port, "Server state");
+            while (true) {
+                SocketChannel channel = server.accept();
+                new Thread(() -> handle(channel), "File transfer").start();
+            }
+        } catch (IOException e) {
+            if (stopped)
+                logger.print("File transfer server stopped", "Server state");
+            else
+                logger.print("File transfer server stopped: " + e.getMessage(), "Error");
+        }
+    }
+
+    /**
+     * Handles one data connection
+     *
+     * @param channel Data connection
+     */
+    private void handle(SocketChannel channel) {
+        try (channel) {
+            String header = readHeader(channel);
+            String[] split = header == null ? new String[0] : header.split("\\$");
+            if (split.length != 3 || !split[2].matches("\\d+")) {
+                writeHeader(channel, "ERR$INVALID_SYNTAX");
+                return;
+            }
+
+            FileTransfer transfer = transfers.get(split[1]);
+            long offset = Long.parseLong(split[2]);
+            if (transfer == null)
+                writeHeader(channel, "ERR$INVALID_ID");
+            else if (split[0].equals("PUT"))
+                upload(channel, transfer, offset);
+            else if (split[0].equals("GET"))
+                download(channel, transfer, offset);
+            else
+                writeHeader(channel, "ERR$INVALID_SYNTAX");
+        } catch (IOException e) {
+            logger.print("File transfer connection lost: " + e, "Error");
+        }
+    }
+
+    /**
+     * Receives file bytes
+     * Upload can be continued only from the end of the last finished chunk the server has,
+     * every finished chunk is saved to the upload manifest
+     * The blob upload lock is held only to start the upload, to commit a chunk and to finish the upload,
+     * bytes are received without it
+     *
+     * @param channel  Data connection
+     * @param transfer Transfer to upload
+     * @param offset   Offset to upload from
+     * @throws IOException exception during file or online communication
+     * @see BlobStore#commitChunk(String, int)
+     */
+    private void upload(SocketChannel channel, FileTransfer transfer, long offset) throws IOException {
+        Object lock = blobs.lockOf(transfer.sha256);
+        Upload upload = new Upload(channel);
+        Upload previous;
+        synchronized (lock) {
+            if (transfer.state == FileTransfer.State.CORRUPTED && offset == 0)
+                transfer.state = FileTransfer.State.UPLOADING;
+            previous = transfer.state == FileTransfer.State.UPLOADING ? uploads.put(transfer.sha256, upload) : null;
+        }
+        if (transfer.state != FileTransfer.State.UPLOADING) {
+            writeHeader(channel, "ERR$STATE$" + transfer.state);
+            return;
+        }
+
+        List<FileTransfer> stored = new ArrayList<>();
+        try {
+            if (previous != null) {
+                logger.print("File transfer " + transfer.id + " takes over an upload in process", "Default");
+                if (!previous.stop()) {
+                    writeHeader(channel, "ERR$BUSY");
+                    return;
+                }
+            }
+            long uploaded;
+            synchronized (lock) {
+                if (uploads.get(transfer.sha256) != upload)
+                    return;
+                uploaded = blobs.startUpload(transfer.sha256);
+            }
+            if (offset != uploaded) {
+                writeHeader(channel, "ERR$OFFSET$" + uploaded);
+                return;
+            }
+            writeHeader(channel, "OK$" + offset);
+
+            long start = System.nanoTime();
+            try (FileChannel file = FileChannel.open(blobs.partFile(transfer.sha256).toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                long pos = offset;
+                while (pos < transfer.size) {
+                    int chunk = (int) (pos / BlobStore.CHUNK_SIZE);
+                    long chunkEnd = Math.min((long) (chunk + 1) * BlobStore.CHUNK_SIZE, transfer.size);
+                    long n = file.transferFrom(channel, pos, Math.min(CHUNK, chunkEnd - pos));
+                    if (n <= 0)
+                        break;
+                    pos += n;
+                    transfer.received.set(pos);
+                    transfer.touch();
+                    if (pos == chunkEnd) {
+                        file.force(false);
+                        synchronized (lock) {
+                            if (uploads.get(transfer.sha256) != upload)
+                                throw new IOException("upload is taken over");
+                            blobs.commitChunk(transfer.sha256, chunk);
+                        }
+                    }
+                }
+            } finally {
+                transfer.uploadNanos.addAndGet(System.nanoTime() - start);
+            }
+
+            if (transfer.received.get() < transfer.size) {
+                logger.print("File transfer " + transfer.id + " interrupted at " + transfer.received.get() + " of " + transfer.size + " bytes", "Wrong data");
+                return;
+            }
+
+            String sha;
+            synchronized (lock) {
+                if (uploads.get(transfer.sha256) != upload)
+                    return;
+                sha = blobs.complete(transfer.sha256);
+                if (!sha.equals(transfer.sha256)) {
+                    transfer.state = FileTransfer.State.CORRUPTED;
+                    transfer.received.set(0);
+                } else
+                    for (FileTransfer cur : bySha.getOrDefault(transfer.sha256, Set.of()))
+                        if (cur.state == FileTransfer.State.UPLOADING) {
+                            cur.received.set(cur.size);
+                            cur.state = FileTransfer.State.STORED;
+                            cur.touch();
+                            release(cur.fromId);
+                            stored.add(cur);
+                        }
+            }
+            if (!sha.equals(transfer.sha256)) {
+                logger.print("File transfer " + transfer.id + " checksum mismatch: " + sha, "Wrong data");
+                writeHeader(channel, "ERR$CHECKSUM$" + sha);
+                return;
+            }
+            writeHeader(channel, "DONE$" + transfer.id + "$" + sha);
+        } finally {
+            synchronized (lock) {
+                uploads.remove(transfer.sha256, upload);
+            }
+            upload.done.countDown();
+        }
+        logger.print("File transfer " + transfer.id + " stored: " + transfer.size + " bytes, " + transfer.getUploadSpeed() / 1024 + " KB/s", "Default");
+        stored.forEach(onStored);
+    }
+
+    /**
+     * Sends stored file bytes
+     * Bytes are written from one memory mapped copy of the blob shared by all downloads,
+     * blobs which are too big to be mapped are sent with FileChannel.transferTo
+     *
+     * @param channel  Data connection
+     * @param transfer Transfer to download
+     * @param offset   Offset to download from
+     * @throws IOException exception during file or online communication
+     * @see BlobStore#map(String)
+     */
+    private void download(SocketChannel channel, FileTransfer transfer, long offset) throws IOException {
+        if (transfer.state != FileTransfer.State.STORED) {
+            writeHeader(channel, "ERR$STATE$" + transfer.state);
+            return;
+        }
+        if (offset > transfer.size) {
+            writeHeader(channel, "ERR$OFFSET$" + transfer.size);
+            return;
+        }
+        writeHeader(channel, "OK$" + offset);
+        transfer.touch();
+
+        long start = System.nanoTime();
+        long pos = offset;
+        ByteBuffer mapped = blobs.map(transfer.sha256);
+        if (mapped != null) {
+            mapped.position((int) offset);
+            while (mapped.hasRemaining()) {
+                int n = channel.write(mapped);
+                pos += n;
+                transfer.sent.addAndGet(n);
+                transfer.touch();
+            }
+        } else
+            try (FileChannel file = FileChannel.open(blobs.blobFile(transfer.sha256).toPath(), StandardOpenOption.READ)) {
+                while (pos < transfer.size) {
+                    long n = file.transferTo(pos, Math.min(CHUNK, transfer.size - pos), channel);
+                    if (n <= 0)
+                        break;
+                    pos += n;
+                    transfer.sent.addAndGet(n);
+                    transfer.touch();
+                }
+            }
+        if (pos == transfer.size)
+            onDelivered.accept(transfer, System.nanoTime() - start);
+    }
+
+    /**
+     * Reads the first text line of a data connection byte by byte (so no file bytes are read)
+     *
+     * @param channel Data connection
+     * @return Read line without line separator, null if the line is too long or the connection is closed
+     * @throws IOException exception during online communication
+     */
+    private String readHeader(SocketChannel channel) throws IOException {
+        ByteBuffer one = ByteBuffer.allocate(1);
+        byte[] line = new byte[MAX_HEADER];
+        int len = 0;
+        while (len < MAX_HEADER) {
+            one.clear();
+            if (channel.read(one) < 0)
+                return null;
+            byte b = one.get(0);
+            if (b == '\n')
+                return new String(line, 0, len, StandardCharsets.UTF_8).trim();
+            line[len++] = b;
+        }
+        return null;
+    }
+
+    /**
+     * Writes a text line to a data connection
+     *
+     * @param channel Data connection
+     * @param line    A line to write
+     * @throws IOException exception during online communication
+     */
+    private void writeHeader(SocketChannel channel, String line) throws IOException {
+        ByteBuffer buf = ByteBuffer.wrap((line + "\n").getBytes(StandardCharsets.UTF_8));
+        while (buf.hasRemaining())
+            channel.write(buf);
+    }
+}
@@ -0,0 +1,81 @@
+package com.livefish.Online;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Consistent hashing ring of cluster nodes
+ * Every node is put on the ring many times (virtual nodes), an id belongs to the first node point after the id hash,
+ * so adding or removing a node moves only ids of its neighbour parts and ids are spread evenly
+ * All nodes build the same ring from the same node names, so every node knows the owner of any id
+ *
+ * @author NAUMENKO-ZHIVOY ARTEM
+ * @version 2.0
+ * @see ClusterLink
+ */
+public class HashRing {
+    /**
+     * Count of ring points of one node
+     */
+    private static final int VIRTUAL_NODES = 160;
+
+    /**
+     * Ring points and their nodes
+     */
+    private final TreeMap<Long, String> ring;
+
+    /**
+     * Ring construction function
+     *
+     * @param nodes Names of all cluster nodes
+     */
+    public HashRing(Collection<String> nodes) {
+        ring = new TreeMap<>();
+        for (String node : nodes)
+            for (int i = 0; i < VIRTUAL_NODES; i++)
+                ring.put(hash(node + "#" + i), node);
+    }
+
+    /**
+     * Id owner getting function
+     *
+     * @param id Client id
+     * @return Name of the node, which owns the id
+     */
+    public String owner(int id) {
+        Map.Entry<Long, String> point = ring.ceilingEntry(mix(id));
+        return (point == null ? ring.firstEntry() : point).getValue();
+    }
+
+    /**
+     * String hash for node points (64-bit FNV-1a with final mixing)
+     *
+     * @param str String to hash
+     * @return Hash
+     */
+    private static long hash(String str) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : str.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b & 0xFF;
+            h *= 0x100000001b3L;
+        }
+        return mix(h);
+    }
+
+    /**
+     * 64-bit hash finalizer (MurmurHash3 fmix64), spreads close ids over the whole ring
+     *
+     * @param value Value to mix
+     * @return Mixed value
+     */
+    private static long mix(long value) {
+        value ^= value >>> 33;
+        value *= 0xff51afd7ed558ccdL;
+        value ^= value >>> 33;
+        value *= 0xc4ceb9fe1a85ec53L;
+        value ^= value >>> 33;
+        return value;
+    }
+}
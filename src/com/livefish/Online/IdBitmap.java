@@ -0,0 +1,421 @@
+package com.livefish.Online;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Compressed bitmap of client ids
+ * Ids are split into blocks of 65536 by their high 16 bits, a block keeps its low 16 bits
+ * in a sorted array while it has up to ARRAY_MAX ids and in a 8 KB bitmap when it is denser,
+ * so memory depends on the count of ids, not on their values (any int id, negative too)
+ * Blocks without ids are removed
+ *
+ * @author NAUMENKO-ZHIVOY ARTEM
+ * @version 2.0
+ * @see TagIndex
+ */
+public class IdBitmap {
+    /**
+     * Max count of ids in an array block, denser blocks are bitmaps
+     */
+    private static final int ARRAY_MAX = 4096;
+    /**
+     * Count of 64-bit words in a bitmap block
+     */
+    private static final int WORDS = 1024;
+
+    /**
+     * Blocks by the high 16 bits of their ids (signed, so ids are in ascending order)
+     */
+    private final TreeMap<Integer, Block> blocks = new TreeMap<>();
+
+    /**
+     * Adds an id
+     *
+     * @param id Client id
+     * @return False if the id was already in the bitmap
+     */
+    public boolean add(int id) {
+        return blocks.computeIfAbsent(id >> 16, high -> new Block()).add((char) id);
+    }
+
+    /**
+     * Removes an id
+     *
+     * @param id Client id
+     * @return False if the id was not in the bitmap
+     */
+    public boolean remove(int id) {
+        Block block = blocks.get(id >> 16);
+        if (block == null || !block.remove((char) id))
+            return false;
+        if (block.size == 0)
+            blocks.remove(id >> 16);
+        return true;
+    }
+
+    /**
+     * Adds or removes an id
+     *
+     * @param id    Client id
+     * @param value Is the id added
+     */
+    public void set(int id, boolean value) {
+        if (value)
+            add(id);
+        else
+            remove(id);
+    }
+
+    /**
+     * Checks if an id is in the bitmap
+     *
+     * @param id Client id
+     * @return True if the id is in the bitmap
+     */
+    public boolean contains(int id) {
+        Block block = blocks.get(id >> 16);
+        return block != null && block.contains((char) id);
+    }
+
+    /**
+     * Checks if the bitmap has no ids
+     *
+     * @return True if there are no ids
+     */
+    public boolean isEmpty() {
+        return blocks.isEmpty();
+    }
+
+    /**
+     * Count of ids getting function
+     *
+     * @return Count of ids in the bitmap
+     */
+    public int cardinality() {
+        int res = 0;
+        for (Block block : blocks.values())
+            res += block.size;
+        return res;
+    }
+
+    /**
+     * Keeps only ids, which are in another bitmap too
+     *
+     * @param other Bitmap to intersect with
+     */
+    public void and(IdBitmap other) {
+        Iterator<Map.Entry<Integer, Block>> it = blocks.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Integer, Block> entry = it.next();
+            Block theirs = other.blocks.get(entry.getKey());
+            Block res = theirs == null ? null : entry.getValue().and(theirs);
+            if (res == null)
+                it.remove();
+            else
+                entry.setValue(res);
+        }
+    }
+
+    /**
+     * Adds all ids of another bitmap
+     *
+     * @param other Bitmap to unite with
+     */
+    public void or(IdBitmap other) {
+        other.blocks.forEach((high, theirs) -> blocks.merge(high, theirs.copy(), Block::or));
+    }
+
+    /**
+     * Removes all ids of another bitmap
+     *
+     * @param other Bitmap with ids to remove
+     */
+    public void andNot(IdBitmap other) {
+        Iterator<Map.Entry<Integer, Block>> it = blocks.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Integer, Block> entry = it.next();
+            Block theirs = other.blocks.get(entry.getKey());
+            if (theirs == null)
+                continue;
+            Block res = entry.getValue().andNot(theirs);
+            if (res == null)
+                it.remove();
+            else
+                entry.setValue(res);
+        }
+    }
+
+    /**
+     * Copy of the bitmap
+     *
+     * @return A new bitmap with the same ids
+     */
+    public IdBitmap copy() {
+        IdBitmap res = new IdBitmap();
+        blocks.forEach((high, block) -> res.blocks.put(high, block.copy()));
+        return res;
+    }
+
+    /**
+     * All ids in ascending order
+     *
+     * @return Array of ids
+     */
+    public int[] toArray() {
+        int[] res = new int[cardinality()];
+        int pos = 0;
+        for (Map.Entry<Integer, Block> entry : blocks.entrySet())
+            pos = entry.getValue().fill(entry.getKey() << 16, res, pos);
+        return res;
+    }
+
+    /**
+     * Ids of one block of 65536 ids, only their low 16 bits are kept
+     * A block is an array of sorted values or, if it has more than ARRAY_MAX values, a bitmap
+     */
+    private static final class Block {
+        /**
+         * Sorted values (null if the block is a bitmap)
+         */
+        private char[] values = new char[4];
+        /**
+         * Bitmap words (null if the block is an array)
+         */
+        private long[] words;
+        /**
+         * Count of values
+         */
+        private int size;
+
+        /**
+         * Checks if a value is in the block
+         *
+         * @param value Low 16 bits of an id
+         * @return True if the value is in the block
+         */
+        boolean contains(char value) {
+            if (words != null)
+                return (words[value >>> 6] & 1L << value) != 0;
+            return Arrays.binarySearch(values, 0, size, value) >= 0;
+        }
+
+        /**
+         * Adds a value, an array with more than ARRAY_MAX values becomes a bitmap
+         *
+         * @param value Low 16 bits of an id
+         * @return False if the value was already in the block
+         */
+        boolean add(char value) {
+            if (words != null) {
+                long bit = 1L << value;
+                if ((words[value >>> 6] & bit) != 0)
+                    return false;
+                words[value >>> 6] |= bit;
+                size++;
+                return true;
+            }
+            int pos = Arrays.binarySearch(values, 0, size, value);
+            if (pos >= 0)
+                return false;
+            if (size == ARRAY_MAX) {
+                toBitmap();
+                return add(value);
+            }
+            pos = -pos - 1;
+            if (size == values.length)
+                values = Arrays.copyOf(values, Math.min(ARRAY_MAX, size * 2));
+            System.arraycopy(values, pos, values, pos + 1, size - pos);
+            values[pos] = value;
+            size++;
+            return true;
+        }
+
+        /**
+         * Removes a value, a bitmap with ARRAY_MAX values or less becomes an array
+         *
+         * @param value Low 16 bits of an id
+         * @return False if the value was not in the block
+         */
+        boolean remove(char value) {
+            if (words != null) {
+                long bit = 1L << value;
+                if ((words[value >>> 6] & bit) == 0)
+                    return false;
+                words[value >>> 6] &= ~bit;
+                size--;
+                if (size <= ARRAY_MAX)
+                    toArray();
+                return true;
+            }
+            int pos = Arrays.binarySearch(values, 0, size, value);
+            if (pos < 0)
+                return false;
+            System.arraycopy(values, pos + 1, values, pos, size - pos - 1);
+            size--;
+            return true;
+        }
+
+        /**
+         * Writes ids of the block in ascending order
+         *
+         * @param high High 16 bits of the block ids
+         * @param res  Array to write to
+         * @param pos  Position to write from
+         * @return Position after the last written id
+         */
+        int fill(int high, int[] res, int pos) {
+            if (words == null) {
+                for (int i = 0; i < size; i++)
+                    res[pos++] = high | values[i];
+                return pos;
+            }
+            for (int i = 0; i < WORDS; i++)
+                for (long word = words[i]; word != 0; word &= word - 1)
+                    res[pos++] = high | i << 6 | Long.numberOfTrailingZeros(word);
+            return pos;
+        }
+
+        /**
+         * Intersection with another block
+         *
+         * @param other Block to intersect with
+         * @return This block with the result, null if it is empty
+         */
+        Block and(Block other) {
+            if (words != null && other.words != null) {
+                size = 0;
+                for (int i = 0; i < WORDS; i++)
+                    size += Long.bitCount(words[i] &= other.words[i]);
+                return normalize();
+            }
+            Block array = words == null ? this : other, checked = array == this ? other : this;
+            char[] res = new char[array.size];
+            int count = 0;
+            for (int i = 0; i < array.size; i++)
+                if (checked.contains(array.values[i]))
+                    res[count++] = array.values[i];
+            values = res;
+            words = null;
+            size = count;
+            return normalize();
+        }
+
+        /**
+         * Union with another block
+         *
+         * @param other Block to unite with
+         * @return This block with the result
+         */
+        Block or(Block other) {
+            if (words == null && other.words == null && size + other.size <= ARRAY_MAX) {
+                char[] res = new char[Math.max(4, size + other.size)];
+                int i = 0, j = 0, count = 0;
+                while (i < size || j < other.size) {
+                    if (j == other.size || i < size && values[i] < other.values[j])
+                        res[count++] = values[i++];
+                    else if (i == size || other.values[j] < values[i])
+                        res[count++] = other.values[j++];
+                    else {
+                        res[count++] = values[i++];
+                        j++;
+                    }
+                }
+                values = res;
+                size = count;
+                return this;
+            }
+            toBitmap();
+            if (other.words != null) {
+                size = 0;
+                for (int i = 0; i < WORDS; i++)
+                    size += Long.bitCount(words[i] |= other.words[i]);
+            } else
+                for (int i = 0; i < other.size; i++)
+                    add(other.values[i]);
+            return this;
+        }
+
+        /**
+         * Difference with another block
+         *
+         * @param other Block with values to remove
+         * @return This block with the result, null if it is empty
+         */
+        Block andNot(Block other) {
+            if (words != null && other.words != null) {
+                size = 0;
+                for (int i = 0; i < WORDS; i++)
+                    size += Long.bitCount(words[i] &= ~other.words[i]);
+                return normalize();
+            }
+            if (words != null) {
+                for (int i = 0; i < other.size; i++)
+                    if ((words[other.values[i] >>> 6] & 1L << other.values[i]) != 0) {
+                        words[other.values[i] >>> 6] &= ~(1L << other.values[i]);
+                        size--;
+                    }
+                return normalize();
+            }
+            int count = 0;
+            for (int i = 0; i < size; i++)
+                if (!other.contains(values[i]))
+                    values[count++] = values[i];
+            size = count;
+            return normalize();
+        }
+
+        /**
+         * Copy of the block
+         *
+         * @return A new block with the same values
+         */
+        Block copy() {
+            Block res = new Block();
+            res.values = values == null ? null : Arrays.copyOf(values, Math.max(4, size));
+            res.words = words == null ? null : words.clone();
+            res.size = size;
+            return res;
+        }
+
+        /**
+         * Makes a result block compact
+         *
+         * @return This block in the smaller form, null if it is empty
+         */
+        private Block normalize() {
+            if (size == 0)
+                return null;
+            if (words != null && size <= ARRAY_MAX)
+                toArray();
+            return this;
+        }
+
+        /**
+         * Turns an array block into a bitmap
+         */
+        private void toBitmap() {
+            if (words != null)
+                return;
+            words = new long[WORDS];
+            for (int i = 0; i < size; i++)
+                words[values[i] >>> 6] |= 1L << values[i];
+            values = null;
+        }
+
+        /**
+         * Turns a bitmap block into an array
+         */
+        private void toArray() {
+            char[] res = new char[Math.max(4, size)];
+            int count = 0;
+            for (int i = 0; i < WORDS; i++)
+                for (long word = words[i]; word != 0; word &= word - 1)
+                    res[count++] = (char) (i << 6 | Long.numberOfTrailingZeros(word));
+            values = res;
+            words = null;
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package com.livefish.Online;
+
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Id list filter for list INFO commands, evaluated on the server
+ * Written as comma separated parts: ROOT:ADMIN or ROOT:CLIENT, RANGE:from-to (both ends included)
+ *
+ * @param root Root of ids to keep (null for any root)
+ * @param from Min id to keep
+ * @param to   Max id to keep
+ * @author NAUMENKO-ZHIVOY ARTEM
+ * @version 2.0
+ * @see Server
+ */
+record IdFilter(ClientRoot root, int from, int to) {
+    /**
+     * Filter, which keeps every id
+     */
+    static final IdFilter ALL = new IdFilter(null, 0, Integer.MAX_VALUE);
+
+    /**
+     * Filter parsing function
+     *
+     * @param filter Filter text
+     * @return Parsed filter, null if the text is not a valid filter
+     */
+    static IdFilter parse(String filter) {
+        ClientRoot root = null;
+        int from = 0, to = Integer.MAX_VALUE;
+        for (String part : filter.split(",")) {
+            String upper = part.toUpperCase(Locale.ROOT);
+            if (upper.equals("ROOT:ADMIN"))
+                root = ClientRoot.ADMIN;
+            else if (upper.equals("ROOT:CLIENT"))
+                root = ClientRoot.CLIENT;
+            else if (upper.matches("RANGE:\\d{1,9}-\\d{1,9}")) {
+                String[] range = upper.substring(6).split("-");
+                from = Integer.parseInt(range[0]);
+                to = Integer.parseInt(range[1]);
+            } else
+                return null;
+        }
+        return from > to ? null : new IdFilter(root, from, to);
+    }
+
+    /**
+     * Checks if an id passes the filter
+     *
+     * @param id      Id to check
+     * @param admins  Admin ids
+     * @param clients Client ids
+     * @return True if the id is kept
+     */
+    boolean test(int id, Set<Integer> admins, Set<Integer> clients) {
+        if (id < from || id > to)
+            return false;
+        return root == null || (root == ClientRoot.ADMIN ? admins : clients).contains(id);
+    }
+}
@@ -0,0 +1,52 @@
+package com.livefish.Online;
+
+/**
+ * Priority lane of outbound traffic, lanes are ordered from the most urgent one
+ * Connections let queued writers of a more urgent lane write first,
+ * the scheduler runs queued tasks of a more urgent lane first
+ *
+ * @author NAUMENKO-ZHIVOY ARTEM
+ * @version 2.0
+ * @see Connection
+ * @see PriorityScheduler
+ */
+public enum Lane {
+    /**
+     * System messages: SYS$..., INVALID$... and ACK$... replies
+     */
+    CONTROL,
+    /**
+     * Answers and requests of interactive admin traffic
+     */
+    INTERACTIVE,
+    /**
+     * Batches and broadcast fan-out
+     */
+    BULK;
+
+    /**
+     * Lane of a single message by its prefix
+     *
+     * @param msg A message to send
+     * @return CONTROL for system messages, INTERACTIVE for all others
+     */
+    public static Lane of(CharSequence msg) {
+        return startsWith(msg, "SYS$") || startsWith(msg, "INVALID$") || startsWith(msg, "ACK$") ? CONTROL : INTERACTIVE;
+    }
+
+    /**
+     * Prefix check function for any char sequence
+     *
+     * @param msg    Text to check
+     * @param prefix Prefix to check
+     * @return True if msg starts with prefix
+     */
+    private static boolean startsWith(CharSequence msg, String prefix) {
+        if (msg.length() < prefix.length())
+            return false;
+        for (int i = 0; i < prefix.length(); i++)
+            if (msg.charAt(i) != prefix.charAt(i))
+                return false;
+        return true;
+    }
+}
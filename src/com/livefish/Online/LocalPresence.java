@@ -0,0 +1,66 @@
+package com.livefish.Online;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Presence directory of a single server instance
+ * Online ids are kept only in memory, there are no leases to renew
+ *
+ * @author NAUMENKO-ZHIVOY ARTEM
+ * @version 2.0
+ * @see PresenceDirectory
+ */
+public class LocalPresence implements PresenceDirectory {
+    /**
+     * Instance name
+     */
+    private final String node;
+    /**
+     * Online ids
+     */
+    private final Set<Integer> online = ConcurrentHashMap.newKeySet();
+
+    /**
+     * In-memory presence directory construction function
+     *
+     * @param node Instance name
+     */
+    public LocalPresence(String node) {
+        this.node = node;
+    }
+
+    @Override
+    public void start() {
+    }
+
+    @Override
+    public void stop() {
+        online.clear();
+    }
+
+    @Override
+    public String node() {
+        return node;
+    }
+
+    @Override
+    public boolean acquire(int id) {
+        return online.add(id);
+    }
+
+    @Override
+    public void release(int id) {
+        online.remove(id);
+    }
+
+    @Override
+    public String locate(int id) {
+        return online.contains(id) ? node : null;
+    }
+
+    @Override
+    public String stats() {
+        return "type=local,node=" + node + ",online=" + online.size();
+    }
+}
@@ -0,0 +1,253 @@
+package com.livefish.Online;
+
+import com.livefish.Output.Console.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Store-and-forward mailboxes for offline clients
+ * Every client has its own append-only file with commands sent to it while it was offline:
+ * expiration time$request id$admin id$command$args[$token]
+ * The commands are given back in order when the client logs in,
+ * and are removed from the mailbox only after they are written to it
+ * Admins never get saved commands, their mailboxes are dropped on start
+ *
+ * @author NAUMENKO-ZHIVOY ARTEM
+ * @version 2.0
+ * @see ServerConfig#MAILBOX_ENABLED
+ * @see Server#deliverMailbox(Client)
+ */
+public class Mailbox {
+    /**
+     * Mailbox files directory
+     */
+    private final File dir;
+    /**
+     * Count of saved commands in every mailbox
+     */
+    private final Map<Integer, Integer> depths;
+    /**
+     * Lock objects for every mailbox
+     */
+    private final Map<Integer, Object> locks;
+    /**
+     * Time a command is kept in a mailbox in milliseconds
+     */
+    private final long ttl;
+    /**
+     * Max count of commands in one mailbox
+     */
+    private final int maxDepth;
+    /**
+     * Biggest request id of all saved commands
+     */
+    private final AtomicLong lastRequestId;
+
+    /**
+     * Mailbox construction function
+     * Creates mailbox directory and counts already saved commands
+     *
+     * @param dirPath  Mailbox files directory
+     * @param ttl      Time a command is kept in a mailbox in milliseconds
+     * @param maxDepth Max count of commands in one mailbox
+     */
+    public Mailbox(String dirPath, long ttl, int maxDepth) {
+        this.dir = new File(dirPath);
+        this.ttl = ttl;
+        this.maxDepth = maxDepth;
+        this.depths = new ConcurrentHashMap<>();
+        this.locks = new ConcurrentHashMap<>();
+        this.lastRequestId = new AtomicLong();
+
+        if (!dir.exists() && !dir.mkdirs())
+            throw new RuntimeException("Failed to create mailbox directory in: " + dir.getAbsolutePath());
+
+        File[] files = dir.listFiles((d, name) -> name.matches("\\d+\\.dat"));
+        int total = 0;
+        if (files != null)
+            for (File f : files) {
+                int id = Integer.parseInt(f.getName().substring(0, f.getName().length() - 4));
+                List<String> lines = readLines(f.toPath());
+                for (String line : lines) {
+                    String[] split = line.split("\\$");
+                    if (split.length > 1 && split[1].matches("\\d+"))
+                        lastRequestId.accumulateAndGet(Long.parseLong(split[1]), Math::max);
+                }
+                depths.put(id, lines.size());
+                total += lines.size();
+            }
+        Logger.getInstance().print("Mailbox dir: " + dir.getAbsolutePath() + ", " + total + " saved commands", "File creation");
+    }
+
+    /**
+     * Mailbox file getting function
+     *
+     * @param id Client id
+     * @return Mailbox file of client with id id
+     */
+    private Path fileOf(int id) {
+        return new File(dir, id + ".dat").toPath();
+    }
+
+    /**
+     * Lock object getting function
+     *
+     * @param id Client id
+     * @return Lock object of mailbox with id id
+     */
+    private Object lockOf(int id) {
+        return locks.computeIfAbsent(id, i -> new Object());
+    }
+
+    /**
+     * Reads all lines of a mailbox file
+     *
+     * @param file A file to read
+     * @return All lines of the file, or an empty list if it does not exist
+     */
+    private List<String> readLines(Path file) {
+        try {
+            if (Files.exists(file))
+                return Files.readAllLines(file, StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return new ArrayList<>();
+    }
+
+    /**
+     * Saves a request to its client mailbox
+     *
+     * @param req A request to save
+     * @return False if the mailbox is full or the request wasn't saved
+     */
+    public boolean offer(Request req) {
+        synchronized (lockOf(req.idC)) {
+            int depth = depths.getOrDefault(req.idC, 0);
+            if (depth >= maxDepth)
+                return false;
+
+            String line = (System.currentTimeMillis() + ttl) + "$" + req.id + "$" + req.idA + "$" + req.cmd + "$" + req.args +
+                    (req.token == null ? "" : "$" + req.token) + "\n";
+            try {
+                Files.writeString(fileOf(req.idC), line, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            } catch (IOException e) {
+                e.printStackTrace();
+                return false;
+            }
+            depths.put(req.idC, depth + 1);
+            lastRequestId.accumulateAndGet(req.id, Math::max);
+            return true;
+        }
+    }
+
+    /**
+     * Biggest request id of all saved commands getting function
+     * Saved commands keep their request ids, new requests must not get them again after a restart
+     *
+     * @return Biggest saved request id (0 if there are no saved commands)
+     */
+    public long lastRequestId() {
+        return lastRequestId.get();
+    }
+
+    /**
+     * Ids with saved commands getting function
+     *
+     * @return Ids of all not empty mailboxes (a copy)
+     */
+    public Set<Integer> ids() {
+        return new HashSet<>(depths.keySet());
+    }
+
+    /**
+     * Count of saved commands getting function
+     *
+     * @param id Client id
+     * @return Count of commands in mailbox of client with id id
+     */
+    public int depth(int id) {
+        return depths.getOrDefault(id, 0);
+    }
+
+    /**
+     * Reads all saved requests from client mailbox, the mailbox is not changed
+     * Requests must be removed with {@link Mailbox#remove(int, Collection)} after they are delivered
+     *
+     * @param id      Client id
+     * @param expired A list to add expired requests to
+     * @return Not expired requests in order they were saved
+     */
+    public List<Request> peek(int id, List<Request> expired) {
+        List<Request> res = new ArrayList<>();
+        List<String> lines;
+        synchronized (lockOf(id)) {
+            lines = readLines(fileOf(id));
+        }
+
+        long now = System.currentTimeMillis();
+        for (String line : lines) {
+            String[] split = line.split("\\$");
+            if (split.length != 5 && split.length != 6)
+                continue;
+            Request req = new Request(Long.parseLong(split[1]), Integer.parseInt(split[2]), id, split[3], split[4],
+                    split.length == 6 ? split[5] : null);
+            if (Long.parseLong(split[0]) < now)
+                expired.add(req);
+            else
+                res.add(req);
+        }
+        return res;
+    }
+
+    /**
+     * Removes delivered requests from client mailbox
+     * Commands saved after the mailbox was read are kept, broken lines are removed
+     * The mailbox file is replaced atomically, so a crash keeps either the old or the new file
+     *
+     * @param id       Client id
+     * @param requests Delivered (or expired) requests
+     */
+    public void remove(int id, Collection<Request> requests) {
+        if (requests.isEmpty())
+            return;
+        Set<String> removed = new HashSet<>();
+        for (Request req : requests)
+            removed.add(String.valueOf(req.id));
+
+        synchronized (lockOf(id)) {
+            Path file = fileOf(id);
+            List<String> kept = new ArrayList<>();
+            for (String line : readLines(file)) {
+                String[] split = line.split("\\$");
+                if ((split.length == 5 || split.length == 6) && !removed.contains(split[1]))
+                    kept.add(line);
+            }
+            try {
+                if (kept.isEmpty())
+                    Files.deleteIfExists(file);
+                else {
+                    Path temp = new File(dir, id + ".tmp").toPath();
+                    Files.write(temp, kept, StandardCharsets.UTF_8);
+                    Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+                return;
+            }
+            if (kept.isEmpty())
+                depths.remove(id);
+            else
+                depths.put(id, kept.size());
+        }
+    }
+}
@@ -0,0 +1,282 @@
+package com.livefish.Online;
+
+import java.util.Arrays;
+
+/**
+ * Reusable view of one $-separated protocol message
+ * A message is parsed once with indexOf into field bounds, fields are compared and parsed in place,
+ * so routing a message does not build split arrays or substrings it does not keep
+ * Every client thread reuses one message object and its reply builder for all messages it reads
+ *
+ * @author NAUMENKO-ZHIVOY ARTEM
+ * @version 2.0
+ * @see Server
+ */
+public final class Message {
+    /**
+     * Initial capacity of the reply builder
+     */
+    private static final int REPLY_CAPACITY = 256;
+    /**
+     * Max capacity the reply builder keeps between messages, a bigger one is replaced
+     */
+    private static final int REPLY_MAX = 64 * 1024;
+
+    /**
+     * Current message line
+     */
+    private String line = "";
+    /**
+     * Field start indices
+     */
+    private int[] starts = new int[8];
+    /**
+     * Field end indices (exclusive)
+     */
+    private int[] ends = new int[8];
+    /**
+     * Count of fields, trailing empty fields are not counted (like String#split)
+     */
+    private int count;
+    /**
+     * Builder of reply messages
+     */
+    private StringBuilder reply = new StringBuilder(REPLY_CAPACITY);
+
+    /**
+     * Parses a message line, the previous message is forgotten
+     *
+     * @param line Message line
+     * @return This message
+     */
+    public Message parse(String line) {
+        this.line = line;
+        count = 0;
+        int from = 0;
+        while (true) {
+            int end = line.indexOf('$', from);
+            if (count == starts.length) {
+                starts = Arrays.copyOf(starts, count * 2);
+                ends = Arrays.copyOf(ends, count * 2);
+            }
+            starts[count] = from;
+            ends[count] = end < 0 ? line.length() : end;
+            count++;
+            if (end < 0)
+                break;
+            from = end + 1;
+        }
+        while (count > 1 && starts[count - 1] == ends[count - 1])
+            count--;
+        return this;
+    }
+
+    /**
+     * Current message line
+     *
+     * @return Line given to the last {@link Message#parse(String)}
+     */
+    public String line() {
+        return line;
+    }
+
+    /**
+     * Count of fields
+     *
+     * @return Count of $-separated fields without trailing empty ones
+     */
+    public int count() {
+        return count;
+    }
+
+    /**
+     * Field text
+     * Allocates a string, so is used only for fields which are kept
+     *
+     * @param i Field index
+     * @return Field text, null if there is no such field
+     */
+    public String field(int i) {
+        return i < count ? line.substring(starts[i], ends[i]) : null;
+    }
+
+    /**
+     * Text from a field to the end of the line, including the next $ signs
+     *
+     * @param i Field index
+     * @return Rest of the line, null if there is no such field
+     */
+    public String rest(int i) {
+        return i < count ? line.substring(starts[i]) : null;
+    }
+
+    /**
+     * Field comparison function
+     *
+     * @param i     Field index
+     * @param value Text to compare with
+     * @return True if the field exists and is equal to value
+     */
+    public boolean fieldEquals(int i, String value) {
+        return i < count && ends[i] - starts[i] == value.length() && line.startsWith(value, starts[i]);
+    }
+
+    /**
+     * Case-insensitive field comparison function
+     *
+     * @param i     Field index
+     * @param value Text to compare with
+     * @return True if the field exists and is equal to value ignoring case
+     */
+    public boolean fieldEqualsIgnoreCase(int i, String value) {
+        return i < count && ends[i] - starts[i] == value.length() && line.regionMatches(true, starts[i], value, 0, value.length());
+    }
+
+    /**
+     * Field prefix check function
+     *
+     * @param i      Field index
+     * @param prefix Prefix to check
+     * @return True if the field exists and starts with prefix
+     */
+    public boolean fieldStartsWith(int i, String prefix) {
+        return i < count && ends[i] - starts[i] >= prefix.length() && line.startsWith(prefix, starts[i]);
+    }
+
+    /**
+     * Field char search function
+     *
+     * @param i Field index
+     * @param c Char to find
+     * @return True if the field exists and contains c
+     */
+    public boolean fieldContains(int i, char c) {
+        if (i >= count)
+            return false;
+        int index = line.indexOf(c, starts[i]);
+        return index >= 0 && index < ends[i];
+    }
+
+    /**
+     * Field hash computed in place
+     *
+     * @param i          Field index
+     * @param ignoreCase Are chars hashed ignoring case
+     * @return Hash of the field text, the same as {@link Message#hash(CharSequence, int, int, boolean)} of it
+     */
+    public int fieldHash(int i, boolean ignoreCase) {
+        return hash(line, starts[i], ends[i], ignoreCase);
+    }
+
+    /**
+     * Text hash function
+     *
+     * @param text       Text
+     * @param from       Start index
+     * @param to         End index (exclusive)
+     * @param ignoreCase Are chars hashed ignoring case
+     * @return Hash of the text range
+     */
+    public static int hash(CharSequence text, int from, int to, boolean ignoreCase) {
+        int h = 0;
+        for (int i = from; i < to; i++) {
+            char c = text.charAt(i);
+            h = 31 * h + (ignoreCase ? Character.toUpperCase(c) : c);
+        }
+        return h ^ h >>> 16;
+    }
+
+    /**
+     * Checks if a field is a non-empty decimal number (\d+)
+     *
+     * @param i Field index
+     * @return True if the field exists and has only digits
+     */
+    public boolean isNumber(int i) {
+        if (i >= count || starts[i] == ends[i])
+            return false;
+        for (int j = starts[i]; j < ends[i]; j++)
+            if (line.charAt(j) < '0' || line.charAt(j) > '9')
+                return false;
+        return true;
+    }
+
+    /**
+     * Parses a field as an int without taking its substring
+     *
+     * @param i Field index
+     * @return Field value
+     * @throws NumberFormatException the field is not a number or does not exist
+     */
+    public int intField(int i) {
+        if (i >= count)
+            throw new NumberFormatException("no field " + i);
+        return Integer.parseInt(line, starts[i], ends[i], 10);
+    }
+
+    /**
+     * Checks the admin request syntax: A$client id$command$args[$token] (A\$\d+\$.+\$.+)
+     *
+     * @return True if the message is an admin request
+     */
+    public boolean isAdminRequest() {
+        return fieldEquals(0, "A") && isNumber(1) && count >= 4 && hasInnerDollar(starts[2]);
+    }
+
+    /**
+     * Checks the client result syntax: C$admin id$request id$result (C\$\d+\$\d+\$.+)
+     *
+     * @return True if the message is a client result
+     */
+    public boolean isClientResult() {
+        return fieldEquals(0, "C") && isNumber(1) && isNumber(2) && count >= 4 && starts[3] < line.length() && noLineBreaks(starts[3]);
+    }
+
+    /**
+     * Cleared reply builder of this message, reused for every reply built by its thread
+     *
+     * @return Empty builder
+     */
+    public StringBuilder reply() {
+        if (reply.capacity() > REPLY_MAX)
+            reply = new StringBuilder(REPLY_CAPACITY);
+        reply.setLength(0);
+        return reply;
+    }
+
+    /**
+     * Checks that the text from an index matches .+\$.+
+     *
+     * @param from Index to check from
+     * @return True if there is a $ with text before and after it
+     */
+    private boolean hasInnerDollar(int from) {
+        int dollar = line.indexOf('$', from + 1);
+        return dollar >= 0 && dollar < line.length() - 1 && noLineBreaks(from);
+    }
+
+    /**
+     * Checks that the text from an index has no chars the . regex does not match
+     *
+     * @param from Index to check from
+     * @return True if there are no line terminators
+     */
+    private boolean noLineBreaks(int from) {
+        for (int j = from; j < line.length(); j++) {
+            char c = line.charAt(j);
+            if (c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029')
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Message text for logs
+     *
+     * @return Current message line
+     */
+    @Override
+    public String toString() {
+        return line;
+    }
+}
@@ -0,0 +1,287 @@
+package com.livefish.Online;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Table of all requests in process (before the result is known)
+ * Requests are found by their ids, the table size is limited
+ * Every request has a deadline, which is tracked on a timer wheel:
+ * a request which is not finished before its deadline is removed and given to the expiration handler
+ *
+ * @author NAUMENKO-ZHIVOY ARTEM
+ * @version 2.0
+ * @see Request
+ * @see ServerConfig#REQUEST_TIMEOUT
+ * @see ServerConfig#MAX_PENDING_REQUESTS
+ */
+public class PendingRequests {
+    /**
+     * Timer wheel tick in milliseconds
+     */
+    private static final long TICK = 100;
+    /**
+     * Timer wheel slot count (one wheel turn is TICK * SLOTS milliseconds)
+     */
+    private static final int SLOTS = 512;
+
+    /**
+     * Pending request with its deadline
+     *
+     * @param req      Request in process
+     * @param deadline Time when the request expires (epoch milliseconds)
+     * @param slot     Timer wheel slot of the request
+     */
+    private record Pending(Request req, long deadline, int slot) {
+    }
+
+    /**
+     * Pending requests by their ids
+     */
+    private final Map<Long, Pending> requests;
+    /**
+     * Timer wheel slots with ids of requests expiring in them
+     */
+    private final Set<Long>[] wheel;
+    /**
+     * Timer wheel thread
+     */
+    private final ScheduledExecutorService timer;
+    /**
+     * Expired request handler
+     */
+    private final Consumer<Request> onExpire;
+    /**
+     * Time given to a client to finish a request in milliseconds
+     */
+    private final long timeout;
+    /**
+     * Max count of pending requests
+     */
+    private final int maxSize;
+    /**
+     * Next timer wheel tick to process
+     */
+    private long nextTick;
+
+    /**
+     * Count of finished requests
+     */
+    private final AtomicLong completed = new AtomicLong();
+    /**
+     * Count of expired requests
+     */
+    private final AtomicLong expired = new AtomicLong();
+    /**
+     * Count of requests, which were not added because the table was full
+     */
+    private final AtomicLong rejected = new AtomicLong();
+
+    /**
+     * Pending request table construction function
+     * Starts the timer wheel thread
+     *
+     * @param timeout  Time given to a client to finish a request in milliseconds
+     * @param maxSize  Max count of pending requests
+     * @param onExpire Expired request handler
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public PendingRequests(long timeout, int maxSize, Consumer<Request> onExpire) {
+        this.timeout = timeout;
+        this.maxSize = maxSize;
+        this.onExpire = onExpire;
+        this.requests = new ConcurrentHashMap<>();
+        this.wheel = new Set[SLOTS];
+        for (int i = 0; i < SLOTS; i++)
+            wheel[i] = ConcurrentHashMap.newKeySet();
+
+        this.nextTick = System.currentTimeMillis() / TICK;
+        this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "Request timeouts");
+            t.setDaemon(true);
+            return t;
+        });
+        timer.scheduleAtFixedRate(this::tick, TICK, TICK, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Timer wheel slot getting function
+     * The deadline is rounded up to the next tick, deadlines in the past are put to the next tick slot
+     *
+     * @param deadline Epoch milliseconds
+     * @return Timer wheel slot index of this deadline
+     */
+    private int slotOf(long deadline) {
+        long time = Math.max(deadline, System.currentTimeMillis() + TICK);
+        return (int) (((time + TICK - 1) / TICK) % SLOTS);
+    }
+
+    /**
+     * Processes all timer wheel slots up to the current time
+     * Requests from later wheel turns are left in their slots
+     */
+    private void tick() {
+        long now = System.currentTimeMillis();
+        long lastTick = now / TICK;
+        for (; nextTick <= lastTick; nextTick++) {
+            Set<Long> slot = wheel[(int) (nextTick % SLOTS)];
+            for (Long id : slot) {
+                Pending pending = requests.get(id);
+                if (pending == null)
+                    slot.remove(id);
+                else if (pending.deadline <= now && requests.remove(id, pending)) {
+                    slot.remove(id);
+                    expired.incrementAndGet();
+                    try {
+                        onExpire.accept(pending.req);
+                    } catch (RuntimeException e) {
+                        e.printStackTrace();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds a request to the table if it is not full
+     *
+     * @param req A request to add
+     * @return False if the table is full
+     */
+    public boolean add(Request req) {
+        return add(req, System.currentTimeMillis() + timeout);
+    }
+
+    /**
+     * Adds a request with its own deadline to the table if it is not full
+     *
+     * @param req      A request to add
+     * @param deadline Time when the request expires (epoch milliseconds)
+     * @return False if the table is full
+     */
+    public boolean add(Request req, long deadline) {
+        if (requests.size() >= maxSize) {
+            rejected.incrementAndGet();
+            return false;
+        }
+        put(req, deadline);
+        return true;
+    }
+
+    /**
+     * Adds many requests if all of them fit into the table
+     *
+     * @param reqs Requests to add
+     * @return False if the table has no space for all the requests (nothing is added)
+     */
+    public boolean addAll(Collection<Request> reqs) {
+        if (requests.size() + reqs.size() > maxSize) {
+            rejected.addAndGet(reqs.size());
+            return false;
+        }
+        long deadline = System.currentTimeMillis() + timeout;
+        for (Request req : reqs)
+            put(req, deadline);
+        return true;
+    }
+
+    /**
+     * Puts a request to the table and the timer wheel
+     *
+     * @param req      A request to add
+     * @param deadline Time when the request expires (epoch milliseconds)
+     */
+    private void put(Request req, long deadline) {
+        int slot = slotOf(deadline);
+        requests.put(req.id, new Pending(req, deadline, slot));
+        wheel[slot].add(req.id);
+    }
+
+    /**
+     * Request getting by its unique id
+     *
+     * @param id Request id
+     * @return A pending request with id id, Request.ZEROREQUEST if it does not exist
+     * @see Request#ZEROREQUEST
+     */
+    public Request get(long id) {
+        Pending pending = requests.get(id);
+        return pending == null ? Request.ZEROREQUEST : pending.req;
+    }
+
+    /**
+     * Deadline getting function
+     *
+     * @param id Request id
+     * @return Deadline of pending request with id id (epoch milliseconds), 0 if it does not exist
+     */
+    public long deadlineOf(long id) {
+        Pending pending = requests.get(id);
+        return pending == null ? 0 : pending.deadline;
+    }
+
+    /**
+     * Removes a finished request
+     *
+     * @param req A finished request
+     * @return False if the request was not pending (is already finished or expired)
+     */
+    public boolean complete(Request req) {
+        Pending pending = requests.remove(req.id);
+        if (pending == null)
+            return false;
+        wheel[pending.slot].remove(req.id);
+        completed.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Removes a request, which can't be finished (it wasn't sent, etc)
+     *
+     * @param req A request to remove
+     */
+    public void remove(Request req) {
+        Pending pending = requests.remove(req.id);
+        if (pending != null)
+            wheel[pending.slot].remove(req.id);
+    }
+
+    /**
+     * All pending requests
+     *
+     * @return A copy of all pending requests list
+     */
+    public Collection<Request> all() {
+        return requests.values().stream().map(Pending::req).toList();
+    }
+
+    /**
+     * Count of pending requests
+     *
+     * @return Count of pending requests
+     */
+    public int size() {
+        return requests.size();
+    }
+
+    /**
+     * Request table statistics
+     *
+     * @return pending=..,completed=..,expired=..,rejected=..
+     */
+    public String stats() {
+        return "pending=" + requests.size() +
+                ",completed=" + completed.get() +
+                ",expired=" + expired.get() +
+                ",rejected=" + rejected.get() +
+                ",timeout=" + timeout +
+                ",max=" + maxSize;
+    }
+}
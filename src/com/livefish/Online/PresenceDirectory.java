@@ -0,0 +1,61 @@
+package com.livefish.Online;
+
+/**
+ * Directory of online ids shared by all server instances
+ * An id can be online on only one instance: login claims the id with acquire and disconnection gives it back with release
+ * Implementations keep ids of their own instance in memory, so checks of local ids never leave the process
+ *
+ * @author NAUMENKO-ZHIVOY ARTEM
+ * @version 2.0
+ * @see LocalPresence
+ * @see FilePresence
+ * @see ServerConfig#PRESENCE_DIR
+ */
+public interface PresenceDirectory {
+    /**
+     * Starts lease renewal (heartbeats)
+     */
+    void start();
+
+    /**
+     * Gives back all ids of this instance and stops lease renewal
+     */
+    void stop();
+
+    /**
+     * This instance name
+     *
+     * @return Instance (node) name
+     */
+    String node();
+
+    /**
+     * Claims an id for a client logging in to this instance
+     *
+     * @param id Id to claim
+     * @return True if the id is claimed, false if it is already online on this or another instance
+     */
+    boolean acquire(int id);
+
+    /**
+     * Gives back an id of a disconnected client
+     *
+     * @param id Id to give back
+     */
+    void release(int id);
+
+    /**
+     * Online id location function
+     *
+     * @param id Id to look for
+     * @return Name of the instance the id is online on, null if it is offline
+     */
+    String locate(int id);
+
+    /**
+     * Presence statistics
+     *
+     * @return Statistics string
+     */
+    String stats();
+}
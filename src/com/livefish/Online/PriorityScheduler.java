@@ -0,0 +1,222 @@
+package com.livefish.Online;
+
+import com.livefish.Output.Console.Logger;
+
+import java.util.ArrayDeque;
+import java.util.StringJoiner;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Server-wide task scheduler with priority lanes
+ * Worker threads always take the oldest task of the most urgent non-empty lane,
+ * so interactive admin work queued behind a broadcast runs as soon as a worker is free
+ * Long bulk tasks check {@link PriorityScheduler#urgentWaiting(Lane)} and queue their rest again to give way
+ * Some workers are reserved for control and interactive tasks, so bulk tasks blocked on slow clients
+ * can't take all workers
+ *
+ * @author NAUMENKO-ZHIVOY ARTEM
+ * @version 2.0
+ * @see Lane
+ * @see FanOutEngine
+ */
+public final class PriorityScheduler {
+    /**
+     * Queued task
+     */
+    private static final class Task {
+        /**
+         * Task body
+         */
+        final Runnable body;
+        /**
+         * Queueing time in nanoseconds
+         */
+        final long queued;
+
+        Task(Runnable body) {
+            this.body = body;
+            this.queued = System.nanoTime();
+        }
+    }
+
+    /**
+     * Task queue lock
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+    /**
+     * Signalled when a task is queued
+     */
+    private final Condition queuedTask = lock.newCondition();
+    /**
+     * Task queues of every lane
+     */
+    private final ArrayDeque<Task>[] queues;
+    /**
+     * Count of queued tasks of every lane (read without the lock)
+     */
+    private final AtomicInteger[] queued;
+    /**
+     * Count of run tasks of every lane
+     */
+    private final LongAdder[] executed;
+    /**
+     * Total queue waiting time of every lane in nanoseconds
+     */
+    private final LongAdder[] waitNanos;
+    /**
+     * Max queue waiting time of every lane in nanoseconds
+     */
+    private final LongAccumulator[] maxWaitNanos;
+    /**
+     * Max count of workers running bulk tasks at a time
+     */
+    private final int bulkLimit;
+    /**
+     * Count of workers running bulk tasks (changed with the lock held)
+     */
+    private int bulkRunning;
+    /**
+     * Logger instance for console
+     */
+    private final Logger logger;
+
+    /**
+     * Scheduler construction function, starts daemon worker threads
+     * At least one worker is started more than reserved, so bulk tasks always have a worker
+     *
+     * @param name     Worker thread name
+     * @param threads  Count of worker threads
+     * @param reserved Count of worker threads, which don't run bulk tasks
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public PriorityScheduler(String name, int threads, int reserved) {
+        int lanes = Lane.values().length;
+        this.queues = new ArrayDeque[lanes];
+        this.queued = new AtomicInteger[lanes];
+        this.executed = new LongAdder[lanes];
+        this.waitNanos = new LongAdder[lanes];
+        this.maxWaitNanos = new LongAccumulator[lanes];
+        for (int i = 0; i < lanes; i++) {
+            queues[i] = new ArrayDeque<>();
+            queued[i] = new AtomicInteger();
+            executed[i] = new LongAdder();
+            waitNanos[i] = new LongAdder();
+            maxWaitNanos[i] = new LongAccumulator(Math::max, 0);
+        }
+        this.logger = Logger.getInstance();
+        reserved = Math.max(0, reserved);
+        threads = Math.max(reserved + 1, threads);
+        this.bulkLimit = threads - reserved;
+        for (int i = 0; i < threads; i++) {
+            Thread t = new Thread(this::work, name + " " + i);
+            t.setDaemon(true);
+            t.start();
+        }
+    }
+
+    /**
+     * Queues a task
+     *
+     * @param lane Priority lane of the task
+     * @param task Task to run
+     */
+    public void execute(Lane lane, Runnable task) {
+        lock.lock();
+        try {
+            queues[lane.ordinal()].addLast(new Task(task));
+            queued[lane.ordinal()].incrementAndGet();
+            queuedTask.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Checks if tasks of lanes more urgent than a given one are queued
+     *
+     * @param lane Lane of the calling task
+     * @return True if the calling task should give way
+     */
+    public boolean urgentWaiting(Lane lane) {
+        for (int i = 0; i < lane.ordinal(); i++)
+            if (queued[i].get() > 0)
+                return true;
+        return false;
+    }
+
+    /**
+     * Worker thread function
+     */
+    private void work() {
+        while (true) {
+            Task task;
+            int lane;
+            boolean bulk;
+            lock.lock();
+            try {
+                while (true) {
+                    lane = 0;
+                    while (lane < queues.length && (queues[lane].isEmpty() || lane == Lane.BULK.ordinal() && bulkRunning >= bulkLimit))
+                        lane++;
+                    if (lane < queues.length)
+                        break;
+                    queuedTask.awaitUninterruptibly();
+                }
+                task = queues[lane].pollFirst();
+                queued[lane].decrementAndGet();
+                bulk = lane == Lane.BULK.ordinal();
+                if (bulk)
+                    bulkRunning++;
+            } finally {
+                lock.unlock();
+            }
+
+            long wait = System.nanoTime() - task.queued;
+            executed[lane].increment();
+            waitNanos[lane].add(wait);
+            maxWaitNanos[lane].accumulate(wait);
+            try {
+                task.body.run();
+            } catch (Throwable e) {
+                logger.print("Scheduled task failed: " + e, "Error");
+            } finally {
+                if (bulk)
+                    finishBulk();
+            }
+        }
+    }
+
+    /**
+     * Frees a bulk worker place and wakes a worker if bulk tasks wait for it
+     */
+    private void finishBulk() {
+        lock.lock();
+        try {
+            bulkRunning--;
+            if (!queues[Lane.BULK.ordinal()].isEmpty())
+                queuedTask.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Scheduler statistics
+     *
+     * @return lane:queued=..,executed=..,avgWaitUs=..,maxWaitUs=..;... for every lane
+     */
+    public String stats() {
+        StringJoiner res = new StringJoiner(";");
+        for (Lane lane : Lane.values()) {
+            int i = lane.ordinal();
+            long count = executed[i].sum();
+            res.add(lane + ":queued=" + queued[i].get() + ",executed=" + count +
+                    ",avgWaitUs=" + (count == 0 ? 0 : waitNanos[i].sum() / count / 1000) + ",maxWaitUs=" + maxWaitNanos[i].get() / 1000);
+        }
+        return res.toString();
+    }
+}
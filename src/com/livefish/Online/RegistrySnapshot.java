@@ -0,0 +1,251 @@
+package com.livefish.Online;
+
+import com.livefish.Output.Console.Logger;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+/**
+ * Binary checkpoint of the server registry
+ * Keeps registered ids with their roots, requests in process with their deadlines, the request id counter
+ * and the length of the id file covered by the checkpoint, so the server starts without replaying text logs:
+ * only ids registered after the checkpoint are read from the end of the id file
+ * Format: magic, version, creation time, request counter, id file length,
+ * id count, (id delta varint, root byte)..., request count, (id, admin id, client id, command, args, token, deadline)...,
+ * CRC32 of all previous bytes
+ * The checkpoint is written to a temporary file, synced and atomically moved over the old one
+ *
+ * @author NAUMENKO-ZHIVOY ARTEM
+ * @version 2.0
+ * @see ServerConfig#SNAPSHOT_INTERVAL
+ * @see Server
+ */
+public class RegistrySnapshot {
+    /**
+     * File signature (LFSN)
+     */
+    private static final int MAGIC = 0x4C46534E;
+    /**
+     * Format version
+     */
+    private static final int VERSION = 1;
+
+    /**
+     * A request in process with its deadline
+     *
+     * @param req      Request
+     * @param deadline Time the request expires in milliseconds
+     */
+    record Pending(Request req, long deadline) {
+    }
+
+    /**
+     * Saved server registry
+     *
+     * @param createdAt    Checkpoint creation time in milliseconds
+     * @param requestCount Last given request id
+     * @param idFileLength Length of the id file, ids before it are in the checkpoint
+     * @param roots        Registered ids and their roots (UNAUTHORIZED if the root is not known yet)
+     * @param pending      Requests in process
+     */
+    record State(long createdAt, long requestCount, long idFileLength, NavigableMap<Integer, ClientRoot> roots, List<Pending> pending) {
+    }
+
+    /**
+     * Checkpoint file
+     */
+    private final File file;
+
+    /**
+     * Snapshot construction function
+     *
+     * @param path Checkpoint file path
+     */
+    public RegistrySnapshot(String path) {
+        this.file = new File(path);
+    }
+
+    /**
+     * Checkpoint file getter
+     *
+     * @return Checkpoint file
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Writes a checkpoint
+     *
+     * @param state Registry to save
+     * @return Checkpoint size in bytes
+     * @throws IOException exception during file writing
+     */
+    long write(State state) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + state.roots().size() * 3 + state.pending().size() * 64);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeLong(state.createdAt());
+        out.writeLong(state.requestCount());
+        out.writeLong(state.idFileLength());
+
+        writeVarLong(out, state.roots().size());
+        int last = 0;
+        for (var entry : state.roots().entrySet()) {
+            writeVarLong(out, entry.getKey() - last);
+            out.writeByte(entry.getValue().ordinal());
+            last = entry.getKey();
+        }
+
+        writeVarLong(out, state.pending().size());
+        for (Pending pending : state.pending()) {
+            Request req = pending.req();
+            writeVarLong(out, req.id);
+            writeVarLong(out, req.idA);
+            writeVarLong(out, req.idC);
+            writeString(out, req.cmd);
+            writeString(out, req.args);
+            out.writeBoolean(req.token != null);
+            if (req.token != null)
+                writeString(out, req.token);
+            out.writeLong(pending.deadline());
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(bytes.toByteArray());
+        out.writeLong(crc.getValue());
+        out.flush();
+
+        File tmp = new File(file.getPath() + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            channel.write(ByteBuffer.wrap(bytes.toByteArray()));
+            channel.force(true);
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        return bytes.size();
+    }
+
+    /**
+     * Reads the checkpoint
+     *
+     * @return Saved registry, null if there is no checkpoint or it is damaged
+     */
+    State read() {
+        if (!file.isFile())
+            return null;
+        try {
+            byte[] data = Files.readAllBytes(file.toPath());
+            if (data.length < 44)
+                throw new IOException("checkpoint is too short");
+            CRC32 crc = new CRC32();
+            crc.update(data, 0, data.length - 8);
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+            in.skipNBytes(data.length - 8);
+            if (in.readLong() != crc.getValue())
+                throw new IOException("checksum mismatch");
+
+            in = new DataInputStream(new ByteArrayInputStream(data, 0, data.length - 8));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION)
+                throw new IOException("unknown format");
+            long createdAt = in.readLong();
+            long requestCount = in.readLong();
+            long idFileLength = in.readLong();
+
+            ClientRoot[] rootValues = ClientRoot.values();
+            NavigableMap<Integer, ClientRoot> roots = new TreeMap<>();
+            long idCount = readVarLong(in);
+            int id = 0;
+            for (long i = 0; i < idCount; i++) {
+                id += (int) readVarLong(in);
+                roots.put(id, rootValues[in.readUnsignedByte()]);
+            }
+
+            long pendingCount = readVarLong(in);
+            List<Pending> pending = new ArrayList<>();
+            for (long i = 0; i < pendingCount; i++) {
+                long reqId = readVarLong(in);
+                int idA = (int) readVarLong(in);
+                int idC = (int) readVarLong(in);
+                String cmd = readString(in);
+                String args = readString(in);
+                String token = in.readBoolean() ? readString(in) : null;
+                pending.add(new Pending(new Request(reqId, idA, idC, cmd, args, token), in.readLong()));
+            }
+            return new State(createdAt, requestCount, idFileLength, roots, pending);
+        } catch (IOException | RuntimeException e) {
+            Logger.getInstance().print("Registry snapshot " + file.getAbsolutePath() + " is damaged (" + e.getMessage() + "), text logs are used", "Error");
+            return null;
+        }
+    }
+
+    /**
+     * Writes a non-negative number in 7-bit groups (1 byte for numbers up to 127)
+     *
+     * @param out   Stream to write to
+     * @param value Number to write
+     * @throws IOException exception during writing
+     */
+    private static void writeVarLong(DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    /**
+     * Reads a number written with writeVarLong
+     *
+     * @param in Stream to read from
+     * @return Read number
+     * @throws IOException exception during reading or a too long number
+     */
+    private static long readVarLong(DataInputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return value;
+        }
+        throw new IOException("invalid number");
+    }
+
+    /**
+     * Writes a string as its UTF-8 length and bytes
+     *
+     * @param out Stream to write to
+     * @param str String to write
+     * @throws IOException exception during writing
+     */
+    private static void writeString(DataOutputStream out, String str) throws IOException {
+        byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
+        writeVarLong(out, bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Reads a string written with writeString
+     *
+     * @param in Stream to read from
+     * @return Read string
+     * @throws IOException exception during reading
+     */
+    private static String readString(DataInputStream in) throws IOException {
+        long length = readVarLong(in);
+        if (length > in.available())
+            throw new IOException("invalid string length");
+        return new String(in.readNBytes((int) length), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,89 @@
+package com.livefish.Online;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Admin connected to another cluster node
+ * Is given to request handling instead of a local admin for forwarded commands,
+ * every message written to it is relayed to the admin node as RELAY$admin id$message
+ *
+ * @author NAUMENKO-ZHIVOY ARTEM
+ * @version 2.0
+ * @see ClusterLink
+ */
+class RemoteAdmin extends Client {
+    /**
+     * Name of the node the admin is connected to
+     */
+    final String node;
+    /**
+     * Link to the admin node
+     */
+    private final ClusterLink cluster;
+
+    /**
+     * Remote admin construction function
+     *
+     * @param cluster Cluster link
+     * @param node    Name of the node the admin is connected to
+     * @param id      Admin id
+     */
+    RemoteAdmin(ClusterLink cluster, String node, int id) {
+        super(null, id, ClientRoot.ADMIN, null);
+        this.cluster = cluster;
+        this.node = node;
+    }
+
+    @Override
+    public String getIp() {
+        return "node " + node;
+    }
+
+    @Override
+    public byte[] getAddress() {
+        return null;
+    }
+
+    @Override
+    public String readLine() {
+        return null;
+    }
+
+    /**
+     * Relays a message to the admin node
+     *
+     * @param msg A message to send
+     * @throws IOException if the admin node is unreachable
+     */
+    @Override
+    public void writeLine(String msg) throws IOException {
+        if (!cluster.send(node, "RELAY$" + id + "$" + msg))
+            throw new IOException("Cluster node " + node + " is unreachable");
+    }
+
+    @Override
+    public void writeLine(String msg, Lane lane) throws IOException {
+        writeLine(msg);
+    }
+
+    @Override
+    public void writeLine(StringBuilder msg) throws IOException {
+        writeLine(msg.toString());
+    }
+
+    @Override
+    public void writeLines(List<String> msgs) throws IOException {
+        for (String msg : msgs)
+            writeLine(msg);
+    }
+
+    @Override
+    public boolean isCompressed() {
+        return false;
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,243 @@
+package com.livefish.Online;
+
+import com.livefish.Output.Console.Logger;
+
+/**
+ * Class for unfinished request handling
+ * Is used for saving and manipulating unique id requests
+ *
+ * @author NAUMENKO-ZHIVOY ARTEM
+ * @version 2.0
+ */
+class Request {
+    /**
+     * Special invalid 'zero' request
+     */
+    public static final Request ZEROREQUEST = new Request(0, 0, "0", "0");
+
+    /**
+     * Total request count (is used as a unique request id), is restored from file
+     */
+    private static long requestCount = 1;
+
+    /**
+     * Request command
+     */
+    public final String cmd;
+    /**
+     * Request command arguments
+     */
+    public final String args;
+    /**
+     * Request command completion success
+     */
+    public final String success;
+    /**
+     * Admin id who sent the command
+     */
+    public final int idA;
+    /**
+     * Client id who attempted to do the command
+     */
+    public final int idC;
+    /**
+     * Request unique id
+     */
+    public final long id;
+    /**
+     * Correlation token chosen by the admin (null if the admin didn't send one)
+     */
+    public final String token;
+    /**
+     * Cluster node of the admin who sent the command (null if the admin is connected to this node)
+     */
+    public final String origin;
+
+
+    /**
+     * Request construction function
+     * Is used for temporary request storage (a request is still in process)
+     *
+     * @param idA  Admin id who sent the command
+     * @param idC  Client id who attempted to do the command
+     * @param cmd  Request command
+     * @param args Request command arguments
+     */
+    public Request(int idA, int idC, String cmd, String args) {
+        this(nextId(), idA, idC, cmd, args, null);
+    }
+
+    /**
+     * Request construction function with admin correlation token
+     * Is used for temporary request storage (a request is still in process)
+     *
+     * @param idA   Admin id who sent the command
+     * @param idC   Client id who attempted to do the command
+     * @param cmd   Request command
+     * @param args  Request command arguments
+     * @param token Correlation token chosen by the admin (null if there is no token)
+     */
+    public Request(int idA, int idC, String cmd, String args, String token) {
+        this(nextId(), idA, idC, cmd, args, token);
+    }
+
+    /**
+     * Request construction function for a command forwarded from another cluster node
+     *
+     * @param idA    Admin id who sent the command
+     * @param idC    Client id who attempted to do the command
+     * @param cmd    Request command
+     * @param args   Request command arguments
+     * @param token  Correlation token chosen by the admin (null if there is no token)
+     * @param origin Cluster node of the admin (null if the admin is connected to this node)
+     * @see ClusterLink
+     */
+    public Request(int idA, int idC, String cmd, String args, String token, String origin) {
+        this(nextId(), idA, idC, cmd, args, token, origin);
+    }
+
+    /**
+     * Request construction function with an already reserved unique id
+     *
+     * @param id    Reserved request unique id
+     * @param idA   Admin id who sent the command
+     * @param idC   Client id who attempted to do the command
+     * @param cmd   Request command
+     * @param args  Request command arguments
+     * @param token Correlation token chosen by the admin (null if there is no token)
+     * @see Request#reserveIds(int)
+     */
+    Request(long id, int idA, int idC, String cmd, String args, String token) {
+        this(id, idA, idC, cmd, args, token, null);
+    }
+
+    /**
+     * Request construction function with an already reserved unique id and the admin cluster node
+     *
+     * @param id     Reserved request unique id
+     * @param idA    Admin id who sent the command
+     * @param idC    Client id who attempted to do the command
+     * @param cmd    Request command
+     * @param args   Request command arguments
+     * @param token  Correlation token chosen by the admin (null if there is no token)
+     * @param origin Cluster node of the admin (null if the admin is connected to this node)
+     */
+    Request(long id, int idA, int idC, String cmd, String args, String token, String origin) {
+        this.cmd = cmd;
+        this.args = args;
+        this.success = "NaN";
+        this.idC = idC;
+        this.idA = idA;
+        this.id = id;
+        this.token = token;
+        this.origin = origin;
+    }
+
+
+    /**
+     * Request construction function
+     * Is used for long-time storage (a completed request)
+     * Saves a completed request to a file
+     *
+     * @param what    A request to set success
+     * @param success Command execution result
+     * @see Server#updateIdCommandsFile(Request)
+     */
+    public Request(Request what, String success) {
+        this.idA = what.idA;
+        this.idC = what.idC;
+        this.cmd = what.cmd;
+        this.args = what.args;
+        this.id = what.id;
+        this.token = what.token;
+        this.origin = what.origin;
+
+        this.success = success;
+        Server.getInstance().updateIdCommandsFile(this);
+    }
+
+    /**
+     * Sets a request count to some value
+     *
+     * @param c New request count, should be read from file and updated every time the request is done
+     */
+    public static synchronized void setRequestCount(long c) {
+        Logger.getInstance().print("Request count set to " + c + "\n", "Default");
+        requestCount = c;
+    }
+
+    /**
+     * Request count getter
+     *
+     * @return Last given request id
+     * @see RegistrySnapshot
+     */
+    static synchronized long getRequestCount() {
+        return requestCount;
+    }
+
+    /**
+     * Next unique request id getting function
+     *
+     * @return A new unique request id
+     */
+    private static synchronized long nextId() {
+        return ++requestCount;
+    }
+
+    /**
+     * Reserves a range of unique request ids at once (for bulk request creation)
+     *
+     * @param count Amount of ids to reserve
+     * @return The first id of the reserved range, the range is [first, first + count)
+     * @see FanOutEngine
+     */
+    static synchronized long reserveIds(int count) {
+        long first = requestCount + 1;
+        requestCount += count;
+        return first;
+    }
+
+    /**
+     * Creates requests with the same command for many clients at once
+     *
+     * @param idA     Admin id who sent the command
+     * @param clients Client ids to create requests for
+     * @param cmd     Request command
+     * @param args    Request command arguments
+     * @return Created requests in the same order as clients
+     * @see Request#reserveIds(int)
+     */
+    static Request[] createBulk(int idA, int[] clients, String cmd, String args) {
+        Request[] res = new Request[clients.length];
+        long first = reserveIds(clients.length);
+        for (int i = 0; i < clients.length; i++)
+            res[i] = new Request(first + i, idA, clients[i], cmd, args, null);
+        return res;
+    }
+
+    /**
+     * Request result message for the admin
+     *
+     * @param clientId Client id to put in the message
+     * @param success  Request result
+     * @return client id$command$args$success$request id[$token]
+     */
+    public String resultMessage(int clientId, String success) {
+        return appendResultMessage(new StringBuilder(), clientId, success).toString();
+    }
+
+    /**
+     * Appends the request result message for the admin to a reused builder
+     *
+     * @param sb       Builder to append to
+     * @param clientId Client id to put in the message
+     * @param success  Request result
+     * @return The same builder with client id$command$args$success$request id[$token]
+     * @see Request#resultMessage(int, String)
+     */
+    public StringBuilder appendResultMessage(StringBuilder sb, int clientId, String success) {
+        sb.append(clientId).append('$').append(cmd).append('$').append(args).append('$').append(success).append('$').append(id);
+        return token == null ? sb : sb.append('$').append(token);
+    }
+}
\ No newline at end of file
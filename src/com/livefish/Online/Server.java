@@ -2,22 +2,25 @@ package com.livefish.Online;
 
 import com.livefish.Output.Console.Logger;
 import com.livefish.Output.Console.OutputColor;
-import com.livefish.Output.Files.FileLoader;
-import com.livefish.Output.Files.FileLogger;
-import com.livefish.Output.Files.LogFileType;
+import com.livefish.Output.Files.*;
 
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
 import java.lang.management.ManagementFactory;
 import java.lang.management.MemoryMXBean;
 import java.lang.management.ThreadInfo;
 import java.lang.management.ThreadMXBean;
 import java.net.ServerSocket;
 import java.net.URL;
-import java.time.LocalDateTime;
+import java.time.DateTimeException;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 
 
 /**
@@ -45,7 +48,15 @@ public class Server {
     /**
      * Global server run variable
      */
-    private boolean run = true;
+    private volatile boolean run = true;
+    /**
+     * Is the server shutting down (shutdown is done only once)
+     */
+    private final AtomicBoolean stopping = new AtomicBoolean();
+    /**
+     * Main port server socket (null before the server is started)
+     */
+    private volatile ServerSocket serverSocket;
     /**
      * Logger instance for console
      */
@@ -54,14 +65,31 @@ public class Server {
      * File logger instance for file operations (saving data, global file management)
      */
     private FileLogger fileLogger;
+    /**
+     * Write-ahead log beneath the file logger (null if it is turned off)
+     *
+     * @see ServerConfig#WAL_ENABLED
+     */
+    private WriteAheadLog wal;
     /**
      * Set of all connectedClients in the moment
      */
     private Set<Client> connectedClients;
+    /**
+     * All authorized online clients by their ids
+     */
+    private ConcurrentNavigableMap<Integer, Client> onlineClients;
     /**
      * Set of all registered ids (updates from file on every server start)
      */
-    private Set<Integer> allIds;
+    private NavigableSet<Integer> allIds;
+    /**
+     * Lock of id registration: the id file and the set of registered ids are changed together under it,
+     * so a snapshot sees the id file length and the ids it covers at the same moment
+     *
+     * @see Server#saveSnapshot()
+     */
+    private final Object registrationLock = new Object();
     /**
      * Set of all online ids
      */
@@ -69,15 +97,77 @@ public class Server {
     /**
      * Set of all online admin ids
      */
-    private Set<Integer> adminIds;
+    private NavigableSet<Integer> adminIds;
     /**
      * Set of all online client ids
      */
-    private Set<Integer> clientIds;
+    private NavigableSet<Integer> clientIds;
+    /**
+     * All requests in process (before the result is known)
+     */
+    private PendingRequests tempRequests;
+    /**
+     * Fan-out engine for commands with many targets
+     */
+    private FanOutEngine fanOut;
+    /**
+     * Client tags (groups) index
+     */
+    private TagIndex tagIndex;
+    /**
+     * Online clients by their peer addresses
+     */
+    private final AddressIndex addressIndex = new AddressIndex();
+    /**
+     * Protocol commands by their opcodes (the second field of a message)
+     */
+    private final CommandRegistry commands = new CommandRegistry("", 1, false);
+    /**
+     * INFO commands by their names (the third field of an INFO message)
+     */
+    private final CommandRegistry infoCommands = new CommandRegistry("INFO$", 2, true);
+    /**
+     * Paginated and streaming list INFO commands by their mode field (A$INFO$list$mode...)
+     */
+    private final CommandRegistry listCommands = new CommandRegistry("INFO$*$", 3, true);
+    /**
+     * Scheduler of interactive admin work and broadcast fan-out
+     */
+    private PriorityScheduler scheduler;
+    /**
+     * Mailboxes for commands to offline clients (null if they are disabled)
+     *
+     * @see ServerConfig#MAILBOX_ENABLED
+     */
+    private Mailbox mailbox;
+    /**
+     * File transfer server
+     */
+    private FileTransferServer fileTransfers;
+    /**
+     * Binary registry checkpoint
+     */
+    private RegistrySnapshot snapshot;
+    /**
+     * Client sessions built from the connection log
+     */
+    private SessionIndex sessions;
     /**
-     * Set of all requests in process (before the result is known)
+     * Requests restored from the checkpoint, which must be sent again to their clients on login
      */
-    private Set<Request> tempRequests;
+    private final Map<Integer, List<Request>> restoredRequests = new ConcurrentHashMap<>();
+    /**
+     * Link to other cluster nodes (null if the server is not a cluster node)
+     *
+     * @see ServerConfig#CLUSTER
+     */
+    private ClusterLink cluster;
+    /**
+     * Online ids of all server instances
+     *
+     * @see ServerConfig#PRESENCE_DIR
+     */
+    private PresenceDirectory presence;
 
     /**
      * Configure and start a server
@@ -86,9 +176,11 @@ public class Server {
      * @see Server#createSets()
      * @see Server#initLogger(boolean)
      * @see Server#initFileLogger()
+     * @see Server#restoreSnapshot()
      * @see Server#setIdCount()
      * @see Server#fillArrays()
      * @see Server#startConsole()
+     * @see Server#registerCommands()
      * @see Server#startServer()
      */
     private Server() {
@@ -102,12 +194,117 @@ public class Server {
             initLogger(true);
 
         initFileLogger();
-        setIdCount();
-        fillArrays();
+        scheduler = new PriorityScheduler("Scheduler", ServerConfig.SCHEDULER_THREADS, ServerConfig.SCHEDULER_RESERVED);
+        fanOut = new FanOutEngine(onlineClients::get, scheduler);
+        tagIndex = new TagIndex(fileLogger, "Tag file");
+        if (ServerConfig.MAILBOX_ENABLED)
+            mailbox = new Mailbox(fileLogger.getLogDirPath() + "mailbox", ServerConfig.MAILBOX_TTL, ServerConfig.MAILBOX_MAX_DEPTH);
+        fileTransfers = new FileTransferServer(new BlobStore(fileLogger.getLogDirPath() + "transfers"), ServerConfig.FILE_PORT, this::fileStored, this::fileDelivered,
+                ServerConfig.FILE_TRANSFER_TTL, ServerConfig.FILE_UPLOADS_PER_ID, ServerConfig.FILE_TRANSFERS_MAX);
+        snapshot = new RegistrySnapshot(fileLogger.getLogDirPath() + "registry.snap");
+        sessions = new SessionIndex(fileLogger.getLogFile("Connections file"), fileLogger.getLogDirPath() + "sessions.idx",
+                ServerConfig.SESSION_RETENTION, ServerConfig.SESSION_MAX);
+        sessions.load();
+        if (!ServerConfig.CLUSTER.isEmpty())
+            cluster = new ClusterLink(ServerConfig.NODE, ServerConfig.CLUSTER, ServerConfig.CLUSTER_SECRET, ServerConfig.CLUSTER_CONNECT_TIMEOUT);
+        String node = ServerConfig.NODE.isEmpty() ? ManagementFactory.getRuntimeMXBean().getName() : ServerConfig.NODE;
+        presence = ServerConfig.PRESENCE_DIR.isEmpty() ? new LocalPresence(node) : new FilePresence(ServerConfig.PRESENCE_DIR, node, ServerConfig.PRESENCE_LEASE);
+        if (!restoreSnapshot()) {
+            setIdCount();
+            fillArrays();
+        }
+        if (mailbox != null && mailbox.lastRequestId() > Request.getRequestCount())
+            Request.setRequestCount(mailbox.lastRequestId());
+        dropAdminMailboxes();
+        startSnapshots();
         startConsole();
+        registerCommands();
         startServer();
     }
 
+    /**
+     * Protocol command registration function
+     * A new command only needs a handler registered here, communicationLoop dispatches to it by its opcode
+     *
+     * @see CommandRegistry
+     * @see Server#communicationLoop(Client)
+     */
+    private void registerCommands() {
+        Set<ClientRoot> all = EnumSet.of(ClientRoot.ADMIN, ClientRoot.CLIENT);
+        Set<ClientRoot> admins = EnumSet.of(ClientRoot.ADMIN);
+        commands.register("SYS", all, (message, client) -> processSysCommand(message.line(), client));
+        commands.register("INFO", admins, this::processInfoCommand);
+        commands.register("TAG", admins, (message, client) -> processTagCommand(message.line(), client));
+        commands.register("FILE", all, (message, client) -> processFileCommand(message.line(), client));
+
+        infoCommands.register("ONLINE", admins, (message, client) -> {
+            if (message.count() != 3)
+                return false;
+            StringBuilder sendBuffer = new StringBuilder("INFO$ONLINE$");
+            connectedClients.forEach(socket -> sendBuffer.append(socket.getIp()).append(", ").append(socket.id).append(", ").append("root: ").append(adminIds.contains(socket.id) ? "Admin" : "Client").append(";"));
+            if (sendBuffer.charAt(sendBuffer.length() - 1) == ';')
+                sendBuffer.deleteCharAt(sendBuffer.length() - 1);
+            client.writeLine(sendBuffer);
+            return true;
+        });
+        registerInfo("REG", "registered id list", () -> allIds.toString());
+        registerInfo("ADMINS", "admin id list", () -> adminIds.toString());
+        registerInfo("CLIENTS", "client id list", () -> clientIds.toString());
+        registerInfo("REQUESTS", "request stats", () -> tempRequests.stats());
+        registerInfo("TLS", "TLS stats", TlsContext::stats);
+        registerInfo("COMPRESSION", "compression stats", Compressor::stats);
+        registerInfo("BYIP", "address index stats", addressIndex::stats, this::processAddressCommand);
+        registerInfo("BUFFERS", "connection buffer stats", () -> "direct:" + BufferSlab.DIRECT.stats() + ";heap:" + BufferSlab.HEAP.stats());
+        registerInfo("LANES", "priority lane stats", () -> "connections:" + Connection.laneStats() + ";" + scheduler.stats());
+        registerInfo("PRESENCE", "presence stats", () -> presence.stats());
+        registerInfo("SESSIONS", "session index stats", () -> sessions.stats(), this::processSessionCommand);
+        infoCommands.register("ONLINEAT", admins, this::processSessionCommand);
+        registerInfo("LOGS", "log rotation stats", () -> fileLogger.rotationStats());
+        registerInfo("WAL", "write-ahead log stats", () -> wal == null ? "enabled=false" : wal.stats());
+        registerInfo("CLUSTER", "cluster stats", () -> cluster == null ? "node=" : cluster.stats());
+        registerInfo("COMMANDS", "command stats", () -> commands.stats() + ";" + infoCommands.stats() + ";" + listCommands.stats());
+        infoCommands.register("HEALTH", admins, (message, client) -> {
+            if (message.count() != 3)
+                return false;
+            String toSend = health();
+            client.writeLine(toSend);
+            logger.print("SERVER HEALTH: \n" + toSend, "Server state");
+            return true;
+        });
+        listCommands.register("PAGE", admins, this::processInfoListCommand);
+        listCommands.register("STREAM", admins, this::processInfoListCommand);
+    }
+
+    /**
+     * Registers an INFO command answering INFO$name$text
+     *
+     * @param name        INFO command name
+     * @param description What is requested, for the log
+     * @param text        Answer text supplier
+     */
+    private void registerInfo(String name, String description, Supplier<String> text) {
+        registerInfo(name, description, text, null);
+    }
+
+    /**
+     * Registers an INFO command answering INFO$name$text, which also has a query form with more fields
+     *
+     * @param name        INFO command name
+     * @param description What is requested, for the log
+     * @param text        Answer text supplier
+     * @param query       Handler of A$INFO$name$args... messages (null if there is no query form)
+     */
+    private void registerInfo(String name, String description, Supplier<String> text, CommandRegistry.Handler query) {
+        infoCommands.register(name, EnumSet.of(ClientRoot.ADMIN), (message, client) -> {
+            if (message.count() != 3)
+                return query != null && query.handle(message, client);
+            String toSend = "INFO$" + name + "$" + text.get();
+            client.writeLine(toSend);
+            logger.print("Admin with id: " + client.id + " requested " + description + ":\n" + toSend, "Default");
+            return true;
+        });
+    }
+
 
     /**
      * Starts a server only once (Singleton)
@@ -122,27 +319,6 @@ public class Server {
         return instance;
     }
 
-    /**
-     * Date formatting function for logging
-     *
-     * @param date Date to format
-     * @return Formatted date DD.MM.YYYY[HH:MM:SS]
-     * @see LocalDateTime
-     */
-    private static String formatDate(LocalDateTime date) {
-        int year = date.getYear();
-        String res;
-
-        String month = date.getMonthValue() < 10 ? "0" + date.getMonthValue() : String.valueOf(date.getMonthValue());
-        String day = date.getDayOfMonth() < 10 ? "0" + date.getDayOfMonth() : String.valueOf(date.getDayOfMonth());
-        String hours = date.getHour() < 10 ? "0" + date.getHour() : String.valueOf(date.getHour());
-        String min = date.getMinute() < 10 ? "0" + date.getMinute() : String.valueOf(date.getMinute());
-        String sec = date.getSecond() < 10 ? "0" + date.getSecond() : String.valueOf(date.getSecond());
-
-        res = day + "." + month + "." + year + "[" + hours + ":" + min + ":" + sec + "]";
-        return res;
-    }
-
     /**
      * Asks a console user, if they want to use colored console output
      *
@@ -163,6 +339,7 @@ public class Server {
      * Creates all needed sets for server (SHOULD NOT BE USED TWICE)
      *
      * @see Server#connectedClients
+     * @see Server#onlineClients
      * @see Server#allIds
      * @see Server#onlineIds
      * @see Server#adminIds
@@ -170,12 +347,13 @@ public class Server {
      * @see Server#tempRequests
      */
     private void createSets() {
-        connectedClients = new HashSet<>();
-        allIds = new HashSet<>();
-        onlineIds = new HashSet<>();
-        adminIds = new HashSet<>();
-        clientIds = new HashSet<>();
-        tempRequests = new HashSet<>();
+        connectedClients = ConcurrentHashMap.newKeySet();
+        onlineClients = new ConcurrentSkipListMap<>();
+        allIds = new ConcurrentSkipListSet<>();
+        onlineIds = ConcurrentHashMap.newKeySet();
+        adminIds = new ConcurrentSkipListSet<>();
+        clientIds = new ConcurrentSkipListSet<>();
+        tempRequests = new PendingRequests(ServerConfig.REQUEST_TIMEOUT, ServerConfig.MAX_PENDING_REQUESTS, this::expireRequest);
     }
 
     /**
@@ -212,19 +390,62 @@ public class Server {
         logger.print("Attempting to create files:\n");
         fileLogger = new FileLogger("logFolder");
         logger.print("Log dir created in: " + fileLogger.getLogDirPath() + "\n");
-        fileLogger.addLogFile("Request file", "req.dat", LogFileType.FINISHED_REQUESTS);
+        boolean binary = ServerConfig.LOG_BINARY && !ServerConfig.WAL_ENABLED;
+        if (ServerConfig.LOG_BINARY && !binary)
+            logger.print("Binary log format is not used with the write-ahead log, records are written as text\n");
+        String ext = binary ? ".bin" : ".dat";
+        fileLogger.addLogFile("Request file", "req" + ext, LogFileType.FINISHED_REQUESTS);
         fileLogger.printFileInfo(logger::print, "Request file");
         fileLogger.addLogFile("Command id file", "commandIDs.dat", LogFileType.COMMAND_IDS);
         fileLogger.printFileInfo(logger::print, "Command id file");
-        fileLogger.addLogFile("Connections file", "connectedClients.dat", LogFileType.CONNECTIONS);
+        fileLogger.addLogFile("Connections file", "connectedClients" + ext, LogFileType.CONNECTIONS);
         fileLogger.printFileInfo(logger::print, "Connections file");
-        fileLogger.addLogFile("Turning on-off file", "on-off.dat", LogFileType.ON_OFF);
+        fileLogger.addLogFile("Turning on-off file", "on-off" + ext, LogFileType.ON_OFF);
         fileLogger.printFileInfo(logger::print, "Turning on-off file");
         fileLogger.addLogFile("Id file", "ids.dat", LogFileType.SAVED_IDS);
         fileLogger.printFileInfo(logger::print, "Id file");
+        fileLogger.addLogFile("Tag file", "tags.dat", LogFileType.TAGS);
+        fileLogger.printFileInfo(logger::print, "Tag file");
+        if (ServerConfig.WAL_ENABLED) {
+            wal = new WriteAheadLog(fileLogger.getLogDirPath() + "wal", fileLogger, ServerConfig.WAL_ACK,
+                    ServerConfig.WAL_FOLLOWER, ServerConfig.WAL_SECRET, ServerConfig.WAL_ACK_TIMEOUT, ServerConfig.WAL_SEGMENT_SIZE);
+            fileLogger.useWriteAheadLog(wal);
+        }
+        fileLogger.setTimestampMillis(ServerConfig.LOG_MILLIS);
+        for (LogFileType type : new LogFileType[]{LogFileType.FINISHED_REQUESTS, LogFileType.CONNECTIONS, LogFileType.ON_OFF}) {
+            if (binary) {
+                fileLogger.useBinaryFormat(type);
+                try {
+                    long cut = fileLogger.cutTornRecords(type);
+                    if (cut > 0)
+                        logger.print("Torn binary record cut off the " + type + " file: " + cut + " bytes\n", "Error");
+                } catch (IOException e) {
+                    logger.print("Failed to check binary records of the " + type + " file: " + e.getMessage() + "\n", "Error");
+                }
+            }
+            fileLogger.setRotationPolicy(type, rotationPolicy(type));
+        }
         logger.setDefaultOutputColor();
     }
 
+    /**
+     * Rotation policy of a log file type
+     * Only append-only journals are rotated, id, command id and tag files are read on start and never rotated
+     *
+     * @param type Log file type
+     * @return Policy from livefish.log.TYPE.* properties or server defaults
+     * @see ServerConfig#LOG_ROTATE_SIZE
+     */
+    private static RotationPolicy rotationPolicy(LogFileType type) {
+        String prefix = "livefish.log." + type.name().toLowerCase(Locale.ROOT) + ".";
+        return new RotationPolicy(
+                Long.getLong(prefix + "size", ServerConfig.LOG_ROTATE_SIZE),
+                Long.getLong(prefix + "age", ServerConfig.LOG_ROTATE_AGE),
+                Integer.getInteger(prefix + "keep", ServerConfig.LOG_KEEP),
+                Long.getLong(prefix + "retain", ServerConfig.LOG_RETAIN),
+                Boolean.parseBoolean(System.getProperty(prefix + "compress", String.valueOf(ServerConfig.LOG_COMPRESS))));
+    }
+
     /**
      * Reads last finished request id from file
      * It is for keeping request ids unique
@@ -278,6 +499,155 @@ public class Server {
         logger.println("", "Default");
     }
 
+    /**
+     * Restores the registry from the binary checkpoint
+     * Ids registered after the checkpoint are read from the end of the id file,
+     * requests in process are put back to the request table (expired ones are written as TIMEOUT)
+     * and sent again to their clients when they log in
+     *
+     * @return False if there is no valid checkpoint and text logs must be read
+     * @see RegistrySnapshot#read()
+     * @see Server#deliverRestored(Client)
+     */
+    private boolean restoreSnapshot() {
+        long start = System.currentTimeMillis();
+        RegistrySnapshot.State state = snapshot.read();
+        if (state == null)
+            return false;
+
+        state.roots().forEach((id, root) -> {
+            allIds.add(id);
+            if (root == ClientRoot.ADMIN)
+                adminIds.add(id);
+            else if (root == ClientRoot.CLIENT)
+                clientIds.add(id);
+        });
+
+        File idFile = fileLogger.getLogFile("Id file");
+        long offset = state.idFileLength() <= idFile.length() ? state.idFileLength() : 0;
+        int newIds = 0;
+        try (RandomAccessFile in = new RandomAccessFile(idFile, "r")) {
+            in.seek(offset);
+            String line;
+            while ((line = in.readLine()) != null)
+                if (!line.isBlank() && allIds.add(Integer.parseInt(line.trim())))
+                    newIds++;
+        } catch (IOException | NumberFormatException e) {
+            logger.print("Failed to read ids registered after the snapshot: " + e.getMessage(), "Error");
+        }
+
+        setIdCount();
+        if (state.requestCount() > Request.getRequestCount())
+            Request.setRequestCount(state.requestCount());
+
+        long now = System.currentTimeMillis();
+        int expired = 0;
+        for (RegistrySnapshot.Pending pending : state.pending()) {
+            Request req = pending.req();
+            if (pending.deadline() <= now || !tempRequests.add(req, pending.deadline())) {
+                writeRequest(req, "TIMEOUT");
+                expired++;
+            } else
+                restoredRequests.computeIfAbsent(req.idC, id -> new ArrayList<>()).add(req);
+        }
+
+        logger.print("Registry restored from snapshot in " + (System.currentTimeMillis() - start) + " ms: " +
+                state.roots().size() + " ids (" + newIds + " registered after it), " +
+                (state.pending().size() - expired) + " requests in process (" + expired + " expired)\n", "Default");
+        return true;
+    }
+
+    /**
+     * Writes the binary registry checkpoint
+     *
+     * @see RegistrySnapshot#write(RegistrySnapshot.State)
+     */
+    private synchronized void saveSnapshot() {
+        long start = System.currentTimeMillis();
+        long idFileLength;
+        NavigableMap<Integer, ClientRoot> roots = new TreeMap<>();
+        synchronized (registrationLock) {
+            idFileLength = fileLogger.getLogFile("Id file").length();
+            for (int id : allIds)
+                roots.put(id, adminIds.contains(id) ? ClientRoot.ADMIN : clientIds.contains(id) ? ClientRoot.CLIENT : ClientRoot.UNAUTHORIZED);
+        }
+        List<RegistrySnapshot.Pending> pending = new ArrayList<>();
+        for (Request req : tempRequests.all()) {
+            long deadline = tempRequests.deadlineOf(req.id);
+            if (deadline > 0)
+                pending.add(new RegistrySnapshot.Pending(req, deadline));
+        }
+
+        try {
+            long size = snapshot.write(new RegistrySnapshot.State(start, Request.getRequestCount(), idFileLength, roots, pending));
+            logger.print("Snapshot saved: " + roots.size() + " ids, " + pending.size() + " requests in process, " +
+                    size + " bytes in " + (System.currentTimeMillis() - start) + " ms", "Server state");
+        } catch (IOException e) {
+            logger.print("Failed to save snapshot: " + e.getMessage(), "Error");
+        }
+        if (run)
+            saveSessions();
+    }
+
+    /**
+     * Writes the session index checkpoint
+     * Sessions older than the retention time are dropped first
+     *
+     * @see SessionIndex#save()
+     */
+    private void saveSessions() {
+        long start = System.currentTimeMillis();
+        try {
+            long size = sessions.save();
+            logger.print("Session index saved: " + sessions.stats() + ", " + size + " bytes in " + (System.currentTimeMillis() - start) + " ms", "Server state");
+        } catch (IOException e) {
+            logger.print("Failed to save session index: " + e.getMessage(), "Error");
+        }
+    }
+
+    /**
+     * Starts periodic checkpoint writing
+     *
+     * @see ServerConfig#SNAPSHOT_INTERVAL
+     */
+    private void startSnapshots() {
+        if (ServerConfig.SNAPSHOT_INTERVAL <= 0)
+            return;
+        Thread t = new Thread(() -> {
+            try {
+                while (run) {
+                    Thread.sleep(ServerConfig.SNAPSHOT_INTERVAL);
+                    if (run)
+                        saveSnapshot();
+                }
+            } catch (InterruptedException ignored) {
+                // server is stopping
+            }
+        }, "Snapshot");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * Sends requests restored from the checkpoint again to a client, which has just logged in
+     * (the connection they were sent through was lost on restart)
+     *
+     * @param client Logged in client
+     * @throws IOException exception during online communication
+     */
+    private void deliverRestored(Client client) throws IOException {
+        List<Request> restored = restoredRequests.remove(client.id);
+        if (restored == null)
+            return;
+        List<String> batch = new ArrayList<>();
+        for (Request req : restored)
+            if (tempRequests.get(req.id) != Request.ZEROREQUEST)
+                batch.add(req.id + "$" + req.cmd + "$" + req.args);
+        if (!batch.isEmpty())
+            client.writeLines(batch);
+        logger.print("Sent " + batch.size() + " restored requests to client with id " + client.id, "Connection");
+    }
+
     /**
      * Starts the server console thread
      *
@@ -288,44 +658,139 @@ public class Server {
     }
 
     /**
-     * Starts the main server thread
+     * Starts the main server thread and the file transfer server
      *
      * @see Server#server()
+     * @see FileTransferServer#start()
      */
     private void startServer() {
+        presence.start();
         new Thread(this::server, "Server").start();
+        fileTransfers.start();
+        if (cluster != null)
+            try {
+                cluster.start(this::onClusterMessage);
+            } catch (IOException e) {
+                logger.print("Failed to start the cluster link:\n_________________________", "Error");
+                e.printStackTrace();
+            }
     }
 
     /**
      * Stops the server and closes server resources
+     * Shutdown goes in phases: new connections are not accepted, all clients get SYS$SHUTDOWN (in parallel batches),
+     * in-flight requests are given time to finish, all clients are disconnected (in parallel batches)
+     * with one batched connections file write, log files are synced to disk and then the server exits
+     * Time of every phase is reported
      *
-     * @see Server#writeOnOff(String)
-     * @see Server#disconnectIfInactive(Client, Thread)
+     * @see Server#writeOnOff(boolean)
+     * @see Server#forEachBatch(ExecutorService, List, Consumer)
+     * @see ServerConfig#SHUTDOWN_DRAIN
      * @see Server#input
      */
     private void stopServer() {
+        if (!stopping.compareAndSet(false, true))
+            return;
+        long start = System.currentTimeMillis();
         logger.print("Shutting down...", "Disconnection");
-        writeOnOff("Off");
+        writeOnOff(false);
 
         run = false;
+        try {
+            if (serverSocket != null)
+                serverSocket.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        fileTransfers.stop();
 
-        ArrayList<Client> clients = new ArrayList<>(connectedClients);
-        for (Client client : clients) {
+        List<Client> clients = new ArrayList<>(connectedClients);
+        ExecutorService pool = Executors.newFixedThreadPool(ServerConfig.SHUTDOWN_THREADS);
+        forEachBatch(pool, clients, client -> {
             try {
                 client.writeLine("SYS$SHUTDOWN");
-                disconnectIfInactive(client, client.clientThread);
-            } catch (IOException e) {
-                e.printStackTrace();
+            } catch (IOException ignored) {
+                // the client is already lost, it is disconnected later
             }
+        });
+        long notified = System.currentTimeMillis();
+
+        int inFlight = tempRequests.size();
+        long deadline = notified + ServerConfig.SHUTDOWN_DRAIN;
+        try {
+            while (tempRequests.size() > 0 && !connectedClients.isEmpty() && System.currentTimeMillis() < deadline)
+                Thread.sleep(50);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
-        connectedClients.clear();
-        clients.clear();
+        int left = tempRequests.size();
+        saveSnapshot();
+        if (cluster != null)
+            cluster.stop();
+        long drained = System.currentTimeMillis();
+
+        Queue<ConnectionEvent> records = new ConcurrentLinkedQueue<>();
+        forEachBatch(pool, clients, client -> {
+            if (!client.markDisconnected())
+                return;
+            connectedClients.remove(client);
+            addressIndex.remove(client);
+            if (onlineClients.remove(client.id, client))
+                tagIndex.setOnline(client.id, false);
+            try {
+                client.close();
+            } catch (IOException ignored) {
+                // closing a lost connection
+            }
+            if (client.id > 0)
+                records.add(connectionRecord(client.id, false));
+        });
+        pool.shutdownNow();
+        presence.stop();
+        sessions.log(new ArrayList<>(records), events -> fileLogger.logRecordsToAll(LogFileType.CONNECTIONS, events));
+        long disconnected = System.currentTimeMillis();
+
+        fileLogger.syncAll();
+        if (wal != null)
+            wal.close();
+        saveSessions();
+        long synced = System.currentTimeMillis();
+
+        logger.print("Shutdown: notified " + clients.size() + " clients in " + (notified - start) + " ms, " +
+                (inFlight - left) + " of " + inFlight + " in-flight requests finished and snapshot saved in " + (drained - notified) + " ms, " +
+                records.size() + " clients disconnected in " + (disconnected - drained) + " ms, " +
+                "logs synced in " + (synced - disconnected) + " ms, total " + (synced - start) + " ms", "Server state");
         logger.println("Press enter to stop the server", "Default");
         input.close();
 
         System.exit(0);
     }
 
+    /**
+     * Does an action with all clients in parallel batches
+     * Waits for the batches no longer than the shutdown drain time, so a stuck client can not stop the shutdown
+     *
+     * @param pool    Threads to run batches on
+     * @param clients Clients to do the action with
+     * @param action  An action to do with every client
+     * @see ServerConfig#SHUTDOWN_BATCH
+     */
+    private void forEachBatch(ExecutorService pool, List<Client> clients, Consumer<Client> action) {
+        List<Callable<Void>> batches = new ArrayList<>();
+        for (int i = 0; i < clients.size(); i += ServerConfig.SHUTDOWN_BATCH) {
+            List<Client> batch = clients.subList(i, Math.min(i + ServerConfig.SHUTDOWN_BATCH, clients.size()));
+            batches.add(() -> {
+                batch.forEach(action);
+                return null;
+            });
+        }
+        try {
+            pool.invokeAll(batches, ServerConfig.SHUTDOWN_DRAIN, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
     /**
      * Updates all active ids in online ids set
      *
@@ -349,7 +814,7 @@ public class Server {
     private void disconnectIfInactive(Client client, Thread current) {
         if (client == null || current == null)
             logger.print("Client to disconnect: " + client + ", current thread: " + current, "Wrong data");
-        else
+        else if (client.markDisconnected())
             try {
                 if (client.isUnauthorized())
                     logger.println("Unauthorized client from " + client.getIp() + " disconnected", "Disconnection");
@@ -361,6 +826,11 @@ public class Server {
                 writeConnection(client.id, false);
 
                 connectedClients.remove(client);
+                addressIndex.remove(client);
+                if (onlineClients.remove(client.id, client))
+                    tagIndex.setOnline(client.id, false);
+                if (client.releaseClaim())
+                    presence.release(client.id);
                 client.close();
 
                 if (client.clientThread != null)
@@ -402,14 +872,22 @@ public class Server {
      * @see Server#stopServer()
      */
     private void server() {
-        final int SERVER_PORT = 26781;
+        final int SERVER_PORT = cluster == null ? ServerConfig.PORT : cluster.self().port();
 
-        try (ServerSocket server = new ServerSocket(SERVER_PORT)) {
+        try (ServerSocket server = TlsContext.serverSocket(SERVER_PORT)) {
+            serverSocket = server;
             logger.print("Server started with ip: " + getServerIp() + " On port: " + SERVER_PORT + "\n", "Yellow");
-            writeOnOff("On");
+            writeOnOff(true);
 
-            while (true) {
-                Connection connection = new Connection(server);
+            while (run) {
+                Connection connection;
+                try {
+                    connection = new Connection(server);
+                } catch (RuntimeException e) {
+                    if (!run)
+                        break;
+                    throw e;
+                }
                 Thread clientThread = new Thread(() -> {
                     Client client = new Client(connection);
                     try {
@@ -420,6 +898,9 @@ public class Server {
                             disconnectIfInactive(client, Thread.currentThread());
                         else {
                             onlineIds.add(client.id);
+                            onlineClients.put(client.id, client);
+                            addressIndex.add(client);
+                            tagIndex.setOnline(client.id, true);
 
                             if (client.isAdmin()) {
                                 adminIds.add(client.id);
@@ -430,6 +911,10 @@ public class Server {
                             }
                             writeConnection(client.id, true);
 
+                            if (client.isClient()) {
+                                deliverRestored(client);
+                                deliverMailbox(client);
+                            }
                             communicationLoop(client);
                         }
                     } catch (IOException e) {
@@ -452,17 +937,17 @@ public class Server {
         to.writeLine("INVALID$DATA$" + data);
     }
 
-    private boolean validateAdminReadData(Client admin, String data) throws IOException {
-        if (!data.matches("A\\$\\d+\\$.+\\$.+")) {
-            messageInvalidData(admin, data);
+    private boolean validateAdminReadData(Client admin, Message data) throws IOException {
+        if (!data.isAdminRequest()) {
+            messageInvalidData(admin, data.line());
             return false;
         }
         return true;
     }
 
-    private boolean validateClientReadData(Client client, String data) throws IOException {
-        if (!data.matches("C\\$\\d+\\$\\d+\\$.+")) {
-            messageInvalidData(client, data);
+    private boolean validateClientReadData(Client client, Message data) throws IOException {
+        if (!data.isClientResult()) {
+            messageInvalidData(client, data.line());
             return false;
         }
         return true;
@@ -486,26 +971,100 @@ public class Server {
         return true;
     }
 
-    private void sendAdminRequest(Client admin, Client client, int clientToSendId, String command, String args) throws IOException {
-        refreshActiveIDs();
+    /**
+     * Correlation token validation function
+     *
+     * @param admin Admin who sent the token
+     * @param token A token to check (null if there is no token)
+     * @return True if there is no token or it is valid
+     * @throws IOException exception during online communication
+     */
+    private boolean validateToken(Client admin, String token) throws IOException {
+        if (token != null && !validTokenChars(token)) {
+            logger.print("Invalid correlation token from admin with id " + admin.id + ": " + token, "Wrong data");
+            admin.writeLine("INVALID$TOKEN$" + token);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Correlation token syntax check without a regex ([\w\-.]{1,64})
+     *
+     * @param token A token to check
+     * @return True if the token has 1-64 letters, digits, _, - or .
+     */
+    private static boolean validTokenChars(String token) {
+        if (token.isEmpty() || token.length() > 64)
+            return false;
+        for (int i = 0; i < token.length(); i++) {
+            char c = token.charAt(i);
+            if (!(c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c >= '0' && c <= '9' || c == '_' || c == '-' || c == '.'))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Sends an admin command to a client
+     * The admin gets ACK$request id$client id[$token] when the command is accepted (before it is written to the client),
+     * QUEUED$client id$request id[$token] when it is saved to the client mailbox,
+     * INVALID$OTHER_NODE$client id$instance when the client is online on another server instance
+     * or another INVALID$... message
+     *
+     * @param admin          Admin who sent the command
+     * @param client         Online client to send the command to (null if it is offline)
+     * @param clientToSendId Client id to send the command to
+     * @param command        A command to send
+     * @param args           Command arguments
+     * @param token          Correlation token chosen by the admin (null if there is no token)
+     * @param reply          Reused builder of the sender thread to build sent messages in
+     * @throws IOException exception during online communication
+     * @see Message#reply()
+     */
+    private void sendAdminRequest(Client admin, Client client, int clientToSendId, String command, String args, String token, StringBuilder reply) throws IOException {
+        String origin = admin instanceof RemoteAdmin remote ? remote.node : null;
 
         if (client == null) {
+            String node = presence.locate(clientToSendId);
+            if (node != null && !node.equals(presence.node())) {
+                logger.print("Sending error: client with id " + clientToSendId + " is online on server instance " + node, "Error");
+                admin.writeLine("INVALID$OTHER_NODE$" + clientToSendId + "$" + node);
+                return;
+            }
+            if (mailbox != null && allIds.contains(clientToSendId) && !adminIds.contains(clientToSendId)) {
+                Request queued = new Request(admin.id, clientToSendId, command, args, token, origin);
+                if (mailbox.offer(queued)) {
+                    logger.print("Client with id " + clientToSendId + " is offline, command saved to its mailbox", "Default");
+                    admin.writeLine("QUEUED$" + clientToSendId + "$" + queued.id + (token == null ? "" : "$" + token));
+                } else {
+                    logger.print("Mailbox of client with id " + clientToSendId + " is full", "Wrong data");
+                    admin.writeLine("INVALID$MAILBOX_FULL$" + clientToSendId);
+                }
+                return;
+            }
             logger.print("Sending error: system didn't find an online client with id " + clientToSendId, "Error");
             admin.writeLine("INVALID$OFFLINE_CLIENT$" + clientToSendId);
+        } else if (!allIds.contains(clientToSendId)) {
+            logger.print("Invalid command: this id is free", "Wrong data");
+            admin.writeLine("INVALID$FREE$" + clientToSendId);
         } else {
-            Request thisReq = new Request(admin.id, clientToSendId, command, args);
-            tempRequests.add(thisReq);
-            if (allIds.contains(clientToSendId))
-                client.writeLine(thisReq.id + "$" + command + "$" + args);
-            else {
-                logger.print("Invalid command: this id is free", "Wrong data");
-                admin.writeLine("INVALID$FREE$" + clientToSendId);
+            Request thisReq = new Request(admin.id, clientToSendId, command, args, token, origin);
+            if (tempRequests.add(thisReq)) {
+                // the admin gets the ACK before the client can answer, so a fast result never comes before it
+                reply.setLength(0);
+                reply.append("ACK$").append(thisReq.id).append('$').append(clientToSendId);
+                admin.writeLine(token == null ? reply : reply.append('$').append(token));
+                reply.setLength(0);
+                client.writeLine(reply.append(thisReq.id).append('$').append(command).append('$').append(args));
+            } else {
+                logger.print("Sending error: too many requests in process", "Error");
+                admin.writeLine("INVALID$TOO_MANY_REQUESTS$" + clientToSendId);
             }
         }
     }
 
-    private void sendRequestSuccess(Client to, Client by, int adminId, String response) throws IOException {
-        refreshActiveIDs();
+    private void sendRequestSuccess(Client to, Client by, int adminId, StringBuilder response) throws IOException {
         if (to != null) {
             if (allIds.contains(adminId))
                 to.writeLine(response);
@@ -519,92 +1078,670 @@ public class Server {
         }
     }
 
-    private void logDoneRequest(Client by, Request executed, int commandId, String success) {
-        logger.print("Client id to send: " + by.id, "Default");
-        logger.print("Command id: " + commandId, "Default");
-        logger.print("Admin id to send: " + executed.idA, "Default");
-        logger.print("Command to send: " + executed.cmd, "Default");
-        logger.print("Args to send: " + executed.args, "Default");
-        logger.print("Success to send: " + success, "Default");
+    /**
+     * Finishes a pending request and writes it to the request file
+     * Only the first result of a request is taken, a result, which comes after the request is finished
+     * by another result or expired, is dropped
+     *
+     * @param by        Client who finished the request
+     * @param executed  Finished request
+     * @param commandId Request id sent by the client
+     * @param success   Request result
+     * @return False if the request was already finished or expired (nothing is written, nothing must be sent)
+     * @see PendingRequests#complete(Request)
+     */
+    private boolean logDoneRequest(Client by, Request executed, int commandId, String success) {
+        if (!tempRequests.complete(executed)) {
+            logger.print("Result of request " + commandId + " from client with id " + by.id + " is dropped: the request is already finished or expired", "Wrong data");
+            return false;
+        }
+        if (ServerConfig.LOG_MESSAGES) {
+            logger.print("Client id to send: " + by.id, "Default");
+            logger.print("Command id: " + commandId, "Default");
+            logger.print("Admin id to send: " + executed.idA, "Default");
+            logger.print("Command to send: " + executed.cmd, "Default");
+            logger.print("Args to send: " + executed.args, "Default");
+            logger.print("Success to send: " + success, "Default");
+        }
         writeRequest(new Request(executed, success));
-        tempRequests.remove(executed);
+        return true;
     }
 
-    private void sendDoneRequest(Client by, Request executed, int clientToSendId, int commandId, String success) throws IOException {
+    /**
+     * Expired request handling function
+     * Writes the request to file as TIMEOUT and sends it to the admin like a finished one
+     *
+     * @param req A request, which was not finished before its deadline
+     * @see PendingRequests
+     */
+    private void expireRequest(Request req) {
+        logger.print("Request " + req.id + " to client with id " + req.idC + " timed out", "Wrong data");
+        writeRequest(new Request(req, "TIMEOUT"));
+        if (fanOut.complete(req, "TIMEOUT"))
+            return;
+        if (req.origin != null) {
+            cluster.send(req.origin, "RELAY$" + req.idA + "$" + req.resultMessage(req.idC, "TIMEOUT"));
+            return;
+        }
+
+        Client admin = onlineClients.get(req.idA);
+        if (admin != null)
+            try {
+                admin.writeLine(req.resultMessage(req.idC, "TIMEOUT"));
+            } catch (IOException e) {
+                logger.print("Failed to send request timeout to admin with id " + req.idA, "Error");
+            }
+    }
+
+    private void sendDoneRequest(Client by, Request executed, int clientToSendId, int commandId, String success, StringBuilder reply) throws IOException {
         if (executed.equals(Request.ZEROREQUEST))
             logger.print("Client " + clientToSendId + " wanted to write a zeroRequest", "Wrong data");
         else {
-            adminIds.add(executed.idA);
+            if (executed.origin == null)
+                adminIds.add(executed.idA);
             clientIds.add(by.id);
 
-            logDoneRequest(by, executed, commandId, success);
+            if (!logDoneRequest(by, executed, commandId, success))
+                return;
+            if (fanOut.complete(executed, success))
+                return;
+            if (executed.origin != null) {
+                if (!cluster.send(executed.origin, "RELAY$" + executed.idA + "$" + executed.resultMessage(clientToSendId, success))) {
+                    logger.print("Sending error: cluster node " + executed.origin + " of admin with id " + executed.idA + " is unreachable", "Error");
+                    by.writeLine("INVALID$OFFLINE_ADMIN$" + executed.idA);
+                }
+                return;
+            }
 
+            reply.setLength(0);
             sendRequestSuccess(
                     getClientById(connectedClients, executed.idA),
                     by,
                     executed.idA,
-                    clientToSendId + "$" + executed.cmd + "$" + executed.args + "$" + success);
+                    executed.appendResultMessage(reply, clientToSendId, success));
         }
 
     }
 
+    /**
+     * Forwards an admin command to the cluster node owning the client id
+     * The owner node answers the admin through the link like a local admin (ACK, QUEUED, INVALID and results),
+     * the admin gets INVALID$NODE_DOWN$client id if the owner node is unreachable
+     *
+     * @param admin          Admin who sent the command
+     * @param clientToSendId Client id to send the command to
+     * @param command        A command to send
+     * @param args           Command arguments
+     * @param token          Correlation token chosen by the admin (null if there is no token)
+     * @throws IOException exception during online communication
+     * @see Server#onClusterMessage(String, String)
+     */
+    private void forwardAdminRequest(Client admin, int clientToSendId, String command, String args, String token) throws IOException {
+        ClusterLink.Node owner = cluster.owner(clientToSendId);
+        logger.print("Client id " + clientToSendId + " belongs to cluster node " + owner.name() + ", command is forwarded", "Default");
+        if (!cluster.send(owner.name(), "FWD$" + admin.id + "$" + clientToSendId + "$" + command + "$" + args + (token == null ? "" : "$" + token)))
+            admin.writeLine("INVALID$NODE_DOWN$" + clientToSendId);
+    }
+
+    /**
+     * Cluster node message handling function
+     * FWD$admin id$client id$command$args[$token] - a command of an admin of another node to a client of this node,
+     * RELAY$admin id$message - a message for an admin of this node
+     *
+     * @param node Sender node name
+     * @param msg  Received message
+     * @see ClusterLink
+     */
+    private void onClusterMessage(String node, String msg) {
+        String[] split = msg.split("\\$");
+        try {
+            if (split[0].equals("FWD") && (split.length == 5 || split.length == 6) && split[1].matches("\\d+") && split[2].matches("\\d+")) {
+                int clientId = Integer.parseInt(split[2]);
+                RemoteAdmin admin = new RemoteAdmin(cluster, node, Integer.parseInt(split[1]));
+                if (!isRemoteAdmin(node, admin.id))
+                    logger.print("Rejected a command of cluster node " + node + ": id " + admin.id + " is not an admin of it", "Wrong data");
+                else if (!run)
+                    admin.writeLine("INVALID$SHUTDOWN$");
+                else if (!cluster.isLocal(clientId))
+                    admin.writeLine("INVALID$WRONG_NODE$" + clientId);
+                else
+                    sendAdminRequest(admin, getClientById(connectedClients, clientId), clientId, split[3], split[4], split.length == 6 ? split[5] : null, new StringBuilder());
+            } else if (split[0].equals("RELAY") && split.length >= 3 && split[1].matches("\\d+")) {
+                String[] relay = msg.split("\\$", 3);
+                Client admin = onlineClients.get(Integer.parseInt(relay[1]));
+                if (admin != null && admin.isAdmin())
+                    admin.writeLine(relay[2]);
+                else
+                    logger.print("Relay error: admin with id " + relay[1] + " is not connected to this node", "Error");
+            } else
+                logger.print("Received invalid data from cluster node " + node + ": " + msg, "Wrong data");
+        } catch (IOException e) {
+            logger.print("Failed to handle a message of cluster node " + node + ": " + msg, "Error");
+        }
+    }
+
+    /**
+     * Checks the admin id of a forwarded command
+     * Admins register on any node, so an id unknown here is trusted to the authenticated origin node,
+     * but an id registered here as a non-admin, or online on another node by the shared presence directory, is rejected
+     *
+     * @param node    Cluster node which forwarded the command
+     * @param adminId Admin id of the command
+     * @return True if the id can be an admin of the node
+     */
+    private boolean isRemoteAdmin(String node, int adminId) {
+        if (adminId < 0 || allIds.contains(adminId) && !adminIds.contains(adminId))
+            return false;
+        return presence instanceof LocalPresence || node.equals(presence.locate(adminId));
+    }
+
+    /**
+     * Sending one command to many clients function
+     * Targets are all online clients (A$*$cmd$args), a comma separated id list (A$1,2,3$cmd$args)
+     * or clients matching a tag expression (A$GROUP:a&b|c$cmd$args)
+     * An admin correlation token can be added at the end: A$*$cmd$args$token
+     * Only clients of this node get the command, targets of other cluster nodes or server instances are skipped
+     *
+     * @param command A command to send
+     * @param admin   Admin who sent the command
+     * @return True if the command was a broadcast command
+     * @throws IOException exception during online communication
+     * @see FanOutEngine#send(Client, List, Map, String, String, PendingRequests, String)
+     */
+    private boolean processBroadcastCommand(String command, Client admin) throws IOException {
+        if (!command.matches("A\\$(\\*|\\d+(,\\d+)+|GROUP:" + TagIndex.EXPRESSION_PATTERN + ")\\$.+\\$.+"))
+            return false;
+
+        String[] split = command.split("\\$");
+        String token = split.length > 4 ? split[4] : null;
+        if (!validateToken(admin, token))
+            return true;
+
+        List<Client> targets = new ArrayList<>();
+        Map<String, Integer> skipped = new HashMap<>();
+
+        if (split[1].equals("*")) {
+            for (Client cur : onlineClients.values())
+                if (cur.isClient())
+                    targets.add(cur);
+        } else if (split[1].startsWith("GROUP:")) {
+            String expression = split[1].substring("GROUP:".length());
+            IdBitmap members = tagIndex.resolve(expression);
+            IdBitmap online = tagIndex.resolveOnline(expression);
+            for (int id : online.toArray()) {
+                Client cur = onlineClients.get(id);
+                if (id == admin.id)
+                    skipped.merge("SELF", 1, Integer::sum);
+                else if (cur == null)
+                    skipped.merge("OFFLINE", 1, Integer::sum);
+                else if (cur.isAdmin())
+                    skipped.merge("ADMIN", 1, Integer::sum);
+                else
+                    targets.add(cur);
+            }
+            members.andNot(online);
+            for (int id : members.toArray())
+                skipOffline(admin, id, split[2], split[3], token, skipped);
+        } else {
+            Set<Integer> ids = new LinkedHashSet<>();
+            for (String id : split[1].split(","))
+                ids.add(Integer.parseInt(id));
+
+            for (int id : ids) {
+                Client cur = onlineClients.get(id);
+                if (id == admin.id)
+                    skipped.merge("SELF", 1, Integer::sum);
+                else if (cluster != null && !cluster.isLocal(id))
+                    skipped.merge("REMOTE", 1, Integer::sum);
+                else if (!allIds.contains(id))
+                    skipped.merge("FREE", 1, Integer::sum);
+                else if (cur == null)
+                    skipOffline(admin, id, split[2], split[3], token, skipped);
+                else if (cur.isAdmin())
+                    skipped.merge("ADMIN", 1, Integer::sum);
+                else
+                    targets.add(cur);
+            }
+        }
+
+        if (targets.isEmpty() && skipped.isEmpty()) {
+            logger.print("Broadcast from admin " + admin.id + " has no targets", "Wrong data");
+            admin.writeLine("INVALID$NO_TARGETS$" + split[1]);
+            return true;
+        }
+        fanOut.send(admin, targets, skipped, split[2], split[3], tempRequests, token);
+        return true;
+    }
+
+    /**
+     * Counts an offline broadcast target as QUEUED if the command is saved to its mailbox, or as OFFLINE otherwise
+     * Queued commands are answered to the admin one by one when the client logs in
+     * Broadcasts are node-local, so a target owned by another cluster node is counted as REMOTE
+     * and a target online on another server instance as OTHER_NODE, their commands are never queued here
+     *
+     * @param admin   Admin who sent the command
+     * @param id      Offline client id
+     * @param command A command to send
+     * @param args    Command arguments
+     * @param token   Correlation token chosen by the admin (null if there is no token)
+     * @param skipped Counts of skipped broadcast targets by reason
+     * @see Mailbox#offer(Request)
+     */
+    private void skipOffline(Client admin, int id, String command, String args, String token, Map<String, Integer> skipped) {
+        String node = presence.locate(id);
+        if (cluster != null && !cluster.isLocal(id))
+            skipped.merge("REMOTE", 1, Integer::sum);
+        else if (node != null && !node.equals(presence.node()))
+            skipped.merge("OTHER_NODE", 1, Integer::sum);
+        else if (mailbox != null && !adminIds.contains(id) && mailbox.offer(new Request(admin.id, id, command, args, token)))
+            skipped.merge("QUEUED", 1, Integer::sum);
+        else
+            skipped.merge("OFFLINE", 1, Integer::sum);
+    }
+
+    /**
+     * Sends all commands from client mailbox to it after login
+     * Expired commands are written to the request file as EXPIRED
+     * Commands are removed from the mailbox batch by batch after the batch is written,
+     * so commands of a failed batch and all after it are delivered again on the next login
+     * If there are too many requests in process, the rest of the commands stay in the mailbox for the next login
+     *
+     * @param client Logged in client
+     * @throws IOException exception during online communication
+     * @see Mailbox#peek(int, List)
+     * @see Mailbox#remove(int, Collection)
+     */
+    private void deliverMailbox(Client client) throws IOException {
+        if (mailbox == null || mailbox.depth(client.id) == 0)
+            return;
+
+        List<Request> expired = new ArrayList<>();
+        List<Request> queued = mailbox.peek(client.id, expired);
+        for (Request req : expired)
+            writeRequest(new Request(req, "EXPIRED"));
+        mailbox.remove(client.id, expired);
+
+        List<Request> sent = new ArrayList<>(ServerConfig.MAILBOX_BATCH);
+        List<String> batch = new ArrayList<>(ServerConfig.MAILBOX_BATCH);
+        int delivered = 0;
+        boolean full = false;
+        for (int i = 0; i < queued.size() && !full; i++) {
+            Request req = queued.get(i);
+            full = !tempRequests.add(req);
+            if (!full) {
+                sent.add(req);
+                batch.add(req.id + "$" + req.cmd + "$" + req.args);
+            }
+            if (!batch.isEmpty() && (batch.size() == ServerConfig.MAILBOX_BATCH || full || i == queued.size() - 1)) {
+                try {
+                    client.writeLines(batch);
+                } catch (IOException e) {
+                    for (Request cur : sent)
+                        tempRequests.remove(cur);
+                    throw e;
+                }
+                mailbox.remove(client.id, sent);
+                delivered += sent.size();
+                sent.clear();
+                batch.clear();
+            }
+        }
+        if (full)
+            logger.print("Too many requests in process: " + (queued.size() - delivered) + " saved commands of client with id " + client.id + " are kept for its next login", "Error");
+        logger.print("Delivered " + delivered + " saved commands to client with id " + client.id + " (" + expired.size() + " expired)", "Connection");
+    }
+
+    /**
+     * Drops saved commands of admin ids on start
+     * Admins can't answer client commands, so their mailboxes are written to the request file as REJECTED and removed
+     *
+     * @see Mailbox#ids()
+     */
+    private void dropAdminMailboxes() {
+        if (mailbox == null)
+            return;
+        for (int id : mailbox.ids()) {
+            if (!adminIds.contains(id))
+                continue;
+            List<Request> dropped = new ArrayList<>();
+            List<Request> saved = mailbox.peek(id, dropped);
+            dropped.addAll(saved);
+            for (Request req : dropped)
+                writeRequest(req, "REJECTED");
+            mailbox.remove(id, dropped);
+            logger.print("Dropped " + dropped.size() + " saved commands of admin with id " + id, "Wrong data");
+        }
+    }
+
+    /**
+     * File transfer command handling function
+     * A$FILE$PUSH$client id$name$size$sha256 - admin sends a file to a client,
+     * C$FILE$UPLOAD$name$size$sha256 - client sends a file to admins,
+     * both are answered with FILE$UPLOAD$transfer id$file port$offset to upload the bytes from.
+     * or with FILE$ERROR$QUOTA if the sender has too many unfinished transfers,
+     * X$FILE$STATUS$transfer id - transfer state and progress (resumes upload from the returned offset),
+     * A$FILE$OFFER$transfer id - sends a stored file offer to its client again,
+     * A$FILE$STORE - blob store statistics
+     *
+     * @param command A command from admin or client
+     * @param client  Admin or client who sent the command
+     * @return True if the command was a file command
+     * @throws IOException exception during online communication
+     * @see FileTransferServer
+     */
+    private boolean processFileCommand(String command, Client client) throws IOException {
+        String[] split = command.split("\\$");
+        if (split.length < 3 || !split[1].equals("FILE"))
+            return false;
+
+        String action = split[2].toUpperCase(Locale.ROOT);
+        String toSend;
+        if (client.isAdmin() && action.equals("PUSH") && split.length == 7 && split[3].matches("\\d+") && validFileInfo(split[4], split[5], split[6])) {
+            int clientId = Integer.parseInt(split[3]);
+            if (!allIds.contains(clientId) || adminIds.contains(clientId))
+                toSend = "INVALID$FREE$" + clientId;
+            else {
+                startFileTransfer(client, fileTransfers.create(split[4], Long.parseLong(split[5]), split[6], FileTransfer.Direction.PUSH, client.id, clientId));
+                return true;
+            }
+        } else if (client.isClient() && action.equals("UPLOAD") && split.length == 6 && validFileInfo(split[3], split[4], split[5])) {
+            startFileTransfer(client, fileTransfers.create(split[3], Long.parseLong(split[4]), split[5], FileTransfer.Direction.UPLOAD, client.id, -1));
+            return true;
+        } else if (client.isAdmin() && action.equals("STORE") && split.length == 3)
+            toSend = "FILE$STORE$" + fileTransfers.getBlobs().stats();
+        else if ((action.equals("STATUS") || action.equals("OFFER")) && split.length == 4) {
+            FileTransfer transfer = fileTransfers.get(split[3]);
+            if (transfer == null || (client.isClient() && transfer.fromId != client.id && transfer.toId != client.id))
+                toSend = "FILE$ERROR$INVALID_ID$" + split[3];
+            else if (action.equals("STATUS"))
+                toSend = transfer.getState() == FileTransfer.State.UPLOADING ? uploadMessage(transfer) : "FILE$STATUS$" + transfer.status();
+            else if (client.isAdmin() && transfer.direction == FileTransfer.Direction.PUSH && transfer.getState() == FileTransfer.State.STORED) {
+                offerFile(transfer);
+                return true;
+            } else
+                toSend = "FILE$ERROR$STATE$" + transfer.status();
+        } else
+            toSend = "FILE$ERROR$INVALID_SYNTAX$" + command;
+
+        client.writeLine(toSend);
+        return true;
+    }
+
+    /**
+     * File info validation function
+     *
+     * @param name   File name (letters, digits, '-', '.', '_')
+     * @param size   File size in bytes
+     * @param sha256 File SHA-256 (hex)
+     * @return True if file info is valid
+     * @see ServerConfig#FILE_MAX_SIZE
+     */
+    private boolean validFileInfo(String name, String size, String sha256) {
+        return name.matches("[\\w\\-.]{1,128}") &&
+                size.matches("\\d{1,18}") && Long.parseLong(size) <= ServerConfig.FILE_MAX_SIZE &&
+                sha256.matches("[0-9a-fA-F]{64}");
+    }
+
+    /**
+     * Upload invitation message
+     *
+     * @param transfer A transfer to upload
+     * @return FILE$UPLOAD$transfer id$file port$offset
+     * @throws IOException exception during blob store reading
+     */
+    private String uploadMessage(FileTransfer transfer) throws IOException {
+        return "FILE$UPLOAD$" + transfer.id + "$" + fileTransfers.getPort() + "$" + fileTransfers.resumeOffset(transfer);
+    }
+
+    /**
+     * Sends upload invitation for a new transfer
+     * A file, which is already stored, is not uploaded again (offset is the file size) and is sent to its receivers at once
+     *
+     * @param from     Admin or client who uploads the file
+     * @param transfer A new transfer (null if it was rejected by the transfer quota)
+     * @throws IOException exception during online communication
+     */
+    private void startFileTransfer(Client from, FileTransfer transfer) throws IOException {
+        if (transfer == null) {
+            from.writeLine("FILE$ERROR$QUOTA");
+            return;
+        }
+        from.writeLine(uploadMessage(transfer));
+        if (transfer.getState() == FileTransfer.State.STORED)
+            fileStored(transfer);
+    }
+
+    /**
+     * Sends a stored file offer to the client who should get it
+     * The admin gets FILE$OFFLINE$transfer id$client id if the client is offline
+     *
+     * @param transfer A stored transfer from admin to client
+     */
+    private void offerFile(FileTransfer transfer) {
+        Client to = onlineClients.get(transfer.toId);
+        Client admin = onlineClients.get(transfer.fromId);
+        try {
+            if (to != null)
+                to.writeLine("FILE$OFFER$" + transfer.id + "$" + transfer.name + "$" + transfer.size + "$" + transfer.sha256 + "$" + fileTransfers.getPort());
+            else if (admin != null)
+                admin.writeLine("FILE$OFFLINE$" + transfer.id + "$" + transfer.toId);
+        } catch (IOException e) {
+            logger.print("Failed to send file offer " + transfer.id, "Error");
+        }
+    }
+
+    /**
+     * Uploaded file handling function
+     * Files from admins are offered to their clients, files from clients are announced to all online admins
+     *
+     * @param transfer A transfer with stored file
+     */
+    private void fileStored(FileTransfer transfer) {
+        if (transfer.direction == FileTransfer.Direction.PUSH) {
+            Client admin = onlineClients.get(transfer.fromId);
+            if (admin != null)
+                try {
+                    admin.writeLine("FILE$STORED$" + transfer.id + "$" + transfer.getUploadSpeed());
+                } catch (IOException e) {
+                    logger.print("Failed to send file state to admin with id " + transfer.fromId, "Error");
+                }
+            offerFile(transfer);
+        } else
+            for (Client admin : onlineClients.values())
+                if (admin.isAdmin())
+                    try {
+                        admin.writeLine("FILE$RECEIVED$" + transfer.id + "$" + transfer.fromId + "$" + transfer.name + "$" + transfer.size + "$" + transfer.sha256 + "$" + fileTransfers.getPort());
+                    } catch (IOException e) {
+                        logger.print("Failed to announce file " + transfer.id + " to admin with id " + admin.id, "Error");
+                    }
+    }
+
+    /**
+     * Downloaded file handling function
+     * The admin who pushed the file gets FILE$DELIVERED$transfer id$client id$size$bytes per second
+     *
+     * @param transfer A downloaded transfer
+     * @param nanos    Download time in nanoseconds
+     */
+    private void fileDelivered(FileTransfer transfer, long nanos) {
+        long speed = nanos == 0 ? 0 : transfer.size * 1_000_000_000L / nanos;
+        logger.print("File transfer " + transfer.id + " downloaded: " + transfer.size + " bytes, " + speed / 1024 + " KB/s", "Default");
+        if (transfer.direction != FileTransfer.Direction.PUSH)
+            return;
+        Client admin = onlineClients.get(transfer.fromId);
+        if (admin != null)
+            try {
+                admin.writeLine("FILE$DELIVERED$" + transfer.id + "$" + transfer.toId + "$" + transfer.size + "$" + speed);
+            } catch (IOException e) {
+                logger.print("Failed to send file state to admin with id " + transfer.fromId, "Error");
+            }
+    }
+
+    /**
+     * Connection settings negotiation function
+     * X$SYS$COMPRESS$DEFLATE turns on message compression: the server answers SYS$COMPRESS$DEFLATE$threshold
+     * (not compressed), after which both sides send messages longer than the threshold as Z$base64(deflate(message)),
+     * X$SYS$COMPRESS$NONE turns it off, unknown algorithm is answered with SYS$COMPRESS$NONE
+     *
+     * @param command Admin or client command
+     * @param client  Admin or client who sent the command
+     * @return True if the command was a connection settings command
+     * @throws IOException exception during online communication
+     * @see Compressor
+     */
+    private boolean processSysCommand(String command, Client client) throws IOException {
+        String[] split = command.split("\\$");
+        if (split.length != 4 || !split[1].equals("SYS") || !split[2].equals("COMPRESS"))
+            return false;
+
+        if (split[3].equalsIgnoreCase("DEFLATE")) {
+            client.writeLine("SYS$COMPRESS$DEFLATE$" + ServerConfig.COMPRESS_THRESHOLD);
+            client.enableCompression(ServerConfig.COMPRESS_THRESHOLD, ServerConfig.COMPRESS_LEVEL);
+            logger.print("Compression enabled for " + client, "Default");
+        } else {
+            client.disableCompression();
+            client.writeLine("SYS$COMPRESS$NONE");
+        }
+        return true;
+    }
+
+    /**
+     * Client tag managing function
+     * A$TAG$ADD$id$tag and A$TAG$DEL$id$tag change tags of a registered id,
+     * A$TAG$LIST$id shows id tags, A$TAG$FIND$expression shows online ids matching tag expression
+     *
+     * @param command Admin command
+     * @param admin   Admin who sent the command
+     * @return True if the command was a tag command
+     * @throws IOException exception during online communication
+     * @see TagIndex
+     */
+    private boolean processTagCommand(String command, Client admin) throws IOException {
+        String[] split = command.split("\\$");
+        if (split.length < 2 || !split[1].equals("TAG"))
+            return false;
+
+        String action = split.length > 2 ? split[2].toUpperCase(Locale.ROOT) : "";
+        String toSend;
+        if ((action.equals("ADD") || action.equals("DEL")) && split.length == 5 && split[3].matches("\\d+") && split[4].matches(TagIndex.TAG_PATTERN)) {
+            int id = Integer.parseInt(split[3]);
+            if (!allIds.contains(id))
+                toSend = "INVALID$FREE$" + id;
+            else {
+                boolean changed = action.equals("ADD") ? tagIndex.addTag(id, split[4]) : tagIndex.removeTag(id, split[4]);
+                toSend = "TAG$" + action + "$" + id + "$" + split[4] + "$" + (changed ? "OK" : "UNCHANGED");
+                logger.print("Admin with id: " + admin.id + " tag " + action + " " + split[4] + " for id " + id, "Default");
+            }
+        } else if (action.equals("LIST") && split.length == 4 && split[3].matches("\\d+")) {
+            int id = Integer.parseInt(split[3]);
+            toSend = "TAG$LIST$" + id + "$" + String.join(",", tagIndex.getTags(id));
+        } else if (action.equals("FIND") && split.length == 4 && split[3].matches(TagIndex.EXPRESSION_PATTERN)) {
+            IdBitmap online = tagIndex.resolveOnline(split[3]);
+            StringBuilder ids = new StringBuilder();
+            for (int id : online.toArray())
+                ids.append(id).append(',');
+            if (ids.length() > 0)
+                ids.deleteCharAt(ids.length() - 1);
+            toSend = "TAG$FIND$" + split[3] + "$" + ids;
+        } else
+            toSend = "TAG$ERROR$INVALID_SYNTAX$" + command;
+
+        admin.writeLine(toSend);
+        return true;
+    }
+
+    /**
+     * Message routing loop of a logged in client
+     * One message object and its reply builder are reused for every message of the client,
+     * fields are compared in place and only the kept ones (command, args, token, result) become strings
+     * Registered commands are dispatched by their opcodes, other messages are admin requests or client results
+     *
+     * @param client Logged in client
+     * @throws IOException exception during online communication
+     * @see Message
+     * @see Server#registerCommands()
+     */
     private void communicationLoop(Client client) throws IOException {
+        Message message = new Message();
         while (!client.clientThread.isInterrupted()) {
             String readData = client.readLine();
-            if (readData == null || !readData.contains("$")) {
+            if (readData == null || readData.indexOf('$') < 0) {
                 logger.print("Received invalid data from client with id " + client.id, "Wrong data");
                 client.writeLine("INVALID$DATA$" + readData);
                 continue;
             }
 
-            String[] readDataSplit = readData.split("\\$");
+            message.parse(readData);
             if (client.isAdmin()) {
                 adminIds.add(client.id);
+                if (!run) {
+                    client.writeLine("INVALID$SHUTDOWN$");
+                    continue;
+                }
+            } else if (client.isClient() && ServerConfig.LOG_MESSAGES)
+                logger.print("Client data read: " + readData, "Default");
+            if (commands.dispatch(message, client))
+                continue;
 
-                if (processInfoCommand(readData, client))
+            if (client.isAdmin()) {
+                if (isBroadcastTarget(message) && processBroadcastCommand(readData, client))
                     continue;
-                if (!validateAdminReadData(client, readData))
+                if (!validateAdminReadData(client, message))
                     continue;
 
-                logger.print("Admin data read: " + readData, "Default");
+                if (ServerConfig.LOG_MESSAGES)
+                    logger.print("Admin data read: " + readData, "Default");
 
-                int clientToSendId = Integer.parseInt(readDataSplit[1]);
-                String commandToSend = readDataSplit[2];
-                String argsToSend = readDataSplit[3];
-
-                if (!validateSelfSendId(client, clientToSendId) ||
-                        !validateAnotherAdminSendId(client, clientToSendId)
-                )
+                int clientToSendId = message.intField(1);
+                if (!validateSelfSendId(client, clientToSendId) || !validateAnotherAdminSendId(client, clientToSendId))
                     continue;
+                String token = message.field(4);
+                if (!validateToken(client, token))
+                    continue;
+                String commandToSend = message.field(2);
+                String argsToSend = message.field(3);
+
+                if (ServerConfig.LOG_MESSAGES) {
+                    logger.print("Id to send: " + clientToSendId, "Default");
+                    logger.print("Id who sent: " + client.id, "Default");
+                    logger.print("Command to send: " + commandToSend, "Default");
+                    logger.print("Args to send: " + argsToSend, "Default");
+                }
 
-                logger.print("Id to send: " + clientToSendId, "Default");
-                logger.print("Id who sent: " + client.id, "Default");
-                logger.print("Command to send: " + commandToSend, "Default");
-                logger.print("Args to send: " + argsToSend, "Default");
-
-                sendAdminRequest(client, getClientById(connectedClients, clientToSendId), clientToSendId, commandToSend, argsToSend);
+                if (cluster != null && !cluster.isLocal(clientToSendId))
+                    forwardAdminRequest(client, clientToSendId, commandToSend, argsToSend, token);
+                else
+                    sendAdminRequest(client, getClientById(connectedClients, clientToSendId), clientToSendId, commandToSend, argsToSend, token, message.reply());
             } else if (client.isClient()) {
-                logger.print("Client data read: " + readData, "Default");
-                if (!validateClientReadData(client, readData))
+                if (!validateClientReadData(client, message))
                     continue;
 
-                int clientToSendId = Integer.parseInt(readDataSplit[1]);
-                int commandId = Integer.parseInt(readDataSplit[2]);
-                String success = readDataSplit[3];
+                int clientToSendId = message.intField(1);
+                int commandId = message.intField(2);
 
                 sendDoneRequest(
                         client,
-                        getReqById(tempRequests, commandId),
+                        tempRequests.get(commandId),
                         clientToSendId,
                         commandId,
-                        success
+                        message.field(3),
+                        message.reply()
                 );
             }
-            refreshActiveIDs();
         }
 
     }
 
+    /**
+     * Cheap check of a broadcast target before the broadcast regex: *, an id list or GROUP:expression
+     *
+     * @param message Admin message
+     * @return True if the message may be a broadcast command
+     */
+    private static boolean isBroadcastTarget(Message message) {
+        return message.fieldEquals(1, "*") || message.fieldContains(1, ',') || message.fieldStartsWith(1, "GROUP:");
+    }
+
 
     /**
      * Client registration / login function
@@ -626,6 +1763,7 @@ public class Server {
         boolean loginFailed = true;
         ClientRoot root = null;
         int uniId = -1;
+        int claimed = -1;
 
         do {
             try {
@@ -648,24 +1786,41 @@ public class Server {
                                 ClientRoot.UNAUTHORIZED;
                 uniId = Integer.parseInt(dataReceived.split("\\$")[1]);
 
+                if (root == ClientRoot.CLIENT && cluster != null && !cluster.isLocal(Math.abs(uniId))) {
+                    ClusterLink.Node owner = cluster.owner(Math.abs(uniId));
+                    logger.print("Client with id " + Math.abs(uniId) + " is redirected to cluster node " + owner.name(), "Connection");
+                    res.writeLine("LOGIN$REDIRECT$" + owner.host() + "$" + owner.port());
+                    disconnectIfInactive(res, Thread.currentThread());
+                    return res;
+                }
+
                 if (uniId <= 0) {
                     if (allIds.contains(-uniId)) {
                         logger.print("The user with id " + (-uniId) + " already exists", "Wrong data");
                         res.writeLine("LOGIN$INVALID_ID$EXISTS$" + (-uniId));
                         continue;
                     }
+                    if (!presence.acquire(-uniId)) {
+                        logger.print("Failed to register a user with id " + (-uniId) + ": this id is online on " + presence.locate(-uniId), "Wrong data");
+                        res.writeLine("LOGIN$INVALID_ID$ONLINE$" + (-uniId));
+                        continue;
+                    }
+                    claimed = -uniId;
 
                     String register = "Successfully registrated new user with root " + root + " and id: " + (-uniId);
 
-                    fileLogger.logToAll("Id file", String.valueOf(-uniId));
+                    synchronized (registrationLock) {
+                        fileLogger.logToAll("Id file", String.valueOf(-uniId));
+                        allIds.add(Math.abs(uniId));
+                    }
                     logger.print(register, "Registration");
 
                     res.writeLine("LOGIN$CONNECT$" + root + "$" + Math.abs(uniId));
-                    allIds.add(Math.abs(uniId));
                     break;
                 } else {
                     if (allIds.contains(uniId)) {
-                        if (!onlineIds.contains(uniId)) {
+                        if (!onlineIds.contains(uniId) && presence.acquire(uniId)) {
+                            claimed = uniId;
                             loginFailed = false;
                             res.writeLine("LOGIN$CONNECT$" + root + "$" + Math.abs(uniId));
                         } else {
@@ -678,7 +1833,10 @@ public class Server {
                     }
                 }
             } catch (IOException e) {
+                if (claimed >= 0)
+                    presence.release(claimed);
                 disconnectIfInactive(res, Thread.currentThread());
+                return res;
             }
         } while (loginFailed);
 
@@ -687,6 +1845,8 @@ public class Server {
                     connection,
                     Math.abs(uniId),
                     root, Thread.currentThread());
+        if (claimed >= 0)
+            res.markClaimed();
         return res;
     }
 
@@ -711,6 +1871,7 @@ public class Server {
                 try {
                     switch (finalAction) {
                         case "$shutdown" -> stopServer();
+                        case "$snapshot" -> saveSnapshot();
                         case "$connections" -> {
                             if (connectedClients.size() > 0) {
                                 logger.print("All active connections: ", "Connection");
@@ -733,6 +1894,7 @@ public class Server {
                             logger.print("""
                                     $help to show this
                                     $shutdown to shut the server down
+                                    $snapshot to save the registry snapshot now
                                     $disconnect <int id> to disconnect a client from server
                                     $connectedClients to show all active connectedClients
                                     $idlist to show all registrated ids
@@ -750,7 +1912,10 @@ public class Server {
                                         getClientById(connectedClients, idToDisconnect).close();
                                         logger.print("Disconnected client with id " + idToDisconnect + "\n", "Disconnection");
                                         writeConnection(idToDisconnect, false);
+                                        addressIndex.remove(getClientById(connectedClients, idToDisconnect));
                                         connectedClients.remove(getClientById(connectedClients, idToDisconnect));
+                                        onlineClients.remove(idToDisconnect);
+                                        tagIndex.setOnline(idToDisconnect, false);
                                     } else
                                         logger.print("Client with id " + idToDisconnect + " isn't connected", "Wrong data");
                                     if (connectedClients.size() > 0)
@@ -770,6 +1935,9 @@ public class Server {
                                         clientThreads.forEach(Thread::interrupt);
                                         logger.print("Disconnected " + disconnectedClientsCount + " clients (all)", "Disconnection");
                                         connectedClients.clear();
+                                        addressIndex.clear();
+                                        onlineClients.keySet().forEach(id -> tagIndex.setOnline(id, false));
+                                        onlineClients.clear();
                                     } else {
                                         logger.print("No active connectedClients", "Disconnection");
                                     }
@@ -803,106 +1971,257 @@ public class Server {
 
     /**
      * Getting all information about a client
+     * A$INFO$name[$args...] - a registered INFO command (by field 2), A$INFO$id - ip address of a connected client,
+     * A$INFO$list$PAGE|STREAM... - a list command (by field 3)
+     * Single answers are written by the admin reader thread, so they come in the order of the admin requests,
+     * an admin, which does not read its answers, blocks only itself
+     * Broadcasts are written by the scheduler, so they don't delay the answers
      *
-     * @param command A command to get information about
+     * @param message Parsed INFO message
      * @param client  Client who requested information
+     * @return True, INFO messages are always answered
+     * @throws IOException exception during answer writing
+     * @see Server#registerCommands()
      */
-    private boolean processInfoCommand(String command, Client client) throws IOException {
-        String[] split = command.split("\\$");
-        if (!split[1].equals("INFO"))
-            return false;
-        if (split.length != 3) {
-            client.writeLine("INFO$ERROR$INVALID_SYNTAX$" + command);
-            System.err.println(split.length);
+    private boolean processInfoCommand(Message message, Client client) throws IOException {
+        if (message.count() < 3) {
+            client.writeLine("INFO$ERROR$INVALID_SYNTAX$" + message.line());
+            return true;
+        }
+
+        if (listCommands.dispatch(message, client))
+            return true;
+        if (!adminIds.contains(client.id))
+            client.writeLine("INFO$ERROR$ACCESS_DENIED");
+        else if (!infoCommands.dispatch(message, client)) {
+            if (message.count() != 3)
+                client.writeLine("INFO$ERROR$INVALID_SYNTAX$" + message.line());
+            else if (message.isNumber(2)) {
+                int idToSend = message.intField(2);
+                Client cur = getClientById(connectedClients, idToSend);
+                if (cur != null)
+                    client.writeLine("INFO$IP" + cur.getIp());
+                else
+                    client.writeLine("INFO$ERROR$INVALID_ID$" + idToSend);
+            } else
+                client.writeLine("INFO$ERROR$INVALID_SYNTAX$" + message.field(2));
+        }
+        return true;
+    }
+
+    /**
+     * Server health report for INFO$HEALTH
+     *
+     * @return Heap, disk and thread state text
+     */
+    private String health() {
+        StringBuilder res = new StringBuilder();
+        MemoryMXBean memoryMXBean = ManagementFactory.getMemoryMXBean();
+        res.append(String.format("Max heap memory: %.2f GB\n",
+                (double) memoryMXBean.getHeapMemoryUsage().getMax() / 1073741824));
+        res.append(String.format("Used heap memory: %.2f GB\n\n",
+                (double) memoryMXBean.getHeapMemoryUsage().getUsed() / 1073741824));
+        File cDrive = new File("E:/");
+        res.append(String.format("Total disk space: %.2f GB\n",
+                (double) cDrive.getTotalSpace() / 1073741824));
+        res.append(String.format("Free disk space: %.2f GB\n",
+                (double) cDrive.getFreeSpace() / 1073741824));
+        res.append(String.format("Usable disk space: %.2f GB\n\n",
+                (double) cDrive.getUsableSpace() / 1073741824));
+        ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+
+        for (Long threadID : threadMXBean.getAllThreadIds()) {
+            ThreadInfo info = threadMXBean.getThreadInfo(threadID);
+            res.append('\n').append("Thread name: ").append(info.getThreadName());
+            res.append("Thread State: ").append(info.getThreadState());
+            res.append(String.format("CPU time: %s ns", threadMXBean.getThreadCpuTime(threadID)));
+        }
+        return res.toString();
+    }
+
+    /**
+     * Online clients by address INFO command
+     * A$INFO$BYIP$address or A$INFO$BYIP$address/prefix length - online clients of an address or a subnet:
+     * INFO$BYIP$query$count$id:root:ip,id:root:ip... (ids in ascending order)
+     *
+     * @param message Parsed admin command
+     * @param client  Admin who requested the clients
+     * @return False if the command has a wrong count of fields
+     * @see AddressIndex
+     */
+    private boolean processAddressCommand(Message message, Client client) throws IOException {
+        if (message.count() != 4)
             return false;
+        String query = message.field(3);
+        try {
+            List<Client> found = addressIndex.find(query);
+            StringBuilder items = new StringBuilder();
+            for (Client cur : found)
+                items.append(items.length() == 0 ? "" : ",").append(cur.id).append(':').append(cur.root).append(':').append(cur.getIp());
+            client.writeLine("INFO$BYIP$" + query + "$" + found.size() + "$" + items);
+            logger.print("Admin with id: " + client.id + " requested clients of " + query + ": " + found.size(), "Default");
+        } catch (IllegalArgumentException e) {
+            client.writeLine("INFO$ERROR$INVALID_SYNTAX$" + query);
         }
+        return true;
+    }
 
+    /**
+     * Session history INFO commands
+     * A$INFO$SESSIONS$id[$limit] - sessions of an id (the last 20 by default):
+     * INFO$SESSIONS$id$sessions=..,online=..,total=..(ms)$start-end$start-end... (the open session has no end)
+     * A$INFO$ONLINEAT$time - ids online at a time (milliseconds since the epoch or DD.MM.YYYY[HH:MM:SS]):
+     * INFO$ONLINEAT$time$count$id,id,...
+     *
+     * @param message Parsed admin command
+     * @param client  Admin who requested the sessions
+     * @return False if the command has a wrong count of fields
+     * @see SessionIndex
+     */
+    private boolean processSessionCommand(Message message, Client client) throws IOException {
+        if (message.fieldEqualsIgnoreCase(2, "SESSIONS") && (message.count() == 4 || message.count() == 5)) {
+            String limit = message.count() == 5 ? message.field(4) : "20";
+            if (!message.field(3).matches("-?\\d{1,9}") || !limit.matches("\\d{1,4}"))
+                return false;
+            int id = Integer.parseInt(message.field(3));
+            client.writeLine("INFO$SESSIONS$" + id + "$" + sessions.sessions(id, Integer.parseInt(limit)));
+            logger.print("Admin with id: " + client.id + " requested sessions of " + id, "Default");
+        } else if (message.fieldEqualsIgnoreCase(2, "ONLINEAT") && message.count() == 4) {
+            String time = message.field(3);
+            try {
+                NavigableSet<Integer> ids = sessions.onlineAt(sessions.parseTime(time));
+                StringBuilder items = new StringBuilder();
+                for (int id : ids)
+                    items.append(items.length() == 0 ? "" : ",").append(id);
+                client.writeLine("INFO$ONLINEAT$" + time + "$" + ids.size() + "$" + items);
+                logger.print("Admin with id: " + client.id + " requested ids online at " + time + ": " + ids.size(), "Default");
+            } catch (DateTimeException e) {
+                return false;
+            }
+        } else
+            return false;
+        return true;
+    }
+
+    /**
+     * Paginated and streaming id list INFO commands
+     * A$INFO$list$PAGE$cursor$limit[$filter] - up to limit items with ids greater than cursor (start with 0):
+     * INFO$list$PAGE$next cursor (END if there are no more items)$item,item,...
+     * A$INFO$list$STREAM[$filter] - all items in chunks: INFO$list$CHUNK$item,item,... and then INFO$list$END$count
+     * list is REG, ONLINE, ADMINS or CLIENTS, items are ids in ascending order (id:root:ip for ONLINE)
+     *
+     * @param received Parsed admin command
+     * @param client   Admin who requested the list
+     * @return True, list commands are always answered
+     * @see IdFilter
+     * @see ServerConfig#INFO_PAGE_MAX
+     * @see ServerConfig#INFO_CHUNK
+     */
+    private boolean processInfoListCommand(Message received, Client client) {
+        // the message object is reused by the reader thread, the list thread parses its own copy
+        Message message = new Message().parse(received.line());
         new Thread(() -> {
-            String toSend;
+            String list = message.field(2).toUpperCase(Locale.ROOT);
+            boolean page = message.fieldEqualsIgnoreCase(3, "PAGE");
+            int filterIndex = page ? 6 : 4;
+            NavigableSet<Integer> ids = switch (list) {
+                case "REG" -> allIds;
+                case "ONLINE" -> onlineClients.navigableKeySet();
+                case "ADMINS" -> adminIds;
+                case "CLIENTS" -> clientIds;
+                default -> null;
+            };
+            IdFilter filter = message.count() == filterIndex ? IdFilter.ALL : message.count() == filterIndex + 1 ? IdFilter.parse(message.field(filterIndex)) : null;
 
-            if (!adminIds.contains(client.id))
-                toSend = "INFO$ERROR$ACCESS_DENIED";
-            else
-                switch (split[2].toUpperCase(Locale.ROOT)) {
-                    case "ONLINE" -> {
-                        StringBuffer sendBuffer = new StringBuffer("INFO$ONLINE$");
-                        connectedClients.forEach(socket -> sendBuffer.append(socket.getIp()).append(", ").append(socket.id).append(", ").append("root: ").append(adminIds.contains(socket.id) ? "Admin" : "Client").append(";"));
-                        if (sendBuffer.charAt(sendBuffer.length() - 1) == ';')
-                            sendBuffer.deleteCharAt(sendBuffer.length() - 1);
-                        toSend = sendBuffer.toString();
-                    }
-                    case "REG" -> {
-                        toSend = "INFO$REG$" + allIds;
-                        logger.print("Admin with id: " + client.id + " requested registered id list:\n" + allIds, "Default");
-                    }
-                    case "ADMINS" -> {
-                        toSend = "INFO$ADMINS$" + adminIds;
-                        logger.print("Admin with id: " + client.id + " requested admin id list:\n" + adminIds, "Default");
-                    }
-                    case "CLIENTS" -> {
-                        toSend = "INFO$CLIENTS$" + clientIds;
-                        logger.print("Admin with id: " + client.id + " requested client id list:\n" + clientIds, "Default");
-                    }
-                    case "HEALTH" -> {
-                        StringBuilder res = new StringBuilder();
-                        MemoryMXBean memoryMXBean = ManagementFactory.getMemoryMXBean();
-                        res.append(String.format("Max heap memory: %.2f GB\n",
-                                (double) memoryMXBean.getHeapMemoryUsage().getMax() / 1073741824));
-                        res.append(String.format("Used heap memory: %.2f GB\n\n",
-                                (double) memoryMXBean.getHeapMemoryUsage().getUsed() / 1073741824));
-                        File cDrive = new File("E:/");
-                        res.append(String.format("Total disk space: %.2f GB\n",
-                                (double) cDrive.getTotalSpace() / 1073741824));
-                        res.append(String.format("Free disk space: %.2f GB\n",
-                                (double) cDrive.getFreeSpace() / 1073741824));
-                        res.append(String.format("Usable disk space: %.2f GB\n\n",
-                                (double) cDrive.getUsableSpace() / 1073741824));
-                        ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
-
-                        for (Long threadID : threadMXBean.getAllThreadIds()) {
-                            ThreadInfo info = threadMXBean.getThreadInfo(threadID);
-                            res.append('\n').append("Thread name: ").append(info.getThreadName());
-                            res.append("Thread State: ").append(info.getThreadState());
-                            res.append(String.format("CPU time: %s ns", threadMXBean.getThreadCpuTime(threadID)));
+            try {
+                if (!adminIds.contains(client.id))
+                    client.writeLine("INFO$ERROR$ACCESS_DENIED");
+                else if (ids == null || filter == null || (page && (!message.field(4).matches("\\d{1,9}") || !message.field(5).matches("\\d{1,9}"))))
+                    client.writeLine("INFO$ERROR$INVALID_SYNTAX$" + message.line());
+                else if (page) {
+                    int limit = Math.min(Math.max(message.intField(5), 1), ServerConfig.INFO_PAGE_MAX);
+                    StringBuilder items = new StringBuilder();
+                    int count = 0, last = -1;
+                    boolean more = false;
+                    for (int id : infoIds(ids, filter, message.intField(4))) {
+                        if (id > filter.to())
+                            break;
+                        if (count == limit) {
+                            more = infoItem(items, list, id, filter, true);
+                            if (more)
+                                break;
+                            continue;
+                        }
+                        if (infoItem(items, list, id, filter, false)) {
+                            count++;
+                            last = id;
                         }
-                        toSend = res.toString();
-                        logger.print("SERVER HEALTH: \n" + toSend, "Server state");
                     }
-                    default -> {
-                        if (split[2].matches("\\d+")) {
-                            int idToSend = Integer.parseInt(split[2]);
-                            Client cur = getClientById(connectedClients, idToSend);
-                            if (cur != null)
-                                toSend = "INFO$IP" + cur.getIp();
-                            else
-                                toSend = "INFO$ERROR$INVALID_ID$" + idToSend;
-                        } else
-                            toSend = "INFO$ERROR$INVALID_SYNTAX$" + split[2];
+                    client.writeLine("INFO$" + list + "$PAGE$" + (more ? String.valueOf(last) : "END") + "$" + items);
+                    logger.print("Admin with id: " + client.id + " requested " + list + " page: " + count + " items", "Default");
+                } else {
+                    StringBuilder items = new StringBuilder();
+                    int count = 0, inChunk = 0;
+                    for (int id : infoIds(ids, filter, -1)) {
+                        if (id > filter.to())
+                            break;
+                        if (!infoItem(items, list, id, filter, false))
+                            continue;
+                        count++;
+                        if (++inChunk == ServerConfig.INFO_CHUNK) {
+                            client.writeLine("INFO$" + list + "$CHUNK$" + items);
+                            items.setLength(0);
+                            inChunk = 0;
+                        }
                     }
+                    if (inChunk > 0)
+                        client.writeLine("INFO$" + list + "$CHUNK$" + items);
+                    client.writeLine("INFO$" + list + "$END$" + count);
+                    logger.print("Admin with id: " + client.id + " requested " + list + " stream: " + count + " items", "Default");
                 }
-            try {
-                client.writeLine(toSend);
             } catch (IOException e) {
                 e.printStackTrace();
             }
-        }).start();
+        }, "Info list").start();
         return true;
     }
 
     /**
-     * Request getting by it's unique id function
+     * Ids to look through for a list INFO command
      *
-     * @param reqSet A set to get request from
-     * @param id     A request id to get
-     * @return A request from reqSet with unique id id, Request.ZEROREQUEST if request with id id does not exist
-     * @see Request
-     * @see Request#id
-     * @see Request#ZEROREQUEST
+     * @param ids    Sorted ids of the list
+     * @param filter List filter
+     * @param after  Cursor, only ids greater than it are given
+     * @return Sorted ids starting from the first one, which can pass the filter
      */
-    private Request getReqById(Set<Request> reqSet, long id) {
-        Request[] res = new Request[]{null};
-        reqSet.stream().filter(req -> req.id == id).findFirst().ifPresent(req -> res[0] = req);
-        return res[0] == null ? Request.ZEROREQUEST : res[0];
+    private NavigableSet<Integer> infoIds(NavigableSet<Integer> ids, IdFilter filter, int after) {
+        return filter.from() > after ? ids.tailSet(filter.from(), true) : ids.tailSet(after, false);
+    }
+
+    /**
+     * Appends one list item if it passes the filter
+     *
+     * @param items  Items text to append to
+     * @param list   List name
+     * @param id     Item id
+     * @param filter List filter
+     * @param check  Only check the item, do not append it
+     * @return True if the item passed the filter
+     */
+    private boolean infoItem(StringBuilder items, String list, int id, IdFilter filter, boolean check) {
+        if (!filter.test(id, adminIds, clientIds))
+            return false;
+        Client cur = null;
+        if (list.equals("ONLINE") && (cur = onlineClients.get(id)) == null)
+            return false;
+        if (check)
+            return true;
+        if (!items.isEmpty())
+            items.append(',');
+        items.append(id);
+        if (cur != null)
+            items.append(':').append(cur.root).append(':').append(cur.getIp());
+        return true;
     }
 
     /**
@@ -925,35 +2244,39 @@ public class Server {
      *
      * @param req A request to write to file
      * @see Request
-     * @see Server#formatDate(LocalDateTime)
+     * @see FileLogger#logRecordToAll(LogRecord)
      * @see FileLogger#logToAll(String, String)
      * @see Server#initFileLogger()
      */
     private void writeRequest(Request req) {
-        String writeReq;
-        LocalDateTime now = LocalDateTime.now();
+        writeRequest(req, req.success);
+    }
 
-        String dateToWrite = formatDate(now);
+    /**
+     * Request logging function with a given result
+     * Does not update the command id file (used while the server is being created)
+     *
+     * @param req     A request to write
+     * @param success Request result to write
+     * @see Server#writeRequest(Request)
+     */
+    private void writeRequest(Request req, String success) {
         if (req.equals(Request.ZEROREQUEST)) {
             logger.print("A try to write a zero request into file", "Wrong data");
         } else {
-            writeReq = dateToWrite + "$" + req.idA + "$" + req.idC + "$" + req.cmd + "$" + req.args + "$" + req.success;
-            fileLogger.logToAll("Request file", writeReq);
+            fileLogger.logRecordToAll(new RequestRecord(System.currentTimeMillis(), req.idA, req.idC, req.cmd, req.args, success));
         }
     }
 
     /**
      * Server powering on / turning off logging function
      *
-     * @param onOff Log on if "on", Log off if "off"
-     * @see Server#formatDate(LocalDateTime)
-     * @see FileLogger#logToAll(String, String)
+     * @param on Log on if true, log off if false
+     * @see OnOffEvent
+     * @see FileLogger#logRecordToAll(LogRecord)
      */
-    private void writeOnOff(String onOff) {
-        LocalDateTime now = LocalDateTime.now();
-        String normalDate = formatDate(now);
-        String toAppend = normalDate + "$" + onOff;
-        fileLogger.logToAll(LogFileType.ON_OFF, toAppend);
+    private void writeOnOff(boolean on) {
+        fileLogger.logRecordToAll(new OnOffEvent(System.currentTimeMillis(), on));
     }
 
     /**
@@ -961,14 +2284,23 @@ public class Server {
      *
      * @param clientID  A connected client id
      * @param connected True, if client connected, false if client disconnected
-     * @see FileLogger#logToAll(String, String)
-     * @see Server#formatDate(LocalDateTime)
+     * @see FileLogger#logRecordToAll(LogRecord)
+     * @see Server#connectionRecord(int, boolean)
      */
     private void writeConnection(int clientID, boolean connected) {
-        LocalDateTime now = LocalDateTime.now();
-        String normalDate = formatDate(now);
-        String toAppend = normalDate + "$" + clientID + "$" + (connected ? 'c' : 'd');
-        fileLogger.logToAll("Connections file", toAppend);
+        sessions.log(List.of(connectionRecord(clientID, connected)), events -> fileLogger.logRecordToAll(events.get(0)));
+    }
+
+    /**
+     * Connection file record
+     *
+     * @param clientID  Id of connected or disconnected client
+     * @param connected Is the client connected or disconnected
+     * @return Connection event of now
+     * @see ConnectionEvent
+     */
+    private ConnectionEvent connectionRecord(int clientID, boolean connected) {
+        return new ConnectionEvent(System.currentTimeMillis(), clientID, connected);
     }
 
     /**
@@ -984,98 +2316,3 @@ public class Server {
         fileLogger.logToAll("Command id file", String.valueOf(req.id));
     }
 }
-
-/**
- * Class for unfinished request handling
- * Is used for saving and manipulating unique id requests
- *
- * @author NAUMENKO-ZHIVOY ARTEM
- * @version 2.0
- */
-class Request {
-    /**
-     * Special invalid 'zero' request
-     */
-    public static final Request ZEROREQUEST = new Request(0, 0, "0", "0");
-
-    /**
-     * Total request count (is used as a unique request id), is restored from file
-     */
-    private static long requestCount = 1;
-
-    /**
-     * Request command
-     */
-    public final String cmd;
-    /**
-     * Request command arguments
-     */
-    public final String args;
-    /**
-     * Request command completion success
-     */
-    public final String success;
-    /**
-     * Admin id who sent the command
-     */
-    public final int idA;
-    /**
-     * Client id who attempted to do the command
-     */
-    public final int idC;
-    /**
-     * Request unique id
-     */
-    public final long id;
-
-
-    /**
-     * Request construction function
-     * Is used for temporary request storage (a request is still in process)
-     *
-     * @param idA  Admin id who sent the command
-     * @param idC  Client id who attempted to do the command
-     * @param cmd  Request command
-     * @param args Request command arguments
-     */
-    public Request(int idA, int idC, String cmd, String args) {
-        this.cmd = cmd;
-        this.args = args;
-        this.success = "NaN";
-        this.idC = idC;
-        this.idA = idA;
-        requestCount++;
-        this.id = requestCount;
-    }
-
-
-    /**
-     * Request construction function
-     * Is used for long-time storage (a completed request)
-     * Saves a completed request to a file
-     *
-     * @param what    A request to set success
-     * @param success Command execution result
-     * @see Server#updateIdCommandsFile(Request)
-     */
-    public Request(Request what, String success) {
-        this.idA = what.idA;
-        this.idC = what.idC;
-        this.cmd = what.cmd;
-        this.args = what.args;
-        this.id = what.id;
-
-        this.success = success;
-        Server.getInstance().updateIdCommandsFile(this);
-    }
-
-    /**
-     * Sets a request count to some value
-     *
-     * @param c New request count, should be read from file and updated every time the request is done
-     */
-    public static void setRequestCount(int c) {
-        Logger.getInstance().print("Request count set to " + c + "\n", "Default");
-        requestCount = c;
-    }
-}
\ No newline at end of file
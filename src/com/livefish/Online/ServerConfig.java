@@ -0,0 +1,282 @@
+package com.livefish.Online;
+
+import com.livefish.Output.Files.WriteAheadLog;
+
+import java.util.Locale;
+
+/**
+ * Server configuration
+ * Every value can be changed with a java system property (-Dlivefish.name=value)
+ *
+ * @author NAUMENKO-ZHIVOY ARTEM
+ * @version 2.0
+ * @see Server
+ */
+public final class ServerConfig {
+    /**
+     * Are commands to offline clients saved to their mailboxes (livefish.mailbox)
+     */
+    public static final boolean MAILBOX_ENABLED = Boolean.parseBoolean(System.getProperty("livefish.mailbox", "false"));
+    /**
+     * Time a command is kept in a mailbox in milliseconds (livefish.mailbox.ttl)
+     */
+    public static final long MAILBOX_TTL = Long.getLong("livefish.mailbox.ttl", 24 * 60 * 60 * 1000L);
+    /**
+     * Max count of commands in one mailbox (livefish.mailbox.depth)
+     */
+    public static final int MAILBOX_MAX_DEPTH = Integer.getInteger("livefish.mailbox.depth", 1000);
+    /**
+     * Count of mailbox commands written to a client at once on login (livefish.mailbox.batch)
+     */
+    public static final int MAILBOX_BATCH = Integer.getInteger("livefish.mailbox.batch", 64);
+
+    /**
+     * Time given to a client to finish a request in milliseconds (livefish.request.timeout)
+     */
+    public static final long REQUEST_TIMEOUT = Long.getLong("livefish.request.timeout", 60 * 1000L);
+    /**
+     * Max count of requests in process (livefish.request.max)
+     */
+    public static final int MAX_PENDING_REQUESTS = Integer.getInteger("livefish.request.max", 100000);
+    /**
+     * Main port for clients and admins of a server, which is not a cluster node (livefish.port)
+     */
+    public static final int PORT = Integer.getInteger("livefish.port", 26781);
+    /**
+     * File transfer port (livefish.file.port)
+     */
+    public static final int FILE_PORT = Integer.getInteger("livefish.file.port", 26782);
+    /**
+     * Max size of a transferred file in bytes (livefish.file.max)
+     */
+    public static final long FILE_MAX_SIZE = Long.getLong("livefish.file.max", 4L * 1024 * 1024 * 1024);
+    /**
+     * Time a file transfer is kept without upload or download activity in milliseconds,
+     * abandoned upload files are removed after it too (livefish.file.ttl)
+     */
+    public static final long FILE_TRANSFER_TTL = Long.getLong("livefish.file.ttl", 24 * 60 * 60 * 1000L);
+    /**
+     * Max count of unfinished file transfers of one admin or client (livefish.file.uploads)
+     */
+    public static final int FILE_UPLOADS_PER_ID = Integer.getInteger("livefish.file.uploads", 16);
+    /**
+     * Max count of all file transfers kept by the server (livefish.file.transfers)
+     */
+    public static final int FILE_TRANSFERS_MAX = Integer.getInteger("livefish.file.transfers", 100000);
+
+    /**
+     * Minimal length of a message to compress on connections with negotiated compression (livefish.compress.threshold)
+     */
+    public static final int COMPRESS_THRESHOLD = Integer.getInteger("livefish.compress.threshold", 512);
+    /**
+     * Deflate compression level, 0-9 or -1 for default (livefish.compress.level)
+     */
+    public static final int COMPRESS_LEVEL = Integer.getInteger("livefish.compress.level", -1);
+
+    /**
+     * Size of a connection I/O buffer chunk in bytes (livefish.buffer.chunk)
+     */
+    public static final int BUFFER_CHUNK = Integer.getInteger("livefish.buffer.chunk", 8 * 1024);
+    /**
+     * Max off-heap memory of plain connection buffers in bytes (livefish.buffer.direct.max)
+     */
+    public static final long BUFFER_DIRECT_MAX = Long.getLong("livefish.buffer.direct.max", 256L * 1024 * 1024);
+    /**
+     * Max heap memory of TLS and outgoing connection buffers in bytes (livefish.buffer.heap.max)
+     */
+    public static final long BUFFER_HEAP_MAX = Long.getLong("livefish.buffer.heap.max", 64L * 1024 * 1024);
+    /**
+     * Max size of a temporary direct buffer the JDK keeps per thread for socket channel I/O with heap buffers
+     * in bytes (jdk.nio.maxCachedBufferSize, one chunk by default)
+     * Connection threads read long lines and write through heap one-off buffers when chunks run out,
+     * bigger temporary buffers are freed right after the I/O instead of staying with every connection thread
+     *
+     * @see ServerConfig#applyJdkProperties()
+     */
+    public static final long NIO_MAX_CACHED_BUFFER = Long.getLong("jdk.nio.maxCachedBufferSize", BUFFER_CHUNK);
+
+    /**
+     * Count of priority scheduler threads, which write broadcasts (livefish.scheduler.threads)
+     */
+    public static final int SCHEDULER_THREADS = Integer.getInteger("livefish.scheduler.threads", Runtime.getRuntime().availableProcessors());
+    /**
+     * Count of priority scheduler threads, which never run bulk tasks, so control and interactive tasks are not stuck
+     * behind broadcast writes to stalled clients (livefish.scheduler.reserved)
+     * INFO answers are written by admin threads, so no workers are reserved by default
+     */
+    public static final int SCHEDULER_RESERVED = Integer.getInteger("livefish.scheduler.reserved", 0);
+
+    /**
+     * Max count of items in one page of a list INFO command (livefish.info.page)
+     */
+    public static final int INFO_PAGE_MAX = Integer.getInteger("livefish.info.page", 1000);
+    /**
+     * Count of items in one chunk of a streamed list INFO command (livefish.info.chunk)
+     */
+    public static final int INFO_CHUNK = Integer.getInteger("livefish.info.chunk", 500);
+
+    /**
+     * Is the main port protected with TLS (livefish.tls)
+     */
+    public static final boolean TLS_ENABLED = Boolean.parseBoolean(System.getProperty("livefish.tls", "false"));
+    /**
+     * Server keystore path, PKCS12 or JKS by extension (livefish.tls.keystore)
+     */
+    public static final String TLS_KEYSTORE = System.getProperty("livefish.tls.keystore", "server.p12");
+    /**
+     * Keystore and key password (livefish.tls.password)
+     */
+    public static final String TLS_PASSWORD = System.getProperty("livefish.tls.password", "");
+    /**
+     * Max count of cached TLS sessions (livefish.tls.cache)
+     */
+    public static final int TLS_SESSION_CACHE = Integer.getInteger("livefish.tls.cache", 20000);
+    /**
+     * Time a TLS session can be resumed in seconds (livefish.tls.timeout)
+     */
+    public static final int TLS_SESSION_TIMEOUT = Integer.getInteger("livefish.tls.timeout", 24 * 60 * 60);
+    /**
+     * Are stateless TLS 1.3 session tickets sent to clients (jdk.tls.server.enableSessionTicketExtension, on by default)
+     * Tickets let sessions resume without server cache lookups while the server is running,
+     * their keys are kept in memory only
+     *
+     * @see ServerConfig#applyJdkProperties()
+     */
+    public static final boolean TLS_SESSION_TICKETS = Boolean.parseBoolean(System.getProperty("jdk.tls.server.enableSessionTicketExtension", "true"));
+
+    /**
+     * Time given to in-flight requests to finish on shutdown in milliseconds (livefish.shutdown.drain)
+     */
+    public static final long SHUTDOWN_DRAIN = Long.getLong("livefish.shutdown.drain", 10 * 1000L);
+    /**
+     * Count of clients notified or disconnected by one task on shutdown (livefish.shutdown.batch)
+     */
+    public static final int SHUTDOWN_BATCH = Integer.getInteger("livefish.shutdown.batch", 256);
+    /**
+     * Count of threads notifying and disconnecting clients on shutdown (livefish.shutdown.threads)
+     */
+    public static final int SHUTDOWN_THREADS = Integer.getInteger("livefish.shutdown.threads", Math.max(2, Runtime.getRuntime().availableProcessors()));
+
+    /**
+     * Time between registry snapshots in milliseconds, 0 to save it only on shutdown (livefish.snapshot.interval)
+     */
+    public static final long SNAPSHOT_INTERVAL = Long.getLong("livefish.snapshot.interval", 60 * 1000L);
+    /**
+     * Time closed client sessions are kept in the session index in milliseconds, 0 to keep them all (livefish.sessions.retention)
+     */
+    public static final long SESSION_RETENTION = Long.getLong("livefish.sessions.retention", 30 * 24 * 60 * 60 * 1000L);
+    /**
+     * Max count of closed sessions of one id kept in the session index, the oldest ones are dropped (livefish.sessions.max)
+     */
+    public static final int SESSION_MAX = Integer.getInteger("livefish.sessions.max", 10000);
+
+    /**
+     * Name of this server instance in a cluster or a shared presence directory (livefish.node)
+     */
+    public static final String NODE = System.getProperty("livefish.node", "");
+    /**
+     * Cluster nodes as comma separated name=host:port:link port, the same on every node, empty for a single server (livefish.cluster)
+     * Example: n1=10.0.0.1:26781:26783,n2=10.0.0.2:26781:26783
+     */
+    public static final String CLUSTER = System.getProperty("livefish.cluster", "");
+    /**
+     * Secret shared by all cluster nodes, node connections are authenticated with its HMAC (livefish.cluster.secret)
+     * Without a secret, node connections are only checked by their addresses
+     */
+    public static final String CLUSTER_SECRET = System.getProperty("livefish.cluster.secret", "");
+    /**
+     * Connect timeout of node connections in milliseconds (livefish.cluster.connect.timeout)
+     */
+    public static final int CLUSTER_CONNECT_TIMEOUT = Integer.getInteger("livefish.cluster.connect.timeout", 2000);
+
+    /**
+     * Presence directory shared by server instances, empty to keep presence in memory (livefish.presence.dir)
+     */
+    public static final String PRESENCE_DIR = System.getProperty("livefish.presence.dir", "");
+    /**
+     * Time an id stays claimed by an instance without its heartbeat in milliseconds (livefish.presence.lease)
+     */
+    public static final long PRESENCE_LEASE = Long.getLong("livefish.presence.lease", 15 * 1000L);
+
+    /**
+     * Do log file writes go through the write-ahead log (livefish.wal)
+     */
+    public static final boolean WAL_ENABLED = Boolean.parseBoolean(System.getProperty("livefish.wal", "false"));
+    /**
+     * Write-ahead log follower address host:port, empty for no follower (livefish.wal.follower)
+     */
+    public static final String WAL_FOLLOWER = System.getProperty("livefish.wal.follower", "");
+    /**
+     * Secret shared with the write-ahead log follower, the follower accepts only a leader with its HMAC (livefish.wal.secret)
+     * Needed if there is a follower
+     */
+    public static final String WAL_SECRET = System.getProperty("livefish.wal.secret", "");
+    /**
+     * When a log write is acknowledged: LEADER_ONLY or QUORUM (livefish.wal.ack)
+     */
+    public static final WriteAheadLog.AckMode WAL_ACK = WriteAheadLog.AckMode.valueOf(System.getProperty("livefish.wal.ack", "LEADER_ONLY").toUpperCase(Locale.ROOT));
+    /**
+     * Time to wait for the follower acknowledgement in QUORUM mode in milliseconds (livefish.wal.ack.timeout)
+     */
+    public static final long WAL_ACK_TIMEOUT = Long.getLong("livefish.wal.ack.timeout", 2000L);
+    /**
+     * Size a write-ahead log segment is closed at in bytes (livefish.wal.segment)
+     */
+    public static final long WAL_SEGMENT_SIZE = Long.getLong("livefish.wal.segment", 16 * 1024 * 1024L);
+
+    /**
+     * Default size request, connection and on-off log files are rotated at in bytes (livefish.log.size)
+     * Each file type can override it and other rotation settings: livefish.log.TYPE.size (e.g. livefish.log.connections.size)
+     */
+    public static final long LOG_ROTATE_SIZE = Long.getLong("livefish.log.size", 64 * 1024 * 1024L);
+    /**
+     * Default age log files are rotated at in milliseconds (livefish.log.age)
+     */
+    public static final long LOG_ROTATE_AGE = Long.getLong("livefish.log.age", 24 * 60 * 60 * 1000L);
+    /**
+     * Default max count of kept rotated segments of a log file (livefish.log.keep)
+     */
+    public static final int LOG_KEEP = Integer.getInteger("livefish.log.keep", 30);
+    /**
+     * Default max age of kept rotated segments in milliseconds (livefish.log.retain)
+     */
+    public static final long LOG_RETAIN = Long.getLong("livefish.log.retain", 90 * 24 * 60 * 60 * 1000L);
+    /**
+     * Are rotated segments compressed with gzip by default (livefish.log.compress)
+     */
+    public static final boolean LOG_COMPRESS = Boolean.parseBoolean(System.getProperty("livefish.log.compress", "true"));
+    /**
+     * Are milliseconds written in log record timestamps: DD.MM.YYYY[HH:MM:SS.mmm] (livefish.log.millis)
+     */
+    public static final boolean LOG_MILLIS = Boolean.parseBoolean(System.getProperty("livefish.log.millis", "false"));
+    /**
+     * Are request, connection and on-off records written in the binary format to .bin files (livefish.log.binary)
+     * Binary files are converted to text by com.livefish.Output.Files.RecordDump
+     */
+    public static final boolean LOG_BINARY = Boolean.parseBoolean(System.getProperty("livefish.log.binary", "false"));
+    /**
+     * Are routed admin requests and client results printed to the console (livefish.log.messages)
+     * Printing builds several strings per message, turn it off for near-zero garbage routing under load
+     */
+    public static final boolean LOG_MESSAGES = Boolean.parseBoolean(System.getProperty("livefish.log.messages", "true"));
+
+    /**
+     * Sets JDK system properties the server depends on, if they are not set on the command line
+     * Must be called on start before the first network I/O, the JDK reads them only once
+     *
+     * @see ServerConfig#NIO_MAX_CACHED_BUFFER
+     * @see ServerConfig#TLS_SESSION_TICKETS
+     */
+    public static void applyJdkProperties() {
+        if (System.getProperty("jdk.nio.maxCachedBufferSize") == null)
+            System.setProperty("jdk.nio.maxCachedBufferSize", String.valueOf(NIO_MAX_CACHED_BUFFER));
+        if (System.getProperty("jdk.tls.server.enableSessionTicketExtension") == null)
+            System.setProperty("jdk.tls.server.enableSessionTicketExtension", String.valueOf(TLS_SESSION_TICKETS));
+    }
+
+    /**
+     * No instances, only constants
+     */
+    private ServerConfig() {
+    }
+}
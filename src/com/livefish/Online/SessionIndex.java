@@ -0,0 +1,646 @@
+package com.livefish.Online;
+
+import com.livefish.Output.Console.Logger;
+import com.livefish.Output.Files.*;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.DateTimeException;
+import java.util.*;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * Client session index built from the connection log
+ * Connection and disconnection events are paired into sessions, sessions of every id are kept in time order,
+ * so the sessions of an id and the ids online at a time are found without reading the log
+ * Every session is also put to the hourly buckets it covers, a lookup by time checks only the ids of one bucket
+ * The index is updated live by connection writes and saved to a checkpoint with the connection file length
+ * and its first bytes, so on start only events written after the checkpoint are read
+ * (from the rotated segment the checkpoint was made in and all newer files)
+ * Connection writes are serialized by a file lock, the index lock is held only to index written events,
+ * so queries don't wait for file writes
+ * Closed sessions older than the retention time are dropped on every checkpoint,
+ * and every id keeps only a limited count of its newest sessions
+ * Checkpoint format: magic, version, creation time, file offset, first bytes, last event time,
+ * id count, (id, session count, (start, end)..., open session start or -1)..., CRC32 of all previous bytes
+ *
+ * @author NAUMENKO-ZHIVOY ARTEM
+ * @version 2.0
+ * @see Server#writeConnection(int, boolean)
+ * @see ConnectionEvent
+ */
+public class SessionIndex {
+    /**
+     * File signature (LFSI)
+     */
+    private static final int MAGIC = 0x4C465349;
+    /**
+     * Format version
+     */
+    private static final int VERSION = 1;
+    /**
+     * Time bucket size in milliseconds
+     */
+    private static final long BUCKET = 60 * 60 * 1000L;
+    /**
+     * Count of first bytes of the connection file kept to find it after rotation
+     */
+    private static final int FINGERPRINT = 64;
+
+    /**
+     * Sessions of one id in time order
+     */
+    private static class Sessions {
+        /**
+         * Session starts
+         */
+        long[] starts = new long[4];
+        /**
+         * Session ends
+         */
+        long[] ends = new long[4];
+        /**
+         * Count of closed sessions
+         */
+        int count;
+        /**
+         * Start of the open session, -1 if the id is offline
+         */
+        long open = -1;
+
+        /**
+         * Drops the oldest closed sessions
+         *
+         * @param dropped Count of sessions to drop
+         */
+        void drop(int dropped) {
+            System.arraycopy(starts, dropped, starts, 0, count - dropped);
+            System.arraycopy(ends, dropped, ends, 0, count - dropped);
+            count -= dropped;
+        }
+
+        /**
+         * Count of closed sessions ended before a time
+         *
+         * @param time Time in milliseconds
+         * @return Count of the oldest sessions, which ended before the time
+         */
+        int endedBefore(long time) {
+            int res = 0;
+            while (res < count && ends[res] < time)
+                res++;
+            return res;
+        }
+
+        /**
+         * Adds a closed session
+         *
+         * @param start Session start
+         * @param end   Session end
+         */
+        void add(long start, long end) {
+            if (count == starts.length) {
+                starts = Arrays.copyOf(starts, count * 2);
+                ends = Arrays.copyOf(ends, count * 2);
+            }
+            starts[count] = start;
+            ends[count] = end;
+            count++;
+        }
+
+        /**
+         * Checks if a session covers a time
+         *
+         * @param time Time in milliseconds
+         * @return True if the id was online at the time
+         */
+        boolean online(long time) {
+            if (open != -1 && open <= time)
+                return true;
+            int lo = 0, hi = count - 1, found = -1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                if (starts[mid] <= time) {
+                    found = mid;
+                    lo = mid + 1;
+                } else
+                    hi = mid - 1;
+            }
+            return found != -1 && ends[found] > time;
+        }
+    }
+
+    /**
+     * Active connection file
+     */
+    private final File active;
+    /**
+     * Checkpoint file
+     */
+    private final File checkpoint;
+    /**
+     * Timestamp formatter of text records and query answers
+     */
+    private final TimestampFormatter timestamps = new TimestampFormatter();
+    /**
+     * Sessions by ids
+     */
+    private final Map<Integer, Sessions> sessions = new HashMap<>();
+    /**
+     * Ids with closed sessions by time buckets
+     */
+    private final Map<Long, Set<Integer>> buckets = new HashMap<>();
+    /**
+     * Ids with open sessions
+     */
+    private final Set<Integer> open = new HashSet<>();
+    /**
+     * Connection file lock, held while events are written and indexed and while a checkpoint is taken
+     */
+    private final Object fileLock = new Object();
+    /**
+     * Checkpoint file lock, held while the checkpoint file is written
+     */
+    private final Object checkpointLock = new Object();
+    /**
+     * Time closed sessions are kept in milliseconds (0 to keep them all)
+     */
+    private final long retention;
+    /**
+     * Max count of closed sessions of one id
+     */
+    private final int maxSessions;
+    /**
+     * Logger instance for console
+     */
+    private final Logger logger = Logger.getInstance();
+
+    /**
+     * First bytes of the connection file at the loaded checkpoint
+     */
+    private byte[] savedFingerprint = new byte[0];
+    /**
+     * Time of the last event
+     */
+    private long lastTime = -1;
+    /**
+     * Count of indexed events
+     */
+    private long events;
+    /**
+     * Count of closed sessions
+     */
+    private long sessionCount;
+    /**
+     * Count of events, which could not be paired or parsed
+     */
+    private long unpaired;
+
+    /**
+     * Session index construction function
+     *
+     * @param active      Active connection file (text or binary .bin file)
+     * @param checkpoint  Checkpoint file path
+     * @param retention   Time closed sessions are kept in milliseconds (0 to keep them all)
+     * @param maxSessions Max count of closed sessions of one id
+     */
+    public SessionIndex(File active, String checkpoint, long retention, int maxSessions) {
+        this.active = active;
+        this.checkpoint = new File(checkpoint);
+        this.retention = retention;
+        this.maxSessions = Math.max(1, maxSessions);
+    }
+
+    /**
+     * Loads the checkpoint and reads events written after it
+     * Sessions left open by a crashed run are closed at the last event time
+     * Must be called before any connection is written
+     */
+    public synchronized void load() {
+        long start = System.currentTimeMillis();
+        List<File> files = new ArrayList<>(LogRotator.segments(active));
+        files.add(active);
+
+        int from = 0;
+        long offset = 0;
+        String source = "connection log";
+        long[] restored = readCheckpoint();
+        if (restored != null) {
+            int found = find(files, restored[0], restored[1]);
+            if (found == -1) {
+                clear();
+                logger.print("Session checkpoint does not match the connection log, the log is read again", "Error");
+            } else {
+                from = found;
+                offset = restored[1];
+                source = "checkpoint";
+            }
+        }
+
+        long before = events;
+        for (int i = from; i < files.size(); i++)
+            replay(files.get(i), i == from ? offset : 0);
+        for (int id : new ArrayList<>(open))
+            close(id, Math.max(sessions.get(id).open, lastTime));
+        logger.print("Session index loaded from " + source + " in " + (System.currentTimeMillis() - start) + " ms: " +
+                sessions.size() + " ids, " + sessionCount + " sessions, " + (events - before) + " events read\n", "Default");
+    }
+
+    /**
+     * Writes connection events and indexes them
+     * Events are written under the file lock only and indexed after the writer returns
+     * (with the write-ahead log it returns after the events are applied to the file),
+     * a checkpoint takes the file lock too, so it always matches the connection file length
+     *
+     * @param records Events to write
+     * @param writer  Writing action
+     */
+    public void log(List<ConnectionEvent> records, Consumer<List<ConnectionEvent>> writer) {
+        synchronized (fileLock) {
+            writer.accept(records);
+            synchronized (this) {
+                for (ConnectionEvent event : records)
+                    add(event);
+            }
+        }
+    }
+
+    /**
+     * Sessions of an id
+     *
+     * @param id    Client id
+     * @param limit Max count of returned sessions (the newest ones)
+     * @return sessions=..,online=..,total=..(ms)$start-end$start-end... (the open session has no end)
+     */
+    public synchronized String sessions(int id, int limit) {
+        Sessions cur = sessions.get(id);
+        if (cur == null)
+            return "sessions=0,online=false,total=0";
+        long total = 0;
+        for (int i = 0; i < cur.count; i++)
+            total += cur.ends[i] - cur.starts[i];
+        long now = System.currentTimeMillis();
+        if (cur.open != -1)
+            total += Math.max(0, now - cur.open);
+
+        StringBuilder sb = new StringBuilder();
+        sb.append("sessions=").append(cur.count + (cur.open == -1 ? 0 : 1)).append(",online=").append(cur.open != -1)
+                .append(",total=").append(total);
+        int shown = Math.min(cur.count, Math.max(0, cur.open == -1 ? limit : limit - 1));
+        for (int i = cur.count - shown; i < cur.count; i++) {
+            timestamps.appendMillisTo(sb.append('$'), cur.starts[i]).append('-');
+            timestamps.appendMillisTo(sb, cur.ends[i]);
+        }
+        if (cur.open != -1 && limit > 0)
+            timestamps.appendMillisTo(sb.append('$'), cur.open).append('-');
+        return sb.toString();
+    }
+
+    /**
+     * Ids online at a time
+     * Only ids of the time bucket and ids with open sessions are checked
+     *
+     * @param time Time in milliseconds since the epoch
+     * @return Online ids in ascending order
+     */
+    public synchronized NavigableSet<Integer> onlineAt(long time) {
+        NavigableSet<Integer> res = new TreeSet<>();
+        for (int id : buckets.getOrDefault(Math.floorDiv(time, BUCKET), Set.of())) {
+            Sessions cur = sessions.get(id);
+            if (cur != null && cur.online(time))
+                res.add(id);
+        }
+        for (int id : open)
+            if (sessions.get(id).open <= time)
+                res.add(id);
+        return res;
+    }
+
+    /**
+     * Parses a query time
+     *
+     * @param text Milliseconds since the epoch or DD.MM.YYYY[HH:MM:SS(.mmm)]
+     * @return Time in milliseconds since the epoch
+     * @throws DateTimeException invalid time
+     */
+    public long parseTime(String text) {
+        if (text.matches("\\d{1,18}"))
+            return Long.parseLong(text);
+        return timestamps.parse(text);
+    }
+
+    /**
+     * Session index statistics
+     *
+     * @return ids=..,sessions=..,online=..,events=..,unpaired=..
+     */
+    public synchronized String stats() {
+        return "ids=" + sessions.size() + ",sessions=" + sessionCount + ",online=" + open.size() + ",events=" + events + ",unpaired=" + unpaired;
+    }
+
+    /**
+     * Writes the checkpoint
+     * Sessions older than the retention time are dropped first
+     * The connection file must not be written by anyone else than {@link SessionIndex#log(List, Consumer)}
+     *
+     * @return Checkpoint size in bytes
+     * @throws IOException exception during file writing
+     */
+    public long save() throws IOException {
+        ByteArrayOutputStream bytes;
+        synchronized (fileLock) {
+            synchronized (this) {
+                if (retention > 0)
+                    prune(System.currentTimeMillis() - retention);
+                bytes = new ByteArrayOutputStream(64 + (int) Math.min(Integer.MAX_VALUE / 2, sessionCount * 16 + sessions.size() * 16L));
+                DataOutputStream out = new DataOutputStream(bytes);
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeLong(System.currentTimeMillis());
+                out.writeLong(active.length());
+                byte[] fingerprint = fingerprint(active, FINGERPRINT);
+                out.writeByte(fingerprint.length);
+                out.write(fingerprint);
+                out.writeLong(lastTime);
+                out.writeInt(sessions.size());
+                for (var entry : sessions.entrySet()) {
+                    Sessions cur = entry.getValue();
+                    out.writeInt(entry.getKey());
+                    out.writeInt(cur.count);
+                    for (int i = 0; i < cur.count; i++) {
+                        out.writeLong(cur.starts[i]);
+                        out.writeLong(cur.ends[i]);
+                    }
+                    out.writeLong(cur.open);
+                }
+                CRC32 crc = new CRC32();
+                crc.update(bytes.toByteArray());
+                out.writeLong(crc.getValue());
+                out.flush();
+            }
+        }
+        return write(bytes);
+    }
+
+    /**
+     * Writes checkpoint bytes through a temporary file
+     *
+     * @param bytes Checkpoint bytes
+     * @return Checkpoint size in bytes
+     * @throws IOException exception during file writing
+     */
+    private long write(ByteArrayOutputStream bytes) throws IOException {
+        synchronized (checkpointLock) {
+            File tmp = new File(checkpoint.getPath() + ".tmp");
+            try (FileChannel channel = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                channel.write(ByteBuffer.wrap(bytes.toByteArray()));
+                channel.force(true);
+            }
+            Files.move(tmp.toPath(), checkpoint.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            return bytes.size();
+        }
+    }
+
+    /**
+     * Reads the checkpoint into the index
+     *
+     * @return {checkpoint creation time, file offset} and the fingerprint in {@link SessionIndex#savedFingerprint},
+     * null if there is no valid checkpoint
+     */
+    private long[] readCheckpoint() {
+        if (!checkpoint.isFile())
+            return null;
+        try {
+            byte[] data = Files.readAllBytes(checkpoint.toPath());
+            if (data.length < 45)
+                throw new IOException("checkpoint is too short");
+            CRC32 crc = new CRC32();
+            crc.update(data, 0, data.length - 8);
+            if (ByteBuffer.wrap(data, data.length - 8, 8).getLong() != crc.getValue())
+                throw new IOException("checksum mismatch");
+
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(data, 0, data.length - 8));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION)
+                throw new IOException("unknown format");
+            long createdAt = in.readLong();
+            long offset = in.readLong();
+            savedFingerprint = in.readNBytes(in.readUnsignedByte());
+            lastTime = in.readLong();
+            int ids = in.readInt();
+            for (int i = 0; i < ids; i++) {
+                int id = in.readInt();
+                int count = in.readInt();
+                if (count < 0 || count > in.available() / 16)
+                    throw new IOException("invalid session count");
+                Sessions cur = sessions.computeIfAbsent(id, key -> new Sessions());
+                for (int j = 0; j < count; j++)
+                    addClosed(id, cur, in.readLong(), in.readLong());
+                cur.open = in.readLong();
+                if (cur.open != -1)
+                    open.add(id);
+            }
+            return new long[]{createdAt, offset};
+        } catch (IOException | RuntimeException e) {
+            logger.print("Session checkpoint " + checkpoint.getAbsolutePath() + " is damaged (" + e.getMessage() + "), the connection log is read again", "Error");
+            clear();
+            return null;
+        }
+    }
+
+    /**
+     * Finds the file the checkpoint was made in
+     * A file is found by its first bytes, if the file was empty at the checkpoint,
+     * the oldest segment closed after the checkpoint (or the active file) is used
+     *
+     * @param files     Segments and the active file, the oldest first
+     * @param createdAt Checkpoint creation time
+     * @param offset    File length at the checkpoint
+     * @return File index, -1 if the file is not found (removed by retention)
+     */
+    private int find(List<File> files, long createdAt, long offset) {
+        if (savedFingerprint.length == 0) {
+            for (int i = 0; i < files.size(); i++)
+                if (files.get(i).lastModified() >= createdAt || i == files.size() - 1)
+                    return i;
+            return -1;
+        }
+        for (int i = files.size() - 1; i >= 0; i--)
+            try {
+                if (Arrays.equals(fingerprint(files.get(i), savedFingerprint.length), savedFingerprint) && length(files.get(i)) >= offset)
+                    return i;
+            } catch (IOException e) {
+                logger.print("Failed to read " + files.get(i).getAbsolutePath() + ": " + e.getMessage(), "Error");
+            }
+        return -1;
+    }
+
+    /**
+     * Reads events of a connection file
+     *
+     * @param file   Connection file or its segment (text or binary, gzipped or not)
+     * @param offset Count of (decompressed) bytes to skip
+     */
+    private void replay(File file, long offset) {
+        try (InputStream in = RecordCodec.open(file)) {
+            in.skipNBytes(offset);
+            if (file.getName().contains(".bin"))
+                RecordCodec.read(in, record -> {
+                    if (record instanceof ConnectionEvent event)
+                        add(event);
+                });
+            else {
+                BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+                String line;
+                while ((line = reader.readLine()) != null)
+                    if (!line.isBlank())
+                        addLine(line);
+            }
+        } catch (IOException e) {
+            logger.print("Failed to read " + file.getAbsolutePath() + ": " + e.getMessage(), "Error");
+        }
+    }
+
+    /**
+     * Indexes a text record: DD.MM.YYYY[HH:MM:SS(.mmm)]$id$c|d
+     *
+     * @param line Record
+     */
+    private void addLine(String line) {
+        try {
+            int idStart = line.indexOf("]$") + 2;
+            int idEnd = line.indexOf('$', idStart);
+            if (idStart < 2 || idEnd == -1 || idEnd != line.length() - 2)
+                throw new IllegalArgumentException(line);
+            char kind = line.charAt(idEnd + 1);
+            if (kind != 'c' && kind != 'd')
+                throw new IllegalArgumentException(line);
+            add(new ConnectionEvent(timestamps.parse(line), Integer.parseInt(line.substring(idStart, idEnd)), kind == 'c'));
+        } catch (IllegalArgumentException | DateTimeException e) {
+            unpaired++;
+        }
+    }
+
+    /**
+     * Pairs an event with the open session of its id
+     * A connection of an online id closes its open session (its disconnection was lost)
+     *
+     * @param event Connection or disconnection
+     */
+    private void add(ConnectionEvent event) {
+        events++;
+        lastTime = Math.max(lastTime, event.time());
+        Sessions cur = sessions.computeIfAbsent(event.id(), key -> new Sessions());
+        if (cur.open != -1)
+            close(event.id(), Math.max(cur.open, event.time()));
+        else if (!event.connected())
+            unpaired++;
+        if (event.connected()) {
+            cur.open = event.time();
+            open.add(event.id());
+        }
+    }
+
+    /**
+     * Closes the open session of an id
+     *
+     * @param id  Client id
+     * @param end Session end
+     */
+    private void close(int id, long end) {
+        Sessions cur = sessions.get(id);
+        addClosed(id, cur, cur.open, end);
+        cur.open = -1;
+        open.remove(id);
+    }
+
+    /**
+     * Adds a closed session to the id sessions and to the time buckets
+     * If the id has too many sessions, the oldest quarter of them is dropped
+     *
+     * @param id    Client id
+     * @param cur   Id sessions
+     * @param start Session start
+     * @param end   Session end
+     */
+    private void addClosed(int id, Sessions cur, long start, long end) {
+        if (cur.count >= maxSessions) {
+            int dropped = Math.max(1, cur.count / 4);
+            cur.drop(dropped);
+            sessionCount -= dropped;
+        }
+        cur.add(start, end);
+        sessionCount++;
+        for (long bucket = Math.floorDiv(start, BUCKET); bucket <= Math.floorDiv(end, BUCKET); bucket++)
+            buckets.computeIfAbsent(bucket, key -> new HashSet<>()).add(id);
+    }
+
+    /**
+     * Drops closed sessions ended before a time and time buckets before it
+     * Ids without sessions are removed from the index
+     *
+     * @param before Time in milliseconds
+     */
+    private void prune(long before) {
+        buckets.keySet().removeIf(bucket -> bucket < Math.floorDiv(before, BUCKET));
+        for (Iterator<Sessions> it = sessions.values().iterator(); it.hasNext(); ) {
+            Sessions cur = it.next();
+            int dropped = cur.endedBefore(before);
+            if (dropped > 0) {
+                cur.drop(dropped);
+                sessionCount -= dropped;
+            }
+            if (cur.count == 0 && cur.open == -1)
+                it.remove();
+        }
+    }
+
+    /**
+     * Removes everything from the index
+     */
+    private void clear() {
+        sessions.clear();
+        buckets.clear();
+        open.clear();
+        savedFingerprint = new byte[0];
+        lastTime = -1;
+        events = sessionCount = unpaired = 0;
+    }
+
+    /**
+     * First bytes of a file
+     * The file was possibly shorter at the checkpoint, so it is compared only by the saved count of bytes
+     *
+     * @param file  File (.gz files are decompressed)
+     * @param count Count of bytes
+     * @return Up to count first bytes
+     * @throws IOException exception during reading
+     */
+    private static byte[] fingerprint(File file, int count) throws IOException {
+        if (!file.isFile())
+            return new byte[0];
+        try (InputStream in = RecordCodec.open(file)) {
+            return in.readNBytes(count);
+        }
+    }
+
+    /**
+     * Data length of a file
+     *
+     * @param file File (.gz files are decompressed)
+     * @return Length in bytes
+     * @throws IOException exception during reading
+     */
+    private static long length(File file) throws IOException {
+        if (!file.getName().endsWith(".gz"))
+            return file.length();
+        try (InputStream in = RecordCodec.open(file)) {
+            return in.transferTo(OutputStream.nullOutputStream());
+        }
+    }
+}
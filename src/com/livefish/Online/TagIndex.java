@@ -0,0 +1,221 @@
+package com.livefish.Online;
+
+import com.livefish.Output.Files.FileLoader;
+import com.livefish.Output.Files.FileLogger;
+
+import java.util.*;
+
+/**
+ * Device tag (group) index
+ * Keeps tags of every client id and a bitmap of ids for every tag,
+ * so tag expressions like "a&amp;b|c" are resolved with bitmap operations
+ * Bitmaps are compressed, so their size depends on the count of ids, not on the id values
+ * Every change is appended to the tag file and replayed on server start
+ *
+ * @author NAUMENKO-ZHIVOY ARTEM
+ * @version 2.0
+ * @see FileLogger
+ * @see FanOutEngine
+ * @see IdBitmap
+ */
+public class TagIndex {
+    /**
+     * Valid tag name pattern
+     */
+    public static final String TAG_PATTERN = "\\w[\\w\\-.]*";
+    /**
+     * Valid tag expression pattern (OR of AND groups of tags)
+     */
+    public static final String EXPRESSION_PATTERN = TAG_PATTERN + "([&|]" + TAG_PATTERN + ")*";
+
+    /**
+     * Tags of every id
+     */
+    private final Map<Integer, Set<String>> tagsById;
+    /**
+     * Ids of every tag
+     */
+    private final Map<String, IdBitmap> idsByTag;
+    /**
+     * Online client ids
+     */
+    private final IdBitmap online;
+    /**
+     * File logger to save tag changes with
+     */
+    private final FileLogger fileLogger;
+    /**
+     * A name of the tag file in file logger system
+     */
+    private final String fileName;
+
+    /**
+     * Tag index construction function
+     * Reads all saved tag changes from file
+     *
+     * @param fileLogger File logger to save tag changes with
+     * @param fileName   A name of the tag file in file logger system
+     * @see TagIndex#load()
+     */
+    public TagIndex(FileLogger fileLogger, String fileName) {
+        this.fileLogger = fileLogger;
+        this.fileName = fileName;
+        this.tagsById = new HashMap<>();
+        this.idsByTag = new HashMap<>();
+        this.online = new IdBitmap();
+        load();
+    }
+
+    /**
+     * Replays all tag changes from file (+$id$tag adds a tag, -$id$tag removes it)
+     * Rewrites the file if most of the lines are outdated
+     */
+    private synchronized void load() {
+        String[] lines = FileLoader.loadFile(fileLogger.getLogFile(fileName)).split("\n");
+        int applied = 0;
+        for (String line : lines) {
+            String[] split = line.trim().split("\\$");
+            if (split.length != 3 || !split[1].matches("\\d+"))
+                continue;
+            int id = Integer.parseInt(split[1]);
+            if (split[0].equals("+"))
+                put(id, split[2]);
+            else if (split[0].equals("-"))
+                delete(id, split[2]);
+            applied++;
+        }
+
+        int size = 0;
+        for (Set<String> tags : tagsById.values())
+            size += tags.size();
+        if (applied > 2 * size) {
+            fileLogger.clearAll(fileName);
+            tagsById.forEach((id, tags) -> tags.forEach(tag -> fileLogger.logToAll(fileName, "+$" + id + "$" + tag)));
+        }
+    }
+
+    /**
+     * Adds a tag to id without saving
+     *
+     * @param id  Client id
+     * @param tag Tag to add
+     * @return False if id already had this tag
+     */
+    private boolean put(int id, String tag) {
+        if (!tagsById.computeIfAbsent(id, i -> new HashSet<>()).add(tag))
+            return false;
+        idsByTag.computeIfAbsent(tag, t -> new IdBitmap()).add(id);
+        return true;
+    }
+
+    /**
+     * Removes a tag from id without saving
+     *
+     * @param id  Client id
+     * @param tag Tag to remove
+     * @return False if id didn't have this tag
+     */
+    private boolean delete(int id, String tag) {
+        Set<String> tags = tagsById.get(id);
+        if (tags == null || !tags.remove(tag))
+            return false;
+        if (tags.isEmpty())
+            tagsById.remove(id);
+
+        IdBitmap ids = idsByTag.get(tag);
+        ids.remove(id);
+        if (ids.isEmpty())
+            idsByTag.remove(tag);
+        return true;
+    }
+
+    /**
+     * Adds a tag to id and saves it to file
+     *
+     * @param id  Client id
+     * @param tag Tag to add
+     * @return False if id already had this tag
+     */
+    public synchronized boolean addTag(int id, String tag) {
+        if (!put(id, tag))
+            return false;
+        fileLogger.logToAll(fileName, "+$" + id + "$" + tag);
+        return true;
+    }
+
+    /**
+     * Removes a tag from id and saves it to file
+     *
+     * @param id  Client id
+     * @param tag Tag to remove
+     * @return False if id didn't have this tag
+     */
+    public synchronized boolean removeTag(int id, String tag) {
+        if (!delete(id, tag))
+            return false;
+        fileLogger.logToAll(fileName, "-$" + id + "$" + tag);
+        return true;
+    }
+
+    /**
+     * Tags of id getting function
+     *
+     * @param id Client id
+     * @return Sorted tags of id
+     */
+    public synchronized SortedSet<String> getTags(int id) {
+        return new TreeSet<>(tagsById.getOrDefault(id, Collections.emptySet()));
+    }
+
+    /**
+     * Marks client id as online or offline
+     *
+     * @param id       Client id
+     * @param isOnline Is client online now
+     */
+    public synchronized void setOnline(int id, boolean isOnline) {
+        online.set(id, isOnline);
+    }
+
+    /**
+     * All ids matching tag expression
+     * Expression is an OR (|) of AND (&amp;) groups of tags, &amp; is done first: "a&amp;b|c" is (a and b) or c
+     *
+     * @param expression Tag expression
+     * @return Bitmap of matching ids (a new one)
+     * @see TagIndex#EXPRESSION_PATTERN
+     */
+    public synchronized IdBitmap resolve(String expression) {
+        IdBitmap res = new IdBitmap();
+        for (String group : expression.split("\\|")) {
+            IdBitmap groupIds = null;
+            for (String tag : group.split("&")) {
+                IdBitmap ids = idsByTag.get(tag);
+                if (ids == null) {
+                    groupIds = null;
+                    break;
+                }
+                if (groupIds == null)
+                    groupIds = ids.copy();
+                else
+                    groupIds.and(ids);
+            }
+            if (groupIds != null)
+                res.or(groupIds);
+        }
+        return res;
+    }
+
+    /**
+     * Online ids matching tag expression
+     *
+     * @param expression Tag expression
+     * @return Bitmap of matching online ids (a new one)
+     * @see TagIndex#resolve(String)
+     */
+    public synchronized IdBitmap resolveOnline(String expression) {
+        IdBitmap res = resolve(expression);
+        res.and(online);
+        return res;
+    }
+}
@@ -0,0 +1,124 @@
+package com.livefish.Online;
+
+import com.livefish.Output.Console.Logger;
+
+import javax.net.ssl.*;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.channels.ServerSocketChannel;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * TLS support for the main server port
+ * Server certificate and key are loaded from a local keystore (PKCS12 or JKS),
+ * the session cache and stateless session tickets are turned on, so clients reconnecting
+ * after a network loss resume their sessions instead of doing full handshakes
+ * The cache and the ticket keys live only in server memory, so after a server restart
+ * every client does a full handshake again
+ *
+ * @author NAUMENKO-ZHIVOY ARTEM
+ * @version 2.0
+ * @see ServerConfig#TLS_ENABLED
+ * @see Connection
+ */
+public final class TlsContext {
+    /**
+     * Count of full handshakes
+     */
+    private static final AtomicLong fullHandshakes = new AtomicLong();
+    /**
+     * Count of handshakes with a resumed session
+     */
+    private static final AtomicLong resumedHandshakes = new AtomicLong();
+
+    /**
+     * No instances, only static functions
+     */
+    private TlsContext() {
+    }
+
+    /**
+     * Server TLS context creation function
+     *
+     * @param keystorePath Keystore file path
+     * @param password     Keystore and key password
+     * @return Initialized TLS context
+     * @throws IOException exception during keystore reading or context initialization
+     * @see ServerConfig#TLS_SESSION_TICKETS
+     */
+    public static SSLContext create(String keystorePath, char[] password) throws IOException {
+        try (InputStream in = new FileInputStream(keystorePath)) {
+            KeyStore keyStore = KeyStore.getInstance(keystorePath.toLowerCase(Locale.ROOT).endsWith(".jks") ? "JKS" : "PKCS12");
+            keyStore.load(in, password);
+            KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            keyManagers.init(keyStore, password);
+
+            SSLContext context = SSLContext.getInstance("TLS");
+            context.init(keyManagers.getKeyManagers(), null, null);
+            SSLSessionContext sessions = context.getServerSessionContext();
+            sessions.setSessionCacheSize(ServerConfig.TLS_SESSION_CACHE);
+            sessions.setSessionTimeout(ServerConfig.TLS_SESSION_TIMEOUT);
+            return context;
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Failed to create TLS context from keystore " + keystorePath, e);
+        }
+    }
+
+    /**
+     * Main port server socket creation function
+     * Creates a TLS server socket if TLS is turned on, otherwise a plain one of a ServerSocketChannel,
+     * so accepted plain connections read and write through their socket channels with off-heap buffers
+     *
+     * @param port Port to listen on
+     * @return Created server socket
+     * @throws IOException exception during socket or TLS context creation
+     * @see ServerConfig#TLS_ENABLED
+     */
+    public static ServerSocket serverSocket(int port) throws IOException {
+        if (!ServerConfig.TLS_ENABLED) {
+            ServerSocket server = ServerSocketChannel.open().socket();
+            try {
+                server.bind(new InetSocketAddress(port), 50);
+            } catch (IOException e) {
+                server.close();
+                throw e;
+            }
+            return server;
+        }
+
+        SSLContext context = create(ServerConfig.TLS_KEYSTORE, ServerConfig.TLS_PASSWORD.toCharArray());
+        SSLServerSocket server = (SSLServerSocket) context.getServerSocketFactory().createServerSocket(port);
+        server.setEnabledProtocols(new String[]{"TLSv1.3", "TLSv1.2"});
+        Logger.getInstance().print("TLS enabled with keystore: " + ServerConfig.TLS_KEYSTORE, "Yellow");
+        return server;
+    }
+
+    /**
+     * Counts a finished handshake of an accepted connection
+     * A session created before the connection was accepted is a resumed one
+     *
+     * @param session  Negotiated session
+     * @param accepted Time the connection was accepted in milliseconds
+     */
+    static void countHandshake(SSLSession session, long accepted) {
+        if (session.getCreationTime() < accepted)
+            resumedHandshakes.incrementAndGet();
+        else
+            fullHandshakes.incrementAndGet();
+    }
+
+    /**
+     * TLS statistics
+     *
+     * @return enabled=..,full=..,resumed=..
+     */
+    public static String stats() {
+        return "enabled=" + ServerConfig.TLS_ENABLED + ",full=" + fullHandshakes.get() + ",resumed=" + resumedHandshakes.get();
+    }
+}
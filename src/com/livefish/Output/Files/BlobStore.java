@@ -0,0 +1,401 @@
+package com.livefish.Output.Files;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Content-addressed blob store
+ * Every file is saved once by its SHA-256 in blobs/xx/sha256, so the same file uploaded many times is stored once
+ * Uploads are written to uploads/sha256.part in chunks, every finished chunk is checked and written
+ * to uploads/sha256.manifest (chunk index$chunk SHA-256), so an interrupted upload continues from the last
+ * finished chunk even after server restart
+ * Chunks of the manifest are checked against their SHA-256 before an upload is continued,
+ * the checked length is kept in memory until the upload is finished or forgotten
+ * Abandoned uploads are removed by their owner with {@link BlobStore#dropUpload(String)}
+ *
+ * @author NAUMENKO-ZHIVOY ARTEM
+ * @version 2.0
+ * @see FileLogger
+ */
+public class BlobStore {
+    /**
+     * Upload chunk size in bytes
+     */
+    public static final int CHUNK_SIZE = 4 * 1024 * 1024;
+    /**
+     * Max count of memory mapped blobs kept open
+     */
+    private static final int MAX_MAPPED = 64;
+    /**
+     * Count of upload locks, blobs share them by their SHA-256 hash code
+     */
+    private static final int LOCK_STRIPES = 256;
+
+    /**
+     * Stored blobs directory
+     */
+    private final File blobDir;
+    /**
+     * Unfinished uploads directory
+     */
+    private final File uploadDir;
+    /**
+     * Upload lock objects, a blob uses the one of its SHA-256 hash code
+     */
+    private final Object[] locks;
+    /**
+     * Memory mapped blobs by SHA-256 (least recently used are removed first)
+     */
+    private final Map<String, MappedByteBuffer> mapped;
+    /**
+     * Count of uploads, which were not needed because the blob was already stored
+     */
+    private final AtomicLong dedupHits;
+    /**
+     * Checked length of finished chunks of unfinished uploads by SHA-256
+     */
+    private final Map<String, Long> committed;
+
+    /**
+     * Blob store construction function
+     * Creates all needed directories
+     *
+     * @param dirPath Blob store directory
+     */
+    public BlobStore(String dirPath) {
+        this.blobDir = new File(dirPath, "blobs");
+        this.uploadDir = new File(dirPath, "uploads");
+        this.locks = new Object[LOCK_STRIPES];
+        for (int i = 0; i < LOCK_STRIPES; i++)
+            locks[i] = new Object();
+        this.dedupHits = new AtomicLong();
+        this.committed = new ConcurrentHashMap<>();
+        this.mapped = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, MappedByteBuffer> eldest) {
+                return size() > MAX_MAPPED;
+            }
+        };
+
+        if ((!blobDir.exists() && !blobDir.mkdirs()) || (!uploadDir.exists() && !uploadDir.mkdirs()))
+            throw new RuntimeException("Failed to create blob store directories in: " + new File(dirPath).getAbsolutePath());
+    }
+
+    /**
+     * Stored blob file getting function
+     *
+     * @param sha256 Blob SHA-256 (hex, lower case)
+     * @return Blob file (may not exist)
+     */
+    public File blobFile(String sha256) {
+        return new File(new File(blobDir, sha256.substring(0, 2)), sha256);
+    }
+
+    /**
+     * Unfinished upload file getting function
+     *
+     * @param sha256 Blob SHA-256 (hex, lower case)
+     * @return Upload file (may not exist)
+     */
+    public File partFile(String sha256) {
+        return new File(uploadDir, sha256 + ".part");
+    }
+
+    /**
+     * Upload chunk manifest getting function
+     *
+     * @param sha256 Blob SHA-256 (hex, lower case)
+     * @return Manifest file (may not exist)
+     */
+    private File manifestFile(String sha256) {
+        return new File(uploadDir, sha256 + ".manifest");
+    }
+
+    /**
+     * Upload lock getting function
+     * Guards upload state changes of a blob: starting, committing chunks and finishing an upload
+     * (it is not held while bytes are received)
+     * Locks are shared by blobs with the same hash code stripe, so their count does not grow with blobs
+     *
+     * @param sha256 Blob SHA-256 (hex, lower case)
+     * @return Lock object
+     */
+    public Object lockOf(String sha256) {
+        return locks[Math.floorMod(sha256.hashCode(), LOCK_STRIPES)];
+    }
+
+    /**
+     * Checks if a blob is stored
+     *
+     * @param sha256 Blob SHA-256 (hex, lower case)
+     * @return True if the blob is stored
+     */
+    public boolean has(String sha256) {
+        return blobFile(sha256).isFile();
+    }
+
+    /**
+     * Counts a not needed upload of an already stored blob
+     */
+    public void countDedupHit() {
+        dedupHits.incrementAndGet();
+    }
+
+    /**
+     * Upload offset getting function
+     * Finished chunks are checked against their manifest SHA-256 once, the checked length is kept
+     * Must be called with the upload lock held
+     *
+     * @param sha256 Blob SHA-256 (hex, lower case)
+     * @return Count of uploaded bytes in finished chunks, which match their SHA-256
+     * @throws IOException exception during file operations
+     */
+    public long uploadedLength(String sha256) throws IOException {
+        Long length = committed.get(sha256);
+        if (length == null) {
+            length = verify(sha256);
+            committed.put(sha256, length);
+        }
+        return length;
+    }
+
+    /**
+     * Prepares an upload file for writing from the end of its finished chunks
+     * Bytes after the last checked chunk are cut from the upload file and from the manifest
+     * Must be called with the upload lock held and no upload writing to the file
+     *
+     * @param sha256 Blob SHA-256 (hex, lower case)
+     * @return Offset to continue the upload from
+     * @throws IOException exception during file operations
+     */
+    public long startUpload(String sha256) throws IOException {
+        long length = uploadedLength(sha256);
+        File part = partFile(sha256);
+        if (part.length() > length)
+            try (FileChannel file = FileChannel.open(part.toPath(), StandardOpenOption.WRITE)) {
+                file.truncate(length);
+            }
+        File manifest = manifestFile(sha256);
+        if (manifest.exists()) {
+            List<String> chunks = Files.readAllLines(manifest.toPath(), StandardCharsets.UTF_8);
+            int finished = (int) (length / CHUNK_SIZE + (length % CHUNK_SIZE == 0 ? 0 : 1));
+            if (chunks.size() > finished)
+                Files.write(manifest.toPath(), chunks.subList(0, finished), StandardCharsets.UTF_8);
+        }
+        return length;
+    }
+
+    /**
+     * Checks finished chunks of an upload file against their manifest SHA-256
+     *
+     * @param sha256 Blob SHA-256 (hex, lower case)
+     * @return Length of the finished chunks before the first missing or damaged one
+     * @throws IOException exception during file operations
+     */
+    private long verify(String sha256) throws IOException {
+        File part = partFile(sha256);
+        File manifest = manifestFile(sha256);
+        if (!part.exists() || !manifest.exists())
+            return 0;
+
+        List<String> chunks = Files.readAllLines(manifest.toPath(), StandardCharsets.UTF_8);
+        long length = 0;
+        try (FileChannel file = FileChannel.open(part.toPath(), StandardOpenOption.READ)) {
+            for (int i = 0; i < chunks.size(); i++) {
+                String chunk = chunks.get(i);
+                long end = Math.min(length + CHUNK_SIZE, file.size());
+                if (!chunk.startsWith(i + "$") || end <= length || !chunk.substring(chunk.indexOf('$') + 1).equals(sha256(file, length, end - length)))
+                    break;
+                length = end;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Saves a finished chunk to the upload manifest
+     * Must be called with the upload lock held after the chunk bytes are forced
+     *
+     * @param sha256 Blob SHA-256 (hex, lower case)
+     * @param index  Finished chunk index
+     * @throws IOException exception during file operations
+     */
+    public void commitChunk(String sha256, int index) throws IOException {
+        String chunkSha;
+        long end;
+        try (FileChannel file = FileChannel.open(partFile(sha256).toPath(), StandardOpenOption.READ)) {
+            long start = (long) index * CHUNK_SIZE;
+            end = Math.min(start + CHUNK_SIZE, file.size());
+            chunkSha = sha256(file, start, end - start);
+        }
+        Files.writeString(manifestFile(sha256).toPath(), index + "$" + chunkSha + "\n", StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND, StandardOpenOption.DSYNC);
+        committed.put(sha256, end);
+    }
+
+    /**
+     * Finishes an upload: checks the whole file SHA-256 and moves it to the blob directory
+     * A wrong upload is deleted
+     *
+     * @param sha256 Expected blob SHA-256 (hex, lower case)
+     * @return Counted SHA-256 of the uploaded file (equals sha256 if the blob is stored)
+     * @throws IOException exception during file operations
+     */
+    public String complete(String sha256) throws IOException {
+        File part = partFile(sha256);
+        String real;
+        try (FileChannel file = FileChannel.open(part.toPath(), StandardOpenOption.READ)) {
+            real = sha256(file, 0, file.size());
+        }
+
+        if (real.equals(sha256)) {
+            File blob = blobFile(sha256);
+            if (!blob.getParentFile().exists() && !blob.getParentFile().mkdirs())
+                throw new IOException("Failed to create blob directory " + blob.getParentFile().getAbsolutePath());
+            Files.move(part.toPath(), blob.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } else
+            Files.deleteIfExists(part.toPath());
+        Files.deleteIfExists(manifestFile(sha256).toPath());
+        committed.remove(sha256);
+        return real;
+    }
+
+    /**
+     * SHA-256 of all unfinished uploads with files in the upload directory
+     *
+     * @return SHA-256 (hex, lower case) of uploads with a part or a manifest file
+     */
+    public Set<String> uploads() {
+        Set<String> res = new HashSet<>();
+        File[] files = uploadDir.listFiles((dir, name) -> name.matches("[0-9a-f]{64}\\.(part|manifest)"));
+        if (files != null)
+            for (File file : files)
+                res.add(file.getName().substring(0, 64));
+        return res;
+    }
+
+    /**
+     * Last write time of an unfinished upload
+     *
+     * @param sha256 Blob SHA-256 (hex, lower case)
+     * @return Last modification time of its part or manifest file in milliseconds (0 if there are no files)
+     */
+    public long uploadTime(String sha256) {
+        return Math.max(partFile(sha256).lastModified(), manifestFile(sha256).lastModified());
+    }
+
+    /**
+     * Forgets the checked length of an upload, which has no transfers anymore
+     * Its files are kept, the length is checked again if the upload is continued
+     * Must be called with the upload lock held
+     *
+     * @param sha256 Blob SHA-256 (hex, lower case)
+     */
+    public void forget(String sha256) {
+        committed.remove(sha256);
+    }
+
+    /**
+     * Removes an abandoned upload: its part file, manifest and checked length
+     * Must be called with the upload lock held and no upload writing to the file
+     *
+     * @param sha256 Blob SHA-256 (hex, lower case)
+     * @throws IOException exception during file removing
+     */
+    public void dropUpload(String sha256) throws IOException {
+        committed.remove(sha256);
+        Files.deleteIfExists(partFile(sha256).toPath());
+        Files.deleteIfExists(manifestFile(sha256).toPath());
+    }
+
+    /**
+     * Memory mapped blob getting function
+     * Every blob is mapped once and shared by all its downloads
+     *
+     * @param sha256 Blob SHA-256 (hex, lower case)
+     * @return A new read only view of the mapped blob (position 0), null if the blob is too big to be mapped
+     * @throws IOException exception during file operations
+     */
+    public ByteBuffer map(String sha256) throws IOException {
+        MappedByteBuffer buf;
+        synchronized (mapped) {
+            buf = mapped.get(sha256);
+            if (buf == null) {
+                try (FileChannel file = FileChannel.open(blobFile(sha256).toPath(), StandardOpenOption.READ)) {
+                    if (file.size() > Integer.MAX_VALUE)
+                        return null;
+                    buf = file.map(FileChannel.MapMode.READ_ONLY, 0, file.size());
+                }
+                mapped.put(sha256, buf);
+            }
+        }
+        return buf.asReadOnlyBuffer();
+    }
+
+    /**
+     * Blob store statistics
+     *
+     * @return blobs=..,bytes=..,dedup=..
+     */
+    public String stats() {
+        long count = 0, bytes = 0;
+        File[] dirs = blobDir.listFiles(File::isDirectory);
+        if (dirs != null)
+            for (File dir : dirs) {
+                File[] blobs = dir.listFiles(File::isFile);
+                if (blobs != null)
+                    for (File blob : blobs) {
+                        count++;
+                        bytes += blob.length();
+                    }
+            }
+        return "blobs=" + count + ",bytes=" + bytes + ",dedup=" + dedupHits.get();
+    }
+
+    /**
+     * SHA-256 counting function for a part of a file
+     *
+     * @param file   File to read
+     * @param start  First byte to count
+     * @param length Count of bytes
+     * @return SHA-256 (hex, lower case)
+     * @throws IOException exception during file reading
+     */
+    private static String sha256(FileChannel file, long start, long length) throws IOException {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            ByteBuffer buf = ByteBuffer.allocateDirect(1024 * 1024);
+            long pos = start, end = start + length;
+            while (pos < end) {
+                buf.clear();
+                buf.limit((int) Math.min(buf.capacity(), end - pos));
+                int n = file.read(buf, pos);
+                if (n <= 0)
+                    break;
+                pos += n;
+                buf.flip();
+                digest.update(buf);
+            }
+            return HexFormat.of().formatHex(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package com.livefish.Output.Files;
+
+/**
+ * Client connection or disconnection record
+ * Text form: DD.MM.YYYY[HH:MM:SS]$id$c or DD.MM.YYYY[HH:MM:SS]$id$d
+ *
+ * @param time      Event time in milliseconds since the epoch
+ * @param id        Client id
+ * @param connected True if the client connected, false if it disconnected
+ * @author NAUMENKO-ZHIVOY ARTEM
+ * @version 2.0
+ * @see LogRecord
+ */
+public record ConnectionEvent(long time, int id, boolean connected) implements LogRecord {
+    @Override
+    public LogFileType type() {
+        return LogFileType.CONNECTIONS;
+    }
+
+    @Override
+    public StringBuilder appendText(StringBuilder sb, TimestampFormatter timestamps, boolean millis) {
+        (millis ? timestamps.appendMillisTo(sb, time) : timestamps.appendTo(sb, time)).append('$').append(id);
+        return sb.append('$').append(connected ? 'c' : 'd');
+    }
+}
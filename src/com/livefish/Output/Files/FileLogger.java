@@ -4,8 +4,14 @@ import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.function.Predicate;
@@ -47,11 +53,26 @@ record LogFile(String name, File file, LogFileType type) {
      * @see FileLogger#clearOne(String)
      */
     public void clear() {
+        try {
+            truncate();
+        } catch (UncheckedIOException e) {
+            e.getCause().printStackTrace();
+        }
+    }
+
+    /**
+     * Clears the file or fails
+     *
+     * @throws UncheckedIOException if the file can not be cleared
+     * @see LogFile#clear()
+     * @see FileLogger#apply(String, boolean, List)
+     */
+    public void truncate() {
         checkAccess();
         try (BufferedWriter writer = new BufferedWriter(new FileWriter(file, false))) {
             writer.write("");
         } catch (IOException e) {
-            e.printStackTrace();
+            throw new UncheckedIOException(e);
         }
     }
 
@@ -184,29 +205,168 @@ record LogFile(String name, File file, LogFileType type) {
             e.printStackTrace();
         }
     }
+
+    /**
+     * Log several strings to a file function
+     * The file is opened only once for all the strings
+     *
+     * @param strs Strings to log to file
+     * @see FileLogger#logLinesToAll(String, List)
+     */
+    public void log(List<String> strs) {
+        try {
+            append(strs);
+        } catch (UncheckedIOException e) {
+            e.getCause().printStackTrace();
+        }
+    }
+
+    /**
+     * Appends several strings to a file or fails
+     * If writing fails, the file is cut back to its length before the write, so the strings can be written again
+     *
+     * @param strs Strings to append
+     * @throws UncheckedIOException if the strings can not be written
+     * @see LogFile#log(List)
+     * @see FileLogger#apply(String, boolean, List)
+     */
+    public void append(List<String> strs) {
+        checkAccess();
+        long start = file.length();
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(file, true))) {
+            for (String str : strs)
+                writer.write(str + "\n");
+        } catch (IOException e) {
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+                channel.truncate(start);
+            } catch (IOException cut) {
+                e.addSuppressed(cut);
+            }
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Appends binary records to a file function
+     * The file is opened only once for all the records
+     * If writing fails, the file is cut back to its length before the write, so no torn record is left
+     *
+     * @param records Records to append
+     * @see RecordCodec#write(FileChannel, List)
+     */
+    public void write(List<? extends LogRecord> records) {
+        checkAccess();
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            long start = channel.size();
+            try {
+                RecordCodec.write(channel, records);
+            } catch (IOException e) {
+                channel.truncate(start);
+                throw e;
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Cuts a torn record off the end of a binary file function
+     * The server may be killed while a record is written, the next records must not be written after its part
+     *
+     * @return Count of cut bytes
+     * @throws IOException exception during reading or cutting
+     * @see RecordCodec#validLength(FileChannel)
+     */
+    public long cutTornRecords() throws IOException {
+        checkAccess();
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long size = channel.size();
+            long valid = RecordCodec.validLength(channel);
+            if (valid < size) {
+                channel.truncate(valid);
+                channel.force(true);
+            }
+            return size - valid;
+        }
+    }
+
+    /**
+     * Forces all written file data to the storage device
+     *
+     * @see FileLogger#syncAll()
+     */
+    public void sync() {
+        try {
+            force();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Forces all written file data to the storage device, failures are thrown
+     *
+     * @throws IOException exception during forcing
+     * @see LogFile#sync()
+     */
+    public void force() throws IOException {
+        checkAccess();
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+    }
 }
 
 /**
  * File Logger implementation
  * Logs to files by their names in system or types
  * Can log to one or to all of the files with this type or name
+ * All writes go through a write-ahead log, if it is turned on
  *
  * @author NAUMENKO-ZHIVOY ARTEM
  * @version 2.0
  * @see LogFile
  * @see LogFileType
+ * @see WriteAheadLog
  */
-public class FileLogger {
+public class FileLogger implements WriteAheadLog.Applier {
     /**
      * Set of files and their names in system
      */
     private final Set<LogFile> files;
 
+    /**
+     * Write-ahead log all writes go through (null if writes go straight to files)
+     */
+    private volatile WriteAheadLog wal;
+
+    /**
+     * Rotation of log files by their types
+     */
+    private final LogRotator rotator = new LogRotator();
+
     /**
      * Absolute path to logging directory
      */
     private final String logDirAbsPath;
 
+    /**
+     * Types of files typed records are written to in the binary format
+     */
+    private final Set<LogFileType> binaryTypes = ConcurrentHashMap.newKeySet();
+    /**
+     * Timestamp formatter of text records
+     */
+    private final TimestampFormatter timestamps = new TimestampFormatter();
+    /**
+     * Text record builders of threads
+     */
+    private final ThreadLocal<StringBuilder> textBuilder = ThreadLocal.withInitial(() -> new StringBuilder(256));
+    /**
+     * Are milliseconds written in text record timestamps
+     */
+    private volatile boolean timestampMillis;
+
     /**
      * FileLogger constructor
      * Creates all needed directories
@@ -234,6 +394,240 @@ public class FileLogger {
         return logDirAbsPath;
     }
 
+    /**
+     * Sends all further writes through a write-ahead log
+     * Must be called after all log files are added
+     *
+     * @param wal Write-ahead log, which applies its changes to this logger
+     * @see FileLogger#apply(String, boolean, List)
+     */
+    public void useWriteAheadLog(WriteAheadLog wal) {
+        this.wal = wal;
+    }
+
+    /**
+     * Applies a write-ahead log change straight to a file
+     * Files, which were not added to the system (on a follower), are found by their names on a computer
+     * A failed write is not swallowed, so the log does not mark the change applied
+     *
+     * @param fileName File name relative to the log directory
+     * @param clear    Is the file cleared before the lines are appended
+     * @param lines    Lines to append
+     * @throws UncheckedIOException if the file can not be written
+     * @see WriteAheadLog.Applier
+     * @see LogFile#append(List)
+     */
+    @Override
+    public void apply(String fileName, boolean clear, List<String> lines) {
+        LogFile target = walFile(fileName);
+        rotator.write(target.getType(), target.getFile(), () -> {
+            if (clear)
+                target.truncate();
+            if (!lines.isEmpty())
+                target.append(lines);
+        });
+    }
+
+    /**
+     * Forces a file changed by the write-ahead log to the storage device
+     *
+     * @param fileName File name relative to the log directory
+     * @throws UncheckedIOException if the file can not be forced
+     * @see WriteAheadLog.Applier
+     * @see LogFile#force()
+     */
+    @Override
+    public void sync(String fileName) {
+        LogFile target = walFile(fileName);
+        if (target.getFile().exists())
+            try {
+                target.force();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+    }
+
+    /**
+     * Log file of a write-ahead log change
+     * Files, which were not added to the system (on a follower), are found by their names on a computer
+     *
+     * @param fileName File name relative to the log directory
+     * @return Added log file with this name or a new one
+     * @throws IllegalArgumentException if the name leaves the log directory
+     * @see FileLogger#isLogFileName(String)
+     */
+    private LogFile walFile(String fileName) {
+        if (!isLogFileName(fileName))
+            throw new IllegalArgumentException("Not a log file name: " + fileName);
+        File file = new File(logDirAbsPath + fileName);
+        return files.stream()
+                .filter(logFile -> logFile.getFile().getAbsolutePath().equals(file.getAbsolutePath()))
+                .findFirst()
+                .orElseGet(() -> new LogFile(fileName, file, null));
+    }
+
+    /**
+     * Checks if a write-ahead log file name stays in the log directory
+     * Every part of the name (between / or \) is made of letters, digits, '_', '-' and '.' and is not . or ..,
+     * so the name can't be absolute, name a drive or go up out of the directory
+     *
+     * @param fileName File name relative to the log directory
+     * @return True if the name is a valid log file name
+     */
+    static boolean isLogFileName(String fileName) {
+        if (fileName == null || fileName.isEmpty())
+            return false;
+        for (String part : fileName.split("[/\\\\]", -1))
+            if (!part.matches("[\\w.-]+") || part.equals(".") || part.equals(".."))
+                return false;
+        return true;
+    }
+
+    /**
+     * File name relative to the log directory (is written to the write-ahead log)
+     *
+     * @param logFile Log file
+     * @return File name relative to the log directory
+     */
+    private String fileName(LogFile logFile) {
+        return logFile.getFile().getAbsolutePath().substring(logDirAbsPath.length());
+    }
+
+    /**
+     * Clears a file directly or through the write-ahead log
+     *
+     * @param logFile A file to clear
+     * @see LogFile#clear()
+     */
+    private void clear(LogFile logFile) {
+        WriteAheadLog cur = wal;
+        if (cur == null)
+            rotator.write(logFile.getType(), logFile.getFile(), logFile::clear);
+        else
+            cur.append(fileName(logFile), true, List.of());
+    }
+
+    /**
+     * Typed records of a type will be written in the binary format
+     * The write-ahead log carries text lines, so records go as text while it is used
+     *
+     * @param type Log file type
+     * @see RecordCodec
+     */
+    public void useBinaryFormat(LogFileType type) {
+        binaryTypes.add(type);
+    }
+
+    /**
+     * Cuts torn records off the ends of binary files of a type
+     * Must be called on start before records are written
+     *
+     * @param type Log file type
+     * @return Count of cut bytes
+     * @throws IOException exception during reading or cutting
+     * @see LogFile#cutTornRecords()
+     */
+    public long cutTornRecords(LogFileType type) throws IOException {
+        long cut = 0;
+        for (LogFile file : files)
+            if (file.hasType(type))
+                cut += file.cutTornRecords();
+        return cut;
+    }
+
+    /**
+     * Sets timestamp format of text records
+     *
+     * @param millis Are milliseconds written: DD.MM.YYYY[HH:MM:SS.mmm]
+     * @see TimestampFormatter
+     */
+    public void setTimestampMillis(boolean millis) {
+        timestampMillis = millis;
+    }
+
+    /**
+     * Text form of a typed record
+     * The builder is reused by the calling thread, so only the result string is allocated
+     *
+     * @param record Record
+     * @return Record in the text format
+     * @see LogRecord#appendText(StringBuilder, TimestampFormatter, boolean)
+     */
+    public String text(LogRecord record) {
+        StringBuilder sb = textBuilder.get();
+        sb.setLength(0);
+        return record.appendText(sb, timestamps, timestampMillis).toString();
+    }
+
+    /**
+     * Logs a typed record to all the files of its type
+     *
+     * @param record Record to log
+     * @see FileLogger#logRecordsToAll(LogFileType, List)
+     */
+    public void logRecordToAll(LogRecord record) {
+        logRecordsToAll(record.type(), List.of(record));
+    }
+
+    /**
+     * Logs typed records to all the files with type type
+     * Files of binary types get encoded records, other files get text lines
+     *
+     * @param type    A type of all the files to log to
+     * @param records Records to log
+     * @see FileLogger#useBinaryFormat(LogFileType)
+     */
+    public void logRecordsToAll(LogFileType type, List<? extends LogRecord> records) {
+        if (records.isEmpty())
+            return;
+        if (wal == null && binaryTypes.contains(type)) {
+            forAllFiles(file -> file.doIf(logFile -> logFile.hasType(type), (Consumer<LogFile>) logFile ->
+                    rotator.write(type, logFile.getFile(), () -> logFile.write(records))));
+            return;
+        }
+        List<String> lines = new ArrayList<>(records.size());
+        for (LogRecord record : records)
+            lines.add(text(record));
+        forAllFiles(file -> file.doIf(logFile -> logFile.hasType(type), (Consumer<LogFile>) logFile -> logLines(logFile, lines)));
+    }
+
+    /**
+     * Sets a rotation policy for all files of a type
+     * Segments left by a previous run are compressed and old ones are removed in the background
+     *
+     * @param type   Log file type
+     * @param policy Rotation policy, null to stop rotating files of the type
+     * @see LogRotator
+     */
+    public void setRotationPolicy(LogFileType type, RotationPolicy policy) {
+        rotator.setPolicy(type, policy);
+        forAllFiles(file -> {
+            if (file.hasType(type))
+                rotator.cleanUp(type, file.getFile());
+        });
+    }
+
+    /**
+     * Closed segments of a log file
+     *
+     * @param name Log file name in system
+     * @return Segment files, the oldest first
+     * @see LogRotator#segments(File)
+     */
+    public List<File> getLogSegments(String name) {
+        return LogRotator.segments(getLogFile(name));
+    }
+
+    /**
+     * Log rotation statistics
+     *
+     * @return Statistics string
+     * @see LogRotator#stats()
+     */
+    public String rotationStats() {
+        return rotator.stats();
+    }
+
     /**
      * Adds a new LogFile to system
      *
@@ -345,7 +739,7 @@ public class FileLogger {
      * @see LogFile#clear()
      */
     public void clearAll(LogFileType type) {
-        forAllFiles(file -> file.doIf(logFile -> logFile.hasType(type), LogFile::clear));
+        forAllFiles(file -> file.doIf(logFile -> logFile.hasType(type), this::clear));
     }
 
     /**
@@ -358,7 +752,7 @@ public class FileLogger {
      * @see LogFile#clear()
      */
     public void clearAll(String name) {
-        forAllFiles(file -> file.doIf(logFile -> logFile.hasName(name), LogFile::clear));
+        forAllFiles(file -> file.doIf(logFile -> logFile.hasName(name), this::clear));
     }
 
     /**
@@ -371,7 +765,7 @@ public class FileLogger {
      * @see LogFile#clear()
      */
     public void clearOne(LogFileType type) {
-        forOneFile(file -> file.doIf(logFile -> logFile.hasType(type), LogFile::clear));
+        forOneFile(file -> file.doIf(logFile -> logFile.hasType(type), this::clear));
     }
 
     /**
@@ -384,7 +778,7 @@ public class FileLogger {
      * @see LogFile#clear()
      */
     public void clearOne(String name) {
-        forOneFile(file -> file.doIf(logFile -> logFile.hasName(name), LogFile::clear));
+        forOneFile(file -> file.doIf(logFile -> logFile.hasName(name), this::clear));
     }
 
     /**
@@ -413,6 +807,42 @@ public class FileLogger {
         forAllFiles(file -> logIf(file, logFile -> logFile.hasName(name), str));
     }
 
+    /**
+     * Logs several strings at once to all the files with name name
+     *
+     * @param name A name of all the files to log to
+     * @param strs Strings to log to all the files with name name
+     * @see LogFile#log(List)
+     */
+    public void logLinesToAll(String name, List<String> strs) {
+        if (!strs.isEmpty())
+            forAllFiles(file -> file.doIf(logFile -> logFile.hasName(name), (Consumer<LogFile>) logFile -> logLines(logFile, strs)));
+    }
+
+    /**
+     * Logs several strings at once to a file directly or through the write-ahead log
+     *
+     * @param logFile A file to log to
+     * @param strs    Strings to log
+     * @see LogFile#log(List)
+     */
+    private void logLines(LogFile logFile, List<String> strs) {
+        WriteAheadLog cur = wal;
+        if (cur == null)
+            rotator.write(logFile.getType(), logFile.getFile(), () -> logFile.log(strs));
+        else
+            cur.append(fileName(logFile), false, strs);
+    }
+
+    /**
+     * Forces data of all the files to the storage device
+     *
+     * @see LogFile#sync()
+     */
+    public void syncAll() {
+        forAllFiles(LogFile::sync);
+    }
+
 
     /**
      * Logs to the first of the files with type type
@@ -452,6 +882,10 @@ public class FileLogger {
      * @see FileLogger#logToOne(String, String)
      */
     public void log(LogFile logFile, String str) {
-        logFile.log(str);
+        WriteAheadLog cur = wal;
+        if (cur == null)
+            rotator.write(logFile.getType(), logFile.getFile(), () -> logFile.log(str));
+        else
+            cur.append(fileName(logFile), false, List.of(str));
     }
 }
@@ -0,0 +1,665 @@
+package com.livefish.Output.Files;
+
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Offline analytics of request and connection history
+ * Scans request and connection log files with all their rotated segments (text, binary and gzipped)
+ * and prints totals, top-N admins, clients, commands and results, clients with most disconnects
+ * and a time-bucketed histogram
+ * Plain text files are memory mapped and split into chunks on line boundaries, chunks and segments
+ * are processed in parallel by a fork-join pool and their partial results are merged
+ * java com.livefish.Output.Files.LogAnalytics [-top=N] [-bucket=minute|hour|day] [-days=N] [log folder]
+ *
+ * @author NAUMENKO-ZHIVOY ARTEM
+ * @version 2.0
+ * @see LogRotator#segments(File)
+ * @see RecordCodec#read(File, java.util.function.Consumer)
+ */
+public class LogAnalytics {
+    /**
+     * Chunk size of memory mapped text files in bytes
+     */
+    private static final long CHUNK = 16 * 1024 * 1024;
+    /**
+     * Max length of a line, which is read past the end of its chunk
+     */
+    private static final long MAX_LINE = 1024 * 1024;
+    /**
+     * Milliseconds in a day
+     */
+    private static final long DAY = 24 * 60 * 60 * 1000L;
+
+    /**
+     * Scanned log file
+     *
+     * @param file File
+     * @param type FINISHED_REQUESTS or CONNECTIONS
+     */
+    private record Source(File file, LogFileType type) {
+    }
+
+    /**
+     * Partial (and in the end total) scan result
+     * Times are local times in milliseconds (epoch milliseconds shifted by the zone offset)
+     */
+    private static class Stats {
+        /**
+         * Count of requests
+         */
+        long requests;
+        /**
+         * Count of connections
+         */
+        long connects;
+        /**
+         * Count of disconnections
+         */
+        long disconnects;
+        /**
+         * Count of lines, which could not be parsed
+         */
+        long malformed;
+        /**
+         * Scanned bytes (compressed bytes of gzipped segments)
+         */
+        long bytes;
+        /**
+         * First record time
+         */
+        long first = Long.MAX_VALUE;
+        /**
+         * Last record time
+         */
+        long last = Long.MIN_VALUE;
+        /**
+         * Requests by admin ids
+         */
+        final Map<Integer, long[]> byAdmin = new HashMap<>();
+        /**
+         * Requests by client ids
+         */
+        final Map<Integer, long[]> byClient = new HashMap<>();
+        /**
+         * Requests by commands
+         */
+        final Map<String, long[]> byCommand = new HashMap<>();
+        /**
+         * Requests by results
+         */
+        final Map<String, long[]> byResult = new HashMap<>();
+        /**
+         * Disconnections by client ids
+         */
+        final Map<Integer, long[]> disconnectsById = new HashMap<>();
+        /**
+         * Histogram buckets: requests, connections, disconnections
+         */
+        final Map<Long, long[]> histogram = new HashMap<>();
+
+        /**
+         * Adds a finished request
+         *
+         * @param time    Local time
+         * @param idA     Admin id
+         * @param idC     Client id
+         * @param cmd     Command
+         * @param success Result
+         * @param bucket  Histogram bucket size in milliseconds
+         */
+        void request(long time, int idA, int idC, String cmd, String success, long bucket) {
+            requests++;
+            time(time);
+            count(byAdmin, idA);
+            count(byClient, idC);
+            count(byCommand, cmd);
+            count(byResult, success);
+            histogram.computeIfAbsent(Math.floorDiv(time, bucket), key -> new long[3])[0]++;
+        }
+
+        /**
+         * Adds a connection or a disconnection
+         *
+         * @param time      Local time
+         * @param id        Client id
+         * @param connected Is it a connection
+         * @param bucket    Histogram bucket size in milliseconds
+         */
+        void connection(long time, int id, boolean connected, long bucket) {
+            time(time);
+            long[] cell = histogram.computeIfAbsent(Math.floorDiv(time, bucket), key -> new long[3]);
+            if (connected) {
+                connects++;
+                cell[1]++;
+            } else {
+                disconnects++;
+                cell[2]++;
+                count(disconnectsById, id);
+            }
+        }
+
+        /**
+         * Updates the time range
+         *
+         * @param time Local time
+         */
+        private void time(long time) {
+            first = Math.min(first, time);
+            last = Math.max(last, time);
+        }
+
+        /**
+         * Adds a partial result to this one
+         *
+         * @param other Partial result
+         * @return This result
+         */
+        Stats merge(Stats other) {
+            requests += other.requests;
+            connects += other.connects;
+            disconnects += other.disconnects;
+            malformed += other.malformed;
+            bytes += other.bytes;
+            first = Math.min(first, other.first);
+            last = Math.max(last, other.last);
+            merge(byAdmin, other.byAdmin);
+            merge(byClient, other.byClient);
+            merge(byCommand, other.byCommand);
+            merge(byResult, other.byResult);
+            merge(disconnectsById, other.disconnectsById);
+            merge(histogram, other.histogram);
+            return this;
+        }
+
+        /**
+         * Increments a counter
+         *
+         * @param map Counters
+         * @param key Counter key
+         * @param <K> Key type
+         */
+        private static <K> void count(Map<K, long[]> map, K key) {
+            map.computeIfAbsent(key, k -> new long[1])[0]++;
+        }
+
+        /**
+         * Adds counters of one map to another
+         *
+         * @param to   Destination counters
+         * @param from Source counters
+         * @param <K>  Key type
+         */
+        private static <K> void merge(Map<K, long[]> to, Map<K, long[]> from) {
+            from.forEach((key, value) -> {
+                long[] cur = to.get(key);
+                if (cur == null)
+                    to.put(key, value);
+                else
+                    for (int i = 0; i < cur.length; i++)
+                        cur[i] += value[i];
+            });
+        }
+    }
+
+    /**
+     * Time zone of text timestamps
+     */
+    private final ZoneId zone = ZoneId.systemDefault();
+    /**
+     * Histogram bucket size in milliseconds
+     */
+    private final long bucket;
+    /**
+     * Records before this local time are skipped
+     */
+    private final long since;
+
+    /**
+     * Analytics construction function
+     *
+     * @param bucket Histogram bucket size in milliseconds
+     * @param days   Count of last days to analyze, 0 for all the history
+     */
+    private LogAnalytics(long bucket, int days) {
+        this.bucket = bucket;
+        long now = System.currentTimeMillis();
+        this.since = days <= 0 ? Long.MIN_VALUE : local(now) - days * DAY;
+    }
+
+    /**
+     * Analytics tool entry point
+     *
+     * @param args [-top=N] [-bucket=minute|hour|day] [-days=N] [log folder]
+     */
+    public static void main(String[] args) {
+        int top = 10;
+        int days = 0;
+        long bucket = 60 * 60 * 1000L;
+        String dir = "logFolder";
+        try {
+            for (String arg : args) {
+                if (arg.startsWith("-top="))
+                    top = Integer.parseInt(arg.substring(5));
+                else if (arg.startsWith("-days="))
+                    days = Integer.parseInt(arg.substring(6));
+                else if (arg.startsWith("-bucket="))
+                    bucket = switch (arg.substring(8)) {
+                        case "minute" -> 60 * 1000L;
+                        case "hour" -> 60 * 60 * 1000L;
+                        case "day" -> DAY;
+                        default -> throw new IllegalArgumentException(arg);
+                    };
+                else if (arg.startsWith("-"))
+                    throw new IllegalArgumentException(arg);
+                else
+                    dir = arg;
+            }
+        } catch (IllegalArgumentException e) {
+            System.out.println("Usage: java com.livefish.Output.Files.LogAnalytics [-top=N] [-bucket=minute|hour|day] [-days=N] [log folder]");
+            return;
+        }
+
+        long start = System.currentTimeMillis();
+        LogAnalytics analytics = new LogAnalytics(bucket, days);
+        List<Source> sources = sources(dir);
+        Stats stats = ForkJoinPool.commonPool().invoke(analytics.scanAll(sources));
+        analytics.print(stats, top, sources.size(), System.currentTimeMillis() - start);
+    }
+
+    /**
+     * Log files of a log folder with their rotated segments
+     * Log file paths are made the same way as by {@link FileLogger}
+     *
+     * @param dir Log folder path
+     * @return Request and connection files (text and binary)
+     */
+    private static List<Source> sources(String dir) {
+        String logDirAbsPath = new File(dir).getAbsolutePath() + "\\";
+        List<Source> res = new ArrayList<>();
+        String[][] names = {{"req", "FINISHED_REQUESTS"}, {"connectedClients", "CONNECTIONS"}};
+        for (String[] name : names)
+            for (String ext : new String[]{".dat", ".bin"}) {
+                File active = new File(logDirAbsPath + name[0] + ext);
+                LogFileType type = LogFileType.valueOf(name[1]);
+                for (File segment : LogRotator.segments(active))
+                    res.add(new Source(segment, type));
+                if (active.isFile())
+                    res.add(new Source(active, type));
+            }
+        return res;
+    }
+
+    /**
+     * Task scanning all the files
+     *
+     * @param sources Files to scan
+     * @return Task merging results of all the files and chunks
+     */
+    private RecursiveTask<Stats> scanAll(List<Source> sources) {
+        return new RecursiveTask<>() {
+            @Override
+            protected Stats compute() {
+                List<RecursiveTask<Stats>> tasks = new ArrayList<>();
+                for (Source source : sources) {
+                    String name = source.file().getName();
+                    if (name.endsWith(".gz") || name.contains(".bin"))
+                        tasks.add(task(() -> scanStream(source)));
+                    else
+                        for (long from = 0, size = source.file().length(); from < size; from += CHUNK) {
+                            long chunkStart = from;
+                            tasks.add(task(() -> scanChunk(source, chunkStart, Math.min(size, chunkStart + CHUNK))));
+                        }
+                }
+                invokeAll(tasks);
+                Stats res = new Stats();
+                for (RecursiveTask<Stats> task : tasks)
+                    res.merge(task.join());
+                return res;
+            }
+        };
+    }
+
+    /**
+     * Scanning action of a task
+     */
+    private interface Scan {
+        /**
+         * @return Partial result
+         * @throws IOException exception during reading
+         */
+        Stats run() throws IOException;
+    }
+
+    /**
+     * Fork-join task of a scanning action
+     *
+     * @param scan Scanning action
+     * @return Task
+     */
+    private static RecursiveTask<Stats> task(Scan scan) {
+        return new RecursiveTask<>() {
+            @Override
+            protected Stats compute() {
+                try {
+                    return scan.run();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        };
+    }
+
+    /**
+     * Scans lines of a memory mapped text file, which start in a chunk
+     * A line crossing the chunk end is read to its end, a line crossing the chunk start belongs to the previous chunk
+     *
+     * @param source Text file
+     * @param from   Chunk start
+     * @param to     Chunk end
+     * @return Partial result
+     * @throws IOException exception during mapping
+     */
+    private Stats scanChunk(Source source, long from, long to) throws IOException {
+        Stats stats = new Stats();
+        try (FileChannel channel = FileChannel.open(source.file().toPath(), StandardOpenOption.READ)) {
+            long mapStart = Math.max(0, from - 1);
+            long mapEnd = Math.min(channel.size(), to + MAX_LINE);
+            MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, mapStart, mapEnd - mapStart);
+            int pos = (int) (from - mapStart);
+            int end = (int) (to - mapStart);
+            if (from > 0)
+                while (pos < map.limit() && map.get(pos - 1) != '\n')
+                    pos++;
+            byte[] line = new byte[256];
+            while (pos < end && pos < map.limit()) {
+                int length = 0;
+                while (pos < map.limit() && map.get(pos) != '\n') {
+                    if (length == line.length)
+                        line = Arrays.copyOf(line, length * 2);
+                    line[length++] = map.get(pos++);
+                }
+                pos++;
+                parseLine(source.type(), line, length, stats);
+            }
+        }
+        stats.bytes = to - from;
+        return stats;
+    }
+
+    /**
+     * Scans a gzipped text segment or a binary file (gzipped or not) as one stream
+     *
+     * @param source File
+     * @return Partial result
+     * @throws IOException exception during reading
+     */
+    private Stats scanStream(Source source) throws IOException {
+        Stats stats = new Stats();
+        stats.bytes = source.file().length();
+        if (source.file().getName().contains(".bin")) {
+            RecordCodec.read(source.file(), record -> {
+                long time = local(record.time());
+                if (time < since)
+                    return;
+                if (record instanceof RequestRecord req)
+                    stats.request(time, req.idA(), req.idC(), req.cmd(), req.success(), bucket);
+                else if (record instanceof ConnectionEvent event)
+                    stats.connection(time, event.id(), event.connected(), bucket);
+            });
+            return stats;
+        }
+        try (InputStream in = new BufferedInputStream(new GZIPInputStream(new FileInputStream(source.file()), 64 * 1024), 64 * 1024)) {
+            byte[] line = new byte[256];
+            int length = 0;
+            for (int b = in.read(); b != -1; b = in.read()) {
+                if (b == '\n') {
+                    parseLine(source.type(), line, length, stats);
+                    length = 0;
+                    continue;
+                }
+                if (length == line.length)
+                    line = Arrays.copyOf(line, length * 2);
+                line[length++] = (byte) b;
+            }
+            if (length > 0)
+                parseLine(source.type(), line, length, stats);
+        }
+        return stats;
+    }
+
+    /**
+     * Parses a text record: DD.MM.YYYY[HH:MM:SS(.mmm)]$admin id$client id$command$arguments$result
+     * or DD.MM.YYYY[HH:MM:SS(.mmm)]$id$c|d
+     *
+     * @param type   Record type
+     * @param line   Line bytes
+     * @param length Line length
+     * @param stats  Result to add the record to
+     */
+    private void parseLine(LogFileType type, byte[] line, int length, Stats stats) {
+        if (length > 0 && line[length - 1] == '\r')
+            length--;
+        if (length == 0)
+            return;
+        if (length < TimestampFormatter.LENGTH + 2 || line[2] != '.' || line[5] != '.' || line[10] != '[') {
+            stats.malformed++;
+            return;
+        }
+        try {
+            long time = daysFromCivil(digits(line, 6, 4), digits(line, 3, 2), digits(line, 0, 2)) * DAY
+                    + digits(line, 11, 2) * 3600_000L + digits(line, 14, 2) * 60_000L + digits(line, 17, 2) * 1000L;
+            int pos = 19;
+            if (line[pos] == '.') {
+                time += digits(line, 20, 3);
+                pos = 23;
+            }
+            if (line[pos] != ']' || line[pos + 1] != '$')
+                throw new NumberFormatException();
+            if (time < since)
+                return;
+            pos += 2;
+
+            int second = indexOf(line, pos, length, '$');
+            int first = parseInt(line, pos, second);
+            if (type == LogFileType.CONNECTIONS) {
+                if (length - second != 2 || (line[second + 1] != 'c' && line[second + 1] != 'd'))
+                    throw new NumberFormatException();
+                stats.connection(time, first, line[second + 1] == 'c', bucket);
+                return;
+            }
+            int third = indexOf(line, second + 1, length, '$');
+            int idC = parseInt(line, second + 1, third);
+            int fourth = indexOf(line, third + 1, length, '$');
+            int last = length - 1;
+            while (line[last] != '$')
+                last--;
+            if (last < fourth)
+                throw new NumberFormatException();
+            stats.request(time, first, idC,
+                    new String(line, third + 1, fourth - third - 1, StandardCharsets.UTF_8),
+                    new String(line, last + 1, length - last - 1, StandardCharsets.UTF_8), bucket);
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            stats.malformed++;
+        }
+    }
+
+    /**
+     * Local time of an epoch time
+     *
+     * @param epochMillis Time in milliseconds since the epoch
+     * @return Time shifted by the zone offset
+     */
+    private long local(long epochMillis) {
+        ZoneOffset offset = zone.getRules().getOffset(Instant.ofEpochMilli(epochMillis));
+        return epochMillis + offset.getTotalSeconds() * 1000L;
+    }
+
+    /**
+     * Prints the report
+     *
+     * @param stats   Total result
+     * @param top     Count of entries in top lists
+     * @param files   Count of scanned files
+     * @param elapsed Scanning time in milliseconds
+     */
+    private void print(Stats stats, int top, int files, long elapsed) {
+        TimestampFormatter timestamps = new TimestampFormatter(ZoneOffset.UTC);
+        StringBuilder sb = new StringBuilder();
+        sb.append("Requests: ").append(stats.requests).append(", connections: ").append(stats.connects)
+                .append(", disconnections: ").append(stats.disconnects).append(", malformed lines: ").append(stats.malformed).append('\n');
+        if (stats.first <= stats.last) {
+            sb.append("From ");
+            timestamps.appendTo(sb, stats.first).append(" to ");
+            timestamps.appendTo(sb, stats.last).append('\n');
+        }
+        if (stats.requests > 0) {
+            sb.append("Average requests per admin: ").append(String.format(Locale.ROOT, "%.2f", (double) stats.requests / stats.byAdmin.size()))
+                    .append(", per client: ").append(String.format(Locale.ROOT, "%.2f", (double) stats.requests / stats.byClient.size())).append('\n');
+            sb.append("Results:").append(percents(stats.byResult, stats.requests)).append('\n');
+        }
+        top(sb, "Top admins by requests", stats.byAdmin, top);
+        top(sb, "Top clients by requests", stats.byClient, top);
+        top(sb, "Top commands", stats.byCommand, top);
+        top(sb, "Top clients by disconnections", stats.disconnectsById, top);
+
+        sb.append("Histogram (requests connections disconnections):\n");
+        List<Long> buckets = new ArrayList<>(stats.histogram.keySet());
+        Collections.sort(buckets);
+        long max = 1;
+        for (long[] cell : stats.histogram.values())
+            max = Math.max(max, cell[0] + cell[1] + cell[2]);
+        for (Long key : buckets) {
+            long[] cell = stats.histogram.get(key);
+            timestamps.appendTo(sb.append("  "), key * bucket).append(' ').append(cell[0]).append(' ').append(cell[1]).append(' ').append(cell[2]).append(' ');
+            sb.append("#".repeat((int) (40 * (cell[0] + cell[1] + cell[2]) / max))).append('\n');
+        }
+        sb.append("Scanned ").append(files).append(" files, ").append(stats.bytes / 1024).append(" KB in ").append(elapsed).append(" ms");
+        System.out.println(sb);
+    }
+
+    /**
+     * Appends a top list
+     *
+     * @param sb    Report builder
+     * @param title List title
+     * @param map   Counters
+     * @param top   Max count of entries
+     * @param <K>   Key type
+     */
+    private static <K> void top(StringBuilder sb, String title, Map<K, long[]> map, int top) {
+        if (map.isEmpty())
+            return;
+        sb.append(title).append(":\n");
+        map.entrySet().stream()
+                .sorted((a, b) -> Long.compare(b.getValue()[0], a.getValue()[0]))
+                .limit(top)
+                .forEach(entry -> sb.append("  ").append(entry.getKey()).append(' ').append(entry.getValue()[0]).append('\n'));
+    }
+
+    /**
+     * Counters with their shares
+     *
+     * @param map   Counters
+     * @param total Total count
+     * @return " key=count (share%)" for all the counters, the biggest first
+     */
+    private static String percents(Map<String, long[]> map, long total) {
+        StringBuilder sb = new StringBuilder();
+        map.entrySet().stream()
+                .sorted((a, b) -> Long.compare(b.getValue()[0], a.getValue()[0]))
+                .forEach(entry -> sb.append(' ').append(entry.getKey()).append('=').append(entry.getValue()[0])
+                        .append(String.format(Locale.ROOT, " (%.1f%%)", 100.0 * entry.getValue()[0] / total)));
+        return sb.toString();
+    }
+
+    /**
+     * Days since the epoch of a date (proleptic Gregorian calendar) without allocations
+     *
+     * @param year  Year
+     * @param month Month from 1 to 12
+     * @param day   Day of month
+     * @return Epoch day
+     */
+    private static long daysFromCivil(int year, int month, int day) {
+        if (month < 1 || month > 12 || day < 1 || day > 31)
+            throw new NumberFormatException();
+        year -= month <= 2 ? 1 : 0;
+        int era = Math.floorDiv(year, 400);
+        int yearOfEra = year - era * 400;
+        int dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+        int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097L + dayOfEra - 719468;
+    }
+
+    /**
+     * Parses a fixed count of decimal digits
+     *
+     * @param line  Line bytes
+     * @param from  First digit index
+     * @param count Count of digits
+     * @return Number
+     */
+    private static int digits(byte[] line, int from, int count) {
+        int res = 0;
+        for (int i = from; i < from + count; i++) {
+            int d = line[i] - '0';
+            if (d < 0 || d > 9)
+                throw new NumberFormatException();
+            res = res * 10 + d;
+        }
+        return res;
+    }
+
+    /**
+     * Parses a signed decimal number
+     *
+     * @param line Line bytes
+     * @param from First byte index
+     * @param to   Index after the last byte
+     * @return Number
+     */
+    private static int parseInt(byte[] line, int from, int to) {
+        boolean negative = from < to && line[from] == '-';
+        int start = negative ? from + 1 : from;
+        if (start >= to || to - start > 10)
+            throw new NumberFormatException();
+        long res = 0;
+        for (int i = start; i < to; i++) {
+            int d = line[i] - '0';
+            if (d < 0 || d > 9)
+                throw new NumberFormatException();
+            res = res * 10 + d;
+        }
+        res = negative ? -res : res;
+        if (res != (int) res)
+            throw new NumberFormatException();
+        return (int) res;
+    }
+
+    /**
+     * Byte search function
+     *
+     * @param line Line bytes
+     * @param from First index to check
+     * @param to   Line length
+     * @param b    Byte to look for
+     * @return Index of the byte
+     */
+    private static int indexOf(byte[] line, int from, int to, char b) {
+        for (int i = from; i < to; i++)
+            if (line[i] == b)
+                return i;
+        throw new NumberFormatException();
+    }
+}
@@ -29,4 +29,8 @@ public enum LogFileType {
      * A file with all ids, which were registered on the server
      */
     SAVED_IDS,
+    /**
+     * A file with all client tag changes
+     */
+    TAGS,
 }
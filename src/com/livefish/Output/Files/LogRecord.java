@@ -0,0 +1,37 @@
+package com.livefish.Output.Files;
+
+/**
+ * Typed log record
+ * Records are written to binary log files by {@link RecordCodec} or to text log files
+ * in the $-separated text format
+ *
+ * @author NAUMENKO-ZHIVOY ARTEM
+ * @version 2.0
+ * @see FileLogger#logRecordToAll(LogRecord)
+ * @see RecordCodec
+ */
+public sealed interface LogRecord permits ConnectionEvent, OnOffEvent, RequestRecord {
+    /**
+     * Record time getter
+     *
+     * @return Record time in milliseconds since the epoch
+     */
+    long time();
+
+    /**
+     * Type of the log files the record is written to
+     *
+     * @return Log file type
+     */
+    LogFileType type();
+
+    /**
+     * Appends the text form of the record
+     *
+     * @param sb         Builder to append to
+     * @param timestamps Timestamp formatter
+     * @param millis     Are milliseconds written in the timestamp
+     * @return The same builder
+     */
+    StringBuilder appendText(StringBuilder sb, TimestampFormatter timestamps, boolean millis);
+}
@@ -0,0 +1,299 @@
+package com.livefish.Output.Files;
+
+import com.livefish.Output.Console.Logger;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.text.SimpleDateFormat;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Log file rotation by size and age
+ * Writes to a rotated file hold its read lock, rollover holds the write lock: the active file is atomically renamed
+ * to a segment (name.yyyyMMdd-HHmmss[-n]) and a new empty active file is created, so no write is lost or split
+ * Closed segments are gzipped and old segments are removed by one minimal priority background thread
+ *
+ * @author NAUMENKO-ZHIVOY ARTEM
+ * @version 2.0
+ * @see RotationPolicy
+ * @see FileLogger
+ */
+public class LogRotator {
+    /**
+     * Compressed segment extension
+     */
+    private static final String GZIP = ".gz";
+
+    /**
+     * Rotation policies by file types (types without a policy are never rotated)
+     */
+    private final Map<LogFileType, RotationPolicy> policies = new ConcurrentHashMap<>();
+    /**
+     * Rollover locks by active file paths
+     */
+    private final Map<String, ReentrantReadWriteLock> locks = new ConcurrentHashMap<>();
+    /**
+     * Creation times of active files by their paths in milliseconds
+     */
+    private final Map<String, Long> opened = new ConcurrentHashMap<>();
+    /**
+     * Background compression and retention thread
+     */
+    private final ExecutorService background;
+    /**
+     * Logger instance for console
+     */
+    private final Logger logger = Logger.getInstance();
+
+    /**
+     * Count of rollovers
+     */
+    private final AtomicLong rotations = new AtomicLong();
+    /**
+     * Count of compressed segments
+     */
+    private final AtomicLong compressed = new AtomicLong();
+    /**
+     * Bytes saved by compression
+     */
+    private final AtomicLong savedBytes = new AtomicLong();
+    /**
+     * Count of removed segments
+     */
+    private final AtomicLong removed = new AtomicLong();
+
+    /**
+     * Log rotator construction function
+     */
+    public LogRotator() {
+        background = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "Log compression");
+            t.setDaemon(true);
+            t.setPriority(Thread.MIN_PRIORITY);
+            return t;
+        });
+    }
+
+    /**
+     * Sets a rotation policy of a file type
+     *
+     * @param type   Log file type
+     * @param policy Rotation policy, null to stop rotating files of the type
+     */
+    public void setPolicy(LogFileType type, RotationPolicy policy) {
+        if (policy == null)
+            policies.remove(type);
+        else
+            policies.put(type, policy);
+    }
+
+    /**
+     * Compresses segments left uncompressed by a previous run and removes old ones in the background
+     *
+     * @param type Log file type
+     * @param file Active log file to clean up
+     */
+    public void cleanUp(LogFileType type, File file) {
+        RotationPolicy policy = policyOf(type);
+        if (policy != null)
+            background.execute(() -> {
+                for (File segment : segments(file))
+                    if (!segment.getName().endsWith(GZIP))
+                        compress(segment, policy);
+                retain(file, policy);
+            });
+    }
+
+    /**
+     * Does a write to a log file, the file is rotated first if its policy says so
+     *
+     * @param type  Log file type
+     * @param file  Active log file to write to
+     * @param write Write action
+     */
+    public void write(LogFileType type, File file, Runnable write) {
+        RotationPolicy policy = policyOf(type);
+        if (policy == null) {
+            write.run();
+            return;
+        }
+        String path = file.getAbsolutePath();
+        ReentrantReadWriteLock lock = locks.computeIfAbsent(path, key -> new ReentrantReadWriteLock());
+        if (due(file, policy))
+            rotate(file, policy, lock);
+
+        lock.readLock().lock();
+        try {
+            write.run();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Closed segments of a log file, the oldest first
+     *
+     * @param active Active log file
+     * @return Segment files (compressed or not)
+     */
+    public static List<File> segments(File active) {
+        File dir = active.getAbsoluteFile().getParentFile();
+        Pattern name = Pattern.compile(Pattern.quote(active.getName()) + "\\.\\d{8}-\\d{6}(-\\d+)?(\\.gz)?");
+        File[] files = dir.listFiles((d, fileName) -> name.matcher(fileName).matches());
+        if (files == null)
+            return new ArrayList<>();
+        List<File> res = new ArrayList<>(Arrays.asList(files));
+        res.sort(Comparator.comparingLong(File::lastModified).thenComparing(File::getName));
+        return res;
+    }
+
+    /**
+     * Log rotation statistics
+     *
+     * @return rotations=..,compressed=..,savedBytes=..,removed=..
+     */
+    public String stats() {
+        return "rotations=" + rotations.get() + ",compressed=" + compressed.get() + ",savedBytes=" + savedBytes.get() + ",removed=" + removed.get();
+    }
+
+    /**
+     * Rotation policy of a log file type
+     *
+     * @param type Log file type
+     * @return Policy of the type, null if files of the type are not rotated
+     */
+    private RotationPolicy policyOf(LogFileType type) {
+        return type == null ? null : policies.get(type);
+    }
+
+    /**
+     * Checks if a file must be rotated
+     *
+     * @param active Active file
+     * @param policy File rotation policy
+     * @return True if the file is too big or too old
+     */
+    private boolean due(File active, RotationPolicy policy) {
+        long size = active.length();
+        if (size >= policy.maxBytes())
+            return true;
+        return size > 0 && System.currentTimeMillis() - opened.computeIfAbsent(active.getAbsolutePath(), key -> creationTime(active)) >= policy.maxAge();
+    }
+
+    /**
+     * Rollover: renames the active file to a new segment and creates a new active file
+     *
+     * @param active Active file
+     * @param policy File rotation policy
+     * @param lock   File rollover lock
+     */
+    private void rotate(File active, RotationPolicy policy, ReentrantReadWriteLock lock) {
+        File segment;
+        lock.writeLock().lock();
+        try {
+            if (!due(active, policy))
+                return;
+            segment = segmentFile(active);
+            Files.move(active.toPath(), segment.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            Files.createFile(active.toPath());
+            opened.put(active.getAbsolutePath(), System.currentTimeMillis());
+            rotations.incrementAndGet();
+        } catch (IOException e) {
+            logger.print("Failed to rotate log file " + active.getAbsolutePath() + ": " + e.getMessage(), "Error");
+            return;
+        } finally {
+            lock.writeLock().unlock();
+        }
+        background.execute(() -> {
+            compress(segment, policy);
+            retain(active, policy);
+        });
+    }
+
+    /**
+     * New segment file for an active file
+     *
+     * @param active Active file
+     * @return Not existing segment file named by the current time
+     */
+    private File segmentFile(File active) {
+        String base = active.getAbsolutePath() + "." + new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date());
+        File res = new File(base);
+        for (int i = 1; res.exists() || new File(res.getPath() + GZIP).exists(); i++)
+            res = new File(base + "-" + i);
+        return res;
+    }
+
+    /**
+     * Compresses a closed segment with gzip (background thread)
+     * The archive is written to a temporary file and atomically renamed, the segment is removed after that
+     *
+     * @param segment Closed segment
+     * @param policy  File rotation policy
+     */
+    private void compress(File segment, RotationPolicy policy) {
+        if (!policy.compress() || !segment.isFile())
+            return;
+        File tmp = new File(segment.getPath() + GZIP + ".tmp");
+        File archive = new File(segment.getPath() + GZIP);
+        try {
+            try (InputStream in = new FileInputStream(segment);
+                 OutputStream out = new GZIPOutputStream(new FileOutputStream(tmp), 64 * 1024)) {
+                in.transferTo(out);
+            }
+            if (!tmp.setLastModified(segment.lastModified()))
+                logger.print("Failed to keep modification time of " + segment.getName(), "Error");
+            Files.move(tmp.toPath(), archive.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            savedBytes.addAndGet(segment.length() - archive.length());
+            Files.delete(segment.toPath());
+            compressed.incrementAndGet();
+        } catch (IOException e) {
+            logger.print("Failed to compress log segment " + segment.getAbsolutePath() + ": " + e.getMessage(), "Error");
+            if (tmp.exists() && !tmp.delete())
+                logger.print("Failed to remove " + tmp.getAbsolutePath(), "Error");
+        }
+    }
+
+    /**
+     * Removes segments over the count limit (the oldest first) and segments older than the retention age
+     *
+     * @param active Active file
+     * @param policy File rotation policy
+     */
+    private void retain(File active, RotationPolicy policy) {
+        List<File> segments = segments(active);
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < segments.size(); i++) {
+            File segment = segments.get(i);
+            if (segments.size() - i > policy.keep() || now - segment.lastModified() > policy.retainAge()) {
+                if (segment.delete())
+                    removed.incrementAndGet();
+                else
+                    logger.print("Failed to remove old log segment " + segment.getAbsolutePath(), "Error");
+            }
+        }
+    }
+
+    /**
+     * File creation time
+     *
+     * @param file File
+     * @return Creation time in milliseconds, now if it is not known
+     */
+    private static long creationTime(File file) {
+        try {
+            return Files.readAttributes(file.toPath(), BasicFileAttributes.class).creationTime().toMillis();
+        } catch (IOException e) {
+            return System.currentTimeMillis();
+        }
+    }
+}
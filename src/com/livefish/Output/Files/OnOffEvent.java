@@ -0,0 +1,23 @@
+package com.livefish.Output.Files;
+
+/**
+ * Server powering on or turning off record
+ * Text form: DD.MM.YYYY[HH:MM:SS]$On or DD.MM.YYYY[HH:MM:SS]$Off
+ *
+ * @param time Event time in milliseconds since the epoch
+ * @param on   True if the server powered on, false if it turned off
+ * @author NAUMENKO-ZHIVOY ARTEM
+ * @version 2.0
+ * @see LogRecord
+ */
+public record OnOffEvent(long time, boolean on) implements LogRecord {
+    @Override
+    public LogFileType type() {
+        return LogFileType.ON_OFF;
+    }
+
+    @Override
+    public StringBuilder appendText(StringBuilder sb, TimestampFormatter timestamps, boolean millis) {
+        return (millis ? timestamps.appendMillisTo(sb, time) : timestamps.appendTo(sb, time)).append('$').append(on ? "On" : "Off");
+    }
+}
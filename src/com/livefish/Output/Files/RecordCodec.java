@@ -0,0 +1,395 @@
+package com.livefish.Output.Files;
+
+import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Binary log record format
+ * A record is a frame: length (4 bytes, big-endian, length of the rest of the frame), kind (1 byte),
+ * time (8 bytes, epoch milliseconds) and kind fields:
+ * connection - id (4 bytes), connected (1 byte);
+ * on-off - on (1 byte);
+ * request - admin id (4 bytes), client id (4 bytes), command, arguments, result.
+ * Strings are UTF-8 bytes after a varint of their length + 1 (0 is null)
+ * Records are encoded straight into pooled direct buffers, without building strings or byte arrays
+ *
+ * @author NAUMENKO-ZHIVOY ARTEM
+ * @version 2.0
+ * @see LogRecord
+ * @see RecordDump
+ */
+public final class RecordCodec {
+    /**
+     * Connection record kind
+     */
+    private static final byte CONNECTION = 1;
+    /**
+     * On-off record kind
+     */
+    private static final byte ON_OFF = 2;
+    /**
+     * Request record kind
+     */
+    private static final byte REQUEST = 3;
+    /**
+     * Size of a pooled buffer in bytes, bigger records get a one-off buffer
+     */
+    private static final int BUFFER_SIZE = 4096;
+    /**
+     * Max count of pooled buffers
+     */
+    private static final int POOL_MAX = 64;
+    /**
+     * Max frame length, longer frames are treated as corrupted data
+     */
+    private static final int FRAME_MAX = 64 * 1024 * 1024;
+
+    /**
+     * Free pooled buffers
+     */
+    private static final ConcurrentLinkedQueue<ByteBuffer> pool = new ConcurrentLinkedQueue<>();
+    /**
+     * Count of free pooled buffers
+     */
+    private static final AtomicInteger pooled = new AtomicInteger();
+
+    /**
+     * No instances, only static functions
+     */
+    private RecordCodec() {
+    }
+
+    /**
+     * Encodes a record into a pooled buffer
+     * The buffer must be given back with {@link RecordCodec#release(ByteBuffer)} after it is written
+     *
+     * @param record Record to encode
+     * @return Buffer with the frame ready to be read
+     */
+    public static ByteBuffer encode(LogRecord record) {
+        ByteBuffer buf = borrow(maxSize(record));
+        encode(record, buf);
+        return buf.flip();
+    }
+
+    /**
+     * Gives back a buffer taken by {@link RecordCodec#encode(LogRecord)}
+     *
+     * @param buf Buffer to give back
+     */
+    public static void release(ByteBuffer buf) {
+        if (!buf.isDirect() || buf.capacity() != BUFFER_SIZE)
+            return;
+        if (pooled.incrementAndGet() <= POOL_MAX)
+            pool.offer(buf);
+        else
+            pooled.decrementAndGet();
+    }
+
+    /**
+     * Writes records to a channel
+     *
+     * @param channel Channel to write to
+     * @param records Records to write
+     * @throws IOException exception during writing
+     */
+    public static void write(FileChannel channel, List<? extends LogRecord> records) throws IOException {
+        for (LogRecord record : records) {
+            ByteBuffer buf = encode(record);
+            try {
+                while (buf.hasRemaining())
+                    channel.write(buf);
+            } finally {
+                release(buf);
+            }
+        }
+    }
+
+    /**
+     * Decodes one record
+     *
+     * @param buf Buffer positioned at a frame, it is positioned after the frame if a record is decoded
+     * @return Decoded record, null if the buffer has no whole frame
+     * @throws IOException corrupted frame (fields don't fit the frame length too)
+     */
+    public static LogRecord decode(ByteBuffer buf) throws IOException {
+        if (buf.remaining() < 4)
+            return null;
+        int length = buf.getInt(buf.position());
+        if (length < 9 || length > FRAME_MAX)
+            throw new IOException("invalid record length " + length);
+        if (buf.remaining() < 4 + length)
+            return null;
+        int end = buf.position() + 4 + length;
+        buf.position(buf.position() + 4);
+        ByteBuffer frame = buf.slice(buf.position(), length);
+        byte kind = frame.get();
+        long time = frame.getLong();
+        LogRecord res;
+        try {
+            res = switch (kind) {
+                case CONNECTION -> new ConnectionEvent(time, frame.getInt(), frame.get() != 0);
+                case ON_OFF -> new OnOffEvent(time, frame.get() != 0);
+                case REQUEST -> new RequestRecord(time, frame.getInt(), frame.getInt(), getString(frame), getString(frame), getString(frame));
+                default -> throw new IOException("unknown record kind " + kind);
+            };
+        } catch (BufferUnderflowException e) {
+            throw new IOException("corrupt record of kind " + kind + ": fields are longer than the frame");
+        }
+        if (frame.hasRemaining())
+            throw new IOException("corrupt record of kind " + kind + ": frame is longer than the fields");
+        buf.position(end);
+        return res;
+    }
+
+    /**
+     * Reads all records of a binary log file or of its gzipped segment
+     * A torn record at the end of a file (the server was killed while writing it) is skipped
+     *
+     * @param file   Binary log file (.gz files are decompressed)
+     * @param action Action done with every record
+     * @throws IOException exception during reading or corrupted data
+     */
+    public static void read(File file, Consumer<LogRecord> action) throws IOException {
+        try (InputStream in = open(file)) {
+            read(in, action);
+        }
+    }
+
+    /**
+     * Opens a log file or its gzipped segment for reading
+     *
+     * @param file Log file (.gz files are decompressed)
+     * @return Buffered stream of file data
+     * @throws IOException exception during opening
+     */
+    public static InputStream open(File file) throws IOException {
+        InputStream raw = new FileInputStream(file);
+        try {
+            return new BufferedInputStream(file.getName().endsWith(".gz") ? new GZIPInputStream(raw, 64 * 1024) : raw, 64 * 1024);
+        } catch (IOException e) {
+            raw.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Reads all records of a stream of binary log data
+     * A torn record at the end of the stream is skipped
+     *
+     * @param stream Stream positioned at a frame, it is not closed
+     * @param action Action done with every record
+     * @throws IOException exception during reading or corrupted data
+     */
+    public static void read(InputStream stream, Consumer<LogRecord> action) throws IOException {
+        DataInputStream in = new DataInputStream(stream);
+        byte[] frame = new byte[BUFFER_SIZE];
+        while (true) {
+            int length;
+            try {
+                length = in.readInt();
+            } catch (EOFException e) {
+                return;
+            }
+            if (length < 9 || length > FRAME_MAX)
+                throw new IOException("invalid record length " + length);
+            if (frame.length < 4 + length)
+                frame = new byte[4 + length];
+            ByteBuffer.wrap(frame).putInt(length);
+            try {
+                in.readFully(frame, 4, length);
+            } catch (EOFException e) {
+                return;
+            }
+            action.accept(decode(ByteBuffer.wrap(frame, 0, 4 + length)));
+        }
+    }
+
+    /**
+     * Length of the whole records at the start of a binary log file
+     * Reading stops at the first torn or corrupt frame, everything after it can't be read
+     *
+     * @param channel Channel of a binary log file, it is read from its start and not closed
+     * @return Length in bytes of the frames before the first torn or corrupt one
+     * @throws IOException exception during reading
+     */
+    public static long validLength(FileChannel channel) throws IOException {
+        channel.position(0);
+        DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel), 64 * 1024));
+        byte[] frame = new byte[BUFFER_SIZE];
+        long valid = 0;
+        while (true) {
+            int length;
+            try {
+                length = in.readInt();
+                if (length < 9 || length > FRAME_MAX)
+                    return valid;
+                if (frame.length < 4 + length)
+                    frame = new byte[4 + length];
+                ByteBuffer.wrap(frame).putInt(length);
+                in.readFully(frame, 4, length);
+            } catch (EOFException e) {
+                return valid;
+            }
+            try {
+                decode(ByteBuffer.wrap(frame, 0, 4 + length));
+            } catch (IOException e) {
+                return valid;
+            }
+            valid += 4 + length;
+        }
+    }
+
+    /**
+     * Writes a record frame
+     *
+     * @param record Record to write
+     * @param buf    Buffer big enough for the record
+     */
+    private static void encode(LogRecord record, ByteBuffer buf) {
+        int start = buf.position();
+        buf.putInt(0);
+        if (record instanceof ConnectionEvent event)
+            buf.put(CONNECTION).putLong(event.time()).putInt(event.id()).put((byte) (event.connected() ? 1 : 0));
+        else if (record instanceof OnOffEvent event)
+            buf.put(ON_OFF).putLong(event.time()).put((byte) (event.on() ? 1 : 0));
+        else if (record instanceof RequestRecord req) {
+            buf.put(REQUEST).putLong(req.time()).putInt(req.idA()).putInt(req.idC());
+            putString(buf, req.cmd());
+            putString(buf, req.args());
+            putString(buf, req.success());
+        }
+        buf.putInt(start, buf.position() - start - 4);
+    }
+
+    /**
+     * Max size of a record frame
+     *
+     * @param record Record
+     * @return Size in bytes the frame is not bigger than
+     */
+    private static int maxSize(LogRecord record) {
+        int size = 4 + 1 + 8 + 8;
+        if (record instanceof RequestRecord req)
+            size += maxSize(req.cmd()) + maxSize(req.args()) + maxSize(req.success());
+        return size;
+    }
+
+    /**
+     * Max size of an encoded string
+     *
+     * @param str String
+     * @return Size in bytes the encoded string is not bigger than
+     */
+    private static int maxSize(String str) {
+        return 5 + (str == null ? 0 : str.length() * 3);
+    }
+
+    /**
+     * Takes a buffer from the pool or allocates a one-off buffer for a big record
+     *
+     * @param size Needed size in bytes
+     * @return Cleared buffer
+     */
+    private static ByteBuffer borrow(int size) {
+        if (size > BUFFER_SIZE)
+            return ByteBuffer.allocate(size);
+        ByteBuffer buf = pool.poll();
+        if (buf == null)
+            return ByteBuffer.allocateDirect(BUFFER_SIZE);
+        pooled.decrementAndGet();
+        return buf.clear();
+    }
+
+    /**
+     * Writes a string as UTF-8 straight into a buffer
+     *
+     * @param buf Buffer big enough for the string
+     * @param str String (may be null)
+     */
+    private static void putString(ByteBuffer buf, String str) {
+        if (str == null) {
+            buf.put((byte) 0);
+            return;
+        }
+        int length = 0;
+        for (int i = 0; i < str.length(); i++) {
+            char c = str.charAt(i);
+            if (c < 0x80)
+                length++;
+            else if (c < 0x800)
+                length += 2;
+            else if (Character.isHighSurrogate(c) && i + 1 < str.length() && Character.isLowSurrogate(str.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else
+                length += 3;
+        }
+        for (int v = length + 1; ; v >>>= 7) {
+            if ((v & ~0x7F) == 0) {
+                buf.put((byte) v);
+                break;
+            }
+            buf.put((byte) (v & 0x7F | 0x80));
+        }
+        for (int i = 0; i < str.length(); i++) {
+            char c = str.charAt(i);
+            if (c < 0x80)
+                buf.put((byte) c);
+            else if (c < 0x800)
+                buf.put((byte) (0xC0 | c >> 6)).put((byte) (0x80 | c & 0x3F));
+            else if (Character.isHighSurrogate(c) && i + 1 < str.length() && Character.isLowSurrogate(str.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, str.charAt(++i));
+                buf.put((byte) (0xF0 | cp >> 18)).put((byte) (0x80 | cp >> 12 & 0x3F));
+                buf.put((byte) (0x80 | cp >> 6 & 0x3F)).put((byte) (0x80 | cp & 0x3F));
+            } else {
+                if (Character.isSurrogate(c))
+                    c = '?';
+                buf.put((byte) (0xE0 | c >> 12)).put((byte) (0x80 | c >> 6 & 0x3F)).put((byte) (0x80 | c & 0x3F));
+            }
+        }
+    }
+
+    /**
+     * Reads a string
+     *
+     * @param buf Buffer positioned at the string
+     * @return String (may be null)
+     * @throws IOException corrupted string
+     */
+    private static String getString(ByteBuffer buf) throws IOException {
+        int v = 0;
+        for (int shift = 0; ; shift += 7) {
+            if (shift > 28 || !buf.hasRemaining())
+                throw new IOException("invalid string length");
+            byte b = buf.get();
+            v |= (b & 0x7F) << shift;
+            if (b >= 0)
+                break;
+        }
+        if (v == 0)
+            return null;
+        int length = v - 1;
+        if (length < 0 || length > buf.remaining())
+            throw new IOException("invalid string length " + length);
+        String res;
+        if (buf.hasArray())
+            res = new String(buf.array(), buf.arrayOffset() + buf.position(), length, StandardCharsets.UTF_8);
+        else {
+            byte[] bytes = new byte[length];
+            buf.get(buf.position(), bytes);
+            res = new String(bytes, StandardCharsets.UTF_8);
+        }
+        buf.position(buf.position() + length);
+        return res;
+    }
+}
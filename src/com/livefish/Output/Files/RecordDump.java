@@ -0,0 +1,47 @@
+package com.livefish.Output.Files;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Binary log file dump tool
+ * Prints records of binary log files (and their gzipped segments) in the text format of text log files
+ * java com.livefish.Output.Files.RecordDump [-ms] file...
+ *
+ * @author NAUMENKO-ZHIVOY ARTEM
+ * @version 2.0
+ * @see RecordCodec
+ */
+public class RecordDump {
+    /**
+     * Dump tool entry point
+     *
+     * @param args [-ms] file... (-ms writes milliseconds in timestamps)
+     */
+    public static void main(String[] args) {
+        boolean millis = args.length > 0 && args[0].equals("-ms");
+        if (args.length == (millis ? 1 : 0)) {
+            System.out.println("Usage: java com.livefish.Output.Files.RecordDump [-ms] file...");
+            return;
+        }
+        TimestampFormatter timestamps = new TimestampFormatter();
+        PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8), 64 * 1024));
+        StringBuilder sb = new StringBuilder(256);
+        boolean failed = false;
+        for (int i = millis ? 1 : 0; i < args.length; i++) {
+            try {
+                RecordCodec.read(new File(args[i]), record -> {
+                    sb.setLength(0);
+                    out.println(record.appendText(sb, timestamps, millis));
+                });
+            } catch (IOException e) {
+                out.flush();
+                System.err.println("Failed to read " + args[i] + ": " + e.getMessage());
+                failed = true;
+            }
+        }
+        out.flush();
+        if (failed)
+            System.exit(1);
+    }
+}
@@ -0,0 +1,28 @@
+package com.livefish.Output.Files;
+
+/**
+ * Finished request record
+ * Text form: DD.MM.YYYY[HH:MM:SS]$admin id$client id$command$arguments$result
+ *
+ * @param time    Finishing time in milliseconds since the epoch
+ * @param idA     Id of the admin, who sent the request
+ * @param idC     Id of the client, who executed the request
+ * @param cmd     Command
+ * @param args    Command arguments
+ * @param success Request result
+ * @author NAUMENKO-ZHIVOY ARTEM
+ * @version 2.0
+ * @see LogRecord
+ */
+public record RequestRecord(long time, int idA, int idC, String cmd, String args, String success) implements LogRecord {
+    @Override
+    public LogFileType type() {
+        return LogFileType.FINISHED_REQUESTS;
+    }
+
+    @Override
+    public StringBuilder appendText(StringBuilder sb, TimestampFormatter timestamps, boolean millis) {
+        (millis ? timestamps.appendMillisTo(sb, time) : timestamps.appendTo(sb, time)).append('$').append(idA);
+        return sb.append('$').append(idC).append('$').append(cmd).append('$').append(args).append('$').append(success);
+    }
+}
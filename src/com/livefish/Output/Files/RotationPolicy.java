@@ -0,0 +1,20 @@
+package com.livefish.Output.Files;
+
+/**
+ * Log file rotation policy
+ * The active file is closed as a segment when it reaches maxBytes or when it is older than maxAge,
+ * closed segments are compressed in the background and removed when there are more than keep of them
+ * or when they are older than retainAge
+ *
+ * @param maxBytes  Size the active file is rotated at in bytes
+ * @param maxAge    Age the active file is rotated at in milliseconds (empty files are not rotated)
+ * @param keep      Max count of kept segments
+ * @param retainAge Max age of a kept segment in milliseconds
+ * @param compress  Are closed segments compressed with gzip
+ * @author NAUMENKO-ZHIVOY ARTEM
+ * @version 2.0
+ * @see LogRotator
+ * @see FileLogger#setRotationPolicy(LogFileType, RotationPolicy)
+ */
+public record RotationPolicy(long maxBytes, long maxAge, int keep, long retainAge, boolean compress) {
+}
@@ -0,0 +1,217 @@
+package com.livefish.Output.Files;
+
+import java.time.DateTimeException;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+
+/**
+ * Log record timestamp formatter: DD.MM.YYYY[HH:MM:SS] or DD.MM.YYYY[HH:MM:SS.mmm]
+ * The text of the current second is built once and cached, a record timestamp is the cached text
+ * with milliseconds written straight into the caller's StringBuilder, so formatting does not allocate
+ * Binary log formats use epoch milliseconds (8 bytes, big-endian) instead of text
+ *
+ * @author NAUMENKO-ZHIVOY ARTEM
+ * @version 2.0
+ */
+public class TimestampFormatter {
+    /**
+     * Length of a timestamp without milliseconds: DD.MM.YYYY[HH:MM:SS]
+     */
+    public static final int LENGTH = 20;
+    /**
+     * Length of a timestamp with milliseconds: DD.MM.YYYY[HH:MM:SS.mmm]
+     */
+    public static final int MILLIS_LENGTH = 24;
+    /**
+     * Length of a binary timestamp in bytes
+     */
+    public static final int BINARY_LENGTH = 8;
+
+    /**
+     * Cached text of one second
+     *
+     * @param epochSecond Second since the epoch
+     * @param text        DD.MM.YYYY[HH:MM:SS] of the second
+     */
+    private record Second(long epochSecond, char[] text) {
+    }
+
+    /**
+     * Time zone of text timestamps
+     */
+    private final ZoneId zone;
+    /**
+     * Last formatted second (replaced as a whole, so readers never see a half-built text)
+     */
+    private volatile Second cached = new Second(Long.MIN_VALUE, new char[LENGTH]);
+
+    /**
+     * Formatter construction function for the system time zone
+     */
+    public TimestampFormatter() {
+        this(ZoneId.systemDefault());
+    }
+
+    /**
+     * Formatter construction function
+     *
+     * @param zone Time zone of text timestamps
+     */
+    public TimestampFormatter(ZoneId zone) {
+        this.zone = zone;
+    }
+
+    /**
+     * Appends a timestamp without milliseconds
+     *
+     * @param sb     Builder to append to
+     * @param millis Time in milliseconds since the epoch
+     * @return The same builder
+     */
+    public StringBuilder appendTo(StringBuilder sb, long millis) {
+        return sb.append(second(millis).text(), 0, LENGTH);
+    }
+
+    /**
+     * Appends a timestamp with milliseconds
+     *
+     * @param sb     Builder to append to
+     * @param millis Time in milliseconds since the epoch
+     * @return The same builder
+     */
+    public StringBuilder appendMillisTo(StringBuilder sb, long millis) {
+        int ms = (int) Math.floorMod(millis, 1000L);
+        return sb.append(second(millis).text(), 0, LENGTH - 1).append('.')
+                .append((char) ('0' + ms / 100)).append((char) ('0' + ms / 10 % 10)).append((char) ('0' + ms % 10))
+                .append(']');
+    }
+
+    /**
+     * Formats a timestamp
+     *
+     * @param millis     Time in milliseconds since the epoch
+     * @param withMillis Are milliseconds written
+     * @return DD.MM.YYYY[HH:MM:SS] or DD.MM.YYYY[HH:MM:SS.mmm]
+     */
+    public String format(long millis, boolean withMillis) {
+        StringBuilder sb = new StringBuilder(MILLIS_LENGTH);
+        return (withMillis ? appendMillisTo(sb, millis) : appendTo(sb, millis)).toString();
+    }
+
+    /**
+     * Parses a text timestamp
+     *
+     * @param text Text starting with DD.MM.YYYY[HH:MM:SS] or DD.MM.YYYY[HH:MM:SS.mmm]
+     * @return Time in milliseconds since the epoch
+     * @throws DateTimeException invalid timestamp
+     */
+    public long parse(CharSequence text) {
+        if (text.length() < LENGTH || text.charAt(2) != '.' || text.charAt(5) != '.' || text.charAt(10) != '['
+                || text.charAt(13) != ':' || text.charAt(16) != ':')
+            throw new DateTimeException("Invalid timestamp: " + text);
+        int ms = 0;
+        if (text.charAt(19) == '.' && text.length() >= MILLIS_LENGTH && text.charAt(23) == ']')
+            ms = digits(text, 20, 3);
+        else if (text.charAt(19) != ']')
+            throw new DateTimeException("Invalid timestamp: " + text);
+        LocalDateTime date = LocalDateTime.of(digits(text, 6, 4), digits(text, 3, 2), digits(text, 0, 2),
+                digits(text, 11, 2), digits(text, 14, 2), digits(text, 17, 2));
+        return date.atZone(zone).toEpochSecond() * 1000 + ms;
+    }
+
+    /**
+     * Writes a binary timestamp
+     *
+     * @param dst    Destination array
+     * @param offset Offset in the array
+     * @param millis Time in milliseconds since the epoch
+     */
+    public static void writeBinary(byte[] dst, int offset, long millis) {
+        for (int i = BINARY_LENGTH - 1; i >= 0; i--) {
+            dst[offset + i] = (byte) millis;
+            millis >>>= 8;
+        }
+    }
+
+    /**
+     * Reads a binary timestamp
+     *
+     * @param src    Source array
+     * @param offset Offset in the array
+     * @return Time in milliseconds since the epoch
+     */
+    public static long readBinary(byte[] src, int offset) {
+        long res = 0;
+        for (int i = 0; i < BINARY_LENGTH; i++)
+            res = res << 8 | (src[offset + i] & 0xFF);
+        return res;
+    }
+
+    /**
+     * Cached second text, rebuilt once a second
+     *
+     * @param millis Time in milliseconds since the epoch
+     * @return Text of the second of the time
+     */
+    private Second second(long millis) {
+        long epochSecond = Math.floorDiv(millis, 1000L);
+        Second cur = cached;
+        if (cur.epochSecond() == epochSecond)
+            return cur;
+
+        ZoneOffset offset = zone.getRules().getOffset(Instant.ofEpochSecond(epochSecond));
+        LocalDateTime date = LocalDateTime.ofEpochSecond(epochSecond, 0, offset);
+        char[] text = new char[LENGTH];
+        put(text, 0, date.getDayOfMonth());
+        text[2] = '.';
+        put(text, 3, date.getMonthValue());
+        text[5] = '.';
+        int year = date.getYear();
+        put(text, 6, year / 100 % 100);
+        put(text, 8, year % 100);
+        text[10] = '[';
+        put(text, 11, date.getHour());
+        text[13] = ':';
+        put(text, 14, date.getMinute());
+        text[16] = ':';
+        put(text, 17, date.getSecond());
+        text[19] = ']';
+        cur = new Second(epochSecond, text);
+        cached = cur;
+        return cur;
+    }
+
+    /**
+     * Parses decimal digits of a timestamp
+     *
+     * @param text  Timestamp
+     * @param from  First digit index
+     * @param count Count of digits
+     * @return Number
+     * @throws DateTimeException not a digit
+     */
+    private static int digits(CharSequence text, int from, int count) {
+        int res = 0;
+        for (int i = from; i < from + count; i++) {
+            char c = text.charAt(i);
+            if (c < '0' || c > '9')
+                throw new DateTimeException("Invalid timestamp: " + text);
+            res = res * 10 + c - '0';
+        }
+        return res;
+    }
+
+    /**
+     * Writes a two-digit number
+     *
+     * @param text   Destination
+     * @param offset Offset of the first digit
+     * @param value  Number from 0 to 99
+     */
+    private static void put(char[] text, int offset, int value) {
+        text[offset] = (char) ('0' + value / 10);
+        text[offset + 1] = (char) ('0' + value % 10);
+    }
+}
@@ -0,0 +1,133 @@
+package com.livefish.Output.Files;
+
+import com.livefish.Output.Console.Logger;
+
+import javax.crypto.spec.SecretKeySpec;
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Write-ahead log follower process
+ * Receives changes of the leader server, writes them to its own write-ahead log and applies them
+ * to its own log files, so a server started in the follower directory continues with all acknowledged
+ * registrations and requests
+ * java -Dlivefish.wal.secret=secret [-Dlivefish.wal.bind=address] com.livefish.Output.Files.WalFollower port [log folder]
+ * The follower listens only on the bind address (loopback by default) and accepts only a leader with the same secret
+ * Protocol: the follower sends a random challenge, the leader answers with its HMAC-SHA256 with the secret,
+ * then the follower sends its last sequence number, the leader sends batches (count, entries...)
+ * and the follower answers every batch with its new last sequence number
+ * Changes of files outside the follower log folder are rejected
+ *
+ * @author NAUMENKO-ZHIVOY ARTEM
+ * @version 2.0
+ * @see WriteAheadLog
+ */
+public class WalFollower {
+    /**
+     * Segment size of the follower write-ahead log in bytes
+     */
+    private static final long SEGMENT_SIZE = 16 * 1024 * 1024;
+    /**
+     * Random generator of leader challenges
+     */
+    private static final SecureRandom random = new SecureRandom();
+    /**
+     * Time a connected leader has to answer the challenge in milliseconds
+     */
+    private static final int CHALLENGE_TIMEOUT = 5000;
+
+    /**
+     * Follower entry point
+     *
+     * @param args port [log folder]
+     * @throws IOException exception during port opening
+     */
+    public static void main(String[] args) throws IOException {
+        String secret = System.getProperty("livefish.wal.secret", "");
+        if (args.length < 1 || args.length > 2 || !args[0].matches("\\d{1,5}") || secret.isEmpty()) {
+            System.out.println("Usage: java -Dlivefish.wal.secret=secret [-Dlivefish.wal.bind=address] com.livefish.Output.Files.WalFollower port [log folder]");
+            return;
+        }
+        Logger logger = Logger.getInstance();
+        SecretKeySpec key = WriteAheadLog.secretKey(secret);
+        InetAddress bind = InetAddress.getByName(System.getProperty("livefish.wal.bind", "127.0.0.1"));
+        FileLogger files = new FileLogger(args.length == 2 ? args[1] : "logFolder");
+        WriteAheadLog wal = new WriteAheadLog(files.getLogDirPath() + "wal", files, WriteAheadLog.AckMode.LEADER_ONLY, null, null, 0, SEGMENT_SIZE);
+
+        try (ServerSocket server = new ServerSocket(Integer.parseInt(args[0]), 50, bind)) {
+            logger.print("Write-ahead log follower is waiting for the leader on " + bind.getHostAddress() + ":" + args[0], "Default");
+            while (true) {
+                try (Socket leader = server.accept()) {
+                    leader.setTcpNoDelay(true);
+                    if (!authenticate(leader, key)) {
+                        logger.print("Rejected leader connection from " + leader.getRemoteSocketAddress() + ": wrong secret", "Wrong data");
+                        continue;
+                    }
+                    logger.print("Leader connected: " + leader.getRemoteSocketAddress(), "Default");
+                    follow(leader, wal);
+                } catch (IOException e) {
+                    logger.print("Leader disconnected: " + e.getMessage(), "Default");
+                }
+            }
+        }
+    }
+
+    /**
+     * Checks that a leader knows the shared secret
+     * The leader must answer a random challenge with its HMAC-SHA256 within CHALLENGE_TIMEOUT
+     *
+     * @param leader Leader connection
+     * @param key    Key of the shared secret
+     * @return True if the answer is the right mac
+     * @throws IOException exception during communication
+     */
+    private static boolean authenticate(Socket leader, SecretKeySpec key) throws IOException {
+        byte[] challenge = new byte[WriteAheadLog.CHALLENGE];
+        random.nextBytes(challenge);
+        OutputStream out = leader.getOutputStream();
+        out.write(challenge);
+        out.flush();
+        leader.setSoTimeout(CHALLENGE_TIMEOUT);
+        byte[] answer = leader.getInputStream().readNBytes(WriteAheadLog.CHALLENGE);
+        leader.setSoTimeout(0);
+        return MessageDigest.isEqual(WriteAheadLog.mac(key, challenge), answer);
+    }
+
+    /**
+     * Receives changes of one leader connection until it is closed
+     *
+     * @param leader Leader connection
+     * @param wal    Follower write-ahead log
+     * @throws IOException exception during communication or a gap in received changes
+     */
+    private static void follow(Socket leader, WriteAheadLog wal) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(leader.getInputStream()));
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(leader.getOutputStream()));
+        out.writeLong(wal.lastSeq());
+        out.flush();
+        while (true) {
+            int count = in.readInt();
+            List<byte[]> frames = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                int length = in.readInt();
+                if (length <= 0 || length > 64 * 1024 * 1024)
+                    throw new IOException("invalid entry length " + length);
+                byte[] frame = new byte[8 + length];
+                frame[0] = (byte) (length >>> 24);
+                frame[1] = (byte) (length >>> 16);
+                frame[2] = (byte) (length >>> 8);
+                frame[3] = (byte) length;
+                in.readFully(frame, 4, 4 + length);
+                frames.add(frame);
+            }
+            out.writeLong(wal.receive(frames));
+            out.flush();
+        }
+    }
+}
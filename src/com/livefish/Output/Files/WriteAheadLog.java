@@ -0,0 +1,1031 @@
+package com.livefish.Output.Files;
+
+import com.livefish.Output.Console.Logger;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.*;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * Write-ahead log of log file changes with an optional follower replica
+ * Every change (lines appended to a file or a file clear) gets a sequence number and is written to a segment file,
+ * forced to disk and only then applied to the log file, so a crash never loses a change, which was acknowledged
+ * Applied log files are forced before the last applied sequence number is saved (and forced),
+ * so segments are removed only behind changes, which are on the disk in their log files
+ * A failed segment write is cut off and retried, after WRITE_RETRIES failures in a row the log stops
+ * and changes are written directly to log files, like changes written after the log is closed
+ * Changes of many threads are written and forced together (group commit) by one flusher thread
+ * A replicator thread sends forced changes to the follower in batches, the follower writes them to its own log
+ * and acknowledges the last sequence number; in QUORUM mode a change is acknowledged only after the follower has it
+ * The follower starts every connection with a random challenge, the leader answers with its HMAC-SHA256
+ * with the shared secret, so only a leader knowing the secret can send changes
+ * Segment entry: length, CRC32 of the payload, payload: sequence number, clear flag, file name, line count, lines
+ * Segments are named by their first sequence number and are removed when all their changes are applied
+ * (and acknowledged by the follower, if there is one)
+ *
+ * @author NAUMENKO-ZHIVOY ARTEM
+ * @version 2.0
+ * @see FileLogger
+ * @see WalFollower
+ */
+public class WriteAheadLog implements Closeable {
+    /**
+     * When a change is acknowledged to the writing thread
+     */
+    public enum AckMode {
+        /**
+         * When the change is forced to the local disk
+         */
+        LEADER_ONLY,
+        /**
+         * When the change is forced to the local disk and acknowledged by the follower
+         * (the leader and its only follower are the quorum)
+         */
+        QUORUM
+    }
+
+    /**
+     * Applies changes to log files
+     */
+    public interface Applier {
+        /**
+         * Applies a change
+         *
+         * @param file  Log file name relative to the log directory
+         * @param clear Is the file cleared before the lines are appended
+         * @param lines Lines to append
+         * @throws UncheckedIOException if the change can not be written, it must not be reported as applied
+         */
+        void apply(String file, boolean clear, List<String> lines);
+
+        /**
+         * Forces an applied log file to the storage device
+         *
+         * @param file Log file name relative to the log directory
+         * @throws UncheckedIOException if the file can not be forced
+         */
+        void sync(String file);
+    }
+
+    /**
+     * Logged change
+     *
+     * @param seq   Sequence number
+     * @param clear Is the file cleared before the lines are appended
+     * @param file  Log file name relative to the log directory
+     * @param lines Lines to append
+     */
+    record Entry(long seq, boolean clear, String file, List<String> lines) {
+        /**
+         * Encodes the change as a segment entry
+         *
+         * @return length, CRC32, payload
+         */
+        byte[] encode() {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+            try (DataOutputStream out = new DataOutputStream(bytes)) {
+                out.writeInt(0);
+                out.writeInt(0);
+                out.writeLong(seq);
+                out.writeBoolean(clear);
+                writeString(out, file);
+                out.writeInt(lines.size());
+                for (String line : lines)
+                    writeString(out, line);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            byte[] frame = bytes.toByteArray();
+            CRC32 crc = new CRC32();
+            crc.update(frame, 8, frame.length - 8);
+            ByteBuffer.wrap(frame).putInt(frame.length - 8).putInt((int) crc.getValue());
+            return frame;
+        }
+
+        /**
+         * Decodes a segment entry
+         *
+         * @param frame length, CRC32, payload
+         * @return Decoded change
+         * @throws IOException if the entry is damaged
+         */
+        static Entry decode(byte[] frame) throws IOException {
+            ByteBuffer header = ByteBuffer.wrap(frame, 0, 8);
+            int length = header.getInt();
+            CRC32 crc = new CRC32();
+            crc.update(frame, 8, frame.length - 8);
+            if (length != frame.length - 8 || header.getInt() != (int) crc.getValue())
+                throw new IOException("damaged write-ahead log entry");
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(frame, 8, length));
+            long seq = in.readLong();
+            boolean clear = in.readBoolean();
+            String file = readString(in);
+            int count = in.readInt();
+            List<String> lines = new ArrayList<>(count);
+            for (int i = 0; i < count; i++)
+                lines.add(readString(in));
+            return new Entry(seq, clear, file, lines);
+        }
+    }
+
+    /**
+     * A change waiting for the flusher
+     *
+     * @param entry  Change
+     * @param frame  Encoded change
+     * @param forced Completed when the change is forced and applied
+     */
+    private record Pending(Entry entry, byte[] frame, CompletableFuture<Void> forced) {
+    }
+
+    /**
+     * Segment file extension
+     */
+    private static final String SEGMENT = ".seg";
+    /**
+     * Max size of one entry in bytes (bigger lengths mean a damaged entry)
+     */
+    private static final int MAX_ENTRY = 64 * 1024 * 1024;
+    /**
+     * Max count of entries sent to the follower at once
+     */
+    private static final int REPLICATION_BATCH = 512;
+    /**
+     * Count of batches between checks for segments to remove (segments are checked on every new segment too)
+     */
+    private static final int TRIM_BATCHES = 256;
+    /**
+     * Max count of segments kept for a follower, which does not acknowledge them
+     */
+    private static final int MAX_SEGMENTS = 64;
+    /**
+     * Count of failed segment writes in a row after which the log stops
+     */
+    private static final int WRITE_RETRIES = 3;
+    /**
+     * Length of the follower challenge and of its mac in bytes
+     */
+    static final int CHALLENGE = 32;
+
+    /**
+     * Segments directory
+     */
+    private final File dir;
+    /**
+     * File with the last applied sequence number
+     */
+    private final File appliedFile;
+    /**
+     * Change applier
+     */
+    private final Applier applier;
+    /**
+     * Acknowledgement mode
+     */
+    private final AckMode mode;
+    /**
+     * Follower address (host:port), null if there is no follower
+     */
+    private final String follower;
+    /**
+     * HMAC key of the secret shared with the follower (null if there is no follower)
+     */
+    private final SecretKeySpec key;
+    /**
+     * Time to wait for the follower acknowledgement in QUORUM mode in milliseconds
+     */
+    private final long ackTimeout;
+    /**
+     * Size a segment is closed at in bytes
+     */
+    private final long segmentSize;
+    /**
+     * Logger instance for console
+     */
+    private final Logger logger = Logger.getInstance();
+
+    /**
+     * Changes waiting for the flusher (also the lock for sequence numbers)
+     */
+    private final List<Pending> queue = new ArrayList<>();
+    /**
+     * Last given sequence number
+     */
+    private long lastSeq;
+    /**
+     * Last forced and applied sequence number
+     */
+    private volatile long durableSeq;
+    /**
+     * Last sequence number acknowledged by the follower
+     */
+    private volatile long ackedSeq;
+    /**
+     * Changes waiting for the follower acknowledgement by their sequence numbers (QUORUM mode)
+     */
+    private final ConcurrentSkipListMap<Long, CompletableFuture<Void>> waitingAck = new ConcurrentSkipListMap<>();
+    /**
+     * Lock the replicator waits on for new forced changes
+     */
+    private final Object tail = new Object();
+    /**
+     * Current segment (used only by the flusher)
+     */
+    private FileChannel segment;
+    /**
+     * File with the last applied sequence number, opened for writing (used only by the flusher after recovery)
+     */
+    private FileChannel appliedChannel;
+    /**
+     * Is the log closed
+     */
+    private volatile boolean closed;
+    /**
+     * Is the follower connected
+     */
+    private volatile boolean connected;
+
+    /**
+     * Count of forced batches
+     */
+    private final AtomicLong batches = new AtomicLong();
+    /**
+     * Count of logged changes
+     */
+    private final AtomicLong entries = new AtomicLong();
+    /**
+     * Count of changes, which were not acknowledged by the follower in time
+     */
+    private final AtomicLong ackTimeouts = new AtomicLong();
+    /**
+     * Count of failed segment writes
+     */
+    private final AtomicLong writeFailures = new AtomicLong();
+    /**
+     * Count of changes written directly to log files because the log was closed or stopped
+     */
+    private final AtomicLong directWrites = new AtomicLong();
+
+    /**
+     * Write-ahead log construction function
+     * Changes after the last applied one are applied again (a crash between forcing and applying),
+     * a torn entry at the end of the last segment is cut off
+     *
+     * @param dirPath     Segments directory
+     * @param applier     Change applier
+     * @param mode        Acknowledgement mode
+     * @param follower    Follower address (host:port), empty or null if there is no follower
+     * @param secret      Secret shared with the follower (needed only if there is one)
+     * @param ackTimeout  Time to wait for the follower acknowledgement in QUORUM mode in milliseconds
+     * @param segmentSize Size a segment is closed at in bytes
+     * @throws UncheckedIOException     if the log can not be read or created
+     * @throws IllegalArgumentException if there is a follower, but no secret
+     */
+    public WriteAheadLog(String dirPath, Applier applier, AckMode mode, String follower, String secret, long ackTimeout, long segmentSize) {
+        this.dir = new File(dirPath);
+        this.appliedFile = new File(dir, "applied");
+        this.applier = applier;
+        this.mode = mode;
+        this.follower = follower == null || follower.isEmpty() ? null : follower;
+        if (this.follower != null && (secret == null || secret.isEmpty()))
+            throw new IllegalArgumentException("Write-ahead log follower " + follower + " needs a shared secret (livefish.wal.secret)");
+        this.key = this.follower == null ? null : secretKey(secret);
+        this.ackTimeout = ackTimeout;
+        this.segmentSize = segmentSize;
+        if (!dir.exists() && !dir.mkdirs())
+            throw new UncheckedIOException(new IOException("Failed to create write-ahead log directory in: " + dir.getAbsolutePath()));
+        try {
+            recover();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        Thread flusher = new Thread(this::flushLoop, "Write-ahead log");
+        flusher.setDaemon(true);
+        flusher.start();
+        if (this.follower != null) {
+            Thread replicator = new Thread(this::replicateLoop, "Write-ahead log replication");
+            replicator.setDaemon(true);
+            replicator.start();
+        }
+        logger.print("Write-ahead log: " + dir.getAbsolutePath() + ", last change: " + lastSeq + ", ack: " + mode +
+                (this.follower == null ? "" : ", follower: " + this.follower), "Yellow");
+    }
+
+    /**
+     * Logs a change and waits until it is acknowledged
+     * The change is applied to the log file before the function returns
+     * A change written after the log is closed or stopped is applied and forced directly
+     *
+     * @param file  Log file name relative to the log directory
+     * @param clear Is the file cleared before the lines are appended
+     * @param lines Lines to append
+     */
+    public void append(String file, boolean clear, List<String> lines) {
+        CompletableFuture<Void> forced = new CompletableFuture<>();
+        CompletableFuture<Void> acked = null;
+        long seq;
+        synchronized (queue) {
+            if (closed)
+                seq = 0;
+            else {
+                seq = ++lastSeq;
+                if (mode == AckMode.QUORUM && follower != null) {
+                    acked = new CompletableFuture<>();
+                    waitingAck.put(seq, acked);
+                }
+                Entry entry = new Entry(seq, clear, file, lines);
+                queue.add(new Pending(entry, entry.encode(), forced));
+                queue.notifyAll();
+            }
+        }
+        if (seq == 0) {
+            directWrites.incrementAndGet();
+            applyDirectly(file, clear, lines);
+            return;
+        }
+
+        try {
+            forced.get();
+        } catch (ExecutionException e) {
+            logger.print("Write-ahead log failed (" + e.getCause() + "), change " + seq + " is written directly to " + file, "Error");
+            applyDirectly(file, clear, lines);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (acked != null)
+            awaitAck(seq, acked);
+    }
+
+    /**
+     * Applies and forces a change, which is not in the log
+     * The change can't be replayed, so a failure is only reported, like a failed write without the log
+     *
+     * @param file  Log file name relative to the log directory
+     * @param clear Is the file cleared before the lines are appended
+     * @param lines Lines to append
+     */
+    private void applyDirectly(String file, boolean clear, List<String> lines) {
+        try {
+            applier.apply(file, clear, lines);
+            applier.sync(file);
+        } catch (RuntimeException e) {
+            logger.print("Failed to write a change directly to " + file + ": " + e.getMessage(), "Error");
+        }
+    }
+
+    /**
+     * Waits for the follower acknowledgement of a change
+     * If the follower does not acknowledge it in time or is not connected at all,
+     * the change stays only on this node (writers are not blocked by a lost follower)
+     *
+     * @param seq   Change sequence number
+     * @param acked Completed on acknowledgement
+     */
+    private void awaitAck(long seq, CompletableFuture<Void> acked) {
+        try {
+            if (ackedSeq < seq) {
+                if (!connected)
+                    throw new TimeoutException();
+                acked.get(ackTimeout, TimeUnit.MILLISECONDS);
+            }
+        } catch (TimeoutException | ExecutionException e) {
+            if (ackTimeouts.getAndIncrement() % 1000 == 0)
+                logger.print("Follower " + follower + " did not acknowledge change " + seq + " in " + ackTimeout + " ms, changes are kept only on this node", "Error");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            waitingAck.remove(seq);
+        }
+    }
+
+    /**
+     * Logs changes received from the leader with their sequence numbers (follower side)
+     * Already logged changes are skipped, a batch with a change of a file outside the log directory is rejected whole
+     *
+     * @param frames Encoded changes in sequence order
+     * @return Last logged sequence number
+     * @throws IOException if a change is damaged, names an invalid file or some changes are missing
+     */
+    long receive(List<byte[]> frames) throws IOException {
+        List<Entry> entries = new ArrayList<>(frames.size());
+        for (byte[] frame : frames) {
+            Entry entry = Entry.decode(frame);
+            if (!FileLogger.isLogFileName(entry.file()))
+                throw new IOException("change " + entry.seq() + " names a file outside the log directory: " + entry.file());
+            entries.add(entry);
+        }
+        CompletableFuture<Void> forced = null;
+        long last;
+        synchronized (queue) {
+            for (int i = 0; i < frames.size(); i++) {
+                Entry entry = entries.get(i);
+                byte[] frame = frames.get(i);
+                if (entry.seq() <= lastSeq)
+                    continue;
+                if (entry.seq() != lastSeq + 1)
+                    throw new IOException("changes " + (lastSeq + 1) + "-" + (entry.seq() - 1) + " are missing, the follower must be copied from the leader again");
+                lastSeq = entry.seq();
+                forced = new CompletableFuture<>();
+                queue.add(new Pending(entry, frame, forced));
+            }
+            last = lastSeq;
+            queue.notifyAll();
+        }
+        if (forced != null)
+            try {
+                forced.get();
+            } catch (ExecutionException e) {
+                throw new IOException(e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        return last;
+    }
+
+    /**
+     * Last logged sequence number getter
+     *
+     * @return Last logged sequence number
+     */
+    public long lastSeq() {
+        synchronized (queue) {
+            return lastSeq;
+        }
+    }
+
+    /**
+     * Write-ahead log statistics
+     *
+     * @return mode=..,last=..,durable=..,acked=..,follower=..,batches=..,entries=..,ackTimeouts=..,writeFailures=..,directWrites=..
+     */
+    public String stats() {
+        return "mode=" + mode + ",last=" + lastSeq() + ",durable=" + durableSeq + ",acked=" + ackedSeq +
+                ",follower=" + (follower == null ? "none" : follower + (connected ? "(connected)" : "(disconnected)")) +
+                ",batches=" + batches.get() + ",entries=" + entries.get() + ",ackTimeouts=" + ackTimeouts.get() +
+                ",writeFailures=" + writeFailures.get() + ",directWrites=" + directWrites.get();
+    }
+
+    /**
+     * Stops the log after all waiting changes are forced
+     */
+    @Override
+    public void close() {
+        synchronized (queue) {
+            closed = true;
+            queue.notifyAll();
+        }
+        synchronized (tail) {
+            tail.notifyAll();
+        }
+    }
+
+    /**
+     * Reads all segments, applies changes after the last applied one and opens the last segment for writing
+     *
+     * @throws IOException exception during segment reading
+     */
+    private void recover() throws IOException {
+        long applied = readApplied();
+        Set<String> reapplied = new HashSet<>();
+        List<File> segments = segments();
+        for (File file : segments) {
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                long pos = 0;
+                byte[] frame;
+                while ((frame = readFrame(channel, pos)) != null) {
+                    Entry entry;
+                    try {
+                        entry = Entry.decode(frame);
+                    } catch (IOException e) {
+                        break;
+                    }
+                    if (entry.seq() > applied) {
+                        applier.apply(entry.file(), entry.clear(), entry.lines());
+                        reapplied.add(entry.file());
+                    }
+                    lastSeq = entry.seq();
+                    pos += frame.length;
+                }
+                if (pos < channel.size()) {
+                    logger.print("Torn write-ahead log entry cut off in " + file.getName() + " at " + pos, "Error");
+                    channel.truncate(pos);
+                }
+            }
+        }
+        if (lastSeq > applied)
+            logger.print("Write-ahead log: " + (lastSeq - applied) + " changes applied again after restart", "Yellow");
+        reapplied.forEach(applier::sync);
+        durableSeq = lastSeq;
+        appliedChannel = FileChannel.open(appliedFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        writeApplied(lastSeq);
+
+        File current = segments.isEmpty() ? new File(dir, segmentName(lastSeq + 1)) : segments.get(segments.size() - 1);
+        segment = FileChannel.open(current.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    /**
+     * Flusher thread: writes waiting changes, forces them, applies them to log files, forces the log files
+     * and the last applied sequence number and wakes up their writers
+     * A batch, which failed to be written or forced, is cut off the segment and written again with the next batch,
+     * after WRITE_RETRIES failures in a row the log is stopped and its writers write directly
+     */
+    private void flushLoop() {
+        int failures = 0;
+        while (true) {
+            List<Pending> batch;
+            synchronized (queue) {
+                while (queue.isEmpty()) {
+                    if (closed)
+                        return;
+                    try {
+                        queue.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                batch = new ArrayList<>(queue);
+                queue.clear();
+            }
+
+            boolean rolled = false;
+            long start = -1;
+            try {
+                if (segment.size() >= segmentSize) {
+                    rolled = true;
+                    segment.close();
+                    segment = FileChannel.open(new File(dir, segmentName(batch.get(0).entry().seq())).toPath(),
+                            StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+                }
+                start = segment.size();
+                ByteBuffer[] buffers = new ByteBuffer[batch.size()];
+                for (int i = 0; i < buffers.length; i++)
+                    buffers[i] = ByteBuffer.wrap(batch.get(i).frame());
+                while (buffers[buffers.length - 1].hasRemaining())
+                    segment.write(buffers);
+                segment.force(false);
+                failures = 0;
+            } catch (IOException e) {
+                writeFailures.incrementAndGet();
+                if (++failures < WRITE_RETRIES && cutOff(start)) {
+                    logger.print("Write-ahead log write failed (" + e.getMessage() + "), it is cut off and written again", "Error");
+                    synchronized (queue) {
+                        queue.addAll(0, batch);
+                    }
+                    sleep(100L * failures);
+                } else
+                    stop(batch, WRITE_RETRIES + " failed writes", e);
+                continue;
+            }
+
+            try {
+                Set<String> files = new LinkedHashSet<>();
+                for (Pending pending : batch) {
+                    applier.apply(pending.entry().file(), pending.entry().clear(), pending.entry().lines());
+                    files.add(pending.entry().file());
+                }
+                files.forEach(applier::sync);
+                long last = batch.get(batch.size() - 1).entry().seq();
+                writeApplied(last);
+                durableSeq = last;
+                batches.incrementAndGet();
+                entries.addAndGet(batch.size());
+                for (Pending pending : batch)
+                    pending.forced().complete(null);
+            } catch (IOException | RuntimeException e) {
+                // the changes are forced in the segment and are applied again on the next start,
+                // the saved sequence number must not pass them, so the log stops here
+                for (Pending pending : batch)
+                    pending.forced().complete(null);
+                stop(List.of(), "failed to apply changes " + batch.get(0).entry().seq() + "-" + batch.get(batch.size() - 1).entry().seq(), e);
+                continue;
+            }
+            synchronized (tail) {
+                tail.notifyAll();
+            }
+            if (rolled || batches.get() % TRIM_BATCHES == 0)
+                trim();
+        }
+    }
+
+    /**
+     * Cuts a failed write off the current segment
+     *
+     * @param pos Segment size before the write (-1 if the write did not start)
+     * @return True if the segment ends with its last whole entry now
+     */
+    private boolean cutOff(long pos) {
+        if (pos < 0)
+            return true;
+        try {
+            segment.truncate(pos);
+            segment.force(false);
+            return true;
+        } catch (IOException e) {
+            logger.print("Failed to cut off a failed write-ahead log write: " + e.getMessage(), "Error");
+            return false;
+        }
+    }
+
+    /**
+     * Stops the log after a failure: waiting changes and all later ones are written directly to log files
+     * A torn entry left at the end of the segment is cut off on the next start
+     *
+     * @param batch  Changes of the failed write (empty if they are in the log)
+     * @param reason Stop reason for the log
+     * @param cause  Failure
+     */
+    private void stop(List<Pending> batch, String reason, Exception cause) {
+        logger.print("Write-ahead log is stopped: " + reason + " (" + cause.getMessage() + "), changes are written directly to log files", "Error");
+        List<Pending> failed = new ArrayList<>(batch);
+        synchronized (queue) {
+            closed = true;
+            failed.addAll(queue);
+            queue.clear();
+        }
+        for (Pending pending : failed)
+            pending.forced().completeExceptionally(cause);
+        synchronized (tail) {
+            tail.notifyAll();
+        }
+    }
+
+    /**
+     * Sleeps without being interrupted
+     *
+     * @param millis Time to sleep in milliseconds
+     */
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Replicator thread: connects to the follower, reads its last sequence number
+     * and sends it all later forced changes in batches, reconnects after a second if the connection is lost
+     */
+    private void replicateLoop() {
+        String[] address = follower.split(":");
+        boolean reported = false;
+        while (!closed) {
+            try (Socket socket = new Socket(address[0], Integer.parseInt(address[1]))) {
+                socket.setTcpNoDelay(true);
+                DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                byte[] challenge = in.readNBytes(CHALLENGE);
+                if (challenge.length != CHALLENGE)
+                    throw new IOException("no follower challenge");
+                out.write(mac(key, challenge));
+                out.flush();
+                long sent = in.readLong();
+                acknowledge(sent);
+                connected = true;
+                reported = false;
+                logger.print("Write-ahead log follower " + follower + " connected, its last change: " + sent, "Connection");
+
+                AtomicBoolean lost = new AtomicBoolean();
+                Thread acks = new Thread(() -> {
+                    try {
+                        while (true)
+                            acknowledge(in.readLong());
+                    } catch (IOException ignored) {
+                        // the follower is lost, the replicator reconnects
+                    }
+                    lost.set(true);
+                }, "Write-ahead log acks");
+                acks.setDaemon(true);
+                acks.start();
+
+                try (Cursor cursor = new Cursor(sent)) {
+                    while (!closed && !lost.get()) {
+                        List<byte[]> frames = cursor.next(durableSeq, REPLICATION_BATCH);
+                        if (frames.isEmpty()) {
+                            synchronized (tail) {
+                                if (durableSeq <= cursor.seq && !closed)
+                                    tail.wait(1000);
+                            }
+                            continue;
+                        }
+                        out.writeInt(frames.size());
+                        for (byte[] frame : frames)
+                            out.write(frame);
+                        out.flush();
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                if (!reported)
+                    logger.print("Write-ahead log follower " + follower + " is not available: " + e.getMessage(), "Error");
+                reported = true;
+            } catch (InterruptedException e) {
+                return;
+            } finally {
+                if (connected)
+                    logger.print("Write-ahead log follower " + follower + " disconnected", "Disconnection");
+                connected = false;
+            }
+            try {
+                Thread.sleep(1000);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Follower acknowledgement handling: wakes up writers of all changes up to seq
+     *
+     * @param seq Last sequence number the follower has
+     */
+    private void acknowledge(long seq) {
+        ackedSeq = seq;
+        var done = waitingAck.headMap(seq, true);
+        done.values().forEach(acked -> acked.complete(null));
+        done.clear();
+    }
+
+    /**
+     * Removes segments, which are not needed anymore
+     * A segment is needed while it has changes, which are not applied or not acknowledged by the follower,
+     * but not more than MAX_SEGMENTS segments are kept for a lost follower
+     */
+    private void trim() {
+        List<File> segments = segments();
+        long keepAfter = follower == null ? durableSeq : Math.min(durableSeq, ackedSeq);
+        for (int i = 0; i + 1 < segments.size(); i++) {
+            long lastInSegment = firstSeq(segments.get(i + 1)) - 1;
+            boolean tooMany = segments.size() - i > MAX_SEGMENTS;
+            if (lastInSegment > keepAfter && !tooMany)
+                break;
+            if (lastInSegment > keepAfter)
+                logger.print("Write-ahead log segment " + segments.get(i).getName() + " removed before the follower got it", "Error");
+            if (!segments.get(i).delete())
+                break;
+        }
+    }
+
+    /**
+     * Reads segments from a sequence number on (replicator side)
+     */
+    private class Cursor implements Closeable {
+        /**
+         * Last read sequence number
+         */
+        private long seq;
+        /**
+         * Current segment
+         */
+        private FileChannel channel;
+        /**
+         * First sequence number of the current segment
+         */
+        private long first;
+        /**
+         * Read position in the current segment
+         */
+        private long pos;
+
+        /**
+         * Cursor construction function
+         *
+         * @param after Sequence number to read after
+         */
+        Cursor(long after) {
+            this.seq = after;
+        }
+
+        /**
+         * Reads next forced changes
+         *
+         * @param upTo Last sequence number to read
+         * @param max  Max count of changes to read
+         * @return Encoded changes, empty if there are no new forced changes
+         * @throws IOException if the changes after seq are not in the log anymore
+         */
+        List<byte[]> next(long upTo, int max) throws IOException {
+            List<byte[]> frames = new ArrayList<>();
+            while (frames.size() < max && seq < upTo) {
+                if (channel == null && !open())
+                    break;
+                byte[] frame = readFrame(channel, pos);
+                if (frame == null) {
+                    if (!nextSegment())
+                        break;
+                    continue;
+                }
+                long frameSeq = ByteBuffer.wrap(frame, 8, 8).getLong();
+                if (frameSeq > upTo)
+                    break;
+                pos += frame.length;
+                if (frameSeq <= seq)
+                    continue;
+                if (frameSeq != seq + 1)
+                    throw new IOException("changes " + (seq + 1) + "-" + (frameSeq - 1) + " are not in the log anymore");
+                frames.add(frame);
+                seq = frameSeq;
+            }
+            return frames;
+        }
+
+        /**
+         * Opens the segment with the change after seq
+         *
+         * @return True if there is such a segment
+         * @throws IOException exception during opening
+         */
+        private boolean open() throws IOException {
+            File found = null;
+            for (File file : segments())
+                if (firstSeq(file) <= seq + 1)
+                    found = file;
+            if (found == null) {
+                List<File> segments = segments();
+                if (segments.isEmpty())
+                    return false;
+                found = segments.get(0);
+            }
+            channel = FileChannel.open(found.toPath(), StandardOpenOption.READ);
+            first = firstSeq(found);
+            pos = 0;
+            return true;
+        }
+
+        /**
+         * Moves to the segment after the current one
+         *
+         * @return True if there is a newer segment
+         * @throws IOException exception during opening
+         */
+        private boolean nextSegment() throws IOException {
+            for (File file : segments())
+                if (firstSeq(file) > first) {
+                    channel.close();
+                    channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+                    first = firstSeq(file);
+                    pos = 0;
+                    return true;
+                }
+            return false;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (channel != null)
+                channel.close();
+        }
+    }
+
+    /**
+     * Reads one entry at a position
+     *
+     * @param channel Segment
+     * @param pos     Entry position
+     * @return length, CRC32, payload; null if there is no whole entry at the position
+     * @throws IOException exception during reading
+     */
+    private static byte[] readFrame(FileChannel channel, long pos) throws IOException {
+        long size = channel.size();
+        if (pos + 8 > size)
+            return null;
+        ByteBuffer header = ByteBuffer.allocate(4);
+        channel.read(header, pos);
+        int length = header.flip().getInt();
+        if (length <= 0 || length > MAX_ENTRY || pos + 8 + length > size)
+            return null;
+        ByteBuffer frame = ByteBuffer.allocate(8 + length);
+        while (frame.hasRemaining())
+            if (channel.read(frame, pos + frame.position()) < 0)
+                return null;
+        return frame.array();
+    }
+
+    /**
+     * Segment files in sequence order
+     *
+     * @return Segment files
+     */
+    private List<File> segments() {
+        File[] files = dir.listFiles((d, name) -> name.endsWith(SEGMENT));
+        if (files == null)
+            return new ArrayList<>();
+        List<File> res = new ArrayList<>(Arrays.asList(files));
+        res.sort(Comparator.comparingLong(WriteAheadLog::firstSeq));
+        return res;
+    }
+
+    /**
+     * Segment file name
+     *
+     * @param first First sequence number of the segment
+     * @return Zero-padded sequence number with extension
+     */
+    private static String segmentName(long first) {
+        return String.format("%020d", first) + SEGMENT;
+    }
+
+    /**
+     * First sequence number of a segment
+     *
+     * @param segment Segment file
+     * @return First sequence number from the file name
+     */
+    private static long firstSeq(File segment) {
+        return Long.parseLong(segment.getName().substring(0, segment.getName().length() - SEGMENT.length()));
+    }
+
+    /**
+     * Reads the last applied sequence number
+     *
+     * @return Last applied sequence number, 0 if it was never saved
+     */
+    private long readApplied() {
+        try {
+            return Long.parseLong(Files.readString(appliedFile.toPath()).trim());
+        } catch (IOException | NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Saves and forces the last applied sequence number
+     * The number is written over the previous one with the same length, so a torn write can't leave an empty file
+     *
+     * @param seq Last applied sequence number
+     * @throws IOException exception during writing or forcing
+     */
+    private void writeApplied(long seq) throws IOException {
+        ByteBuffer buf = ByteBuffer.wrap(String.format("%020d", seq).getBytes(StandardCharsets.US_ASCII));
+        while (buf.hasRemaining())
+            appliedChannel.write(buf, buf.position());
+        appliedChannel.truncate(buf.capacity());
+        appliedChannel.force(false);
+    }
+
+    /**
+     * HMAC key of a shared secret
+     *
+     * @param secret Shared secret
+     * @return HMAC-SHA256 key
+     */
+    static SecretKeySpec secretKey(String secret) {
+        return new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), "HmacSHA256");
+    }
+
+    /**
+     * HMAC-SHA256 of a follower challenge
+     *
+     * @param key       Key of the shared secret
+     * @param challenge Challenge sent by the follower
+     * @return CHALLENGE bytes of the mac
+     */
+    static byte[] mac(SecretKeySpec key, byte[] challenge) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(key);
+            return mac.doFinal(challenge);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HmacSHA256 is not available", e);
+        }
+    }
+
+    /**
+     * Writes a string as its UTF-8 length and bytes
+     *
+     * @param out Stream to write to
+     * @param str String to write
+     * @throws IOException exception during writing
+     */
+    private static void writeString(DataOutputStream out, String str) throws IOException {
+        byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Reads a string written with writeString
+     *
+     * @param in Stream to read from
+     * @return Read string
+     * @throws IOException exception during reading
+     */
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > in.available())
+            throw new IOException("invalid string length");
+        return new String(in.readNBytes(length), StandardCharsets.UTF_8);
+    }
+}